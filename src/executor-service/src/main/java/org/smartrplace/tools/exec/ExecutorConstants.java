@@ -44,6 +44,21 @@ public class ExecutorConstants {
 	 */
 	public static final String TASK_PROPERTIES_TIME_UNIT = "org.smartrplace.tools.housekeeping.Unit";
 	
+	/**
+	 * Optional service property for {@link Runnable} services: maximum random delay added to the
+	 * initial {@link #TASK_DELAY delay}, in the unit specified by {@link #TASK_PROPERTIES_TIME_UNIT}.
+	 * Use this to spread the execution of tasks that would otherwise start at the same time, e.g.
+	 * after a restart. Value type: Long.
+	 */
+	public static final String TASK_JITTER = "org.smartrplace.tools.housekeeping.Jitter";
+	
+	/**
+	 * Optional service property for {@link Runnable} services. If set to true, the task is 
+	 * considered I/O-heavy, and the number of I/O-heavy tasks running concurrently is 
+	 * limited by the housekeeping service configuration. Value type: Boolean.
+	 */
+	public static final String TASK_IO_HEAVY = "org.smartrplace.tools.housekeeping.IoHeavy";
+	
 	public static final String HOUSEKEEPING_EXEC_PID = "org.smartrplace.tools.exec.Housekeeping";	
 	
 	public static final String HOUSEKEEPING_EXEC_CAPABILITY = "smartrplace.housekeeping";
@@ -24,11 +24,13 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -53,8 +55,9 @@ import org.smartrplace.tools.exec.ExecutorConstants;
 /**
  * A whiteboard service that collects all {@link Runnable} services with properties
  * {@link ExecutorConstants#TASK_DELAY} and {@link ExecutorConstants#TASK_PERIOD}
- * and executes them periodically. The service uses a single-threaded executor; it is 
- * intended for short-lived and seldom-running tasks only. 
+ * and executes them periodically. The service uses a small thread pool, whose size is
+ * configured via {@link HousekeepingServiceConfig#poolSize()}; it is intended for short-lived 
+ * and seldom-running tasks only. A task is never executed concurrently to itself.
  * 
  * @author cnoelle
  *
@@ -71,6 +74,7 @@ import org.smartrplace.tools.exec.ExecutorConstants;
 				"osgi.command.function=getIdleTime",
 				"osgi.command.function=getRunningTask",
 				"osgi.command.function=getTasks",
+				"osgi.command.function=getTaskStatistics",
 				"osgi.command.function=isTaskAlive",
 				"osgi.command.function=isTaskRunning",
 				"osgi.command.function=restartTask",
@@ -82,7 +86,8 @@ import org.smartrplace.tools.exec.ExecutorConstants;
 public class HousekeepingExecService {
 
 	private final Logger logger = LoggerFactory.getLogger(HousekeepingExecService.class);
-	private final ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor((task) -> new Thread(task, "housekeeping-thread"));
+	private volatile ScheduledExecutorService exec;
+	private volatile LoadGate gate;
 	private final CompletableFuture<HousekeepingServiceConfig> config = new CompletableFuture<HousekeepingServiceConfig>();
 	private final ConcurrentMap<Runnable, CompletableFuture<?>> submissionFutures = new ConcurrentHashMap<>();
 	private final ConcurrentMap<TaskWrapper, ScheduledFuture<?>> futures = new ConcurrentHashMap<>();
@@ -117,10 +122,19 @@ public class HousekeepingExecService {
 				return;
 			}
 		}
+		final Object jitter = ref.getProperty(ExecutorConstants.TASK_JITTER);
+		if (jitter != null && !(jitter instanceof Long)) {
+			logger.error("Task service with invalid jitter property {}: {}", taskService, jitter);
+			return;
+		}
+		final Object ioHeavy = ref.getProperty(ExecutorConstants.TASK_IO_HEAVY);
+		final boolean ioHeavy0 = ioHeavy instanceof Boolean ? (Boolean) ioHeavy : 
+			ioHeavy instanceof String ? Boolean.parseBoolean((String) ioHeavy) : false;
 		final long delay0 = ((Long) delay).longValue();
 		final long period0 = ((Long) period).longValue();
 		final long delay1 = unit.getDuration().multipliedBy(delay0).toMillis();
 		final long period1 = unit.getDuration().multipliedBy(period0).toMillis();
+		final long jitter1 = jitter == null ? -1 : unit.getDuration().multipliedBy((Long) jitter).toMillis();
 		final Runnable task = taskService.getService();
 		synchronized (this) {
 			submissionFutures.put(task, config.thenAcceptAsync(cfg -> {
@@ -132,8 +146,10 @@ public class HousekeepingExecService {
 						taskService.ungetService(task);
 						return;
 					}
-					final TaskWrapper wrapper = new TaskWrapper(task); 
-					submit(wrapper, delay1, period1);
+					final long maxJitter = jitter1 >= 0 ? jitter1 : cfg.defaultJitterMs();
+					final long delay2 = maxJitter > 0 ? delay1 + ThreadLocalRandom.current().nextLong(maxJitter + 1) : delay1;
+					final TaskWrapper wrapper = new TaskWrapper(task, ioHeavy0, gate); 
+					submit(wrapper, delay2, period1);
 				}
 				logger.info("New housekeeping task {} with period {}, initial delay {}", task, period1, delay1);
 			}));
@@ -151,7 +167,11 @@ public class HousekeepingExecService {
 			final CompletableFuture<?> submissionFuture = submissionFutures.remove(task);
 			if (submissionFuture != null)
 				submissionFuture.cancel(true);
-			future = futures.remove(new TaskWrapper(task));
+			final TaskWrapper wrapper = new TaskWrapper(task);
+			future = futures.remove(wrapper);
+			final LoadGate gate = this.gate;
+			if (gate != null)
+				gate.cancelRetry(wrapper);
 		}
 		if (future != null) {
 			future.cancel(true);
@@ -164,12 +184,22 @@ public class HousekeepingExecService {
 	@Activate
 	protected void activate(HousekeepingServiceConfig config) {
 		this.startTimeMillis = System.currentTimeMillis();
+		final AtomicInteger threadCnt = new AtomicInteger(0);
+		final ScheduledThreadPoolExecutor exec = new ScheduledThreadPoolExecutor(Math.max(1, config.poolSize()), 
+				task -> new Thread(task, "housekeeping-thread-" + threadCnt.getAndIncrement()));
+		exec.setRemoveOnCancelPolicy(true);
+		this.exec = exec;
+		this.gate = new LoadGate(exec, config);
 		this.config.complete(config);
-		logger.debug("Housekeeping executor started with configuration: min period: {} ms, wait time: {} ms", config.minPeriodMs(), config.waitTimeOnShutdownMs());
+		logger.debug("Housekeeping executor started with configuration: min period: {} ms, wait time: {} ms, pool size: {}", 
+				config.minPeriodMs(), config.waitTimeOnShutdownMs(), exec.getCorePoolSize());
 	}
 	
 	@Deactivate
 	protected void deactivate() {
+		final ScheduledExecutorService exec = this.exec;
+		if (exec == null)
+			return;
 		exec.shutdown();
 		HousekeepingServiceConfig config = null;
 		try {
@@ -204,6 +234,7 @@ public class HousekeepingExecService {
 			.filter(entry -> System.identityHashCode(entry.getKey().getTask()) == identityHashCode)
 			.filter(entry -> entry.getValue().cancel(true))
 			.map(Map.Entry::getKey)
+			.peek(gate::cancelRetry)
 			.map(TaskWrapper::getTask)
 			.collect(Collectors.toList());
 	}
@@ -249,7 +280,7 @@ public class HousekeepingExecService {
 				.collect(Collectors.toMap(entry -> entry.getTask(), entry -> entry.isRunning()));
 	}
 	
-	@Descriptor("Get the currently running task, if any")
+	@Descriptor("Get a currently running task, if any")
 	public Runnable getRunningTask() {
 		return futures.keySet().stream()
 			.filter(TaskWrapper::isRunning)
@@ -321,6 +352,21 @@ public class HousekeepingExecService {
 			.sum();
 	}
 	
+	@Descriptor("Get execution statistics for all tasks or a specific task: number of runs, skipped runs (because the previous "
+			+ "execution was still running) and errors, median and 99th percentile of the execution duration over the last "
+			+ TaskStatistics.WINDOW + " runs, and the last error.")
+	public Map<Runnable, String> getTaskStatistics(
+			@Descriptor("The hash code of the task. If absent or equal to -1, all tasks will be included.")
+			@Parameter(names= {"-h", "--hashcode"}, absentValue="-1")
+			final int identityHashCode
+			) {
+		Stream<TaskWrapper> stream = futures.keySet().stream();
+		if (identityHashCode != -1)
+			stream = stream.filter(task -> System.identityHashCode(task.getTask()) == identityHashCode);
+		return stream
+			.collect(Collectors.toMap(TaskWrapper::getTask, task -> task.getStatistics().toString()));
+	}
+	
 	@Descriptor("Get the run time fraction for all tasks or a specific task")
 	public float getExecTimeFraction(
 			@Descriptor("The hash code of the task to be measured. If absent or equal to -1, all tasks will be included.")
@@ -332,7 +378,7 @@ public class HousekeepingExecService {
 		return ((float) activeTime) / ((float) totalTime);
 	}
 	
-	@Descriptor("Get the idle time of the service")
+	@Descriptor("Get the idle time of the service, summed over all threads of the pool")
 	public long getIdleTime(
 			@Descriptor("The time unit. Default is \"SECONDS\".")
 			@Parameter(names= {"-u", "--unit"}, absentValue="SECONDS")
@@ -340,7 +386,9 @@ public class HousekeepingExecService {
 			) {
 		final TimeUnit unit = TimeUnit.valueOf(timeUnit.trim().toUpperCase());
 		final long activeTime = getExecTime(TimeUnit.MILLISECONDS.toString(), -1);
-		final long totalTime = System.currentTimeMillis() - startTimeMillis;
+		final HousekeepingServiceConfig cfg = config.getNow(null);
+		final int poolSize = cfg == null ? 1 : Math.max(1, cfg.poolSize());
+		final long totalTime = (System.currentTimeMillis() - startTimeMillis) * poolSize;
 		return unit.convert(totalTime - activeTime, TimeUnit.MILLISECONDS);
 	}
 	
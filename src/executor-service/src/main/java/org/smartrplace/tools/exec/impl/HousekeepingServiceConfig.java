@@ -39,4 +39,49 @@ public @interface HousekeepingServiceConfig {
 	 */
 	long waitTimeOnShutdownMs() default 2000;
 	
+	/**
+	 * Number of threads used to execute tasks. A task never runs in parallel to itself, 
+	 * but with more than one thread a long-running task no longer delays all other tasks. 
+	 * Default: 2.
+	 * @return
+	 */
+	int poolSize() default 2;
+	
+	/**
+	 * Maximum random delay (in ms) added to the initial delay of tasks which do not specify the
+	 * {@link org.smartrplace.tools.exec.ExecutorConstants#TASK_JITTER} property, so that tasks
+	 * registered at the same time do not all run at the same instant. Default: 0, i.e. no jitter.
+	 * @return
+	 */
+	long defaultJitterMs() default 0;
+	
+	/**
+	 * Maximum number of tasks marked as 
+	 * {@link org.smartrplace.tools.exec.ExecutorConstants#TASK_IO_HEAVY I/O-heavy} that may run 
+	 * concurrently. Further I/O-heavy tasks are deferred. Set to 0 or a negative value 
+	 * for no limit. Default: 1.
+	 * @return
+	 */
+	int maxConcurrentIoTasks() default 1;
+	
+	/**
+	 * If the CPU load of the JVM process (a value between 0 and 1) is above this threshold,
+	 * task executions are deferred. Set to 0 or a negative value to disable. Default: 0.
+	 * @return
+	 */
+	float maxCpuLoad() default 0;
+	
+	/**
+	 * Maximum time (in ms) a task execution is deferred due to high CPU load; afterwards it is
+	 * executed anyway. A negative value means no limit. Default: 300000, i.e. 5 min.
+	 * @return
+	 */
+	long maxCpuDeferralMs() default 300000;
+	
+	/**
+	 * Delay (in ms) before a deferred task execution is retried. Default: 5000.
+	 * @return
+	 */
+	long deferralRetryMs() default 5000;
+	
 }
@@ -0,0 +1,136 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.tools.exec.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides whether a task may be executed right now, based on the number of I/O-heavy tasks 
+ * currently running and the CPU load of the JVM. Tasks which are not admitted are retried
+ * after {@link HousekeepingServiceConfig#deferralRetryMs()}.
+ */
+class LoadGate {
+	
+	private final Logger logger = LoggerFactory.getLogger(LoadGate.class);
+	private final ScheduledExecutorService exec;
+	// null if unlimited
+	private final Semaphore ioPermits;
+	private final float maxCpuLoad;
+	private final long maxCpuDeferralMs;
+	private final long retryMs;
+	private final ConcurrentMap<TaskWrapper, ScheduledFuture<?>> retries = new ConcurrentHashMap<>();
+	private final MBeanServer mbeanServer;
+	private final ObjectName osName;
+	private volatile boolean processCpuLoadUnavailable;
+	
+	LoadGate(ScheduledExecutorService exec, HousekeepingServiceConfig config) {
+		this.exec = exec;
+		this.ioPermits = config.maxConcurrentIoTasks() > 0 ? new Semaphore(config.maxConcurrentIoTasks()) : null;
+		this.maxCpuLoad = config.maxCpuLoad();
+		this.maxCpuDeferralMs = config.maxCpuDeferralMs();
+		this.retryMs = Math.max(1, config.deferralRetryMs());
+		ObjectName osName = null;
+		MBeanServer server = null;
+		if (maxCpuLoad > 0) {
+			try {
+				server = ManagementFactory.getPlatformMBeanServer();
+				osName = new ObjectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME);
+			} catch (Exception | LinkageError e) {
+				logger.warn("Operating system MBean not available, CPU load will be estimated from the system load average",e);
+			}
+		}
+		this.mbeanServer = server;
+		this.osName = osName;
+	}
+	
+	/**
+	 * @param task
+	 * @return
+	 * 		true if the task may run now. In this case {@link #release(TaskWrapper)} must 
+	 * 		be called after the execution
+	 */
+	boolean tryAcquire(final TaskWrapper task) {
+		if (maxCpuLoad > 0) {
+			final long deferredSince = task.getDeferredSince();
+			final boolean maxDeferralExceeded = maxCpuDeferralMs >= 0 && deferredSince != Long.MIN_VALUE 
+					&& System.currentTimeMillis() - deferredSince >= maxCpuDeferralMs;
+			if (!maxDeferralExceeded && getCpuLoad() > maxCpuLoad)
+				return false;
+		}
+		if (task.isIoHeavy() && ioPermits != null)
+			return ioPermits.tryAcquire();
+		return true;
+	}
+	
+	void release(final TaskWrapper task) {
+		if (task.isIoHeavy() && ioPermits != null)
+			ioPermits.release();
+	}
+	
+	void scheduleRetry(final TaskWrapper task) {
+		try {
+			retries.put(task, exec.schedule(() -> {
+				retries.remove(task);
+				task.retry();
+			}, retryMs, TimeUnit.MILLISECONDS));
+		} catch (RejectedExecutionException e) { // shutting down
+			task.cancelDeferral();
+		}
+	}
+	
+	void cancelRetry(final TaskWrapper task) {
+		final ScheduledFuture<?> future = retries.remove(task);
+		if (future != null)
+			future.cancel(false);
+	}
+	
+	/**
+	 * @return
+	 * 		CPU load of the JVM process, between 0 and 1, or a negative value if not available
+	 */
+	float getCpuLoad() {
+		if (mbeanServer != null && !processCpuLoadUnavailable) {
+			try {
+				final Object load = mbeanServer.getAttribute(osName, "ProcessCpuLoad");
+				if (load instanceof Number)
+					return ((Number) load).floatValue();
+			} catch (Exception e) {
+				processCpuLoadUnavailable = true;
+				logger.debug("Process CPU load not available",e);
+			}
+		}
+		final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		final double avg = os.getSystemLoadAverage();
+		if (avg < 0)
+			return -1;
+		return (float) (avg / os.getAvailableProcessors());
+	}
+	
+}
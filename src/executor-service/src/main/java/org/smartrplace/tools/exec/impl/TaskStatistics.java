@@ -0,0 +1,143 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.tools.exec.impl;
+
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * Execution statistics for a single housekeeping task. Durations of the most 
+ * recent {@link #WINDOW} runs are kept in a ring buffer, from which the percentiles
+ * are calculated.
+ */
+class TaskStatistics {
+	
+	static final int WINDOW = 256;
+	
+	private final long[] durations = new long[WINDOW];
+	private long runCount;
+	private long skippedCount;
+	private long deferredCount;
+	private long errorCount;
+	private long maxDuration;
+	private Throwable lastError;
+	private long lastErrorTime = Long.MIN_VALUE;
+	
+	synchronized void executed(final long durationMillis, final Throwable error) {
+		durations[(int) (runCount % WINDOW)] = durationMillis;
+		runCount++;
+		if (durationMillis > maxDuration)
+			maxDuration = durationMillis;
+		if (error != null) {
+			errorCount++;
+			lastError = error;
+			lastErrorTime = System.currentTimeMillis();
+		}
+	}
+	
+	synchronized void skipped() {
+		skippedCount++;
+	}
+	
+	synchronized void deferred() {
+		deferredCount++;
+	}
+	
+	/**
+	 * @return
+	 * 		number of executions so far
+	 */
+	synchronized long getRunCount() {
+		return runCount;
+	}
+	
+	/**
+	 * @return
+	 * 		number of executions skipped because the previous execution was still running
+	 */
+	synchronized long getSkippedCount() {
+		return skippedCount;
+	}
+	
+	/**
+	 * @return
+	 * 		number of executions deferred due to high CPU load or the I/O task budget
+	 */
+	synchronized long getDeferredCount() {
+		return deferredCount;
+	}
+	
+	synchronized long getErrorCount() {
+		return errorCount;
+	}
+	
+	synchronized Throwable getLastError() {
+		return lastError;
+	}
+	
+	/**
+	 * @return
+	 * 		time of the last failed execution in millis since epoch, or Long.MIN_VALUE if the task never failed
+	 */
+	synchronized long getLastErrorTime() {
+		return lastErrorTime;
+	}
+	
+	synchronized long getMaxDurationMillis() {
+		return maxDuration;
+	}
+	
+	/**
+	 * @param quantile
+	 * 		a value between 0 and 1
+	 * @return
+	 * 		the duration in ms for the requested quantile, among the last {@link #WINDOW} executions, 
+	 * 		or -1 if the task has not been executed yet.
+	 */
+	long getPercentileMillis(final float quantile) {
+		final long[] copy;
+		synchronized (this) {
+			if (runCount == 0)
+				return -1;
+			copy = Arrays.copyOf(durations, (int) Math.min(runCount, WINDOW));
+		}
+		Arrays.sort(copy);
+		final int idx = (int) Math.ceil(quantile * copy.length) - 1;
+		return copy[Math.max(0, Math.min(idx, copy.length - 1))];
+	}
+	
+	@Override
+	public String toString() {
+		final Throwable error;
+		final long errorTime;
+		final StringBuilder sb = new StringBuilder();
+		synchronized (this) {
+			sb.append("runs: ").append(runCount)
+				.append(", skipped: ").append(skippedCount)
+				.append(", deferred: ").append(deferredCount)
+				.append(", errors: ").append(errorCount)
+				.append(", max: ").append(maxDuration).append(" ms");
+			error = lastError;
+			errorTime = lastErrorTime;
+		}
+		sb.append(", p50: ").append(getPercentileMillis(0.5F)).append(" ms")
+			.append(", p99: ").append(getPercentileMillis(0.99F)).append(" ms");
+		if (error != null)
+			sb.append(", last error: ").append(error).append(" at ").append(Instant.ofEpochMilli(errorTime));
+		return sb.toString();
+	}
+
+}
@@ -19,24 +19,92 @@ import java.util.Objects;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 class TaskWrapper implements Runnable {
 
+	private static final Logger logger = LoggerFactory.getLogger(TaskWrapper.class);
+
 	private final Runnable task;
 	private final AtomicLong executionMillis = new AtomicLong(0);
 	private final AtomicBoolean isRunning = new AtomicBoolean(false);
+	private final TaskStatistics statistics = new TaskStatistics();
+	private final boolean ioHeavy;
+	// may be null
+	private final LoadGate gate;
+	private final AtomicBoolean deferred = new AtomicBoolean(false);
+	private volatile long deferredSince = Long.MIN_VALUE;
 	
 	TaskWrapper(Runnable task) {
+		this(task, false, null);
+	}
+	
+	TaskWrapper(Runnable task, boolean ioHeavy, LoadGate gate) {
 		this.task = task;
+		this.ioHeavy = ioHeavy;
+		this.gate = gate;
 	}
 	
+	/**
+	 * Executes the task, unless it is already running in another thread or a deferred 
+	 * execution is pending; in this case the execution is skipped. Runtime exceptions thrown 
+	 * by the task are logged and recorded in the statistics, but not propagated, so that 
+	 * the periodic execution is not cancelled.
+	 */
 	@Override
 	public void run() {
+		if (deferred.get()) {
+			statistics.skipped();
+			return;
+		}
+		execute();
+	}
+	
+	/**
+	 * Called by the {@link LoadGate} for a deferred execution.
+	 */
+	void retry() {
+		deferred.set(false);
+		execute();
+	}
+	
+	void cancelDeferral() {
+		deferred.set(false);
+		deferredSince = Long.MIN_VALUE;
+	}
+	
+	private void execute() {
+		if (!isRunning.compareAndSet(false, true)) {
+			statistics.skipped();
+			return;
+		}
+		if (gate != null && !gate.tryAcquire(this)) {
+			if (deferredSince == Long.MIN_VALUE)
+				deferredSince = System.currentTimeMillis();
+			deferred.set(true);
+			isRunning.set(false);
+			statistics.deferred();
+			gate.scheduleRetry(this);
+			return;
+		}
+		deferredSince = Long.MIN_VALUE;
 		final long nanos = System.nanoTime();
-		isRunning.set(true);
+		Throwable error = null;
 		try {
 			task.run();
+		} catch (RuntimeException e) {
+			error = e;
+			logger.warn("Housekeeping task {} failed", task, e);
+		} catch (Error e) {
+			error = e;
+			throw e;
 		} finally {
-			this.executionMillis.getAndAdd((System.nanoTime() - nanos) / 1000000);
+			final long duration = (System.nanoTime() - nanos) / 1000000;
+			this.executionMillis.getAndAdd(duration);
+			statistics.executed(duration, error);
+			if (gate != null)
+				gate.release(this);
 			isRunning.set(false);
 		}
 	}
@@ -52,6 +120,23 @@ class TaskWrapper implements Runnable {
 	public boolean isRunning() {
 		return isRunning.get();
 	}
+	
+	boolean isIoHeavy() {
+		return ioHeavy;
+	}
+	
+	/**
+	 * @return
+	 * 		time since when the execution is being deferred (ms since epoch), or Long.MIN_VALUE
+	 * 		if it is not deferred
+	 */
+	long getDeferredSince() {
+		return deferredSince;
+	}
+	
+	TaskStatistics getStatistics() {
+		return statistics;
+	}
 
 	@Override
 	public boolean equals(Object obj) {
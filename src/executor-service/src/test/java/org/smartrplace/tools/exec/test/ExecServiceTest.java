@@ -189,6 +189,21 @@ public class ExecServiceTest {
 		Assert.assertEquals("Alternating task execution failed " + errorCount.get() + " times.", 0, errorCount.get());
 	}
 	
+	@Test
+	public void taskKeepsRunningAfterException() throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(3);
+		final Runnable r = () -> {
+			latch.countDown();
+			throw new RuntimeException("Test exception, please ignore");
+		};
+		final ServiceRegistration<?> reg = ctx.registerService(Runnable.class, r, getProperties(100, 100));
+		try {
+			Assert.assertTrue("Task not executed again after throwing an exception", latch.await(3000, TimeUnit.MILLISECONDS));
+		} finally {
+			reg.unregister();
+		}
+	}
+	
 	@Test
 	public void unitWorks() throws InterruptedException {
 		final CountDownLatch latch = new CountDownLatch(1);
@@ -206,6 +221,67 @@ public class ExecServiceTest {
 		}
 	}
 
+	@Test
+	public void slowTaskDoesNotBlockOtherTasks() throws InterruptedException {
+		final CountDownLatch slowStarted = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Runnable slow = () -> {
+			slowStarted.countDown();
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		};
+		final CountDownLatch fastLatch = new CountDownLatch(3);
+		final Runnable fast = () -> fastLatch.countDown();
+		final ServiceRegistration<?> reg1 = ctx.registerService(Runnable.class, slow, getProperties(100, 100));
+		ServiceRegistration<?> reg2 = null;
+		try {
+			Assert.assertTrue("Task has not been executed", slowStarted.await(2000, TimeUnit.MILLISECONDS));
+			reg2 = ctx.registerService(Runnable.class, fast, getProperties(100, 100));
+			Assert.assertTrue("Task blocked by long-running task", fastLatch.await(3000, TimeUnit.MILLISECONDS));
+		} finally {
+			release.countDown();
+			reg1.unregister();
+			if (reg2 != null)
+				reg2.unregister();
+		}
+	}
+
+	// relies on the default configuration, which allows for a single I/O-heavy task at a time
+	@Test
+	public void ioHeavyTasksAreNotExecutedConcurrently() throws InterruptedException {
+		final CountDownLatch slowStarted = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Runnable slow = () -> {
+			slowStarted.countDown();
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		};
+		final CountDownLatch otherLatch = new CountDownLatch(1);
+		final Runnable other = () -> otherLatch.countDown();
+		final Dictionary<String, Object> dict = getProperties(100, 100);
+		dict.put(ExecutorConstants.TASK_IO_HEAVY, Boolean.TRUE);
+		final ServiceRegistration<?> reg1 = ctx.registerService(Runnable.class, slow, dict);
+		ServiceRegistration<?> reg2 = null;
+		try {
+			Assert.assertTrue("Task has not been executed", slowStarted.await(2000, TimeUnit.MILLISECONDS));
+			reg2 = ctx.registerService(Runnable.class, other, dict);
+			Assert.assertFalse("I/O-heavy tasks executed concurrently", otherLatch.await(1000, TimeUnit.MILLISECONDS));
+			release.countDown();
+			Assert.assertTrue("Deferred task has not been executed", otherLatch.await(10, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+			reg1.unregister();
+			if (reg2 != null)
+				reg2.unregister();
+		}
+	}
+
 	private static class ParallelTask implements Runnable {
 		
 		private final AtomicReference<Runnable> ref;
@@ -94,11 +94,40 @@ public interface FileUploadClient {
 		}
 	}
 
+	/**
+	 * Upload a file in chunks, which are transmitted in parallel. If a previous upload of the same file
+	 * (same target path, file name, size and last modified time) has been interrupted, only the 
+	 * chunks not yet received by the server are sent. Failed chunks are retried.<br>
+	 * This method blocks until all chunks have been transmitted; the returned future refers to
+	 * the final request, which completes the upload on the server.<br>
+	 * The default implementation uploads the file in a single request. 
+	 * 
+	 * @param file
+	 * @param targetPath
+	 * 		may be null, in which case the current user's base upload path is used
+	 * @param config
+	 * 		may be null, in which case a default is used
+	 * @param chunkSize
+	 * 		chunk size in bytes
+	 * @param parallelism
+	 * 		maximum number of chunks being transmitted concurrently. Note that each chunk in transmission
+	 * 		is held in memory.
+	 * @return
+	 * @throws IOException
+	 * @throws URISyntaxException
+	 */
+	default Future<HttpResponse> uploadChunked(Path file, String targetPath, FileConfiguration config, 
+			int chunkSize, int parallelism) throws IOException, URISyntaxException {
+		return upload(file, targetPath, null, config);
+	}
+
 	/**
 	 * Upload all files/folders in a specific directory. Filenames in the folder
 	 * are required to obey a specific naming convention; they must end with a 
 	 * a string that can be parsed to a date or date-time. Files/folders are uploaded
 	 * incrementally; only those that have not been previously uploaded will be uploaded.
+	 * The latest uploaded file is determined from the upload manifest of the server, if available,
+	 * otherwise from the remote folder listing.
 	 * 
 	 * @param folder
 	 * 		upload the complete content of this folder
@@ -17,32 +17,57 @@ package org.smartrplace.tools.upload.client.impl;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.UncheckedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.AccessController;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
@@ -51,15 +76,22 @@ import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.AuthCache;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.concurrent.BasicFuture;
 import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MIME;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.AbstractContentBody;
 import org.apache.http.entity.mime.content.InputStreamBody;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.BasicAuthCache;
@@ -87,7 +119,9 @@ import org.smartrplace.tools.upload.utils.DateTimeUtils;
 import org.smartrplace.tools.upload.utils.ZipUtils;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.ObjectWriter;
 
 // TODO set character encodings and content types where necessary?
@@ -102,12 +136,22 @@ import com.fasterxml.jackson.databind.ObjectWriter;
 @Designate(factory=true, ocd=FileUploadConfiguration.class)
 public class FileUploadClientImpl implements FileUploadClient {
 
+	private static final String PARAM_UPLOAD = "upload";
+	private static final String PARAM_HASH = "sha256";
+	private static final String PARAM_MANIFEST = "manifest";
+	private static final String PARAM_PREFIX = "prefix";
+	private static final String PARAM_WATERMARK = "watermark";
+	private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+	// maximum number of concurrent uploads with a streamed request body, see EntityWrapper
+	private static final int MAX_ENTITY_WRITERS = 4;
+	private ExecutorService entityWriters;
 	private HttpClientContext clientContext;
 	private Path tempFolder;
 	private FileUploadConfiguration config;
 	private volatile URL remote;
 	private volatile CloseableHttpAsyncClient client;
 	private final ObjectWriter jsonWriter = new ObjectMapper().writerFor(FileConfiguration.class);
+	private final ObjectReader manifestReader = new ObjectMapper().readerFor(new TypeReference<Map<String, Long>>() {});
 	
 	@Reference(service=SslService.class)
 	protected ComponentServiceObjects<SslService> sslService;
@@ -150,6 +194,13 @@ public class FileUploadClientImpl implements FileUploadClient {
 		}
 		if (config.disableHostnameVerification())
 			builder.setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE);
+		final AtomicInteger writerCnt = new AtomicInteger(0);
+		final ThreadPoolExecutor entityWriters = new ThreadPoolExecutor(0, MAX_ENTITY_WRITERS, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+			final Thread thread = new Thread(r, "file-upload-entity-writer-" + writerCnt.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.entityWriters = entityWriters;
 		this.client = builder.build();
 		client.start();
 		if (config.disableHostCertVerification() || config.disableHostnameVerification()) {
@@ -182,6 +233,9 @@ public class FileUploadClientImpl implements FileUploadClient {
 		final CloseableHttpAsyncClient client = this.client;
 		if (client != null)
 			client.close();
+		final ExecutorService entityWriters = this.entityWriters;
+		if (entityWriters != null)
+			entityWriters.shutdownNow();
 	}
 	
 	@Override
@@ -221,8 +275,7 @@ public class FileUploadClientImpl implements FileUploadClient {
 			}
 			builder.addTextBody("config", configJson, ContentType.APPLICATION_JSON.withCharset(StandardCharsets.UTF_8));
 			HttpEntity entity = builder.build();
-			post.setEntity(new EntityWrapper(entity));
-			return client.execute(post, clientContext, null);
+			return execute(client, post, entity);
 		});
 		
 	}
@@ -250,6 +303,22 @@ public class FileUploadClientImpl implements FileUploadClient {
 		final ContentType ct = contentType == null ? ContentType.APPLICATION_OCTET_STREAM : contentType;
 		final String targetFilename = config0.fileEnding == null || config0.fileEnding.isEmpty() ? config0.filePrefix 
 				: config0.filePrefix + "." + config0.fileEnding;
+		if (this.config.contentPrecheck()) {
+			final Future<HttpResponse> existing;
+			try {
+				existing = AccessController.doPrivileged((PrivilegedExceptionAction<Future<HttpResponse>>) 
+						() -> createFromRemoteContent(client, uriBuilder, file, targetFilename, config));
+			} catch (PrivilegedActionException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				if (cause instanceof URISyntaxException)
+					throw (URISyntaxException) cause;
+				throw new RuntimeException(cause);
+			}
+			if (existing != null)
+				return existing;
+		}
 		return AccessController.doPrivileged((PrivilegedAction<Future<HttpResponse>>) () -> {
 			MultipartEntityBuilder builder = MultipartEntityBuilder.create();
 			builder.setMode(HttpMultipartMode.STRICT);
@@ -262,11 +331,259 @@ public class FileUploadClientImpl implements FileUploadClient {
 			}
 			builder.addTextBody("config", configJson, ContentType.APPLICATION_JSON.withCharset(StandardCharsets.UTF_8));
 			HttpEntity entity = builder.build();
-			post.setEntity(new EntityWrapper(entity));
-			return client.execute(post, clientContext, null);
+			return execute(client, post, entity);
 		});
 	}
 	
+	@Override
+	public Future<HttpResponse> uploadChunked(Path file, String targetPath, FileConfiguration config0, int chunkSize, int parallelism)
+			throws IOException, URISyntaxException {
+		Objects.requireNonNull(file);
+		if (chunkSize <= 0 || parallelism <= 0)
+			throw new IllegalArgumentException("Chunk size and parallelism must be positive, got " + chunkSize + ", " + parallelism);
+		if (config0 == null) {
+			config0 = new FileConfiguration();
+			final String filename = file.getFileName().toString();
+			final int idx = filename.lastIndexOf('.');
+			config0.filePrefix = idx > 0 ? filename.substring(0, idx) : filename;
+			config0.fileEnding = idx > 0 ? filename.substring(idx+1) : null;
+		}
+		final FileConfiguration config = config0;
+		try {
+			return AccessController.doPrivileged((PrivilegedExceptionAction<Future<HttpResponse>>) 
+					() -> uploadChunkedInternal(file, targetPath, config, chunkSize, parallelism));
+		} catch (PrivilegedActionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof URISyntaxException)
+				throw (URISyntaxException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+	
+	private Future<HttpResponse> uploadChunkedInternal(final Path file, final String targetPath, final FileConfiguration config, 
+			final int chunkSize, final int parallelism) throws IOException, URISyntaxException {
+		final HttpAsyncClient client = this.client;
+		if (client == null)
+			throw new IllegalStateException("Service inactive");
+		final String path = appendPath(remote.getPath(), targetPath);
+		final URIBuilder uriBuilder = new URIBuilder(remote.toURI());
+		if (path != null)
+			uriBuilder.setPath(path);
+		final String targetFilename = config.fileEnding == null || config.fileEnding.isEmpty() ? config.filePrefix 
+				: config.filePrefix + "." + config.fileEnding;
+		if (this.config.contentPrecheck()) {
+			final Future<HttpResponse> existing = createFromRemoteContent(client, uriBuilder, file, targetFilename, config);
+			if (existing != null)
+				return existing;
+		}
+		final long size = Files.size(file);
+		final String uploadId = getUploadId(path, targetFilename, size, Files.getLastModifiedTime(file).toMillis(), chunkSize);
+		final int nrChunks = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+		final BitSet received = getReceivedChunks(client, new URIBuilder(uriBuilder.build()), uploadId);
+		List<Integer> missing = IntStream.range(0, nrChunks)
+				.filter(i -> !received.get(i))
+				.boxed()
+				.collect(Collectors.toList());
+		final long timeout = this.config.getRequestTimeoutSeconds();
+		final Semaphore permits = new Semaphore(parallelism);
+		try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			for (int attempt = 0; attempt <= this.config.maxChunkRetries() && !missing.isEmpty(); attempt++) {
+				final Set<Integer> failed = ConcurrentHashMap.newKeySet();
+				final AtomicBoolean unauthorized = new AtomicBoolean(false);
+				for (int chunk : missing) {
+					if (!permits.tryAcquire(timeout, TimeUnit.SECONDS))
+						throw new IOException("Chunk upload timed out");
+					final byte[] bytes = readChunk(channel, (long) chunk * chunkSize, (int) Math.min(chunkSize, size - (long) chunk * chunkSize));
+					final HttpPut put = new HttpPut(new URIBuilder(uriBuilder.build())
+							.setParameter(PARAM_UPLOAD, uploadId)
+							.setParameter("chunk", String.valueOf(chunk))
+							.setParameter("chunkSize", String.valueOf(chunkSize))
+							.setParameter("size", String.valueOf(size))
+							.setParameter("filename", targetFilename)
+							.build());
+					put.setEntity(new ByteArrayEntity(bytes, ContentType.APPLICATION_OCTET_STREAM));
+					client.execute(put, clientContext, new FutureCallback<HttpResponse>() {
+						
+						@Override
+						public void completed(HttpResponse response) {
+							final int status = response.getStatusLine().getStatusCode();
+							if (status == 401)
+								unauthorized.set(true);
+							if (status / 100 != 2) 
+								failed.add(chunk);
+							EntityUtils.consumeQuietly(response.getEntity());
+							permits.release();
+						}
+						
+						@Override
+						public void failed(Exception e) {
+							failed.add(chunk);
+							permits.release();
+						}
+						
+						@Override
+						public void cancelled() {
+							failed.add(chunk);
+							permits.release();
+						}
+						
+					});
+				}
+				// wait for the outstanding chunks
+				if (!permits.tryAcquire(parallelism, timeout, TimeUnit.SECONDS))
+					throw new IOException("Chunk upload timed out");
+				permits.release(parallelism);
+				if (unauthorized.get())
+					throw new SecurityException("Unauthorized");
+				missing = failed.stream().sorted().collect(Collectors.toList());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Chunk upload interrupted");
+		}
+		if (!missing.isEmpty())
+			throw new IOException("Failed to upload chunks " + missing + " of file " + file);
+		final HttpPost post = new HttpPost(new URIBuilder(uriBuilder.build())
+				.setParameter(PARAM_UPLOAD, uploadId)
+				.build());
+		final String configJson;
+		try {
+			configJson = jsonWriter.writeValueAsString(config);
+		} catch (JsonProcessingException e) {
+			throw new RuntimeException("Unexpected error",e);
+		}
+		post.setEntity(new StringEntity(configJson, ContentType.APPLICATION_JSON.withCharset(StandardCharsets.UTF_8)));
+		return client.execute(post, clientContext, null);
+	}
+	
+	/**
+	 * Checks whether the server has a file with the same content already (HEAD request with the 
+	 * SHA-256 hash of the file), and if so, asks the server to create the new file from the existing 
+	 * content, so that the file need not be transmitted.
+	 * @return
+	 * 		the completed response, or null if the file needs to be uploaded
+	 */
+	private Future<HttpResponse> createFromRemoteContent(final HttpAsyncClient client, final URIBuilder uriBuilder, final Path file, 
+			final String targetFilename, final FileConfiguration config) throws IOException, URISyntaxException {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Unexpected error",e);
+		}
+		final byte[] buffer = new byte[64 * 1024];
+		try (final InputStream in = Files.newInputStream(file)) {
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		final String hash = toHex(digest.digest(), Integer.MAX_VALUE);
+		final long timeout = this.config.getRequestTimeoutSeconds();
+		try {
+			final HttpHead head = new HttpHead(new URIBuilder(uriBuilder.build())
+					.setParameter(PARAM_HASH, hash)
+					.build());
+			final HttpResponse headResponse = client.execute(head, clientContext, null).get(timeout, TimeUnit.SECONDS);
+			if (headResponse.getStatusLine().getStatusCode() != 200)
+				return null;
+			final HttpPost post = new HttpPost(new URIBuilder(uriBuilder.build())
+					.setParameter(PARAM_HASH, hash)
+					.setParameter("filename", targetFilename)
+					.build());
+			post.setEntity(new StringEntity(jsonWriter.writeValueAsString(config), ContentType.APPLICATION_JSON.withCharset(StandardCharsets.UTF_8)));
+			final HttpResponse response = client.execute(post, clientContext, null).get(timeout, TimeUnit.SECONDS);
+			if (response.getStatusLine().getStatusCode() == 404) { // content has been removed in the meantime
+				EntityUtils.consumeQuietly(response.getEntity());
+				return null;
+			}
+			final BasicFuture<HttpResponse> future = new BasicFuture<>(null);
+			future.completed(response);
+			return future;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Content check interrupted");
+		} catch (ExecutionException | TimeoutException e) {
+			LoggerFactory.getLogger(FileUploadClientImpl.class).debug("Content check failed, uploading file {}", file, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * @return
+	 * 		the chunks already received by the server for the specified upload; empty if the
+	 * 		upload is not known to the server
+	 */
+	private BitSet getReceivedChunks(final HttpAsyncClient client, final URIBuilder uriBuilder, final String uploadId) 
+			throws IOException, URISyntaxException {
+		final HttpGet get = new HttpGet(uriBuilder.setParameter(PARAM_UPLOAD, uploadId).build());
+		get.setHeader("Accept", "text/plain;charset=utf-8");
+		final HttpResponse resp;
+		try {
+			resp = client.execute(get, clientContext, null).get(this.config.getRequestTimeoutSeconds(), TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Chunk upload interrupted");
+		} catch (ExecutionException | TimeoutException e) {
+			throw new IOException("Failed to determine upload state", e);
+		}
+		final int status = resp.getStatusLine().getStatusCode();
+		final String response = resp.getEntity() == null ? "" : EntityUtils.toString(resp.getEntity(), StandardCharsets.UTF_8);
+		final BitSet received = new BitSet();
+		if (status == 401)
+			throw new SecurityException("Unauthorized");
+		if (status / 100 != 2)
+			return received;
+		for (String chunk : response.split(",")) {
+			chunk = chunk.trim();
+			if (chunk.isEmpty())
+				continue;
+			try {
+				received.set(Integer.parseInt(chunk));
+			} catch (NumberFormatException e) {
+				LoggerFactory.getLogger(FileUploadClientImpl.class).warn("Unexpected upload state response: {}", response);
+				return new BitSet();
+			}
+		}
+		return received;
+	}
+	
+	private static byte[] readChunk(final FileChannel channel, final long position, final int length) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("File size changed during upload");
+		}
+		return buffer.array();
+	}
+	
+	/**
+	 * The upload id is derived from the file properties, so that an interrupted upload of
+	 * the same file can be resumed.
+	 */
+	private static String getUploadId(final String path, final String filename, final long size, final long lastModified, final int chunkSize) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update((path + "\n" + filename + "\n" + size + "\n" + lastModified + "\n" + chunkSize).getBytes(StandardCharsets.UTF_8));
+			return toHex(digest.digest(), 16);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Unexpected error",e);
+		}
+	}
+	
+	private static String toHex(final byte[] bytes, final int maxBytes) {
+		final int length = Math.min(bytes.length, maxBytes);
+		final StringBuilder sb = new StringBuilder(2 * length);
+		for (int i = 0; i < length; i++) {
+			sb.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16)).append(Character.forDigit(bytes[i] & 0xF, 16));
+		}
+		return sb.toString();
+	}
+	
 	private Future<HttpResponse> uploadInternal(Path folder, String targetPath, FileConfiguration config, String filePrefix,
 			Predicate<Path> fileFilter, DateTimeFormatter formatter) throws IOException, URISyntaxException, TimeoutException {
 		final HttpAsyncClient client = this.client;
@@ -276,15 +593,118 @@ public class FileUploadClientImpl implements FileUploadClient {
 		final URIBuilder uriBuilder = new URIBuilder(remote.toURI());
 		if (path != null)
 			uriBuilder.setPath(path);
-		final HttpGet get = new HttpGet(uriBuilder.build());
+		final Instant last;
+		try {
+			last = getRemoteWatermark(client, uriBuilder, filePrefix, formatter);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		final List<Path> files;
+		try (final Stream<Path> files0 = Files.list(folder)) {
+			files = (fileFilter == null ? files0 : files0.filter(fileFilter))
+					.filter(file -> {
+						final Instant inst = getInstant(file, filePrefix, formatter);
+						if (inst == null)
+							return false;
+						if (last == null)
+							return true;
+						return inst.compareTo(last) > 0;
+					})
+					.collect(Collectors.toList());
+		}
+		final Instant watermark = files.stream()
+				.map(file -> getInstant(file, filePrefix, formatter))
+				.max(Instant::compareTo)
+				.orElse(null);
+		final URIBuilder postUriBuilder = new URIBuilder(uriBuilder.build());
+		if (watermark != null) {
+			postUriBuilder
+				.setParameter(PARAM_WATERMARK, String.valueOf(watermark.toEpochMilli()))
+				.setParameter(PARAM_PREFIX, filePrefix == null ? "" : filePrefix);
+		}
+		final HttpPost post = new HttpPost(postUriBuilder.build());
+		MultipartEntityBuilder builder = MultipartEntityBuilder.create();
+		builder.setMode(HttpMultipartMode.STRICT);
+		// the zip file is written directly to the request body
+		builder.addPart("file", new ZipBody(folder, files, fileFilter)); 
+		final String configJson;
+		try {
+			configJson = jsonWriter.writeValueAsString(config);
+		} catch (JsonProcessingException e) {
+			throw new RuntimeException("Unexpected error",e);
+		}
+		builder.addTextBody("config", configJson, ContentType.APPLICATION_JSON.withCharset(StandardCharsets.UTF_8));
+		HttpEntity entity = builder.build();
+		return execute(client, post, entity);
+	}
+	
+	/**
+	 * Sends the request, making sure that a streamed request body is released once the request
+	 * has completed, failed or been cancelled, even if the body has not been read completely.
+	 */
+	private Future<HttpResponse> execute(final HttpAsyncClient client, final HttpPost post, final HttpEntity entity) {
+		final EntityWrapper wrapper = new EntityWrapper(entity, entityWriters);
+		post.setEntity(wrapper);
+		return client.execute(post, clientContext, new FutureCallback<HttpResponse>() {
+
+			@Override
+			public void completed(HttpResponse result) {
+				wrapper.release();
+			}
+
+			@Override
+			public void failed(Exception ex) {
+				wrapper.release();
+			}
+
+			@Override
+			public void cancelled() {
+				wrapper.release();
+			}
+			
+		});
+	}
+	
+	/**
+	 * Determine the timestamp of the latest file uploaded previously. Newer servers provide
+	 * a manifest with the latest upload per file prefix; if this is not available, the remote 
+	 * folder listing is evaluated.
+	 * @return
+	 * 		the timestamp of the latest file available remotely, or null if there is none 
+	 */
+	private Instant getRemoteWatermark(final HttpAsyncClient client, final URIBuilder uriBuilder, 
+			final String filePrefix, final DateTimeFormatter formatter) throws IOException, URISyntaxException, TimeoutException, InterruptedException {
+		HttpResponse resp = get(client, new URIBuilder(uriBuilder.build()).setParameter(PARAM_MANIFEST, "").build());
+		final HttpEntity manifestEntity = resp.getEntity();
+		final ContentType contentType = manifestEntity == null ? null : ContentType.get(manifestEntity);
+		if (contentType != null && ContentType.APPLICATION_JSON.getMimeType().equalsIgnoreCase(contentType.getMimeType())) {
+			final Map<String, Long> manifest;
+			try (final InputStream in = manifestEntity.getContent()) {
+				manifest = manifestReader.readValue(in);
+			}
+			final Long watermark = manifest.get(filePrefix == null ? "" : filePrefix);
+			if (watermark != null)
+				return Instant.ofEpochMilli(watermark);
+			// no manifest entry yet, e.g. because the files have been uploaded by an older client
+			resp = get(client, uriBuilder.build());
+		}
+		// else: older server which ignores the manifest parameter and returns the folder listing
+		final String response = EntityUtils.toString(resp.getEntity(), StandardCharsets.UTF_8);
+		return Arrays.stream(response.split(","))
+			.map(file -> getInstant(file, filePrefix, formatter))
+			.filter(inst -> inst != null)
+			.max((i1,i2) -> i1.compareTo(i2))
+			.orElse(null);
+	}
+	
+	private HttpResponse get(final HttpAsyncClient client, final URI uri) throws IOException, TimeoutException, InterruptedException {
+		final HttpGet get = new HttpGet(uri);
 		get.setHeader("Accept", "text/plain;charset=utf-8");
 		final Future<HttpResponse> respFuture = client.execute(get, clientContext, null);
 		final HttpResponse resp;
 		try {
 			resp = respFuture.get(this.config.getRequestTimeoutSeconds(), TimeUnit.SECONDS);
-		} catch (InterruptedException e1) {
-			Thread.currentThread().interrupt();
-			return null;
 		} catch (ExecutionException e) {
 			final Throwable cause = e.getCause();
 			if (cause instanceof RuntimeException)
@@ -296,90 +716,7 @@ public class FileUploadClientImpl implements FileUploadClient {
 			throw new SecurityException("Unauthorized");
 		if (status / 100 != 2)
 			throw new IOException("Unexpected server response: " + resp.getStatusLine().getReasonPhrase());
-		final String response = EntityUtils.toString(resp.getEntity(), StandardCharsets.UTF_8);
-		final Instant last = Arrays.stream(response.split(","))
-			.map(file -> getInstant(file, filePrefix, formatter))
-			.filter(inst -> inst != null)
-			.max((i1,i2) -> i1.compareTo(i2))
-			.orElse(null);
-		// TODO File permission?
-		final Path tempFile = Files.createTempFile(tempFolder, "upload", ".zip");
-		try {
-			try (final Stream<Path> files0 = Files.list(folder)) {
-				Stream<Path> files = fileFilter == null ? files0 : files0.filter(fileFilter);
-				if (fileFilter != null)
-					files = files.filter(fileFilter);
-				files = files
-						.filter(file -> {
-							final Instant inst = getInstant(file, filePrefix, formatter);
-							if (inst == null)
-								return false;
-							if (last == null)
-								return true;
-							return inst.compareTo(last) > 0;
-						});
-				try (final OutputStream out = Files.newOutputStream(tempFile);
-						final ZipOutputStream zio = new ZipOutputStream(out)) {
-					files.forEach(f -> {
-						try {
-							ZipUtils.zipFile(f, folder, zio, true, fileFilter);
-						} catch (IOException e) {
-							throw new UncheckedIOException(e);
-						}
-					});
-					zio.flush();
-				} catch (UncheckedIOException e) {
-					throw e.getCause();
-				}
-			}
-			final HttpPost post = new HttpPost(uriBuilder.build().toString());
-			MultipartEntityBuilder builder = MultipartEntityBuilder.create();
-			builder.setMode(HttpMultipartMode.STRICT);
-//			builder.addPart("file", new FileBody(tempFile.toFile(), "temp.zip", "application/zip", "utf-8"));
-			builder.addBinaryBody("file", tempFile.toFile(), ContentType.create("application/zip"), "temp.zip"); 
-			final String configJson;
-			try {
-				configJson = jsonWriter.writeValueAsString(config);
-			} catch (JsonProcessingException e) {
-				throw new RuntimeException("Unexpected error",e);
-			}
-			builder.addTextBody("config", configJson, ContentType.APPLICATION_JSON.withCharset(StandardCharsets.UTF_8));
-			HttpEntity entity = builder.build();
-			//
-			post.setEntity(new EntityWrapper(entity));
-			return client.execute(post, clientContext, new FutureCallback<HttpResponse>() {
-				
-				private final void cleanup() {
-					try {
-						Files.delete(tempFile);
-					} catch (Exception io) {
-						LoggerFactory.getLogger(FileUploadClientImpl.class).warn("Failed to delete temp file {}",tempFile, io);
-					}	
-				}
-				
-				@Override
-				public void failed(Exception arg0) {
-					cleanup();
-				}
-				
-				@Override
-				public void completed(HttpResponse arg0) {
-					cleanup();
-				}
-				
-				@Override
-				public void cancelled() {
-					cleanup();
-				}
-			});
-		} catch (Throwable e) {
-			try {
-				Files.delete(tempFile);
-			} catch (Exception io) {
-				LoggerFactory.getLogger(FileUploadClientImpl.class).warn("Failed to delete temp file {}",tempFile, io);
-			}
-			throw e;
-		}
+		return resp;
 	}
 	
 	@Override
@@ -446,24 +783,149 @@ public class FileUploadClientImpl implements FileUploadClient {
 		return DateTimeUtils.parseAsInstant(filename, format);
 	}
 
+	/**
+	 * Zips the files while the request body is being written, so that no temporary
+	 * zip file is required. The content length is unknown, hence the body is not repeatable;
+	 * requests using it cannot be retried or resent upon an authentication challenge, which is 
+	 * why the client authenticates preemptively.
+	 */
+	private static class ZipBody extends AbstractContentBody {
+		
+		private final Path folder;
+		private final List<Path> files;
+		private final Predicate<Path> fileFilter;
+		
+		ZipBody(Path folder, List<Path> files, Predicate<Path> fileFilter) {
+			super(ContentType.create("application/zip"));
+			this.folder = folder;
+			this.files = files;
+			this.fileFilter = fileFilter;
+		}
+
+		@Override
+		public String getFilename() {
+			return "temp.zip";
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			try {
+				AccessController.doPrivileged((PrivilegedExceptionAction<Void>) () -> {
+					try (final ZipOutputStream zio = new ZipOutputStream(new CloseShieldOutputStream(out))) {
+						for (Path file : files) {
+							ZipUtils.zipFile(file, folder, zio, true, fileFilter);
+						}
+					}
+					return null;
+				});
+			} catch (PrivilegedActionException e) {
+				throw (IOException) e.getCause();
+			}
+		}
+
+		@Override
+		public String getTransferEncoding() {
+			return MIME.ENC_BINARY;
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+		
+	}
+
 	// FIXME why is this required? Bug in Httpcomponents? 
 	// https://github.com/apache/httpcomponents-client/blob/4.5.x/httpmime/src/main/java/org/apache/http/entity/mime/MultipartFormEntity.java
 	// See hard-coded limit of 35kB in #getContent
 	private static class EntityWrapper extends HttpEntityWrapper {
 		
-		public EntityWrapper(HttpEntity wrappedEntity) {
+		private final ExecutorService writers;
+		// guarded by this
+		private PipedInputStream pipe;
+		private Future<?> writer;
+		private boolean released;
+		
+		public EntityWrapper(HttpEntity wrappedEntity, ExecutorService writers) {
 			super(wrappedEntity);
+			this.writers = writers;
 		}
 
-		// FIXME use streaming
 		@Override
 		public InputStream getContent() throws IOException {
+			if (!isRepeatable()) // content length unknown; avoid buffering the complete entity in memory
+				return getStreamingContent();
 			final ByteArrayOutputStream outStream = new ByteArrayOutputStream();
 	        writeTo(outStream);
 	        outStream.flush();
 	        return new ByteArrayInputStream(outStream.toByteArray());
 		}
 		
+		/**
+		 * The entity is written to a pipe by a thread of the bounded writer pool; if all writers are busy, 
+		 * the request fails. Errors on the writing side are rethrown to the reader at the end of the stream.
+		 * The pipe is closed by {@link #release()}, which makes a blocked writer fail.
+		 */
+		private synchronized InputStream getStreamingContent() throws IOException {
+			if (released)
+				throw new IOException("Request has terminated already");
+			if (pipe != null) // the entity is not repeatable
+				throw new IOException("Streamed request body has been requested already");
+			final PipedInputStream in = new PipedInputStream(PIPE_BUFFER_SIZE);
+			final PipedOutputStream out = new PipedOutputStream(in);
+			final AtomicReference<IOException> error = new AtomicReference<>();
+			try {
+				this.writer = writers.submit(() -> {
+					try {
+						writeTo(out);
+					} catch (IOException e) {
+						error.set(e);
+					} catch (RuntimeException e) {
+						error.set(new IOException(e));
+					} finally {
+						try {
+							out.close();
+						} catch (IOException ignore) {}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				throw new IOException("Too many concurrent streamed uploads", e);
+			}
+			this.pipe = in;
+			return new FilterInputStream(in) {
+				
+				@Override
+				public int read() throws IOException {
+					return checkEnd(super.read());
+				}
+				
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					return checkEnd(super.read(b, off, len));
+				}
+				
+				private int checkEnd(final int result) throws IOException {
+					if (result < 0 && error.get() != null)
+						throw error.get();
+					return result;
+				}
+				
+			};
+		}
+		
+		/**
+		 * Stop the writer, if any. Called once the request has terminated.
+		 */
+		synchronized void release() {
+			released = true;
+			if (pipe == null)
+				return;
+			try {
+				pipe.close();
+			} catch (IOException ignore) {}
+			writer.cancel(true);
+		}
+		
 	}
 	
 }
@@ -32,4 +32,18 @@ public @interface FileUploadConfiguration {
 	
 	int getRequestTimeoutSeconds() default 30;
 	
+	/**
+	 * Number of retries for a failed chunk in a chunked upload.
+	 * @return
+	 */
+	int maxChunkRetries() default 3;
+	
+	/**
+	 * If true, the client sends the hash of a file to the server before uploading it, and skips
+	 * the transmission if the server has the same content already. Requires deduplication to be 
+	 * enabled on the server.
+	 * @return
+	 */
+	boolean contentPrecheck() default false;
+	
 }
@@ -0,0 +1,507 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.tools.upload.server.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * State of chunked uploads. The chunks of an upload are written directly to their position in a 
+ * temporary file in the target directory, so that the completed file can be renamed atomically.
+ * Which chunks have been received is tracked in a state file in the bundle data area 
+ * (one byte per chunk), along with the upload metadata; this allows clients to resume
+ * interrupted uploads, even after a restart.<br>
+ * If requested, the content hash of an upload is computed while the chunks arrive: a chunk that 
+ * continues the hashed prefix of the file is hashed while it is written, chunks that arrive early are read 
+ * back from the data file once the gap before them has been closed. The hash state is kept in memory 
+ * only, so for uploads resumed after a restart the completed file needs to be hashed as a whole.
+ */
+class ChunkedUploads {
+	
+	static final String PARAM_UPLOAD = "upload";
+	static final String PARAM_CHUNK = "chunk";
+	static final String PARAM_CHUNK_SIZE = "chunkSize";
+	static final String PARAM_SIZE = "size";
+	static final String PARAM_FILENAME = "filename";
+	
+	private static final Logger logger = LoggerFactory.getLogger(ChunkedUploads.class);
+	private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9_\\-]{1,64}");
+	private static final String META_SUFFIX = ".properties";
+	private static final String STATE_SUFFIX = ".state";
+	
+	private final Path baseFolder;
+	private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+	// guards the creation of new uploads per user, for the limit on pending uploads
+	private final ConcurrentMap<String, Object> userLocks = new ConcurrentHashMap<>();
+	// chunks are written under the read lock, the upload is completed under the write lock
+	private final ConcurrentMap<String, ReadWriteLock> uploadLocks = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, RunningHash> hashes = new ConcurrentHashMap<>();
+	
+	/**
+	 * @param baseFolder
+	 * 		folder for the upload metadata, within the bundle data area
+	 */
+	ChunkedUploads(Path baseFolder) {
+		this.baseFolder = baseFolder;
+	}
+	
+	static boolean isValidId(final String uploadId) {
+		return uploadId != null && VALID_ID.matcher(uploadId).matches();
+	}
+	
+	/**
+	 * @param user
+	 * @param uploadId
+	 * @return
+	 * 		null if no such upload exists
+	 * @throws IOException
+	 */
+	Upload get(final String user, final String uploadId) throws IOException {
+		final Path meta = getMetaFile(user, uploadId);
+		if (!Files.isRegularFile(meta))
+			return null;
+		final Properties props = new Properties();
+		try (final Reader reader = Files.newBufferedReader(meta, StandardCharsets.UTF_8)) {
+			props.load(reader);
+		}
+		try {
+			return new Upload(user, uploadId, Paths.get(props.getProperty("dataFile")), props.getProperty("directory"), 
+					props.getProperty("filename"), Long.parseLong(props.getProperty("size")), 
+					Integer.parseInt(props.getProperty("chunkSize")));
+		} catch (RuntimeException e) {
+			logger.warn("Invalid upload metadata {}", meta, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Get an existing upload or create a new one. 
+	 * @param user
+	 * @param uploadId
+	 * @param directory
+	 * 		the target directory, relative to the user's upload folder
+	 * @param targetDir
+	 * 		the target directory
+	 * @param filename
+	 * @param size
+	 * @param chunkSize
+	 * @param maxPending
+	 * 		maximum number of incomplete uploads of the user
+	 * @param admission
+	 * 		consulted exactly once if a new upload is about to be created, not for existing uploads; 
+	 * 		e.g. to charge the user's upload quota
+	 * @param hashContent
+	 * 		compute the content hash of a new upload while its chunks arrive, see {@link #getContentHash(Upload, AccessControlContext)}
+	 * @param ctx
+	 * @return
+	 * 		null if a new upload would have to be created, but admission has been denied
+	 * @throws IllegalArgumentException if an upload with the same id but different parameters exists
+	 * @throws IllegalStateException if a new upload would exceed the maximum number of pending uploads
+	 * @throws IOException
+	 * @throws PrivilegedActionException
+	 */
+	Upload getOrCreate(final String user, final String uploadId, final String directory, final Path targetDir, 
+				final String filename, final long size, final int chunkSize, final int maxPending, final Admission admission,
+				final boolean hashContent, final AccessControlContext ctx) throws IOException, PrivilegedActionException {
+		final String key = user + "/" + uploadId;
+		final Object lock = locks.computeIfAbsent(key, k -> new Object());
+		try {
+			synchronized (lock) {
+				final Upload existing = get(user, uploadId);
+				if (existing != null) {
+					if (existing.size != size || existing.chunkSize != chunkSize || !existing.filename.equals(filename)
+							|| !existing.directory.equals(directory))
+						throw new IllegalArgumentException("Upload " + uploadId + " exists with different parameters");
+					return existing;
+				}
+				synchronized (userLocks.computeIfAbsent(user, u -> new Object())) {
+					if (countPending(user) >= maxPending)
+						throw new IllegalStateException("Too many pending uploads; max allowed: " + maxPending);
+					if (!admission.admit())
+						return null;
+					final Upload upload = create(user, uploadId, directory, targetDir, filename, size, chunkSize, ctx);
+					if (hashContent)
+						hashes.put(key, new RunningHash());
+					return upload;
+				}
+			}
+		} finally {
+			locks.remove(key, lock);
+		}
+	}
+	
+	private Upload create(final String user, final String uploadId, final String directory, final Path targetDir, 
+				final String filename, final long size, final int chunkSize, final AccessControlContext ctx) 
+			throws IOException, PrivilegedActionException {
+		Files.createDirectories(targetDir);
+		final Path dataFile = AccessController.doPrivileged((PrivilegedExceptionAction<Path>) () -> {
+			final Path file = Files.createTempFile(targetDir, FileUploadServlet.TEMP_FILE_PREFIX, FileUploadServlet.TEMP_FILE_SUFFIX);
+			// chunks may arrive in any order, and FileChannel#transferFrom does not write beyond the end of the file 
+			if (size > 0) {
+				try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+					channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+				}
+			}
+			return file;
+		}, ctx);
+		final Upload upload = new Upload(user, uploadId, dataFile, directory, filename, size, chunkSize);
+		final Path meta = getMetaFile(user, uploadId);
+		Files.createDirectories(meta.getParent());
+		Files.write(upload.getStateFile(), new byte[upload.nrChunks]);
+		final Properties props = new Properties();
+		props.setProperty("dataFile", dataFile.toString());
+		props.setProperty("directory", directory);
+		props.setProperty("filename", filename);
+		props.setProperty("size", String.valueOf(size));
+		props.setProperty("chunkSize", String.valueOf(chunkSize));
+		try (final Writer writer = Files.newBufferedWriter(meta, StandardCharsets.UTF_8)) {
+			props.store(writer, null);
+		}
+		logger.debug("New chunked upload {} from user {}, {} chunks", uploadId, user, upload.nrChunks);
+		return upload;
+	}
+	
+	private int countPending(final String user) throws IOException {
+		final Path folder = baseFolder.resolve(user);
+		if (!Files.isDirectory(folder))
+			return 0;
+		try (final Stream<Path> files = Files.list(folder)) {
+			return (int) files.filter(file -> file.getFileName().toString().endsWith(META_SUFFIX)).count();
+		}
+	}
+	
+	/**
+	 * Write a single chunk. Chunks may be written concurrently, but not while the upload is being completed,
+	 * see {@link #lockForCompletion(Upload)}.
+	 * @param upload
+	 * @param index
+	 * @param in
+	 * @param ctx
+	 * @throws IOException if the stream does not contain the expected number of bytes
+	 * @throws IllegalArgumentException if the upload has been completed or removed in the meantime
+	 * @throws PrivilegedActionException
+	 */
+	void writeChunk(final Upload upload, final int index, final InputStream in, final AccessControlContext ctx) 
+			throws IOException, PrivilegedActionException {
+		final Lock lock = getLock(upload).readLock();
+		lock.lock();
+		try {
+			if (!Files.isRegularFile(getMetaFile(upload.user, upload.uploadId)))
+				throw new IllegalArgumentException("Upload " + upload.uploadId + " has been completed or removed");
+			writeChunkInternal(upload, index, in, ctx);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void writeChunkInternal(final Upload upload, final int index, final InputStream in, final AccessControlContext ctx) 
+			throws IOException, PrivilegedActionException {
+		final long offset = (long) index * upload.chunkSize;
+		final long length = upload.getChunkLength(index);
+		final RunningHash hash = hashes.get(upload.user + "/" + upload.uploadId);
+		final boolean hashed = hash != null && hash.claim(index);
+		try {
+			transferChunk(upload, index, offset, length, hashed ? new DigestInputStream(in, hash.digest) : in, ctx);
+		} catch (IOException | PrivilegedActionException | RuntimeException e) {
+			if (hashed)
+				hash.release(false);
+			throw e;
+		}
+		if (hashed)
+			hash.release(true);
+		if (hash != null)
+			catchUp(hash, upload, ctx);
+	}
+	
+	private void catchUp(final RunningHash hash, final Upload upload, final AccessControlContext ctx) {
+		try {
+			hash.catchUp(upload, getReceivedChunks(upload), ctx);
+		} catch (IOException | PrivilegedActionException | SecurityException e) {
+			logger.warn("Failed to update content hash of upload {}", upload.uploadId, e);
+			hash.release(false);
+		}
+	}
+	
+	private void transferChunk(final Upload upload, final int index, final long offset, final long length, final InputStream in, 
+			final AccessControlContext ctx) throws IOException, PrivilegedActionException {
+		AccessController.doPrivileged((PrivilegedExceptionAction<Void>) () -> {
+			try (final FileChannel channel = FileChannel.open(upload.dataFile, StandardOpenOption.WRITE)) {
+				final ReadableByteChannel source = Channels.newChannel(in);
+				long position = offset;
+				long remaining = length;
+				while (remaining > 0) {
+					final long transferred = channel.transferFrom(source, position, remaining);
+					if (transferred <= 0) 
+						break;
+					position += transferred;
+					remaining -= transferred;
+				}
+				if (remaining > 0 || in.read() >= 0)
+					throw new IOException("Chunk " + index + " of upload " + upload.uploadId + " has an unexpected size, expected " + length);
+				channel.force(false);
+			}
+			return null;
+		}, ctx);
+		try (final FileChannel state = FileChannel.open(upload.getStateFile(), StandardOpenOption.WRITE)) {
+			state.write(ByteBuffer.wrap(new byte[] {1}), index);
+		}
+	}
+	
+	/**
+	 * Acquire the exclusive lock on an upload, which waits for chunks currently being written, and blocks 
+	 * further chunks. The caller must release the lock, after having completed or removed the upload.
+	 * @param upload
+	 * @return
+	 * 		the locked lock, or null if the upload has been completed or removed already
+	 */
+	Lock lockForCompletion(final Upload upload) {
+		final Lock lock = getLock(upload).writeLock();
+		lock.lock();
+		if (!Files.isRegularFile(getMetaFile(upload.user, upload.uploadId))) {
+			lock.unlock();
+			return null;
+		}
+		return lock;
+	}
+	
+	private ReadWriteLock getLock(final Upload upload) {
+		return uploadLocks.computeIfAbsent(upload.user + "/" + upload.uploadId, k -> new ReentrantReadWriteLock());
+	}
+	
+	/**
+	 * Get the content hash computed while the chunks arrived. Must be called after all chunks have been
+	 * received, and before the data file is moved.
+	 * @param upload
+	 * @param ctx
+	 * @return
+	 * 		the SHA-256 hash of the content, hex encoded, or null if it is not available, e.g. because the 
+	 * 		upload has been started before a restart
+	 */
+	String getContentHash(final Upload upload, final AccessControlContext ctx) {
+		final RunningHash hash = hashes.get(upload.user + "/" + upload.uploadId);
+		if (hash == null)
+			return null;
+		catchUp(hash, upload, ctx);
+		return hash.get(upload.nrChunks);
+	}
+	
+	BitSet getReceivedChunks(final Upload upload) throws IOException {
+		final byte[] state = Files.readAllBytes(upload.getStateFile());
+		final BitSet set = new BitSet(upload.nrChunks);
+		for (int i = 0; i < Math.min(state.length, upload.nrChunks); i++) {
+			if (state[i] != 0)
+				set.set(i);
+		}
+		return set;
+	}
+	
+	/**
+	 * Remove the upload state; the data file is deleted unless it has been moved already.
+	 * @param upload
+	 * @param ctx
+	 */
+	void remove(final Upload upload, final AccessControlContext ctx) {
+		// threads waiting for the lock find the upload removed afterwards
+		uploadLocks.remove(upload.user + "/" + upload.uploadId);
+		hashes.remove(upload.user + "/" + upload.uploadId);
+		try {
+			Files.deleteIfExists(getMetaFile(upload.user, upload.uploadId));
+			Files.deleteIfExists(upload.getStateFile());
+			AccessController.doPrivileged((PrivilegedExceptionAction<Boolean>) () -> Files.deleteIfExists(upload.dataFile), ctx);
+		} catch (IOException | SecurityException | PrivilegedActionException e) {
+			logger.warn("Failed to delete upload state for {}", upload.uploadId, e);
+		}
+	}
+	
+	/**
+	 * Delete uploads of the specified user which have not been modified for the specified duration.
+	 * @param user
+	 * @param maxAgeMillis
+	 * @param ctx
+	 */
+	void removeExpired(final String user, final long maxAgeMillis, final AccessControlContext ctx) {
+		final Path folder = baseFolder.resolve(user);
+		if (maxAgeMillis <= 0 || !Files.isDirectory(folder))
+			return;
+		final long threshold = System.currentTimeMillis() - maxAgeMillis;
+		try (final Stream<Path> files = Files.list(folder)) {
+			final Iterator<Path> it = files.iterator();
+			while (it.hasNext()) {
+				final Path meta = it.next();
+				final String name = meta.getFileName().toString();
+				if (!name.endsWith(META_SUFFIX))
+					continue;
+				final String uploadId = name.substring(0, name.length() - META_SUFFIX.length());
+				final Upload upload = get(user, uploadId);
+				final Path lastModifiedFile = upload == null ? meta : upload.getStateFile();
+				if (!Files.exists(lastModifiedFile) || Files.getLastModifiedTime(lastModifiedFile).toMillis() < threshold) {
+					logger.debug("Removing expired chunked upload {} of user {}", uploadId, user);
+					if (upload != null)
+						remove(upload, ctx);
+					else
+						Files.deleteIfExists(meta);
+				}
+			}
+		} catch (IOException | SecurityException e) {
+			logger.warn("Failed to remove expired uploads for user {}", user, e);
+		}
+	}
+	
+	private Path getMetaFile(final String user, final String uploadId) {
+		return baseFolder.resolve(user).resolve(uploadId + META_SUFFIX);
+	}
+	
+	/**
+	 * Hash of the prefix of the data file consisting of all chunks up to {@link #next}.
+	 */
+	private static class RunningHash {
+		
+		final MessageDigest digest = ContentStore.newDigest();
+		// all chunks before this one have been hashed
+		private int next = 0;
+		// the next chunk is being hashed while it is written 
+		private boolean busy;
+		// a hashed chunk could not be written completely, so the digest is invalid
+		private boolean failed;
+		
+		synchronized boolean claim(final int index) {
+			if (busy || failed || index != next)
+				return false;
+			busy = true;
+			return true;
+		}
+		
+		synchronized void release(final boolean success) {
+			busy = false;
+			if (success)
+				next++;
+			else
+				failed = true;
+		}
+		
+		/**
+		 * Hash the chunks following the hashed prefix that have been received already.
+		 */
+		synchronized void catchUp(final Upload upload, final BitSet received, final AccessControlContext ctx) 
+				throws IOException, PrivilegedActionException {
+			if (busy || failed || next >= upload.nrChunks || !received.get(next))
+				return;
+			AccessController.doPrivileged((PrivilegedExceptionAction<Void>) () -> {
+				try (final FileChannel channel = FileChannel.open(upload.dataFile, StandardOpenOption.READ)) {
+					final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+					while (next < upload.nrChunks && received.get(next)) {
+						long position = (long) next * upload.chunkSize;
+						final long end = position + upload.getChunkLength(next);
+						while (position < end) {
+							buffer.clear();
+							buffer.limit((int) Math.min(buffer.capacity(), end - position));
+							final int read = channel.read(buffer, position);
+							if (read < 0)
+								throw new IOException("Unexpected end of file " + upload.dataFile);
+							buffer.flip();
+							digest.update(buffer);
+							position += read;
+						}
+						next++;
+					}
+				}
+				return null;
+			}, ctx);
+		}
+		
+		synchronized String get(final int nrChunks) {
+			return !busy && !failed && next >= nrChunks ? FileUploadServlet.toHex(digest.digest()) : null;
+		}
+		
+	}
+	
+	@FunctionalInterface
+	static interface Admission {
+		
+		/**
+		 * @return
+		 * 		false if the upload must not be created
+		 * @throws IOException
+		 */
+		boolean admit() throws IOException;
+		
+	}
+	
+	class Upload {
+		
+		final String user;
+		final String uploadId;
+		final Path dataFile;
+		final String directory;
+		final String filename;
+		final long size;
+		final int chunkSize;
+		final int nrChunks;
+		
+		Upload(String user, String uploadId, Path dataFile, String directory, String filename, long size, int chunkSize) {
+			this.user = user;
+			this.uploadId = uploadId;
+			this.dataFile = dataFile;
+			this.directory = directory;
+			this.filename = filename;
+			this.size = size;
+			this.chunkSize = chunkSize;
+			this.nrChunks = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+		}
+		
+		long getChunkLength(final int index) {
+			if (index < 0 || index >= nrChunks)
+				throw new IllegalArgumentException("Invalid chunk index " + index + ", number of chunks: " + nrChunks);
+			return Math.min(chunkSize, size - (long) index * chunkSize);
+		}
+		
+		Path getStateFile() {
+			return baseFolder.resolve(user).resolve(uploadId + STATE_SUFFIX);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,170 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.tools.upload.server.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.Iterator;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-user content-addressed store for uploaded files. Each distinct file content is stored once,
+ * as a blob named by its SHA-256 hash, in the folder {@link #FOLDER} of the user's upload directory.
+ * Uploaded files are hard links to their blob, so the file system link count serves as reference count;
+ * blobs which are no longer referenced by any uploaded file are removed by the housekeeping.
+ */
+class ContentStore {
+	
+	static final String FOLDER = ".content";
+	static final String PARAM_HASH = "sha256";
+	static final String ALGORITHM = "SHA-256";
+	
+	private static final Logger logger = LoggerFactory.getLogger(ContentStore.class);
+	private static final Pattern VALID_HASH = Pattern.compile("[0-9a-f]{64}");
+	
+	private ContentStore() {}
+	
+	static boolean isValidHash(final String hash) {
+		return hash != null && VALID_HASH.matcher(hash).matches();
+	}
+	
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Unexpected error",e);
+		}
+	}
+	
+	static String hash(final Path file) throws IOException {
+		final MessageDigest digest = newDigest();
+		final byte[] buffer = new byte[64 * 1024];
+		try (final InputStream in = Files.newInputStream(file)) {
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return FileUploadServlet.toHex(digest.digest());
+	}
+	
+	static Path getBlob(final String uploadFolder, final String user, final String hash) {
+		return Paths.get(uploadFolder, user, FOLDER, hash.substring(0, 2), hash);
+	}
+	
+	/**
+	 * Register a newly uploaded file with the store. If a blob with the same content exists
+	 * already, the file is replaced by a link to the blob, otherwise the file becomes the new blob.
+	 * Failures are logged, but not propagated, since the file has been stored successfully anyway.
+	 * @param uploadFolder
+	 * @param user
+	 * @param file
+	 * @param hash
+	 * 		the SHA-256 hash of the file content, hex encoded
+	 * @param ctx
+	 */
+	static void add(final String uploadFolder, final String user, final Path file, final String hash, final AccessControlContext ctx) {
+		final Path blob = getBlob(uploadFolder, user, hash);
+		try {
+			AccessController.doPrivileged((PrivilegedExceptionAction<Void>) () -> {
+				if (Files.isRegularFile(blob) && Files.size(blob) == Files.size(file)) {
+					if (Files.isSameFile(blob, file))
+						return null;
+					final Path temp = file.resolveSibling(FileUploadServlet.TEMP_FILE_PREFIX + hash + FileUploadServlet.TEMP_FILE_SUFFIX);
+					Files.deleteIfExists(temp);
+					Files.createLink(temp, blob);
+					Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+					logger.trace("Deduplicated file {}", file);
+				} else {
+					Files.createDirectories(blob.getParent());
+					Files.deleteIfExists(blob);
+					Files.createLink(blob, file);
+				}
+				return null;
+			}, ctx);
+		} catch (PrivilegedActionException | SecurityException | UnsupportedOperationException e) {
+			logger.warn("Failed to add file {} to the content store", file, e);
+		}
+	}
+	
+	/**
+	 * Create a new file with the content of an existing blob.
+	 * @return
+	 * 		false if the blob does not exist
+	 * @throws PrivilegedActionException
+	 */
+	static boolean link(final String uploadFolder, final String user, final String hash, final Path target, 
+			final AccessControlContext ctx) throws PrivilegedActionException {
+		final Path blob = getBlob(uploadFolder, user, hash);
+		return AccessController.doPrivileged((PrivilegedExceptionAction<Boolean>) () -> {
+			if (!Files.isRegularFile(blob))
+				return false;
+			Files.createDirectories(target.getParent());
+			Files.deleteIfExists(target);
+			Files.createLink(target, blob);
+			return true;
+		}, ctx);
+	}
+	
+	/**
+	 * Delete blobs which are not referenced by any uploaded file any more. Requires the
+	 * "unix:nlink" file attribute, otherwise nothing is deleted.
+	 * @param userFolder
+	 */
+	static void removeUnreferenced(final Path userFolder) {
+		final Path store = userFolder.resolve(FOLDER);
+		if (!Files.isDirectory(store))
+			return;
+		try (final Stream<Path> dirs = Files.list(store)) {
+			final Iterator<Path> it = dirs.iterator();
+			while (it.hasNext()) {
+				final Path dir = it.next();
+				if (!Files.isDirectory(dir))
+					continue;
+				try (final Stream<Path> blobs = Files.list(dir)) {
+					final Iterator<Path> blobIt = blobs.iterator();
+					while (blobIt.hasNext()) {
+						final Path blob = blobIt.next();
+						final Object links = Files.getAttribute(blob, "unix:nlink");
+						if (links instanceof Number && ((Number) links).intValue() <= 1) {
+							Files.delete(blob);
+							logger.trace("Deleted unreferenced blob {}", blob);
+						}
+					}
+				}
+			}
+		} catch (UnsupportedOperationException | IllegalArgumentException e) {
+			logger.debug("Link count not available, cannot clean up content store {}", store);
+		} catch (IOException | SecurityException e) {
+			logger.warn("Failed to clean up content store {}", store, e);
+		}
+	}
+
+}
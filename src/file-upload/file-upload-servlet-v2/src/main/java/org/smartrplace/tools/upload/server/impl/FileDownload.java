@@ -0,0 +1,172 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.tools.upload.server.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves a single file, supporting conditional requests (ETag / If-None-Match, 
+ * If-Modified-Since) and single byte ranges (Range / If-Range). <br>
+ * The content is copied through a heap buffer; the servlet API only provides a stream based 
+ * response body, so zero-copy transfer (sendfile) is not available without container specific APIs.
+ */
+class FileDownload {
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private FileDownload() {}
+
+	static void serve(final Path file, final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+		final long size = Files.size(file);
+		final long lastModified = Files.getLastModifiedTime(file).toMillis();
+		final String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+		resp.setHeader("ETag", etag);
+		resp.setDateHeader("Last-Modified", lastModified);
+		resp.setHeader("Accept-Ranges", "bytes");
+		if (isNotModified(req, etag, lastModified)) {
+			resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		long start = 0;
+		long end = size - 1;
+		final String range = req.getHeader("Range");
+		if (range != null && ifRangeMatches(req, etag, lastModified)) {
+			final long[] r = parseRange(range, size);
+			if (r == null) {
+				resp.setHeader("Content-Range", "bytes */" + size);
+				resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return;
+			}
+			if (r.length > 0) {
+				start = r[0];
+				end = r[1];
+				resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				resp.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + size);
+			}
+		}
+		final long length = end - start + 1;
+		resp.setContentType("application/octet-stream");
+		resp.setContentLengthLong(length);
+		if ("HEAD".equalsIgnoreCase(req.getMethod()) || length <= 0)
+			return;
+		try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final OutputStream out = resp.getOutputStream();
+			copy(channel, start, length, out);
+			out.flush();
+		}
+	}
+	
+	private static void copy(final FileChannel channel, long position, long remaining, final OutputStream out) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, remaining));
+		while (remaining > 0) {
+			buffer.clear();
+			if (remaining < buffer.capacity())
+				buffer.limit((int) remaining);
+			final int read = channel.read(buffer, position);
+			if (read < 0) // file truncated in the meantime
+				return;
+			out.write(buffer.array(), 0, read);
+			position += read;
+			remaining -= read;
+		}
+	}
+	
+	private static boolean isNotModified(final HttpServletRequest req, final String etag, final long lastModified) {
+		final String ifNoneMatch = req.getHeader("If-None-Match");
+		if (ifNoneMatch != null)
+			return etagMatches(ifNoneMatch, etag);
+		final long ifModifiedSince = getDateHeader(req, "If-Modified-Since");
+		return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+	
+	private static boolean ifRangeMatches(final HttpServletRequest req, final String etag, final long lastModified) {
+		final String ifRange = req.getHeader("If-Range");
+		if (ifRange == null)
+			return true;
+		if (ifRange.trim().startsWith("\"") || ifRange.trim().startsWith("W/"))
+			return ifRange.trim().equals(etag);
+		final long date = getDateHeader(req, "If-Range");
+		return date >= 0 && lastModified / 1000 == date / 1000;
+	}
+	
+	private static boolean etagMatches(final String header, final String etag) {
+		for (String candidate : header.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag))
+				return true;
+		}
+		return false;
+	}
+	
+	private static long getDateHeader(final HttpServletRequest req, final String header) {
+		try {
+			return req.getDateHeader(header);
+		} catch (IllegalArgumentException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Only a single range is supported; requests for multiple ranges are answered with the full content.
+	 * @param range
+	 * @param size
+	 * @return
+	 * 		null if the range is not satisfiable, an empty array if the header is to be ignored,
+	 * 		or an array {start, end} (both inclusive) otherwise
+	 */
+	static long[] parseRange(String range, final long size) {
+		range = range.trim();
+		if (!range.startsWith("bytes=") || range.indexOf(',') >= 0)
+			return new long[0];
+		range = range.substring("bytes=".length()).trim();
+		final int idx = range.indexOf('-');
+		if (idx < 0)
+			return new long[0];
+		final String first = range.substring(0, idx).trim();
+		final String second = range.substring(idx + 1).trim();
+		final long start;
+		final long end;
+		try {
+			if (first.isEmpty()) { // suffix range: last n bytes
+				if (second.isEmpty())
+					return new long[0];
+				final long suffix = Long.parseLong(second);
+				if (suffix <= 0)
+					return null;
+				start = Math.max(0, size - suffix);
+				end = size - 1;
+			} else {
+				start = Long.parseLong(first);
+				end = second.isEmpty() ? size - 1 : Math.min(Long.parseLong(second), size - 1);
+			}
+		} catch (NumberFormatException e) {
+			return new long[0];
+		}
+		if (start < 0 || start >= size || end < start)
+			return null;
+		return new long[] {start, end};
+	}
+	
+}
@@ -31,4 +31,10 @@ class FileInfo {
 		this.size = Files.size(file);
 	}
 	
+	FileInfo(Path path, long timestamp, long size) {
+		this.file = path;
+		this.timestamp = timestamp;
+		this.size = size;
+	}
+	
 }
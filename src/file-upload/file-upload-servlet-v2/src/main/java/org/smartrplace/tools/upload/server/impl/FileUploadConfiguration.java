@@ -95,6 +95,108 @@ public @interface FileUploadConfiguration {
 	 */
 	int maxUploadsPerDay() default 15;
 	
+	/**
+	 * Number of uploads per user that may exceed {@link #maxUploadsPerMinute()} in a short burst, 
+	 * as long as the hourly and daily limits are respected. Default: 0.
+	 * @return
+	 */
+	int uploadBurst() default 0;
+	
+	/**
+	 * If true, multipart requests are parsed while the request body is being read, and each
+	 * file is written directly to a temporary file in its target directory, which is then renamed
+	 * atomically. Otherwise the servlet container buffers the parts (above {@link #fileSizeThreshold()}
+	 * on disk), before they are copied to the upload folder. 
+	 * In streaming mode the total request size is limited by {@link #maxRequestSize()}.
+	 * Default: false.
+	 * @return
+	 */
+	boolean streamingMultipart() default false;
+	
+	/**
+	 * Message digest algorithm, such as "SHA-256" or "MD5", used to calculate a checksum
+	 * of each uploaded file while it is being written. The hex-encoded checksum is returned 
+	 * to the client in an "X-Checksum" header of the form "filename=checksum". If the file part carries
+	 * an "X-Checksum" header itself, the file is rejected in case of a mismatch.<br> 
+	 * Only relevant if {@link #streamingMultipart()} is true. Default: empty, i.e. no checksum calculation.
+	 * @return
+	 */
+	String checksumAlgorithm() default "";
+	
+	/**
+	 * If true, uploaded files are hashed (SHA-256) and stored in a per-user content-addressed
+	 * store, so that identical files share their storage (via hard links). Clients can check 
+	 * whether a file with a given hash exists already, and create a new file from it without
+	 * transmitting the content. Requires a file system with hard link support. Default: false.
+	 * @return
+	 */
+	boolean deduplication() default false;
+	
+	/**
+	 * Maximum size of a file uploaded in chunks (HTTP PUT). Default: 1 GB.
+	 * @return
+	 */
+	long maxChunkedUploadSize() default 1024L * 1024 * 1024;
+	
+	/**
+	 * Maximum size of a single chunk in a chunked upload. Default: 16 MB.
+	 * @return
+	 */
+	int maxChunkSize() default 1024 * 1024 * 16;
+	
+	/**
+	 * Incomplete chunked uploads are deleted after this time (in hours), unless
+	 * new chunks are received in the meantime. Default: 72.
+	 * @return
+	 */
+	long chunkedUploadExpiryHours() default 72;
+	
+	/**
+	 * Maximum number of incomplete chunked uploads per user. Starting a new chunked upload
+	 * counts as an upload with respect to {@link #maxUploadsPerMinute()} etc. Default: 4.
+	 * @return
+	 */
+	int maxPendingChunkedUploads() default 4;
+	
+	/**
+	 * Maximum number of chunks (HTTP PUT requests) per user per minute. Default: 240.
+	 * @return
+	 */
+	int maxChunksPerMinute() default 240;
+	
+	/**
+	 * If true, the servlet maintains a persistent index of the uploaded files per folder, 
+	 * and the housekeeping works on the index instead of scanning all upload folders and 
+	 * file sizes. The index is built on the first housekeeping run. Only enable this if the 
+	 * upload folder is modified exclusively via the servlet: files added or deleted by other means 
+	 * are not reflected in the index, and the indexed housekeeping only deletes files, not directories
+	 * matching a configured prefix. Default: false.
+	 * @return
+	 */
+	boolean useUploadIndex() default false;
+	
+	/**
+	 * Deflate compression level for zip downloads, between 0 (no compression, files are stored 
+	 * only) and 9, or -1 for the default level. Can be overridden per request by the query 
+	 * parameter "level". Default: -1.
+	 * @return
+	 */
+	int zipCompressionLevel() default -1;
+	
+	/**
+	 * If true, files that are compressed already, such as zip, gz or png files, are 
+	 * stored in zip downloads without further compression. Default: true.
+	 * @return
+	 */
+	boolean zipStoreCompressedFiles() default true;
+	
+	/**
+	 * Number of threads used to compress zip downloads, shared by all requests. 
+	 * Default: 0, meaning the number of available processors.
+	 * @return
+	 */
+	int zipThreads() default 0;
+	
 	/**
 	 * Each folder with uploaded files contains one config file which stores
 	 * the {@link FileConfiguration} for all files in that folder.<br>
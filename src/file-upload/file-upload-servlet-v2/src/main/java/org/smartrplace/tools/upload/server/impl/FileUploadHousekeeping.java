@@ -24,10 +24,15 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.Stream.Builder;
 
@@ -77,16 +82,73 @@ public class FileUploadHousekeeping implements Runnable {
 	@Override
 	public void run() {
 		final FileUploadConfiguration config = this.config;
+		if (config.useUploadIndex()) {
+			runIndexed(config);
+		} else {
+			// an index left from earlier runs would become outdated
+			UploadIndex.deleteRegistry(config.uploadFolder());
+			try (final Stream<Path> stream = Files.list(Paths.get(config.uploadFolder()))) {
+				stream
+					.filter(Files::isDirectory)
+					.flatMap(this::getConfigFilesRecursively)
+					.forEach(this::cleanUp);
+			} catch (IOException | SecurityException e) {
+				logger.error("Failed to execute housekeeping task",e);
+			}
+		}
+		if (!config.deduplication())
+			return;
 		try (final Stream<Path> stream = Files.list(Paths.get(config.uploadFolder()))) {
 			stream
 				.filter(Files::isDirectory)
-				.flatMap(this::getConfigFilesRecursively)
-				.forEach(this::cleanUp);
+				.forEach(ContentStore::removeUnreferenced);
 		} catch (IOException | SecurityException e) {
 			logger.error("Failed to execute housekeeping task",e);
 		}
 	}
 
+	private void runIndexed(final FileUploadConfiguration config) {
+		Set<Path> directories = UploadIndex.getDirectories(config.uploadFolder());
+		final boolean rebuild = directories == null;
+		if (rebuild) { // first run: scan the upload folder once and build the index
+			try (final Stream<Path> stream = Files.list(Paths.get(config.uploadFolder()))) {
+				UploadIndex.initRegistry(config.uploadFolder());
+				directories = stream
+					.filter(Files::isDirectory)
+					.filter(dir -> !dir.getFileName().toString().equals(UploadIndex.REGISTRY_FOLDER))
+					.flatMap(this::getConfigFilesRecursively)
+					.map(Path::getParent)
+					.collect(Collectors.toCollection(LinkedHashSet::new));
+			} catch (IOException | SecurityException e) {
+				logger.error("Failed to execute housekeeping task",e);
+				return;
+			}
+		}
+		for (Path directory : directories) {
+			final Path configFile = directory.resolve(config.configFileName());
+			if (!Files.isRegularFile(configFile))
+				continue;
+			try {
+				final FileConfigurations configs;
+				try (final Reader reader = Files.newBufferedReader(configFile, StandardCharsets.UTF_8)) {
+					 configs = jsonReader.readValue(reader);
+				}
+				// existing index files may be outdated if the registry was missing
+				Map<String, FileInfo> files = rebuild ? null : UploadIndex.read(directory);
+				if (files == null)
+					files = UploadIndex.rebuild(config.uploadFolder(), directory);
+				final Set<String> deleted = new HashSet<>();
+				for (FileConfiguration cfg : configs.configurations) {
+					cleanUpIndexedFiles(files.values(), cfg, deleted);
+				}
+				if (!deleted.isEmpty())
+					UploadIndex.removed(directory, deleted);
+			} catch (IOException | SecurityException e) {
+				logger.error("Failed to execute housekeeping task for {}", configFile,e);
+			}
+		}
+	}
+
 	private void cleanUp(Path configFile) {
 		try {
 			final FileConfigurations configs;
@@ -139,6 +201,43 @@ public class FileUploadHousekeeping implements Runnable {
 			logger.warn("Failed to clean up in directory {}", directory);
 			return;
 		}
+		applyLimits(fileMap, config);
+	}
+	
+	/**
+	 * Like {@link #cleanUpFiles(Path, FileConfiguration)}, but based on the upload index instead of the
+	 * file system.
+	 * @param files
+	 * @param config
+	 * @param deleted
+	 * 		names of deleted files are added to this set
+	 */
+	private static void cleanUpIndexedFiles(final Collection<FileInfo> files, final FileConfiguration config, final Set<String> deleted) {
+		final Instant now = Instant.ofEpochMilli(System.currentTimeMillis());
+		final NavigableMap<Instant, FileInfo> fileMap = new TreeMap<>();
+		for (FileInfo info : files) {
+			final String filename = info.file.getFileName().toString();
+			if (deleted.contains(filename) || !prefixSuffixMatch(filename, config))
+				continue;
+			final Instant inst = Instant.ofEpochMilli(info.timestamp);
+			if (config.daysToKeepFile > 0 && Duration.between(inst, now).compareTo(Duration.ofDays(config.daysToKeepFile)) > 0) {
+				try {
+					Files.deleteIfExists(info.file);
+					deleted.add(filename);
+					continue;
+				} catch (IOException | SecurityException e) {
+					logger.warn("Failed to delete file {}", info.file, e);
+				}
+			}
+			fileMap.put(inst, info);
+		}
+		final Set<FileInfo> remaining = new HashSet<>(fileMap.values());
+		applyLimits(fileMap, config);
+		remaining.removeAll(fileMap.values());
+		remaining.forEach(info -> deleted.add(info.file.getFileName().toString()));
+	}
+	
+	private static void applyLimits(final NavigableMap<Instant, FileInfo> fileMap, final FileConfiguration config) {
 		if (fileMap.isEmpty())
 			return;
 		final int sz = fileMap.size();
@@ -248,7 +347,10 @@ public class FileUploadHousekeeping implements Runnable {
 	private static boolean prefixSuffiXMatch(final Path path, final FileConfiguration config) {
 		if (!Files.isRegularFile(path))
 			return false;
-		final String filename = path.getFileName().toString();
+		return prefixSuffixMatch(path.getFileName().toString(), config);
+	}
+	
+	private static boolean prefixSuffixMatch(final String filename, final FileConfiguration config) {
 		return filename.startsWith(config.filePrefix) && (config.fileEnding == null || filename.endsWith(config.fileEnding)); 
 	}
 	
@@ -266,6 +368,7 @@ public class FileUploadHousekeeping implements Runnable {
 		try (final Stream<Path> stream = Files.list(folder)) {
 			stream
 				.filter(dir -> Files.isDirectory(dir))
+				.filter(dir -> !dir.getFileName().toString().equals(ContentStore.FOLDER))
 				.forEach(dir -> listConfigFilesRecursively(dir, config, streamBuilder));
 		} catch (IOException | SecurityException e) { // we do not throw an exception, rather ignore the folder
 			logger.warn("Failed to determine files in subfolders {}", folder, e);
@@ -17,6 +17,7 @@ package org.smartrplace.tools.upload.server.impl;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -24,7 +25,11 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
@@ -33,16 +38,27 @@ import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.security.AccessControlContext;
 import java.security.AccessController;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -59,6 +75,7 @@ import org.osgi.service.component.ComponentException;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.http.context.ServletContextHelper;
@@ -72,6 +89,7 @@ import org.smartrplace.tools.upload.api.FileConfiguration;
 import org.smartrplace.tools.upload.api.FileConfigurations;
 import org.smartrplace.tools.upload.server.FileUploadConstants;
 import org.smartrplace.tools.upload.utils.DateTimeUtils;
+import org.smartrplace.tools.upload.utils.ParallelZipWriter;
 import org.smartrplace.tools.upload.utils.ZipUtils;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -96,6 +114,11 @@ public class FileUploadServlet extends HttpServlet  {
 
 	private static final long serialVersionUID = 1L;
 	private static final Logger logger = LoggerFactory.getLogger(FileUploadServlet.class);
+	static final String TEMP_FILE_PREFIX = ".upload-";
+	static final String TEMP_FILE_SUFFIX = ".part";
+	private static final String CHECKSUM_HEADER = "X-Checksum";
+	private static final int MAX_CONFIG_SIZE = 64 * 1024;
+	private static final String PARAM_COMPRESSION_LEVEL = "level";
 	
 	private final ConcurrentMap<String, UserStats> userStats = new ConcurrentHashMap<>();
 	private final ObjectMapper mapper = new ObjectMapper();
@@ -108,22 +131,53 @@ public class FileUploadServlet extends HttpServlet  {
 	
 	private volatile Path tempFolder;
 	private volatile FileUploadConfiguration config;
+	private volatile ChunkedUploads chunkedUploads;
+	// compression of zip downloads
+	private volatile ExecutorService zipExecutor;
+	private volatile int zipThreads;
 	
 	@Activate
 	@Modified
 	protected void activate(BundleContext ctx, FileUploadConfiguration config) {
-		this.config = config;
 		try {
 			Paths.get(config.uploadFolder());
-		} catch (InvalidPathException e) {
+			if (!config.checksumAlgorithm().trim().isEmpty())
+				MessageDigest.getInstance(config.checksumAlgorithm().trim());
+		} catch (InvalidPathException | NoSuchAlgorithmException e) {
 			throw new ComponentException(e);
 		}
+		this.config = config;
 		this.tempFolder = ctx.getDataFile("temp").toPath();
 		try {
 			Files.createDirectories(tempFolder);
 		} catch (IOException e) {
 			throw new ComponentException(e);
 		}
+		this.chunkedUploads = new ChunkedUploads(tempFolder.resolve("chunks"));
+		final int zipThreads = config.zipThreads() > 0 ? config.zipThreads() : Runtime.getRuntime().availableProcessors();
+		if (zipThreads != this.zipThreads) {
+			final AtomicInteger cnt = new AtomicInteger(0);
+			final ThreadPoolExecutor zipExecutor = new ThreadPoolExecutor(zipThreads, zipThreads, 60, TimeUnit.SECONDS, 
+					new LinkedBlockingQueue<>(), r -> {
+				final Thread t = new Thread(r, "file-upload-zip-" + cnt.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			});
+			// the previous executor is not shut down, since running downloads may still submit to it;
+			// its threads terminate once they have been idle for a minute
+			zipExecutor.allowCoreThreadTimeOut(true);
+			this.zipExecutor = zipExecutor;
+			this.zipThreads = zipThreads;
+		}
+	}
+	
+	@Deactivate
+	protected void deactivate() {
+		final ExecutorService zipExecutor = this.zipExecutor;
+		this.zipExecutor = null;
+		this.zipThreads = 0;
+		if (zipExecutor != null)
+			zipExecutor.shutdown();
 	}
 
 	private Void doGetInternal(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
@@ -139,7 +193,31 @@ public class FileUploadServlet extends HttpServlet  {
 		if (path0 == null)
 			path0 = "/.";
 		final FileUploadConfiguration config = this.config;
+		final String uploadId = getQueryParameter(req, ChunkedUploads.PARAM_UPLOAD);
+		if (uploadId != null) {
+			printChunkedUploadStatus(user, uploadId, resp);
+			return null;
+		}
+		if (getQueryParameter(req, UserStats.PARAM_STATS) != null) {
+			resp.setContentType("application/json");
+			resp.setCharacterEncoding("UTF-8");
+			mapper.writeValue(resp.getWriter(), userStats.computeIfAbsent(user, UserStats::new).getStats(config));
+			return null;
+		}
+		final String hash = getQueryParameter(req, ContentStore.PARAM_HASH);
+		if (hash != null) { // check for existing content, typically via a HEAD request
+			final boolean exists = config.deduplication() && ContentStore.isValidHash(hash) 
+					&& Files.isRegularFile(ContentStore.getBlob(config.uploadFolder(), user, hash));
+			resp.setStatus(exists ? HttpServletResponse.SC_OK : HttpServletResponse.SC_NOT_FOUND);
+			return null;
+		}
 		final Path dir = Paths.get(config.uploadFolder(), user, path0.substring(1));
+		if (getQueryParameter(req, UploadManifest.PARAM_MANIFEST) != null) {
+			resp.setContentType("application/json");
+			resp.setCharacterEncoding("UTF-8");
+			mapper.writeValue(resp.getWriter(), UploadManifest.read(dir));
+			return null;
+		}
 		if (accept.startsWith("text/plain")) {
 			final PrintWriter writer = resp.getWriter();
 			if (Files.isRegularFile(dir)) {
@@ -161,6 +239,7 @@ public class FileUploadServlet extends HttpServlet  {
 				try (final Stream<Path> stream = Files.list(dir)) {
 					stream
 						.map(path -> path.getFileName().toString())
+						.filter(path -> !isInternalFile(path))
 						.forEach(path -> {
 							if (!first.getAndSet(false))
 								writer.write(',');
@@ -171,21 +250,30 @@ public class FileUploadServlet extends HttpServlet  {
 			writer.flush();
 		} else if (accept.startsWith("application/octet-stream")) {
 			if (Files.isRegularFile(dir)) {
-				try (final OutputStream out = resp.getOutputStream()){
-					Files.copy(dir, out);
-					out.flush();
-				}
+				FileDownload.serve(dir, req, resp);
 			} else {
 				resp.sendError(HttpServletResponse.SC_NOT_FOUND);
-				return null;
 			}
+			return null;
 		} else if (accept.startsWith("application/zip")) {
 			if (!Files.exists(dir)) {
 				resp.sendError(HttpServletResponse.SC_NOT_FOUND);
 				return null;
 			}
+			final String levelParam = getQueryParameter(req, PARAM_COMPRESSION_LEVEL);
+			final int level;
+			try {
+				level = levelParam == null ? config.zipCompressionLevel() : Integer.parseInt(levelParam);
+				if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+					throw new NumberFormatException();
+			} catch (NumberFormatException e) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid compression level " + levelParam);
+				return null;
+			}
+			resp.setContentType("application/zip");
 			try (final OutputStream out = resp.getOutputStream()){
-				ZipUtils.zipFolder(dir, out);
+				ZipUtils.zipFolder(dir, out, level, config.zipStoreCompressedFiles() ? ParallelZipWriter.COMPRESSED_FILES : null,
+						path -> !isInternalFile(path.getFileName().toString()), zipExecutor, zipThreads);
 				out.flush();
 			}
 		} else {
@@ -210,7 +298,12 @@ public class FileUploadServlet extends HttpServlet  {
 	
 	@Override
 	protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-		if (!req.getContentType().toLowerCase().startsWith("multipart/form-data")) {
+		// completion of a chunked upload
+		final String uploadId = getQueryParameter(req, ChunkedUploads.PARAM_UPLOAD);
+		// creation of a file from the content store
+		final String hash = getQueryParameter(req, ContentStore.PARAM_HASH);
+		final String contentType = req.getContentType();
+		if (uploadId == null && hash == null && (contentType == null || !contentType.toLowerCase().startsWith("multipart/form-data"))) {
 			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unsupported content type");
 			return;
 		}
@@ -224,20 +317,24 @@ public class FileUploadServlet extends HttpServlet  {
 		if (ctx == null)
 			return;
 		final FileUploadConfiguration config = this.config;
-		String path0 = req.getPathInfo();
-		if (path0 == null)
-			path0 = "/.";
-		if (path0.length() > config.maxPathLength()) {
-			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Path info too long. Max: " + config.maxPathLength());
+		final String path = getPath(req, resp, config);
+		if (path == null)
 			return;
-		}
-		if (depth(path0) > config.maxDepth()) {
-			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Path depth too high. Max: " + config.maxDepth());
+		if (uploadId != null) {
+			// the upload has been counted when it was started
+			completeChunkedUpload(req, resp, user, path, uploadId, config, ctx);
 			return;
 		}
 		if (!userStats.computeIfAbsent(user, UserStats::new).accessGranted(config, resp))
 			return;
-		final String path = path0;
+		if (hash != null) {
+			createFromContentStore(req, resp, user, path, hash, config, ctx);
+			return;
+		}
+		if (config.streamingMultipart()) {
+			doPostStreaming(req, resp, user, path, config, ctx);
+			return;
+		}
 		// TODO replace by standard multi part config
 		/*
 		final MultipartConfigElement mce = new MultipartConfigElement(tempFolder.toString(), config.maxFileSize(), config.maxRequestSize(), (int) config.fileSizeThreshold());
@@ -264,7 +361,9 @@ public class FileUploadServlet extends HttpServlet  {
 				    }
 				    Path target = null;
 				    boolean dirCreated = false;
-				    try (InputStream is = filePart.getInputStream()) {
+				    final MessageDigest contentDigest = config.deduplication() ? ContentStore.newDigest() : null;
+				    try (InputStream is = contentDigest == null ? filePart.getInputStream() 
+				    		: new DigestInputStream(filePart.getInputStream(), contentDigest)) {
 				    	target = DateTimeUtils.buildFilePath(config.uploadFolder(), path.substring(1), fileName, user);
 				    	if (target == null)
 				    		return;
@@ -298,6 +397,9 @@ public class FileUploadServlet extends HttpServlet  {
 					    	logger.debug("New file from user {} at {}",user,target0);
 					    	return null;
 				    	}, ctx);
+				    	if (contentDigest != null)
+				    		ContentStore.add(config.uploadFolder(), user, target0, toHex(contentDigest.digest()), ctx);
+				    	addToIndex(target0, config);
 				    } catch (IOException | SecurityException | PrivilegedActionException e) {
 				    	logger.error("Could not store file", e);
 				    	success.set(false);
@@ -329,7 +431,14 @@ public class FileUploadServlet extends HttpServlet  {
 				    		entry = zis.getNextEntry();
 				    		if (entry == null)
 				    			break;
-				    		final Path targetFile = dir.resolve(entry.getName());
+				    		if (entry.isDirectory())
+				    			continue;
+				    		final Path targetFile = resolveZipEntry(dir, entry.getName());
+				    		if (targetFile == null) {
+				    			logger.warn("Zip entry {} from user {} points outside the upload folder, skipping it", entry.getName(), user);
+				    			success.set(false);
+				    			continue;
+				    		}
 				    		final Path parent = targetFile.getParent();
 				    		final boolean existed = Files.exists(parent);
 				    		if (!existed) {
@@ -341,6 +450,7 @@ public class FileUploadServlet extends HttpServlet  {
 							    	return null;
 						    	}, ctx);
 				    			zipFiles.add(targetFile);
+				    			addToIndex(targetFile, config);
 				    		} catch(SecurityException | PrivilegedActionException e) {
 				    			logger.warn("Failed to unzip file", e);
 				    	    	success.set(false);
@@ -370,6 +480,8 @@ public class FileUploadServlet extends HttpServlet  {
 		    		}
 	    		}
 			}
+			if (hasZipPart.get() && success.get())
+				updateManifest(req, dir);
 		} catch (UncheckedIOException e) {
 	    	resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 	    	logger.warn("Failed to write file to disk",e.getCause());
@@ -386,6 +498,593 @@ public class FileUploadServlet extends HttpServlet  {
 	}
 	
 	
+	/**
+	 * Receives a single chunk of a chunked upload. Query parameters: {@link ChunkedUploads#PARAM_UPLOAD}, 
+	 * {@link ChunkedUploads#PARAM_CHUNK}, {@link ChunkedUploads#PARAM_CHUNK_SIZE}, {@link ChunkedUploads#PARAM_SIZE},
+	 * {@link ChunkedUploads#PARAM_FILENAME}. The body contains the raw chunk bytes. Chunks of the same upload 
+	 * may be sent in parallel and in any order. Each chunk counts towards {@link FileUploadConfiguration#maxChunksPerMinute()},
+	 * and starting a new upload counts as an upload with respect to the per user upload limits.
+	 */
+	@Override
+	protected void doPut(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		final String user = (String) req.getAttribute(ServletContextHelper.REMOTE_USER);
+		logger.trace("PUT request received from user {}", user);
+		if (user == null) {
+			resp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+		final AccessControlContext ctx = accessControl.getAccessControlContext();
+		if (ctx == null)
+			return;
+		final FileUploadConfiguration config = this.config;
+		final String path = getPath(req, resp, config);
+		if (path == null)
+			return;
+		final String uploadId = getQueryParameter(req, ChunkedUploads.PARAM_UPLOAD);
+		if (!ChunkedUploads.isValidId(uploadId)) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid or missing upload id");
+			return;
+		}
+		final int chunk;
+		final int chunkSize;
+		final long size;
+		try {
+			chunk = Integer.parseInt(getQueryParameter(req, ChunkedUploads.PARAM_CHUNK));
+			chunkSize = Integer.parseInt(getQueryParameter(req, ChunkedUploads.PARAM_CHUNK_SIZE));
+			size = Long.parseLong(getQueryParameter(req, ChunkedUploads.PARAM_SIZE));
+		} catch (NumberFormatException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid or missing chunk parameters");
+			return;
+		}
+		final String filename0 = getQueryParameter(req, ChunkedUploads.PARAM_FILENAME);
+		final String filename = filename0 == null ? null : Paths.get(filename0).getFileName().toString();
+		if (filename == null || filename.isEmpty() || filename.length() > config.maxFileNameLength()) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid or missing file name");
+			return;
+		}
+		if (size < 0 || size > config.maxChunkedUploadSize()) {
+			resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Maximum upload size: " + config.maxChunkedUploadSize());
+			return;
+		}
+		if (chunkSize <= 0 || chunkSize > config.maxChunkSize()) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid chunk size; maximum: " + config.maxChunkSize());
+			return;
+		}
+		final UserStats stats = userStats.computeIfAbsent(user, UserStats::new);
+		if (!stats.chunkAccessGranted(config, resp))
+			return;
+		final ChunkedUploads chunkedUploads = this.chunkedUploads;
+		try {
+			if (chunkedUploads.get(user, uploadId) == null)
+				chunkedUploads.removeExpired(user, TimeUnit.HOURS.toMillis(config.chunkedUploadExpiryHours()), ctx);
+			// the first chunks of a new upload typically arrive concurrently; the upload quota is charged only 
+			// by the request that actually creates the upload
+			final ChunkedUploads.Upload upload = chunkedUploads.getOrCreate(user, uploadId, path, 
+					Paths.get(config.uploadFolder(), user, path.substring(1)), filename, size, chunkSize, 
+					config.maxPendingChunkedUploads(), () -> stats.accessGranted(config, resp), config.deduplication(), ctx);
+			if (upload == null) // response has been sent already
+				return;
+			final long length = upload.getChunkLength(chunk);
+			final long contentLength = req.getContentLengthLong();
+			if (contentLength >= 0 && contentLength != length) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unexpected chunk length " + contentLength + ", expected " + length);
+				return;
+			}
+			chunkedUploads.writeChunk(upload, chunk, req.getInputStream(), ctx);
+		} catch (IllegalArgumentException e) {
+			resp.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+			return;
+		} catch (IllegalStateException e) { // too many pending uploads
+			resp.sendError(429, e.getMessage());
+			return;
+		} catch (SecurityException e) {
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		} catch (PrivilegedActionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof SecurityException) {
+				resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+				return;
+			}
+			logger.warn("Failed to store chunk {} of upload {} from user {}", chunk, uploadId, user, cause);
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, cause.getMessage());
+			return;
+		}
+		resp.setStatus(HttpServletResponse.SC_OK);
+	}
+	
+	private void printChunkedUploadStatus(final String user, final String uploadId, final HttpServletResponse resp) throws IOException {
+		final ChunkedUploads.Upload upload = ChunkedUploads.isValidId(uploadId) ? chunkedUploads.get(user, uploadId) : null;
+		if (upload == null) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		final BitSet received = chunkedUploads.getReceivedChunks(upload);
+		resp.setContentType("text/plain");
+		resp.setCharacterEncoding("UTF-8");
+		final PrintWriter writer = resp.getWriter();
+		writer.write(received.stream()
+				.mapToObj(String::valueOf)
+				.collect(Collectors.joining(",")));
+		writer.flush();
+		resp.setStatus(HttpServletResponse.SC_OK);
+	}
+	
+	/**
+	 * Moves the file assembled from all chunks to its target location. The request body may contain 
+	 * a {@link FileConfiguration} in JSON format.
+	 */
+	private void completeChunkedUpload(final HttpServletRequest req, final HttpServletResponse resp, final String user, final String path,
+			final String uploadId, final FileUploadConfiguration config, final AccessControlContext ctx) throws IOException {
+		final ChunkedUploads chunkedUploads = this.chunkedUploads;
+		final ChunkedUploads.Upload upload = ChunkedUploads.isValidId(uploadId) ? chunkedUploads.get(user, uploadId) : null;
+		if (upload == null) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Upload " + uploadId + " not found");
+			return;
+		}
+		if (!upload.directory.equals(path)) {
+			resp.sendError(HttpServletResponse.SC_CONFLICT, "Upload " + uploadId + " belongs to a different path");
+			return;
+		}
+		final byte[] configBytes = readConfigPart(req.getInputStream());
+		// serializes completion with chunks being written and with concurrent completion requests
+		final Lock lock = chunkedUploads.lockForCompletion(upload);
+		if (lock == null) {
+			resp.sendError(HttpServletResponse.SC_CONFLICT, "Upload " + uploadId + " has been completed already");
+			return;
+		}
+		try {
+			completeChunkedUpload(resp, user, path, upload, configBytes, config, ctx);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	// must be called while holding the completion lock of the upload
+	private void completeChunkedUpload(final HttpServletResponse resp, final String user, final String path, final ChunkedUploads.Upload upload,
+			final byte[] configBytes, final FileUploadConfiguration config, final AccessControlContext ctx) throws IOException {
+		final ChunkedUploads chunkedUploads = this.chunkedUploads;
+		final BitSet received = chunkedUploads.getReceivedChunks(upload);
+		if (received.cardinality() < upload.nrChunks) {
+			final BitSet missing = new BitSet(upload.nrChunks);
+			missing.set(0, upload.nrChunks);
+			missing.andNot(received);
+			resp.sendError(HttpServletResponse.SC_CONFLICT, "Missing chunks: " + missing.stream()
+				.mapToObj(String::valueOf)
+				.collect(Collectors.joining(",")));
+			return;
+		}
+		final FileConfiguration newConfig = configBytes.length == 0 ? null : jsonReader.readValue(configBytes);
+		final Path target = DateTimeUtils.buildFilePath(config.uploadFolder(), path.substring(1), upload.filename, user);
+		final Path configPath = target.getParent().resolve(config.configFileName());
+		final FileConfiguration existingConfig = getExistingConfig(configPath, target.getFileName());
+		if (existingConfig == null && newConfig != null) {
+			if (!prefixSuffiXMatch(target, newConfig)) {
+				logger.warn("Invalid request: configuration does not apply to provided file {}", upload.filename);
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid request: configuration does not apply to provided file " + upload.filename);
+				return;
+			}
+			addConfig(configPath, newConfig);
+		}
+		final String hash = config.deduplication() ? chunkedUploads.getContentHash(upload, ctx) : null;
+		try {
+			moveAtomically(upload.dataFile, target, ctx);
+		} catch (SecurityException | PrivilegedActionException e) {
+			logger.error("Could not store file", e);
+			final boolean denied = e instanceof SecurityException || e.getCause() instanceof SecurityException;
+			resp.sendError(denied ? HttpServletResponse.SC_FORBIDDEN : HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			return;
+		}
+		chunkedUploads.remove(upload, ctx);
+		logger.debug("New file from user {} at {}, uploaded in {} chunks", user, target, upload.nrChunks);
+		if (config.deduplication())
+			ContentStore.add(config.uploadFolder(), user, target, hash != null ? hash : ContentStore.hash(target), ctx);
+		addToIndex(target, config);
+		resp.setStatus(HttpServletResponse.SC_OK);
+	}
+	
+	/**
+	 * Creates a new file as a link to an existing blob in the user's content store. Query parameters:
+	 * {@link ContentStore#PARAM_HASH} and {@link ChunkedUploads#PARAM_FILENAME}. The request body may 
+	 * contain a {@link FileConfiguration} in JSON format. Responds with 404 if the content is not
+	 * available, in which case the client needs to upload the file.
+	 */
+	private void createFromContentStore(final HttpServletRequest req, final HttpServletResponse resp, final String user, final String path,
+			final String hash, final FileUploadConfiguration config, final AccessControlContext ctx) throws IOException {
+		if (!config.deduplication() || !ContentStore.isValidHash(hash)) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		final String filename0 = getQueryParameter(req, ChunkedUploads.PARAM_FILENAME);
+		final String filename = filename0 == null ? null : Paths.get(filename0).getFileName().toString();
+		if (filename == null || filename.isEmpty() || filename.length() > config.maxFileNameLength()) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid or missing file name");
+			return;
+		}
+		if (!Files.isRegularFile(ContentStore.getBlob(config.uploadFolder(), user, hash))) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		final byte[] configBytes = readConfigPart(req.getInputStream());
+		final FileConfiguration newConfig = configBytes.length == 0 ? null : jsonReader.readValue(configBytes);
+		final Path target = DateTimeUtils.buildFilePath(config.uploadFolder(), path.substring(1), filename, user);
+		final Path configPath = target.getParent().resolve(config.configFileName());
+		final FileConfiguration existingConfig = getExistingConfig(configPath, target.getFileName());
+		if (existingConfig == null && newConfig != null) {
+			if (!prefixSuffiXMatch(target, newConfig)) {
+				logger.warn("Invalid request: configuration does not apply to provided file {}", filename);
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid request: configuration does not apply to provided file " + filename);
+				return;
+			}
+			addConfig(configPath, newConfig);
+		}
+		try {
+			if (!ContentStore.link(config.uploadFolder(), user, hash, target, ctx)) {
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+		} catch (SecurityException | PrivilegedActionException e) {
+			logger.error("Could not store file", e);
+			final boolean denied = e instanceof SecurityException || e.getCause() instanceof SecurityException;
+			resp.sendError(denied ? HttpServletResponse.SC_FORBIDDEN : HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			return;
+		}
+		logger.debug("New file from user {} at {}, created from existing content", user, target);
+		addToIndex(target, config);
+		resp.setStatus(HttpServletResponse.SC_OK);
+	}
+	
+	/**
+	 * Query parameters are parsed from the query string, since 
+	 * {@link HttpServletRequest#getParameter(String)} may consume a multipart body.
+	 */
+	private static String getQueryParameter(final HttpServletRequest req, final String parameter) {
+		final String query = req.getQueryString();
+		if (query == null)
+			return null;
+		for (String param : query.split("&")) {
+			final int idx = param.indexOf('=');
+			final String name = idx < 0 ? param : param.substring(0, idx);
+			if (!name.equals(parameter))
+				continue;
+			try {
+				return idx < 0 ? "" : URLDecoder.decode(param.substring(idx + 1), "UTF-8");
+			} catch (UnsupportedEncodingException | IllegalArgumentException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return
+	 * 		the validated path info, or null if it is invalid, in which case an error has been sent
+	 */
+	private static String getPath(final HttpServletRequest req, final HttpServletResponse resp, final FileUploadConfiguration config) throws IOException {
+		String path0 = req.getPathInfo();
+		if (path0 == null)
+			path0 = "/.";
+		if (path0.length() > config.maxPathLength()) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Path info too long. Max: " + config.maxPathLength());
+			return null;
+		}
+		if (depth(path0) > config.maxDepth()) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Path depth too high. Max: " + config.maxDepth());
+			return null;
+		}
+		return path0;
+	}
+	
+	/**
+	 * Parses the multipart request while reading it, and writes each file to a temporary file in its target 
+	 * directory first. The temp files are moved to their final location once the configuration part,
+	 * which is usually sent after the file parts, is known. 
+	 */
+	private void doPostStreaming(final HttpServletRequest req, final HttpServletResponse resp, final String user, final String path,
+			final FileUploadConfiguration config, final AccessControlContext ctx) throws IOException {
+		final String boundary = MultipartStreamParser.getBoundary(req.getContentType());
+		if (boundary == null) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Multipart boundary missing");
+			return;
+		}
+		final MultipartStreamParser parser = new MultipartStreamParser(req.getInputStream(), boundary, config.maxRequestSize());
+		final String checksumAlgorithm = config.checksumAlgorithm().trim();
+		final Path dir = Paths.get(config.uploadFolder(), user, path.substring(1));
+		final List<PendingFile> pending = new ArrayList<>();
+		final List<Path> zipFiles = new ArrayList<>();
+		final StringBuilder report = new StringBuilder();
+		boolean success = true;
+		int response = -1;
+		boolean hasZipPart = false;
+		byte[] configBytes = null;
+		try {
+			MultipartStreamParser.StreamPart part;
+			while ((part = parser.next()) != null) {
+				final String contentType = part.getContentType();
+				if ("config".equals(part.getName()) && part.getSubmittedFileName() == null) {
+					configBytes = readConfigPart(part.getInputStream());
+				} else if (contentType != null && contentType.startsWith("application/octet-stream")) {
+					final String submitted = part.getSubmittedFileName();
+					String fileName = submitted == null ? null : Paths.get(submitted).getFileName().toString();
+					if (fileName == null || fileName.isEmpty()) 
+						fileName = "unspecified";
+					if (fileName.length() > config.maxFileNameLength()) {
+						logger.warn("File name too long: {}. Skipping this.", fileName);
+						continue;
+					}
+					final Path target = DateTimeUtils.buildFilePath(config.uploadFolder(), path.substring(1), fileName, user);
+					if (target == null)
+						continue;
+					final Path parent = target.getParent();
+					final boolean dirCreated = !Files.exists(parent);
+					try {
+						if (dirCreated)
+							Files.createDirectories(parent);
+						final MessageDigest digest = checksumAlgorithm.isEmpty() ? null : MessageDigest.getInstance(checksumAlgorithm);
+						final MessageDigest contentDigest = config.deduplication() ? ContentStore.newDigest() : null;
+						final Path temp = writeTempFile(part.getInputStream(), parent, ctx, digest, contentDigest);
+						final PendingFile file = new PendingFile(target, temp, dirCreated, digest == null ? null : toHex(digest.digest()),
+								contentDigest == null ? null : toHex(contentDigest.digest()));
+						final String expected = part.getHeader(CHECKSUM_HEADER);
+						if (file.checksum != null && expected != null && !expected.trim().equalsIgnoreCase(file.checksum)) {
+							success = false;
+							report.append("Checksum mismatch for file ").append(fileName).append('\n');
+							logger.warn("Checksum mismatch for file {} from user {}", fileName, user);
+							file.discard();
+							continue;
+						}
+						pending.add(file);
+					} catch (IOException | SecurityException | PrivilegedActionException | NoSuchAlgorithmException e) {
+						if (dirCreated)
+							deleteDirectoryQuietly(parent);
+						final Throwable cause = e instanceof PrivilegedActionException ? e.getCause() : e;
+						if (cause instanceof IOException && !(cause instanceof FileSystemException)) // reading the request failed
+							throw (IOException) cause;
+						logger.error("Could not store file", e);
+						success = false;
+						if (e instanceof SecurityException) {
+							response = HttpServletResponse.SC_FORBIDDEN;
+							report.append("Permission to store file at " + target + " denied.\n");
+						}
+					}
+				} else if (contentType != null && contentType.startsWith("application/zip")) {
+					hasZipPart = true;
+					try (final ZipInputStream zis = new ZipInputStream(part.getInputStream())) {
+						ZipEntry entry;
+						while ((entry = zis.getNextEntry()) != null) {
+							if (entry.isDirectory())
+								continue;
+							final Path targetFile = resolveZipEntry(dir, entry.getName());
+							if (targetFile == null) {
+								logger.warn("Zip entry {} from user {} points outside the upload folder, skipping it", entry.getName(), user);
+								success = false;
+								continue;
+							}
+							final Path parent = targetFile.getParent();
+							final boolean existed = Files.exists(parent);
+							if (!existed)
+								Files.createDirectories(parent);
+							try {
+								moveAtomically(writeTempFile(zis, parent, ctx), targetFile, ctx);
+								zipFiles.add(targetFile);
+								addToIndex(targetFile, config);
+							} catch (SecurityException | PrivilegedActionException e) {
+								logger.warn("Failed to unzip file", e);
+								success = false;
+								if (!existed) {
+									try {
+										Files.delete(parent);
+									} catch (Exception ignore) {}
+								}
+							}
+						}
+					}
+					logger.debug("New files from user {} at {}",user,dir);
+				} 
+				// other parts are skipped
+			}
+		} catch (IOException e) {
+			pending.forEach(PendingFile::discard);
+			if (e instanceof MultipartStreamParser.SizeLimitExceededException) {
+				resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+			} else {
+				logger.warn("Failed to read multipart request from user {}", user, e);
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid multipart request");
+			}
+			return;
+		}
+		final FileConfiguration newConfig = configBytes == null ? null : jsonReader.readValue(configBytes);
+		if (configBytes != null && newConfig == null) {
+			pending.forEach(PendingFile::discard);
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "File configuration missing");
+			return;
+		}
+		for (PendingFile file : pending) {
+			try {
+				final Path configPath = file.target.getParent().resolve(config.configFileName());
+				final FileConfiguration existingConfig = getExistingConfig(configPath, file.target.getFileName());
+				if (existingConfig == null && newConfig != null) { 
+					if (!prefixSuffiXMatch(file.target, newConfig)) {
+						success = false;
+						report.append("Invalid request: configuration does not apply to provided file ").append(file.target.getFileName()).append('\n');
+						logger.warn("Invalid request: configuration does not apply to provided file {}", file.target.getFileName());
+						file.discard();
+						continue;
+					}
+					addConfig(configPath, newConfig);
+				}
+				moveAtomically(file.temp, file.target, ctx);
+				logger.debug("New file from user {} at {}",user,file.target);
+				if (file.contentHash != null)
+					ContentStore.add(config.uploadFolder(), user, file.target, file.contentHash, ctx);
+				addToIndex(file.target, config);
+				if (file.checksum != null)
+					resp.addHeader(CHECKSUM_HEADER, file.target.getFileName() + "=" + file.checksum);
+			} catch (IOException | SecurityException | PrivilegedActionException e) {
+				logger.error("Could not store file", e);
+				success = false;
+				file.discard();
+				if (file.dirCreated)
+					deleteDirectoryQuietly(file.target.getParent());
+				if (e instanceof SecurityException) {
+					response = HttpServletResponse.SC_FORBIDDEN;
+					report.append("Permission to store file at " + file.target + " denied.\n");
+				}
+			}
+		}
+		if (hasZipPart && newConfig != null) {
+			final Path configFile = dir.resolve(config.configFileName());
+			for (Path zip: zipFiles) {
+				final FileConfiguration existingConfig = getExistingConfig(configFile, zip);
+				if (existingConfig == null)
+					addConfig(configFile, newConfig);
+			}
+		}
+		if (success) {
+			if (hasZipPart)
+				updateManifest(req, dir);
+			resp.setStatus(HttpServletResponse.SC_OK);
+		}
+		else 
+			resp.sendError(response > 0 ? response : HttpServletResponse.SC_INTERNAL_SERVER_ERROR, report.toString());
+	}
+	
+	/**
+	 * Store the watermark reported by the client for a successful folder upload, 
+	 * see {@link UploadManifest}.
+	 */
+	private static void updateManifest(final HttpServletRequest req, final Path dir) {
+		final String watermark = getQueryParameter(req, UploadManifest.PARAM_WATERMARK);
+		if (watermark == null)
+			return;
+		final String prefix = getQueryParameter(req, UploadManifest.PARAM_PREFIX);
+		try {
+			UploadManifest.update(dir, prefix == null ? "" : prefix, Long.parseLong(watermark));
+		} catch (NumberFormatException | IOException | SecurityException e) {
+			logger.warn("Failed to update upload manifest in {}", dir, e);
+		}
+	}
+	
+	/**
+	 * Temporary files and files maintained by the servlet itself are not visible to the user.
+	 */
+	private static boolean isInternalFile(final String filename) {
+		return filename.startsWith(TEMP_FILE_PREFIX) || filename.equals(ContentStore.FOLDER) 
+				|| filename.startsWith(UploadIndex.INDEX_FILE) || filename.startsWith(UploadManifest.FILE);
+	}
+	
+	private static void addToIndex(final Path file, final FileUploadConfiguration config) {
+		if (config.useUploadIndex())
+			UploadIndex.added(config.uploadFolder(), file);
+	}
+	
+	/**
+	 * @param dir
+	 * @param entryName
+	 * @return
+	 * 		the normalized target path of a zip entry, or null if it would end up outside of dir
+	 */
+	private static Path resolveZipEntry(final Path dir, final String entryName) {
+		final Path base = dir.toAbsolutePath().normalize();
+		final Path target = base.resolve(entryName).normalize();
+		return target.startsWith(base) && !target.equals(base) ? target : null;
+	}
+	
+	private static byte[] readConfigPart(final InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+		final byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+			if (out.size() > MAX_CONFIG_SIZE)
+				throw new IOException("Configuration part too large");
+		}
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Writes the stream to a new temporary file in the specified directory.
+	 * @param in
+	 * @param dir
+	 * @param ctx
+	 * @param digests
+	 * 		digests to be updated with the content; null entries are ignored
+	 * @return
+	 * @throws PrivilegedActionException
+	 */
+	private static Path writeTempFile(final InputStream in, final Path dir, final AccessControlContext ctx, 
+			final MessageDigest... digests) throws PrivilegedActionException {
+		return AccessController.doPrivileged((PrivilegedExceptionAction<Path>) () -> {
+			final Path temp = Files.createTempFile(dir, TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX);
+			try {
+				InputStream is = in;
+				for (MessageDigest digest : digests) {
+					if (digest != null)
+						is = new DigestInputStream(is, digest);
+				}
+				Files.copy(is, temp, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException | RuntimeException e) {
+				Files.deleteIfExists(temp);
+				throw e;
+			}
+			return temp;
+		}, ctx);
+	}
+	
+	private static void moveAtomically(final Path source, final Path target, final AccessControlContext ctx) throws PrivilegedActionException {
+		AccessController.doPrivileged((PrivilegedExceptionAction<Void>) () -> {
+			try {
+				Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			return null;
+		}, ctx);
+	}
+	
+	private static void deleteDirectoryQuietly(final Path dir) {
+		try {
+			if (Files.isDirectory(dir)) 
+				FileUtils.deleteDirectory(dir.toFile());
+		} catch (Exception ignore) {}
+	}
+	
+	static String toHex(final byte[] bytes) {
+		final StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+	
+	private static class PendingFile {
+		
+		final Path target;
+		final Path temp;
+		final boolean dirCreated;
+		// may be null
+		final String checksum;
+		// SHA-256 hash for the content store; may be null
+		final String contentHash;
+		
+		PendingFile(Path target, Path temp, boolean dirCreated, String checksum, String contentHash) {
+			this.target = target;
+			this.temp = temp;
+			this.dirCreated = dirCreated;
+			this.checksum = checksum;
+			this.contentHash = contentHash;
+		}
+		
+		void discard() {
+			try {
+				Files.deleteIfExists(temp);
+			} catch (IOException | SecurityException e) {
+				logger.warn("Failed to delete temporary file {}", temp, e);
+			}
+		}
+		
+	}
+	
 	static Path getValidFilename(String folder, String filename, String user, FileUploadConfiguration config) throws IOException {
 		String[] components = filename.split("\\.");
 		String ending = null;
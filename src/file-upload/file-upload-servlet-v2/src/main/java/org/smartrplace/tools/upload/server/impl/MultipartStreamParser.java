@@ -0,0 +1,333 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.tools.upload.server.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A minimal streaming parser for multipart/form-data request bodies (RFC 7578). In contrast to 
+ * {@link javax.servlet.http.HttpServletRequest#getParts()} it does not buffer the parts, but 
+ * provides the content of one part at a time as an {@link InputStream}. Moving to the next part
+ * discards any unread content of the current part.
+ */
+class MultipartStreamParser {
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_HEADER_LINE = 8 * 1024;
+	private static final int MAX_HEADERS = 32;
+	
+	private final InputStream in;
+	private final long maxSize;
+	// "\r\n--" + boundary
+	private final byte[] delimiter;
+	private final byte[] buf;
+	private int pos;
+	private int limit;
+	private long totalRead;
+	private boolean eof;
+	private boolean finished;
+	private StreamPart current;
+	
+	/**
+	 * @param in
+	 * @param boundary
+	 * @param maxSize
+	 * 		maximum number of bytes to read from the stream; if it is exceeded, an IOException
+	 * 		is thrown. Set to a value &lt;= 0 for no limit.
+	 */
+	MultipartStreamParser(final InputStream in, final String boundary, final long maxSize) {
+		this.in = in;
+		this.maxSize = maxSize;
+		this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+		this.buf = new byte[Math.max(BUFFER_SIZE, 4 * delimiter.length)];
+		// the first boundary is not preceded by a line break, unless there is a preamble
+		buf[0] = '\r';
+		buf[1] = '\n';
+		limit = 2;
+	}
+	
+	/**
+	 * @param contentType
+	 * @return
+	 * 		the boundary parameter of a multipart content type, or null if absent
+	 */
+	static String getBoundary(final String contentType) {
+		if (contentType == null)
+			return null;
+		final String boundary = getParameter(contentType, "boundary");
+		if (boundary == null || boundary.isEmpty() || boundary.length() > 70)
+			return null;
+		return boundary;
+	}
+	
+	/**
+	 * @return
+	 * 		the next part, or null if the closing delimiter has been reached
+	 * @throws IOException
+	 */
+	StreamPart next() throws IOException {
+		if (finished)
+			return null;
+		// skip the rest of the current part, or the preamble
+		final PartInputStream remainder = current != null ? current.stream : new PartInputStream();
+		current = null;
+		while (remainder.skip(Long.MAX_VALUE) > 0) {}
+		pos += delimiter.length;
+		ensureAvailable(2);
+		if (limit - pos >= 2 && buf[pos] == '-' && buf[pos+1] == '-') {
+			finished = true;
+			return null;
+		}
+		// rest of the delimiter line, usually empty
+		readLine();
+		final Map<String, String> headers = new HashMap<>(4);
+		String line;
+		while (!(line = readLine()).isEmpty()) {
+			if (headers.size() >= MAX_HEADERS)
+				throw new IOException("Too many part headers");
+			final int idx = line.indexOf(':');
+			if (idx <= 0)
+				continue;
+			headers.put(line.substring(0, idx).trim().toLowerCase(Locale.ENGLISH), line.substring(idx + 1).trim());
+		}
+		current = new StreamPart(headers, new PartInputStream());
+		return current;
+	}
+	
+	private void ensureAvailable(final int nrBytes) throws IOException {
+		while (limit - pos < nrBytes && !eof) {
+			if (pos > 0) {
+				System.arraycopy(buf, pos, buf, 0, limit - pos);
+				limit -= pos;
+				pos = 0;
+			}
+			final int read = in.read(buf, limit, buf.length - limit);
+			if (read < 0) {
+				eof = true;
+				break;
+			}
+			totalRead += read;
+			if (maxSize > 0 && totalRead > maxSize)
+				throw new SizeLimitExceededException("Maximum request size exceeded: " + maxSize);
+			limit += read;
+		}
+	}
+	
+	private String readLine() throws IOException {
+		final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+		while (true) {
+			ensureAvailable(2);
+			if (limit - pos < 2)
+				throw new EOFException("Unexpected end of multipart stream");
+			if (buf[pos] == '\r' && buf[pos+1] == '\n') {
+				pos += 2;
+				return new String(line.toByteArray(), StandardCharsets.UTF_8);
+			}
+			line.write(buf[pos++]);
+			if (line.size() > MAX_HEADER_LINE)
+				throw new IOException("Multipart header line too long");
+		}
+	}
+	
+	/**
+	 * @return
+	 * 		the number of bytes of the current part available in the buffer starting at pos, 
+	 * 		or -1 if the delimiter starts at pos
+	 */
+	private int availableInPart() throws IOException {
+		while (true) {
+			ensureAvailable(delimiter.length);
+			final int idx = indexOfDelimiter(pos, limit);
+			if (idx == pos)
+				return -1;
+			if (idx > pos)
+				return idx - pos;
+			// the delimiter could start within the last delimiter.length-1 bytes
+			final int safe = limit - pos - (delimiter.length - 1);
+			if (safe > 0)
+				return safe;
+			if (eof)
+				throw new EOFException("Unexpected end of multipart stream");
+			ensureAvailable(limit - pos + 1);
+		}
+	}
+	
+	private int indexOfDelimiter(final int from, final int to) {
+		final byte first = delimiter[0];
+		final int last = to - delimiter.length;
+		outer: for (int i = from; i <= last; i++) {
+			if (buf[i] != first)
+				continue;
+			for (int j = 1; j < delimiter.length; j++) {
+				if (buf[i + j] != delimiter[j])
+					continue outer;
+			}
+			return i;
+		}
+		return -1;
+	}
+	
+	static String getParameter(final String header, final String parameter) {
+		int idx = 0;
+		final int l = header.length();
+		while (idx < l) {
+			final int semicolon = header.indexOf(';', idx);
+			if (semicolon < 0)
+				return null;
+			idx = semicolon + 1;
+			while (idx < l && header.charAt(idx) == ' ')
+				idx++;
+			final int eq = header.indexOf('=', idx);
+			if (eq < 0)
+				return null;
+			final String name = header.substring(idx, eq).trim();
+			idx = eq + 1;
+			final String value;
+			if (idx < l && header.charAt(idx) == '"') {
+				final StringBuilder sb = new StringBuilder();
+				idx++;
+				while (idx < l && header.charAt(idx) != '"') {
+					char c = header.charAt(idx++);
+					if (c == '\\' && idx < l)
+						c = header.charAt(idx++);
+					sb.append(c);
+				}
+				idx++;
+				value = sb.toString();
+			} else {
+				int end = header.indexOf(';', idx);
+				if (end < 0)
+					end = l;
+				value = header.substring(idx, end).trim();
+				idx = end;
+			}
+			if (name.equalsIgnoreCase(parameter))
+				return value;
+		}
+		return null;
+	}
+	
+	static class StreamPart {
+		
+		private final Map<String, String> headers;
+		private final PartInputStream stream;
+		private final String name;
+		private final String fileName;
+		
+		StreamPart(Map<String, String> headers, PartInputStream stream) {
+			this.headers = headers;
+			this.stream = stream;
+			final String disposition = headers.get("content-disposition");
+			this.name = disposition == null ? null : getParameter(disposition, "name");
+			this.fileName = disposition == null ? null : getParameter(disposition, "filename");
+		}
+		
+		String getName() {
+			return name;
+		}
+		
+		String getSubmittedFileName() {
+			return fileName;
+		}
+		
+		String getContentType() {
+			return headers.get("content-type");
+		}
+		
+		/**
+		 * @param header
+		 * 		case-insensitive
+		 * @return
+		 */
+		String getHeader(String header) {
+			return headers.get(header.toLowerCase(Locale.ENGLISH));
+		}
+		
+		InputStream getInputStream() {
+			return stream;
+		}
+		
+	}
+	
+	static class SizeLimitExceededException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		SizeLimitExceededException(String message) {
+			super(message);
+		}
+		
+	}
+	
+	private class PartInputStream extends InputStream {
+		
+		private boolean done;
+		
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			final int n = read(b, 0, 1);
+			return n < 0 ? -1 : b[0] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (done)
+				return -1;
+			if (len == 0)
+				return 0;
+			final int available = available0();
+			if (available < 0)
+				return -1;
+			final int n = Math.min(available, len);
+			System.arraycopy(buf, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			if (done || n <= 0)
+				return 0;
+			final int available = available0();
+			if (available < 0)
+				return 0;
+			final int skipped = (int) Math.min(available, n);
+			pos += skipped;
+			return skipped;
+		}
+		
+		private int available0() throws IOException {
+			final int available = availableInPart();
+			if (available < 0)
+				done = true;
+			return available;
+		}
+		
+		// closing the part stream does not close the underlying request stream
+		@Override
+		public void close() {}
+		
+	}
+	
+}
@@ -0,0 +1,273 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.tools.upload.server.impl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartrplace.tools.upload.utils.DateTimeUtils;
+
+/**
+ * Persistent index of uploaded files, so that the housekeeping need not scan the whole upload
+ * tree. Each directory containing uploads has an index file {@link #INDEX_FILE}, an append-only 
+ * log with one line per stored file (name, timestamp parsed from the file name, size) or 
+ * deleted file, which is compacted by the housekeeping. All indexed directories are listed 
+ * in a registry file in the folder {@link #REGISTRY_FOLDER} of the upload folder.
+ */
+class UploadIndex {
+	
+	static final String INDEX_FILE = ".uploadindex";
+	static final String REGISTRY_FOLDER = ".index";
+	private static final String REGISTRY_FILE = "directories";
+	private static final Logger logger = LoggerFactory.getLogger(UploadIndex.class);
+	// shared between the servlet and the housekeeping; striped by path, never more than one is held at a time
+	private static final Object[] locks = new Object[64];
+	
+	static {
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+	
+	private UploadIndex() {}
+	
+	/**
+	 * Add a newly stored file to the index of its directory. Files whose names do not 
+	 * contain a timestamp are ignored, just like in the housekeeping.
+	 * @param uploadFolder
+	 * @param file
+	 */
+	static void added(final String uploadFolder, final Path file) {
+		final String name = file.getFileName().toString();
+		final Instant timestamp = DateTimeUtils.parseFilenameTimestamp(file);
+		if (timestamp == null || !isValidName(name))
+			return;
+		final Path dir = file.toAbsolutePath().normalize().getParent();
+		try {
+			final long size = Files.size(file);
+			final boolean isNew;
+			synchronized (getLock(dir)) {
+				final Path index = dir.resolve(INDEX_FILE);
+				isNew = !Files.exists(index);
+				Files.write(index, ("+" + name + '\t' + timestamp.toEpochMilli() + '\t' + size + '\n').getBytes(StandardCharsets.UTF_8), 
+						StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			}
+			if (isNew)
+				register(uploadFolder, dir);
+		} catch (IOException | SecurityException e) {
+			logger.warn("Failed to update upload index for {}", file, e);
+		}
+	}
+	
+	/**
+	 * @param dir
+	 * @return
+	 * 		the indexed files in the directory, by file name, or null if the 
+	 * 		directory has no (valid) index
+	 */
+	static Map<String, FileInfo> read(final Path dir) {
+		final Path index = dir.resolve(INDEX_FILE);
+		synchronized (getLock(dir.toAbsolutePath().normalize())) {
+			final Map<String, FileInfo> files = new HashMap<>();
+			try (final BufferedReader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.isEmpty())
+						continue;
+					if (line.charAt(0) == '-') {
+						files.remove(line.substring(1));
+						continue;
+					}
+					final String[] parts = line.substring(1).split("\t");
+					if (line.charAt(0) != '+' || parts.length != 3)
+						throw new IOException("Invalid line: " + line);
+					files.put(parts[0], new FileInfo(dir.resolve(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+				}
+			} catch (NoSuchFileException e) {
+				return null;
+			} catch (IOException | RuntimeException e) {
+				logger.warn("Invalid upload index {}", index, e);
+				return null;
+			}
+			return files;
+		}
+	}
+	
+	/**
+	 * Remove deleted files from the index, and compact the index file.
+	 * @param dir
+	 * @param deleted
+	 */
+	static void removed(final Path dir, final Collection<String> deleted) {
+		synchronized (getLock(dir.toAbsolutePath().normalize())) {
+			final Map<String, FileInfo> files = read(dir);
+			if (files == null)
+				return;
+			deleted.forEach(files::remove);
+			write(dir, files.values());
+		}
+	}
+	
+	/**
+	 * Scan the directory and create a new index for it.
+	 * @param uploadFolder
+	 * @param dir
+	 * @return
+	 * 		the indexed files, by file name
+	 * @throws IOException
+	 */
+	static Map<String, FileInfo> rebuild(final String uploadFolder, final Path dir) throws IOException {
+		final Map<String, FileInfo> files = new HashMap<>();
+		synchronized (getLock(dir.toAbsolutePath().normalize())) {
+			try (final Stream<Path> stream = Files.list(dir)) {
+				stream.forEach(file -> {
+					final String name = file.getFileName().toString();
+					if (!isValidName(name) || !Files.isRegularFile(file))
+						return;
+					final Instant timestamp = DateTimeUtils.parseFilenameTimestamp(file);
+					if (timestamp == null)
+						return;
+					try {
+						files.put(name, new FileInfo(file, timestamp.toEpochMilli()));
+					} catch (IOException | SecurityException ignore) {}
+				});
+			}
+			write(dir, files.values());
+		}
+		register(uploadFolder, dir.toAbsolutePath().normalize());
+		return files;
+	}
+	
+	/**
+	 * @param uploadFolder
+	 * @return
+	 * 		all indexed directories, or null if the registry does not exist yet
+	 */
+	static Set<Path> getDirectories(final String uploadFolder) {
+		final Path registry = Paths.get(uploadFolder, REGISTRY_FOLDER, REGISTRY_FILE);
+		final Path base = Paths.get(uploadFolder).toAbsolutePath().normalize();
+		synchronized (getLock(registry.toAbsolutePath().normalize())) {
+			final Set<Path> dirs = new LinkedHashSet<>();
+			try (final BufferedReader reader = Files.newBufferedReader(registry, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (!line.isEmpty())
+						dirs.add(base.resolve(line));
+				}
+			} catch (IOException e) {
+				if (!(e instanceof NoSuchFileException))
+					logger.warn("Failed to read upload index registry {}", registry, e);
+				return null;
+			}
+			return dirs;
+		}
+	}
+	
+	/**
+	 * Create an empty registry, to be filled by {@link #rebuild(String, Path)}.
+	 * @param uploadFolder
+	 * @throws IOException
+	 */
+	static void initRegistry(final String uploadFolder) throws IOException {
+		final Path registry = Paths.get(uploadFolder, REGISTRY_FOLDER, REGISTRY_FILE);
+		synchronized (getLock(registry.toAbsolutePath().normalize())) {
+			Files.createDirectories(registry.getParent());
+			Files.write(registry, new byte[0], StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+	}
+	
+	/**
+	 * Delete the registry, so that the index will be rebuilt when it is used next time.
+	 * @param uploadFolder
+	 */
+	static void deleteRegistry(final String uploadFolder) {
+		final Path registry = Paths.get(uploadFolder, REGISTRY_FOLDER, REGISTRY_FILE);
+		synchronized (getLock(registry.toAbsolutePath().normalize())) {
+			try {
+				Files.deleteIfExists(registry);
+			} catch (IOException | SecurityException e) {
+				logger.warn("Failed to delete upload index registry", e);
+			}
+		}
+	}
+	
+	private static void register(final String uploadFolder, final Path dir) {
+		final Path registry = Paths.get(uploadFolder, REGISTRY_FOLDER, REGISTRY_FILE);
+		final Path base = Paths.get(uploadFolder).toAbsolutePath().normalize();
+		final String relative = base.relativize(dir).toString().replace('\\', '/');
+		synchronized (getLock(registry.toAbsolutePath().normalize())) {
+			try {
+				if (!Files.exists(registry)) // the housekeeping will rebuild the complete index
+					return;
+				Files.write(registry, (relative + '\n').getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+			} catch (IOException | SecurityException e) {
+				logger.warn("Failed to update upload index registry", e);
+			}
+		}
+	}
+	
+	private static void write(final Path dir, final Collection<FileInfo> files) {
+		final Path index = dir.resolve(INDEX_FILE);
+		final Path temp = dir.resolve(INDEX_FILE + FileUploadServlet.TEMP_FILE_SUFFIX);
+		try {
+			try (final BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				for (FileInfo info : files) {
+					writer.write('+');
+					writer.write(info.file.getFileName().toString());
+					writer.write('\t');
+					writer.write(String.valueOf(info.timestamp));
+					writer.write('\t');
+					writer.write(String.valueOf(info.size));
+					writer.write('\n');
+				}
+			}
+			try {
+				Files.move(temp, index, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException | SecurityException e) {
+			logger.warn("Failed to write upload index {}", index, e);
+		}
+	}
+	
+	private static boolean isValidName(final String name) {
+		return !name.startsWith(".") && name.indexOf('\t') < 0 && name.indexOf('\n') < 0 && name.indexOf('\r') < 0;
+	}
+	
+	private static Object getLock(final Path path) {
+		return locks[(path.hashCode() & 0x7fffffff) % locks.length];
+	}
+	
+}
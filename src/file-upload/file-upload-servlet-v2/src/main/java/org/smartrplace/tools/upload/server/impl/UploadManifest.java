@@ -0,0 +1,117 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.tools.upload.server.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stores the upload watermarks of a folder, i.e. the timestamp of the latest file 
+ * uploaded per file prefix, as reported by the client when uploading a folder. 
+ * This allows clients to determine which files need to be uploaded without listing
+ * the complete remote folder.
+ */
+class UploadManifest {
+	
+	static final String FILE = ".manifest";
+	/**
+	 * GET parameter; if present, the manifest of the requested folder is returned as 
+	 * a JSON object {prefix: watermark in millis}
+	 */
+	static final String PARAM_MANIFEST = "manifest";
+	/**
+	 * POST parameters for a zip upload 
+	 */
+	static final String PARAM_PREFIX = "prefix";
+	static final String PARAM_WATERMARK = "watermark";
+	private static final ConcurrentMap<Path, Object> locks = new ConcurrentHashMap<>();
+	
+	private UploadManifest() {}
+	
+	/**
+	 * @param dir
+	 * @return
+	 * 		watermarks by prefix; the empty string represents uploads without prefix
+	 * @throws IOException
+	 */
+	static Map<String, Long> read(final Path dir) throws IOException {
+		final Properties props = new Properties();
+		synchronized (getLock(dir)) {
+			try (final InputStream in = Files.newInputStream(dir.resolve(FILE))) {
+				props.load(in);
+			} catch (NoSuchFileException e) {
+				return Collections.emptyMap();
+			}
+		}
+		final Map<String, Long> watermarks = new TreeMap<>();
+		for (String prefix : props.stringPropertyNames()) {
+			try {
+				watermarks.put(prefix, Long.parseLong(props.getProperty(prefix)));
+			} catch (NumberFormatException ignore) {}
+		}
+		return watermarks;
+	}
+	
+	/**
+	 * Set the watermark for the given prefix, unless the existing one is newer.
+	 * @param dir
+	 * @param prefix
+	 * @param watermark
+	 * @throws IOException
+	 */
+	static void update(final Path dir, final String prefix, final long watermark) throws IOException {
+		final Path file = dir.resolve(FILE);
+		final Path temp = dir.resolve(FILE + FileUploadServlet.TEMP_FILE_SUFFIX);
+		synchronized (getLock(dir)) {
+			final Properties props = new Properties();
+			try (final InputStream in = Files.newInputStream(file)) {
+				props.load(in);
+			} catch (NoSuchFileException ignore) {}
+			final String existing = props.getProperty(prefix);
+			try {
+				if (existing != null && Long.parseLong(existing) >= watermark)
+					return;
+			} catch (NumberFormatException ignore) {}
+			props.setProperty(prefix, String.valueOf(watermark));
+			Files.createDirectories(dir);
+			try (final OutputStream out = Files.newOutputStream(temp)) {
+				props.store(out, null);
+			}
+			try {
+				Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+	
+	private static Object getLock(final Path dir) {
+		return locks.computeIfAbsent(dir.toAbsolutePath().normalize(), p -> new Object());
+	}
+	
+}
@@ -17,57 +17,161 @@ package org.smartrplace.tools.upload.server.impl;
 
 import java.io.IOException;
 import java.time.Duration;
-import java.util.NavigableSet;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Per-user rate limit for uploads, based on one token bucket per time interval (minute, hour, day).
+ * Each bucket holds at most the configured number of uploads per interval (plus the configured burst, 
+ * for the minute bucket), and is refilled continuously at a rate of this number per interval.
+ * A request is only granted if a token is available in all buckets; denied requests do not consume tokens.
+ * Chunks of chunked uploads are limited by a separate per-minute bucket.
+ */
 class UserStats {
 
+	/**
+	 * GET parameter; if present, the current usage of the requesting user is returned as JSON.
+	 */
+	static final String PARAM_STATS = "stats";
 	private static final long DAY = Duration.ofDays(1).toMillis();
 	private static final long HOUR = Duration.ofHours(1).toMillis();
 	private static final long MINUTE = Duration.ofMinutes(1).toMillis();
 	private final String user;
-	// entries: access times
-	private final NavigableSet<Long> accessed = new ConcurrentSkipListSet<>();
+	private final TokenBucket minuteBucket;
+	private final TokenBucket hourBucket;
+	private final TokenBucket dayBucket;
+	private final TokenBucket chunkBucket;
+	// synchronized on this
+	private long granted;
+	private long denied;
 	
 	UserStats(String user) {
 		this.user = user;
-	}
-	
-	private final void touched(final long now) {
-		accessed.add(now);
-		accessed.headSet(now - DAY, false).clear();
-	}
-	
-	private final int getAccessCount(final long now, final long delta) {
-		return accessed.tailSet(now-delta, true).size();
+		final long now = System.currentTimeMillis();
+		this.minuteBucket = new TokenBucket(MINUTE, now);
+		this.hourBucket = new TokenBucket(HOUR, now);
+		this.dayBucket = new TokenBucket(DAY, now);
+		this.chunkBucket = new TokenBucket(MINUTE, now);
 	}
 	
 	boolean accessGranted(final FileUploadConfiguration config, final HttpServletResponse resp) throws IOException {
-		final long now = System.currentTimeMillis();
-		touched(now);
-		final int dailySize = getAccessCount(now, DAY);
-		if (dailySize > config.maxUploadsPerDay() + 1) { // +1 because we already counted this request
+		final String error;
+		synchronized (this) {
+			final long now = System.currentTimeMillis();
+			refill(config, now);
+			if (dayBucket.tokens < 1)
+				error = "Too many requests per day; max allowed: " + config.maxUploadsPerDay();
+			else if (hourBucket.tokens < 1)
+				error = "Too many requests per hour; max allowed: " + config.maxUploadsPerHour();
+			else if (minuteBucket.tokens < 1)
+				error = "Too many requests per minute; max allowed: " + config.maxUploadsPerMinute();
+			else
+				error = null;
+			if (error == null) {
+				dayBucket.tokens--;
+				hourBucket.tokens--;
+				minuteBucket.tokens--;
+				granted++;
+			} else {
+				denied++;
+			}
+		}
+		if (error != null) {
 			// 429 : too many requests by the user per time interval
-			resp.sendError(429, "Too many requests per day; max allowed: " + config.maxUploadsPerDay());
+			resp.sendError(429, error);
 			return false;
 		}
-		if (dailySize > config.maxUploadsPerMinute()) {
-			final int hourlySize = getAccessCount(now, HOUR);
-			if (hourlySize > config.maxUploadsPerHour() + 1) {
-				resp.sendError(429, "Too many requests per hour; max allowed: " + config.maxUploadsPerHour());
-				return false;
+		return true;
+	}
+	
+	/**
+	 * Check the limit for chunks of chunked uploads.
+	 * @param config
+	 * @param resp
+	 * @return
+	 * @throws IOException
+	 */
+	boolean chunkAccessGranted(final FileUploadConfiguration config, final HttpServletResponse resp) throws IOException {
+		synchronized (this) {
+			chunkBucket.refill(System.currentTimeMillis(), config.maxChunksPerMinute(), config.maxChunksPerMinute());
+			if (chunkBucket.tokens >= 1) {
+				chunkBucket.tokens--;
+				return true;
 			}
-			if (hourlySize > config.maxUploadsPerMinute()) {
-				final int minuteSize = getAccessCount(now, MINUTE);
-				if (minuteSize > config.maxUploadsPerMinute() + 1) {
-					resp.sendError(429, "Too many requests per minute; max allowed: " + config.maxUploadsPerHour());
-					return false;
-				}
+			denied++;
+		}
+		resp.sendError(429, "Too many chunks per minute; max allowed: " + config.maxChunksPerMinute());
+		return false;
+	}
+	
+	/**
+	 * @param config
+	 * @return
+	 * 		the current usage, for the stats endpoint
+	 */
+	synchronized Map<String, Object> getStats(final FileUploadConfiguration config) {
+		refill(config, System.currentTimeMillis());
+		final Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("user", user);
+		stats.put("granted", granted);
+		stats.put("denied", denied);
+		stats.put("minute", minuteBucket.getStats(config.maxUploadsPerMinute(), getMinuteCapacity(config)));
+		stats.put("hour", hourBucket.getStats(config.maxUploadsPerHour(), config.maxUploadsPerHour()));
+		stats.put("day", dayBucket.getStats(config.maxUploadsPerDay(), config.maxUploadsPerDay()));
+		chunkBucket.refill(System.currentTimeMillis(), config.maxChunksPerMinute(), config.maxChunksPerMinute());
+		stats.put("chunks", chunkBucket.getStats(config.maxChunksPerMinute(), config.maxChunksPerMinute()));
+		return stats;
+	}
+	
+	private void refill(final FileUploadConfiguration config, final long now) {
+		minuteBucket.refill(now, config.maxUploadsPerMinute(), getMinuteCapacity(config));
+		hourBucket.refill(now, config.maxUploadsPerHour(), config.maxUploadsPerHour());
+		dayBucket.refill(now, config.maxUploadsPerDay(), config.maxUploadsPerDay());
+	}
+	
+	private static int getMinuteCapacity(final FileUploadConfiguration config) {
+		return config.maxUploadsPerMinute() + Math.max(0, config.uploadBurst());
+	}
+	
+	// not thread-safe, synchronized via the outer instance
+	private static class TokenBucket {
+		
+		private final long interval;
+		private double tokens = -1; // negative: not initialized yet
+		private long lastRefill;
+		
+		TokenBucket(long interval, long now) {
+			this.interval = interval;
+			this.lastRefill = now;
+		}
+		
+		/**
+		 * @param now
+		 * @param rate
+		 * 		tokens per interval
+		 * @param capacity
+		 */
+		void refill(final long now, final int rate, final int capacity) {
+			if (tokens < 0) {
+				tokens = capacity;
+			} else if (now > lastRefill) {
+				tokens += (double) (now - lastRefill) * rate / interval;
 			}
+			tokens = Math.min(tokens, capacity);
+			lastRefill = Math.max(now, lastRefill);
 		}
-		return true;
+		
+		Map<String, Object> getStats(final int limit, final int capacity) {
+			final Map<String, Object> stats = new LinkedHashMap<>();
+			stats.put("limit", limit);
+			stats.put("capacity", capacity);
+			stats.put("available", (int) tokens);
+			stats.put("used", Math.max(0, capacity - (int) Math.ceil(tokens)));
+			return stats;
+		}
+		
 	}
 	
 }
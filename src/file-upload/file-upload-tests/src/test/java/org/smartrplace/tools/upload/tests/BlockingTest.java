@@ -20,6 +20,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -55,4 +58,24 @@ public class BlockingTest extends SimpleContextTestBase {
 		Assert.assertEquals("User was never blocked", 429, lastStatus);
 	}
 	
+	@Test
+	public void userGetsBlockedAfterTooManyChunkedUploads() throws IOException, InterruptedException, URISyntaxException, ExecutionException, TimeoutException {
+		final Path testFile = Paths.get("data").resolve(nextFilePrefix() + ".txt");
+		Files.write(testFile, "someStringForTestingChunkedUploads".getBytes(StandardCharsets.UTF_8));
+		boolean blocked = false;
+		try {
+			for (int i=0; i<10 && !blocked; i++) { // each new chunked upload counts as an upload
+				try {
+					final HttpResponse response = client.uploadChunked(testFile, null, null, 16, 1).get(5, TimeUnit.SECONDS);
+					blocked = response.getStatusLine().getStatusCode() == 429;
+				} catch (IOException expected) { // chunks rejected
+					blocked = true;
+				}
+			}
+		} finally {
+			Files.delete(testFile);
+		}
+		Assert.assertTrue("User was never blocked", blocked);
+	}
+	
 }
@@ -142,6 +142,35 @@ public class FileUploadTest extends SimpleContextTestBase {
 		}
 	}
 	
+	@Test
+	public void chunkedUploadWorks() throws URISyntaxException, InterruptedException, ExecutionException, IOException {
+		final String test = "someLongerStringForTestingChunkedUploads";
+		final String testFilePrefix = nextFilePrefix();
+		final Path testFile = Paths.get("data").resolve(testFilePrefix + ".txt");
+		Files.write(testFile, test.getBytes(StandardCharsets.UTF_8));
+		final HttpResponse response;
+		try {
+			response = client.uploadChunked(testFile, null, null, 8, 3).get(5, TimeUnit.SECONDS);
+		} catch (TimeoutException e) {
+			throw new AssertionError("file upload timed out");
+		}
+		Assert.assertEquals("Unexpected file upload response: " + response.getStatusLine().getReasonPhrase(), 200, response.getStatusLine().getStatusCode());
+		final Path uploaded;
+		try (final Stream<Path> stream = Files.list(uploadFolder)) {
+			uploaded = stream
+					.filter(Files::isRegularFile)
+					.filter(file -> file.getFileName().toString().startsWith(testFilePrefix))
+					.findAny().orElseThrow(() -> new AssertionError("Uploaded file does not exist."));
+		}
+		try {
+			final String content = new String(Files.readAllBytes(uploaded), StandardCharsets.UTF_8);
+			Assert.assertEquals("unexpected file content in uploaded file", test, content);
+		} finally {
+			Files.delete(uploaded);
+			Files.delete(testFile);
+		}
+	}
+	
 	private List<Path> doIncrementalUpload(final Path path, String content, final long time, final int expectedNrFiles) throws Exception {
 		if (content == null)
 			content = "testString";
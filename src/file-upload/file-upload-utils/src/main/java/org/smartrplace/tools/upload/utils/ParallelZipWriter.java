@@ -0,0 +1,505 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.tools.upload.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes zip files, compressing the entries in parallel. Files are split into blocks,
+ * which are compressed independently on the provided executor (using the tail of the previous
+ * block as preset dictionary), and written to the output stream in order. Memory usage is 
+ * bounded by the number of blocks in flight.<br>
+ * Files matching the store filter, typically files that are compressed already, are stored 
+ * without compression. Large files and archives are supported via the Zip64 extensions.<br>
+ * Not thread-safe.
+ */
+public class ParallelZipWriter implements Closeable {
+	
+	/**
+	 * Matches typical file types that are compressed already, such as zip, gz or png files. 
+	 */
+	public static final Predicate<Path> COMPRESSED_FILES = path -> {
+		final String name = path.getFileName().toString().toLowerCase();
+		final int idx = name.lastIndexOf('.');
+		return idx >= 0 && Arrays.asList("zip", "gz", "tgz", "bz2", "xz", "7z", "jar", "png", "jpg", "jpeg", "gif", "mp4", "pdf")
+				.contains(name.substring(idx + 1));
+	};
+	private static final int BLOCK_SIZE = 512 * 1024;
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+	private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+	private static final int FLAG_UTF8 = 0x800;
+	private static final int METHOD_STORED = 0;
+	private static final int METHOD_DEFLATED = 8;
+	private final CountingOutputStream out;
+	private final int level;
+	private final Predicate<Path> storeFilter;
+	private final Executor executor;
+	private final int maxBlocksInFlight;
+	private final Deque<Block> pending = new ArrayDeque<>();
+	private final List<Entry> entries = new ArrayList<>();
+	private boolean closed;
+	
+	/**
+	 * @param out
+	 * @param level
+	 * 		compression level, between {@link Deflater#NO_COMPRESSION} and {@link Deflater#BEST_COMPRESSION}, or 
+	 * 		{@link Deflater#DEFAULT_COMPRESSION}. If {@link Deflater#NO_COMPRESSION}, all files are stored uncompressed.
+	 * @param storeFilter
+	 * 		files matching this filter are stored uncompressed; may be null
+	 * @param executor
+	 * 		executor for the compression; may be null, in which case compression happens in the calling thread.
+	 * 		If the executor rejects a task, e.g. because it has been shut down, the block is compressed in the calling thread.
+	 * @param parallelism
+	 * 		expected number of threads of the executor; determines the number of blocks in flight
+	 */
+	public ParallelZipWriter(OutputStream out, int level, Predicate<Path> storeFilter, Executor executor, int parallelism) {
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Invalid compression level " + level);
+		this.out = new CountingOutputStream(new BufferedOutputStream(out, 64 * 1024));
+		this.level = level;
+		this.storeFilter = storeFilter;
+		this.executor = executor;
+		this.maxBlocksInFlight = executor == null ? 0 : 2 * Math.max(1, parallelism);
+	}
+	
+	/**
+	 * Add a folder recursively, or a single file. Entry names are relative to baseForName.
+	 * @param path
+	 * @param baseForName
+	 * 		may be null, in which case a folder's entries are relative to the folder, 
+	 * 		and a single file is added with its file name  
+	 * @param filter
+	 * 		optional filter for files and folders; may be null
+	 * @throws IOException
+	 */
+	public void add(final Path path, final Path baseForName, final Predicate<Path> filter) throws IOException {
+		if (Files.isRegularFile(path)) {
+			if (filter == null || filter.test(path))
+				addFile(path, baseForName == null ? path.getFileName().toString() : baseForName.relativize(path).toString());
+			return;
+		}
+		if (!Files.isDirectory(path))
+			return;
+		final Path relativeBase = baseForName != null ? baseForName : path;
+		Files.walkFileTree(path, new java.nio.file.SimpleFileVisitor<Path>() {
+			
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				return dir.equals(path) || filter == null || filter.test(dir) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+			}
+			
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (attrs.isRegularFile() && (filter == null || filter.test(file)))
+					addFile(file, relativeBase.relativize(file).toString());
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+				LoggerFactory.getLogger(ParallelZipWriter.class).warn("File visit failed: {}. {}", file, exc.toString());
+				return FileVisitResult.CONTINUE;
+			}
+			
+		});
+	}
+	
+	/**
+	 * Add a single file. If the file grows while it is being added, only the content
+	 * present initially is included.
+	 * @param file
+	 * @param name
+	 * 		entry name
+	 * @throws IOException
+	 */
+	public void addFile(final Path file, final String name) throws IOException {
+		if (closed)
+			throw new IOException("Zip writer closed");
+		try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			final boolean stored = level == Deflater.NO_COMPRESSION || (storeFilter != null && storeFilter.test(file));
+			final Entry entry = new Entry(name.replace('\\', '/'), stored ? METHOD_STORED : METHOD_DEFLATED, size, 
+					Files.getLastModifiedTime(file).toMillis());
+			if (stored) // the crc must be known before the local file header is written
+				entry.crc = crc(channel, size);
+			final CRC32 crc = new CRC32();
+			long position = 0;
+			byte[] dictionary = null;
+			boolean first = true;
+			while (true) {
+				final int length = (int) Math.min(BLOCK_SIZE, size - position);
+				final byte[] data = new byte[length];
+				read(channel, data, position);
+				position += length;
+				final boolean last = position >= size;
+				if (!stored)
+					crc.update(data);
+				final Future<byte[]> result;
+				if (stored) {
+					result = CompletableFuture.completedFuture(data);
+				} else {
+					final byte[] dict = dictionary;
+					result = deflateAsync(data, dict, last);
+					dictionary = length >= DICTIONARY_SIZE ? Arrays.copyOfRange(data, length - DICTIONARY_SIZE, length) : data;
+				}
+				if (last && !stored)
+					entry.crc = crc.getValue();
+				pending.add(new Block(entry, result, first, last));
+				first = false;
+				drain(maxBlocksInFlight);
+				if (last)
+					break;
+			}
+		}
+	}
+	
+	/**
+	 * Write all pending entries and the central directory, without closing the underlying stream.
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		drain(0);
+		final long cdStart = out.count;
+		for (Entry entry : entries) {
+			writeCentralDirectoryHeader(entry);
+		}
+		final long cdEnd = out.count;
+		final long cdSize = cdEnd - cdStart;
+		final int nrEntries = entries.size();
+		if (nrEntries >= ZIP64_MAGIC_COUNT || cdStart >= ZIP64_MAGIC || cdSize >= ZIP64_MAGIC) {
+			writeInt(0x06064b50); // zip64 end of central directory record
+			writeLong(44);
+			writeShort(45);
+			writeShort(45);
+			writeInt(0);
+			writeInt(0);
+			writeLong(nrEntries);
+			writeLong(nrEntries);
+			writeLong(cdSize);
+			writeLong(cdStart);
+			writeInt(0x07064b50); // zip64 end of central directory locator
+			writeInt(0);
+			writeLong(cdEnd);
+			writeInt(1);
+		}
+		writeInt(0x06054b50);
+		writeShort(0);
+		writeShort(0);
+		writeShort(Math.min(nrEntries, ZIP64_MAGIC_COUNT));
+		writeShort(Math.min(nrEntries, ZIP64_MAGIC_COUNT));
+		writeInt(Math.min(cdSize, ZIP64_MAGIC));
+		writeInt(Math.min(cdStart, ZIP64_MAGIC));
+		writeShort(0);
+		out.flush();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+	
+	private void drain(final int maxRemaining) throws IOException {
+		while (pending.size() > maxRemaining) {
+			final Block block = pending.poll();
+			final Entry entry = block.entry;
+			if (block.first) {
+				entry.offset = out.count;
+				writeLocalFileHeader(entry);
+			}
+			final byte[] data;
+			try {
+				data = block.data.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while compressing " + entry.name);
+			} catch (ExecutionException e) {
+				throw new IOException("Failed to compress " + entry.name, e.getCause());
+			}
+			out.write(data);
+			entry.compressedSize += data.length;
+			if (block.last) {
+				if (entry.method == METHOD_DEFLATED)
+					writeDataDescriptor(entry);
+				entries.add(entry);
+			}
+		}
+	}
+	
+	private void writeLocalFileHeader(final Entry entry) throws IOException {
+		final boolean deflated = entry.method == METHOD_DEFLATED;
+		writeInt(0x04034b50);
+		writeShort(entry.zip64 ? 45 : 20);
+		writeShort(FLAG_UTF8 | (deflated ? FLAG_DATA_DESCRIPTOR : 0));
+		writeShort(entry.method);
+		writeInt(entry.dosTime);
+		// for deflated entries crc and sizes follow in the data descriptor
+		writeInt(deflated ? 0 : entry.crc);
+		if (entry.zip64) {
+			writeInt(ZIP64_MAGIC);
+			writeInt(ZIP64_MAGIC);
+		} else {
+			writeInt(deflated ? 0 : entry.size);
+			writeInt(deflated ? 0 : entry.size);
+		}
+		writeShort(entry.name.length);
+		writeShort(entry.zip64 ? 20 : 0);
+		out.write(entry.name);
+		if (entry.zip64) {
+			writeShort(0x0001);
+			writeShort(16);
+			writeLong(deflated ? 0 : entry.size);
+			writeLong(deflated ? 0 : entry.size);
+		}
+	}
+	
+	private void writeDataDescriptor(final Entry entry) throws IOException {
+		writeInt(0x08074b50);
+		writeInt(entry.crc);
+		if (entry.zip64) {
+			writeLong(entry.compressedSize);
+			writeLong(entry.size);
+		} else {
+			writeInt(entry.compressedSize);
+			writeInt(entry.size);
+		}
+	}
+	
+	private void writeCentralDirectoryHeader(final Entry entry) throws IOException {
+		final boolean sizeOverflow = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+		final boolean offsetOverflow = entry.offset >= ZIP64_MAGIC;
+		final ByteArrayOutputStream extra = new ByteArrayOutputStream();
+		if (sizeOverflow) {
+			writeLong(extra, entry.size);
+			writeLong(extra, entry.compressedSize);
+		}
+		if (offsetOverflow)
+			writeLong(extra, entry.offset);
+		final boolean zip64 = entry.zip64 || extra.size() > 0;
+		writeInt(0x02014b50);
+		writeShort(zip64 ? 45 : 20);
+		writeShort(zip64 ? 45 : 20);
+		writeShort(FLAG_UTF8 | (entry.method == METHOD_DEFLATED ? FLAG_DATA_DESCRIPTOR : 0));
+		writeShort(entry.method);
+		writeInt(entry.dosTime);
+		writeInt(entry.crc);
+		writeInt(sizeOverflow ? ZIP64_MAGIC : entry.compressedSize);
+		writeInt(sizeOverflow ? ZIP64_MAGIC : entry.size);
+		writeShort(entry.name.length);
+		writeShort(extra.size() > 0 ? extra.size() + 4 : 0);
+		writeShort(0); // comment length
+		writeShort(0); // disk number
+		writeShort(0); // internal attributes
+		writeInt(0); // external attributes
+		writeInt(offsetOverflow ? ZIP64_MAGIC : entry.offset);
+		out.write(entry.name);
+		if (extra.size() > 0) {
+			writeShort(0x0001);
+			writeShort(extra.size());
+			extra.writeTo(out);
+		}
+	}
+	
+	private Future<byte[]> deflateAsync(final byte[] data, final byte[] dictionary, final boolean last) {
+		if (executor != null) {
+			try {
+				return CompletableFuture.supplyAsync(() -> deflate(data, dictionary, level, last), executor);
+			} catch (RejectedExecutionException e) {}
+		}
+		return CompletableFuture.completedFuture(deflate(data, dictionary, level, last));
+	}
+	
+	private static byte[] deflate(final byte[] data, final byte[] dictionary, final int level, final boolean last) {
+		final Deflater deflater = new Deflater(level, true);
+		try {
+			if (dictionary != null)
+				deflater.setDictionary(dictionary);
+			deflater.setInput(data);
+			final ByteArrayOutputStream result = new ByteArrayOutputStream(data.length / 2 + 64);
+			final byte[] buffer = new byte[64 * 1024];
+			if (last) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					final int length = deflater.deflate(buffer);
+					result.write(buffer, 0, length);
+				}
+			} else {
+				// sync flush ends the block at a byte boundary, so that the next block can be appended
+				while (true) {
+					final int length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					result.write(buffer, 0, length);
+					if (length < buffer.length)
+						break;
+				}
+			}
+			return result.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+	
+	private static long crc(final FileChannel channel, final long size) throws IOException {
+		final CRC32 crc = new CRC32();
+		final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		long position = 0;
+		while (position < size) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), size - position));
+			final int read = channel.read(buffer, position);
+			if (read < 0)
+				throw new IOException("File truncated while zipping");
+			position += read;
+			crc.update(buffer.array(), 0, read);
+		}
+		return crc.getValue();
+	}
+	
+	private static void read(final FileChannel channel, final byte[] data, final long position) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("File truncated while zipping");
+		}
+	}
+	
+	private void writeShort(final int value) throws IOException {
+		out.write(value & 0xFF);
+		out.write((value >>> 8) & 0xFF);
+	}
+	
+	private void writeInt(final long value) throws IOException {
+		writeShort((int) (value & 0xFFFF));
+		writeShort((int) ((value >>> 16) & 0xFFFF));
+	}
+	
+	private void writeLong(final long value) throws IOException {
+		writeLong(out, value);
+	}
+	
+	private static void writeLong(final OutputStream out, final long value) throws IOException {
+		for (int i = 0; i < 8; i++) {
+			out.write((int) ((value >>> (8 * i)) & 0xFF));
+		}
+	}
+	
+	private static class Entry {
+		
+		final byte[] name;
+		final int method;
+		final long size;
+		final boolean zip64;
+		final long dosTime;
+		long crc;
+		long compressedSize;
+		long offset;
+		
+		Entry(String name, int method, long size, long lastModified) {
+			this.name = name.getBytes(StandardCharsets.UTF_8);
+			this.method = method;
+			this.size = size;
+			// compressed data may be slightly larger than the original data
+			this.zip64 = size >= ZIP64_MAGIC - BLOCK_SIZE;
+			this.dosTime = toDosTime(lastModified);
+		}
+		
+		private static long toDosTime(final long millis) {
+			final LocalDateTime time = LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+			if (time.getYear() < 1980)
+				return (1 << 21) | (1 << 16);
+			return ((long) (time.getYear() - 1980) << 25) | (time.getMonthValue() << 21) | (time.getDayOfMonth() << 16) 
+					| (time.getHour() << 11) | (time.getMinute() << 5) | (time.getSecond() >> 1);
+		}
+		
+	}
+	
+	private static class Block {
+		
+		final Entry entry;
+		final Future<byte[]> data;
+		final boolean first;
+		final boolean last;
+		
+		Block(Entry entry, Future<byte[]> data, boolean first, boolean last) {
+			this.entry = entry;
+			this.data = data;
+			this.first = first;
+			this.last = last;
+		}
+		
+	}
+	
+	private static class CountingOutputStream extends FilterOutputStream {
+		
+		long count;
+		
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+		
+	}
+
+}
@@ -26,6 +26,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.EnumSet;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.zip.ZipEntry;
@@ -34,6 +35,8 @@ import java.util.zip.ZipOutputStream;
 import org.slf4j.LoggerFactory;
 
 public class ZipUtils {
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
 
 	/**
 	 * Zip a folder recursively
@@ -48,6 +51,30 @@ public class ZipUtils {
 		return zio;
 	}
 	
+	/**
+	 * Zip a folder recursively, compressing the entries in parallel, see {@link ParallelZipWriter}. 
+	 * The zip file is completed, but the output stream is not closed.
+	 * @param baseFolder
+	 * @param out
+	 * @param level
+	 * 		compression level, see {@link java.util.zip.Deflater}; {@link java.util.zip.Deflater#NO_COMPRESSION} means store only
+	 * @param storeFilter
+	 * 		files to be stored without compression, e.g. {@link ParallelZipWriter#COMPRESSED_FILES}; may be null
+	 * @param filter
+	 * 		optional filter; may be null
+	 * @param executor
+	 * 		may be null, in which case all files are compressed in the calling thread
+	 * @param parallelism
+	 * 		number of threads of the executor
+	 * @throws IOException
+	 */
+	public static void zipFolder(final Path baseFolder, final OutputStream out, final int level, final Predicate<Path> storeFilter, 
+			final Predicate<Path> filter, final Executor executor, final int parallelism) throws IOException {
+		final ParallelZipWriter writer = new ParallelZipWriter(out, level, storeFilter, executor, parallelism);
+		writer.add(baseFolder, null, filter);
+		writer.finish();
+	}
+	
 	/**
 	 * Zip a folder recursively, or a single file, and add content to the provided zip stream
 	 * @param path
@@ -64,7 +91,7 @@ public class ZipUtils {
 			name = name.replace('\\', '/');
 			final ZipEntry entry = new ZipEntry(name); 
 			zio.putNextEntry(entry);
-			final byte[] buffer = new byte[4096];
+			final byte[] buffer = new byte[BUFFER_SIZE];
 			int length;
 			try (final InputStream in = Files.newInputStream(path)) {
 				while ((length = in.read(buffer)) >= 0) {
@@ -90,7 +117,7 @@ public class ZipUtils {
 				final Path relativePath = relativeBase.relativize(file);
 				final ZipEntry entry = new ZipEntry(relativePath.toString().replace('\\', '/')); // TODO check
 				zio.putNextEntry(entry);
-				final byte[] buffer = new byte[4096];
+				final byte[] buffer = new byte[BUFFER_SIZE];
 				int length;
 				try (final InputStream in = Files.newInputStream(file)) {
 					while ((length = in.read(buffer)) >= 0) {
@@ -0,0 +1,238 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.tools.upload.utils.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.smartrplace.tools.upload.utils.ParallelZipWriter;
+
+public class ParallelZipWriterTest {
+	
+	private static final int PARALLELISM = 4;
+	private ExecutorService exec;
+	private Path folder;
+	
+	@Before
+	public void setup() throws IOException {
+		exec = Executors.newFixedThreadPool(PARALLELISM);
+		folder = Files.createTempDirectory("zipWriterTest");
+	}
+	
+	@After
+	public void cleanup() throws IOException {
+		exec.shutdownNow();
+		try (final java.util.stream.Stream<Path> files = Files.walk(folder)) {
+			files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+		}
+	}
+	
+	private Path createFile(final String name, final byte[] content) throws IOException {
+		final Path file = folder.resolve(name);
+		Files.createDirectories(file.getParent());
+		Files.write(file, content);
+		return file;
+	}
+	
+	// compressible, but not trivially so
+	private static byte[] createContent(final int size, final long seed) {
+		final Random random = new Random(seed);
+		final byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) ('a' + random.nextInt(8));
+		}
+		return content;
+	}
+	
+	private byte[] zip(final int level, final boolean storeAll, final boolean parallel) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (final ParallelZipWriter writer = new ParallelZipWriter(out, level, storeAll ? path -> true : null, 
+				parallel ? exec : null, PARALLELISM)) {
+			writer.add(folder, null, null);
+		}
+		return out.toByteArray();
+	}
+	
+	private static Map<String, byte[]> readStream(final byte[] zip) throws IOException {
+		final Map<String, byte[]> content = new HashMap<>();
+		try (final ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+			ZipEntry entry;
+			while ((entry = in.getNextEntry()) != null) {
+				Assert.assertNull("Duplicate entry " + entry.getName(), content.put(entry.getName(), readAll(in)));
+			}
+		}
+		return content;
+	}
+	
+	private static Map<String, byte[]> readFile(final byte[] zip, final Path tempFile, final int expectedMethod) throws IOException {
+		Files.write(tempFile, zip);
+		final Map<String, byte[]> content = new HashMap<>();
+		try (final ZipFile file = new ZipFile(tempFile.toFile())) {
+			final Enumeration<? extends ZipEntry> entries = file.entries();
+			while (entries.hasMoreElements()) {
+				final ZipEntry entry = entries.nextElement();
+				if (expectedMethod >= 0)
+					Assert.assertEquals("Unexpected compression method for " + entry.getName(), expectedMethod, entry.getMethod());
+				try (final InputStream in = file.getInputStream(entry)) {
+					content.put(entry.getName(), readAll(in));
+				}
+			}
+		} finally {
+			Files.delete(tempFile);
+		}
+		return content;
+	}
+	
+	private static byte[] readAll(final InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+	
+	private void assertRoundTrip(final Map<String, byte[]> expected, final int level, final boolean storeAll, final boolean parallel) throws IOException {
+		final byte[] zip = zip(level, storeAll, parallel);
+		final int method = storeAll || level == Deflater.NO_COMPRESSION ? ZipEntry.STORED : ZipEntry.DEFLATED;
+		assertContent(expected, readStream(zip));
+		assertContent(expected, readFile(zip, Files.createTempFile("zipWriterTest", ".zip"), method));
+	}
+	
+	private static void assertContent(final Map<String, byte[]> expected, final Map<String, byte[]> actual) {
+		Assert.assertEquals("Unexpected entries", expected.keySet(), actual.keySet());
+		for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+			Assert.assertTrue("Unexpected content for entry " + entry.getKey(), Arrays.equals(entry.getValue(), actual.get(entry.getKey())));
+		}
+	}
+	
+	@Test
+	public void emptyFilesWork() throws IOException {
+		final Map<String, byte[]> expected = new HashMap<>();
+		expected.put("empty.txt", new byte[0]);
+		expected.put("sub/empty2.txt", new byte[0]);
+		for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+			createFile(entry.getKey(), entry.getValue());
+		}
+		assertRoundTrip(expected, Deflater.DEFAULT_COMPRESSION, false, true);
+		assertRoundTrip(expected, Deflater.DEFAULT_COMPRESSION, true, true);
+	}
+	
+	@Test
+	public void storedEntriesWork() throws IOException {
+		final Map<String, byte[]> expected = new HashMap<>();
+		expected.put("a.txt", "someTestString".getBytes(StandardCharsets.UTF_8));
+		expected.put("b.bin", createContent(1024 * 1024 + 17, 1));
+		for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+			createFile(entry.getKey(), entry.getValue());
+		}
+		assertRoundTrip(expected, Deflater.DEFAULT_COMPRESSION, true, true);
+		assertRoundTrip(expected, Deflater.NO_COMPRESSION, false, true);
+	}
+	
+	@Test
+	public void filesSpanningManyBlocksWork() throws IOException {
+		final Map<String, byte[]> expected = new HashMap<>();
+		// block size is 512 kB
+		expected.put("large.txt", createContent(5 * 512 * 1024 + 123, 2));
+		expected.put("exact.txt", createContent(2 * 512 * 1024, 3));
+		expected.put("small.txt", "abc".getBytes(StandardCharsets.UTF_8));
+		for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+			createFile(entry.getKey(), entry.getValue());
+		}
+		assertRoundTrip(expected, Deflater.DEFAULT_COMPRESSION, false, true);
+		assertRoundTrip(expected, Deflater.BEST_COMPRESSION, false, false);
+		assertRoundTrip(expected, Deflater.BEST_SPEED, false, true);
+	}
+	
+	@Test
+	public void manyEntriesWork() throws IOException {
+		final Map<String, byte[]> expected = new HashMap<>();
+		for (int i = 0; i < 500; i++) {
+			final String name = "folder" + (i % 10) + "/file" + i + ".txt";
+			final byte[] content = createContent(i * 37, i);
+			expected.put(name, content);
+			createFile(name, content);
+		}
+		assertRoundTrip(expected, Deflater.DEFAULT_COMPRESSION, false, true);
+	}
+	
+	// more than 65535 entries require the Zip64 end of central directory record
+	@Test
+	public void zip64EntryCountWorks() throws IOException {
+		final int nrEntries = 70000;
+		final byte[] content = "zip64".getBytes(StandardCharsets.UTF_8);
+		final Path file = createFile("source.txt", content);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (final ParallelZipWriter writer = new ParallelZipWriter(out, Deflater.DEFAULT_COMPRESSION, null, exec, PARALLELISM)) {
+			for (int i = 0; i < nrEntries; i++) {
+				writer.addFile(file, "entry" + i + ".txt");
+			}
+		}
+		final byte[] zip = out.toByteArray();
+		final Path tempFile = Files.createTempFile("zipWriterTest", ".zip");
+		Files.write(tempFile, zip);
+		try (final ZipFile zipFile = new ZipFile(tempFile.toFile())) {
+			Assert.assertEquals("Unexpected number of entries", nrEntries, zipFile.size());
+			final ZipEntry last = zipFile.getEntry("entry" + (nrEntries - 1) + ".txt");
+			Assert.assertNotNull("Entry missing", last);
+			try (final InputStream in = zipFile.getInputStream(last)) {
+				Assert.assertArrayEquals(content, readAll(in));
+			}
+		} finally {
+			Files.delete(tempFile);
+		}
+		int cnt = 0;
+		try (final ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+			while (in.getNextEntry() != null) {
+				Assert.assertArrayEquals(content, readAll(in));
+				cnt++;
+			}
+		}
+		Assert.assertEquals("Unexpected number of entries", nrEntries, cnt);
+	}
+	
+	@Test
+	public void rejectedTasksAreExecutedInline() throws IOException {
+		final Map<String, byte[]> expected = new HashMap<>();
+		expected.put("large.txt", createContent(3 * 512 * 1024 + 5, 4));
+		createFile("large.txt", expected.get("large.txt"));
+		exec.shutdown();
+		assertRoundTrip(expected, Deflater.DEFAULT_COMPRESSION, false, true);
+	}
+	
+}
@@ -119,7 +119,7 @@ public class PeriodTimerPersistent extends DelegatingTimer implements PeriodTime
 			final int timeFactor,
 			final Instant start, 
 			final TimerListener listener) {
-		super(Objects.requireNonNull(appMan).createTimer(Long.MAX_VALUE));
+		super(SharedTimerScheduler.createTimer(appMan));
 		this.appMan = appMan;
 		this.config = Objects.requireNonNull(config);
 		config.nextExecutionTime().requestAccessMode(AccessMode.EXCLUSIVE, AccessPriority.PRIO_HIGHEST);
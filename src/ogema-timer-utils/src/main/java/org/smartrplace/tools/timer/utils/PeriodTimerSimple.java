@@ -72,7 +72,7 @@ public class PeriodTimerSimple extends DelegatingTimer implements PeriodTimer {
 			final Instant end,
 			final ZoneId zone, 
 			final Collection<TimerListener> listeners) {
-		super(Objects.requireNonNull(appMan).createTimer(Long.MAX_VALUE));
+		super(SharedTimerScheduler.createTimer(appMan));
 		this.appMan = appMan;
 		this.period = Objects.requireNonNull(period);
 		this.zone = Objects.requireNonNull(zone);
@@ -0,0 +1,242 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.tools.timer.utils;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ogema.core.application.ApplicationManager;
+import org.ogema.core.application.Timer;
+import org.ogema.core.application.TimerListener;
+import org.slf4j.Logger;
+
+/**
+ * Multiplexes many logical timers of an app onto a single framework timer. The logical
+ * timers behave like framework timers (listeners are executed in the app thread, 
+ * based on framework time), but only the framework timer is known to the framework;
+ * it is programmed to elapse at the earliest due time of all running logical timers.<br>
+ * Use {@link #createTimer(ApplicationManager)} to create a logical timer; it is
+ * initially stopped. The timers created by {@link PeriodTimerSimple}, {@link PeriodTimerPersistent}
+ * and the template timers are based on this scheduler.
+ */
+public class SharedTimerScheduler {
+	
+	// values are kept alive by the framework timer and the logical timers
+	private static final Map<ApplicationManager, WeakReference<SharedTimerScheduler>> schedulers = new WeakHashMap<>();
+	private final ApplicationManager appMan;
+	private final Logger logger;
+	private final Timer frameworkTimer;
+	private final AtomicLong idCounter = new AtomicLong(0);
+	// synchronized on this; contains the running timers, by due time 
+	private final NavigableSet<LogicalTimer> queue = new TreeSet<>();
+	// synchronized on this; Long.MAX_VALUE if the framework timer is stopped or needs to be reprogrammed
+	private long frameworkTimerDue = Long.MAX_VALUE;
+	// synchronized on this; the framework timer keeps running periodically after it elapsed, 
+	// so this is tracked independently of frameworkTimerDue
+	private boolean frameworkTimerRunning;
+	
+	private SharedTimerScheduler(ApplicationManager appMan) {
+		this.appMan = appMan;
+		this.logger = appMan.getLogger();
+		this.frameworkTimer = appMan.createTimer(Long.MAX_VALUE, this::frameworkTimerElapsed);
+		frameworkTimer.stop();
+	}
+	
+	/**
+	 * Create a new logical timer, which is initially stopped. Set the interval
+	 * by means of {@link Timer#setTimingInterval(long)}, and start it via {@link Timer#resume()}.
+	 * @param appMan
+	 * @return
+	 */
+	public static Timer createTimer(final ApplicationManager appMan) {
+		Objects.requireNonNull(appMan);
+		SharedTimerScheduler scheduler;
+		synchronized (schedulers) {
+			final WeakReference<SharedTimerScheduler> ref = schedulers.get(appMan);
+			scheduler = ref != null ? ref.get() : null;
+			if (scheduler == null) {
+				scheduler = new SharedTimerScheduler(appMan);
+				schedulers.put(appMan, new WeakReference<>(scheduler));
+			}
+		}
+		return scheduler.new LogicalTimer();
+	}
+	
+	private void frameworkTimerElapsed(final Timer timer) {
+		final long now = timer.getExecutionTime();
+		final List<LogicalTimer> due = new ArrayList<>();
+		synchronized (this) {
+			frameworkTimerDue = Long.MAX_VALUE;
+			while (!queue.isEmpty() && queue.first().dueTime <= now) {
+				final LogicalTimer next = queue.pollFirst();
+				next.executionTime = now;
+				// like a framework timer, the logical timer continues periodically unless it is stopped by a listener
+				next.dueTime = now + next.interval;
+				queue.add(next);
+				due.add(next);
+			}
+		}
+		for (LogicalTimer logicalTimer : due) {
+			for (TimerListener listener : logicalTimer.listeners) {
+				if (!logicalTimer.running)
+					break;
+				try {
+					listener.timerElapsed(logicalTimer);
+				} catch (Exception e) {
+					logger.error("Timer listener {} failed", listener, e);
+				}
+			}
+		}
+		synchronized (this) {
+			reprogram(now);
+		}
+	}
+	
+	// must be called while holding the lock
+	private void reprogram(final long now) {
+		if (queue.isEmpty()) {
+			if (frameworkTimerRunning) {
+				frameworkTimer.stop();
+				frameworkTimerRunning = false;
+			}
+			frameworkTimerDue = Long.MAX_VALUE;
+			return;
+		}
+		final long nextDue = queue.first().dueTime;
+		if (frameworkTimerRunning && nextDue == frameworkTimerDue)
+			return;
+		frameworkTimer.stop();
+		frameworkTimer.setTimingInterval(Math.max(1, nextDue - now));
+		frameworkTimer.resume();
+		frameworkTimerRunning = true;
+		frameworkTimerDue = nextDue;
+	}
+	
+	private class LogicalTimer implements Timer, Comparable<LogicalTimer> {
+		
+		private final long id = idCounter.getAndIncrement();
+		private final List<TimerListener> listeners = new CopyOnWriteArrayList<>();
+		// the following fields are guarded by the scheduler lock
+		private volatile boolean running;
+		private volatile long interval = Long.MAX_VALUE / 2;
+		private volatile long executionTime = appMan.getFrameworkTime();
+		private long dueTime;
+		private boolean destroyed;
+		
+		@Override
+		public int compareTo(LogicalTimer o) {
+			final int result = Long.compare(dueTime, o.dueTime);
+			return result != 0 ? result : Long.compare(id, o.id);
+		}
+
+		@Override
+		public void stop() {
+			synchronized (SharedTimerScheduler.this) {
+				if (!running)
+					return;
+				running = false;
+				queue.remove(this);
+				reprogram(appMan.getFrameworkTime());
+			}
+		}
+
+		@Override
+		public void resume() {
+			synchronized (SharedTimerScheduler.this) {
+				if (running || destroyed)
+					return;
+				final long now = appMan.getFrameworkTime();
+				dueTime = now + interval;
+				running = true;
+				queue.add(this);
+				reprogram(now);
+			}
+		}
+
+		@Override
+		public boolean isRunning() {
+			return running;
+		}
+
+		@Override
+		public void setTimingInterval(long millis) {
+			if (millis <= 0)
+				throw new IllegalArgumentException("Timing interval must be positive, got " + millis);
+			synchronized (SharedTimerScheduler.this) {
+				this.interval = millis;
+				if (!running)
+					return;
+				final long now = appMan.getFrameworkTime();
+				queue.remove(this);
+				dueTime = now + millis;
+				queue.add(this);
+				reprogram(now);
+			}
+		}
+
+		@Override
+		public long getTimingInterval() {
+			return interval;
+		}
+
+		@Override
+		public void destroy() {
+			synchronized (SharedTimerScheduler.this) {
+				stop();
+				destroyed = true;
+			}
+			listeners.clear();
+		}
+
+		@Override
+		public void addListener(TimerListener listener) {
+			listeners.add(Objects.requireNonNull(listener));
+		}
+
+		@Override
+		public boolean removeListener(TimerListener listener) {
+			return listeners.remove(listener);
+		}
+
+		@Override
+		public List<TimerListener> getListeners() {
+			return Collections.unmodifiableList(new ArrayList<>(listeners));
+		}
+
+		@Override
+		public long getExecutionTime() {
+			return executionTime;
+		}
+
+		@Override
+		public long getNextRunTime() {
+			synchronized (SharedTimerScheduler.this) {
+				return running ? dueTime : Long.MAX_VALUE;
+			}
+		}
+		
+	}
+	
+}
@@ -24,6 +24,16 @@ public interface DayTemplateProvider<T> {
 	
 	void addTemplateChangeListener(TemplateListener listener);
 	void removeTemplateChangeListener(TemplateListener listener);
+	
+	/**
+	 * Returns true if the templates only depend on the day of week, not on the date. In this case
+	 * template timers compile the templates of a week once per change, instead of querying the 
+	 * provider on every lookup. Default: false.
+	 * @return
+	 */
+	default boolean isWeekBased() {
+		return false;
+	}
 
 	public static interface TemplateListener {
 		
@@ -0,0 +1,91 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.tools.timer.utils.templates;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.LoggerFactory;
+import org.smartrplace.tools.timer.utils.templates.DayTemplateProvider.TemplateListener;
+
+/**
+ * Dispatches {@link TemplateListener#templateChanged(DayTemplateProvider) template change events}
+ * for all {@link DayTemplateProvider} implementations, on a single shared thread. 
+ * Repeated changes of a provider are coalesced: as long as a notification for a provider
+ * is pending, further changes do not cause additional events. The dispatcher thread 
+ * terminates when it has been idle for a minute, and is recreated on demand.
+ */
+public class TemplateChangeDispatcher {
+	
+	private static final long IDLE_TIMEOUT_SECONDS = 60;
+	private static final AtomicInteger threadCounter = new AtomicInteger(0);
+	// the queue length is bounded by the number of providers, due to coalescing
+	private static final ExecutorService exec = createExecutor();
+	// providers with a pending notification
+	private static final Set<DayTemplateProvider<?>> pending = ConcurrentHashMap.newKeySet();
+	
+	private TemplateChangeDispatcher() {}
+	
+	/**
+	 * Notify the listeners asynchronously that the templates of the provider have changed.
+	 * If a notification is already pending for the provider, this is a no-op. The listeners
+	 * collection is read when the event is dispatched, so it should be a concurrent collection.
+	 * @param provider
+	 * @param listeners
+	 */
+	public static void templateChanged(final DayTemplateProvider<?> provider, final Collection<TemplateListener> listeners) {
+		Objects.requireNonNull(provider);
+		if (listeners.isEmpty() || !pending.add(provider))
+			return;
+		try {
+			exec.execute(() -> dispatch(provider, listeners));
+		} catch (RuntimeException e) {
+			pending.remove(provider);
+			throw e;
+		}
+	}
+	
+	private static void dispatch(final DayTemplateProvider<?> provider, final Collection<TemplateListener> listeners) {
+		// remove before notifying, so changes made in the meantime trigger another event
+		pending.remove(provider);
+		for (TemplateListener listener : listeners) {
+			try {
+				listener.templateChanged(provider);
+			} catch (Exception e) {
+				LoggerFactory.getLogger(TemplateChangeDispatcher.class).warn("Template listener failed",e);
+			}
+		}
+	}
+	
+	private static ExecutorService createExecutor() {
+		final ThreadPoolExecutor exec = new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS, 
+				new LinkedBlockingQueue<>(), r -> {
+					final Thread t = new Thread(r, "template-change-dispatcher-" + threadCounter.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		exec.allowCoreThreadTimeOut(true);
+		return exec;
+	}
+	
+}
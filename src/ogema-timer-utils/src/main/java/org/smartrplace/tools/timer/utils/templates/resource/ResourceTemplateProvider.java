@@ -21,8 +21,6 @@ import java.time.ZoneId;
 import java.util.Collections;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.ogema.core.model.ValueResource;
 import org.ogema.core.resourcemanager.ResourceStructureEvent;
@@ -32,19 +30,21 @@ import org.smartrplace.tools.timer.utils.model.DayTemplateData;
 import org.smartrplace.tools.timer.utils.model.DayTemplateProviderData;
 import org.smartrplace.tools.timer.utils.templates.DayTemplate;
 import org.smartrplace.tools.timer.utils.templates.DayTemplateProvider;
+import org.smartrplace.tools.timer.utils.templates.TemplateChangeDispatcher;
 
 // TODO template resource changes
 class ResourceTemplateProvider<T> implements DayTemplateProvider<T>, ResourceValueListener<ValueResource>, ResourceStructureListener {
 	
 	private final Set<TemplateListener> listeners = Collections.newSetFromMap(new ConcurrentHashMap<>(4));
 	private final DayTemplateProviderData data;
-	// TODO shared between providers?
-	private final ExecutorService exec = Executors.newSingleThreadExecutor();
 	
 	ResourceTemplateProvider(DayTemplateProviderData data) {
 		this.data = data;
 	}
 
+	// read on every lookup, i.e. the provider is deliberately not week based: ResourceTemplateManagement does not 
+	// report every template modification (e.g. deleted values, or values persisted in a previous run), 
+	// so a compiled week schedule could go stale
 	@SuppressWarnings("unchecked")
 	@Override
 	public DayTemplate<T> getTemplate(LocalDate day, ZoneId timeZone) {
@@ -69,12 +69,12 @@ class ResourceTemplateProvider<T> implements DayTemplateProvider<T>, ResourceVal
 
 	@Override
 	public void resourceChanged(ValueResource resource) {
-		listeners.forEach(l -> exec.submit(() -> l.templateChanged(ResourceTemplateProvider.this)));
+		TemplateChangeDispatcher.templateChanged(this, listeners);
 	}
 
 	@Override
 	public void resourceStructureChanged(ResourceStructureEvent event) {
-		listeners.forEach(l -> exec.submit(() -> l.templateChanged(ResourceTemplateProvider.this)));
+		TemplateChangeDispatcher.templateChanged(this, listeners);
 	}
 	
 }
@@ -23,11 +23,10 @@ import java.util.EnumMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.smartrplace.tools.timer.utils.templates.DayTemplate;
 import org.smartrplace.tools.timer.utils.templates.DayTemplateProvider;
+import org.smartrplace.tools.timer.utils.templates.TemplateChangeDispatcher;
 
 /**
  * Non-persistent implementation of {@link DayTemplate}.
@@ -35,8 +34,6 @@ import org.smartrplace.tools.timer.utils.templates.DayTemplateProvider;
 // TODO holidays
 class SimpleTemplateProvider<T> implements DayTemplateProvider<T> {
 	
-	// TODO shared between providers?
-	private final ExecutorService exec = Executors.newSingleThreadExecutor();
 	// synchronized on this
 	private volatile SimpleDayTemplate<T> defaultTemplate;
 	// synchronized on itself
@@ -50,6 +47,11 @@ class SimpleTemplateProvider<T> implements DayTemplateProvider<T> {
 		return template != null ? template: SimpleDayTemplate.EMPTY_TEMPLATE;
 	}
 	
+	@Override
+	public boolean isWeekBased() {
+		return true;
+	}
+	
 	@Override
 	public void addTemplateChangeListener(TemplateListener listener) {
 		listeners.add(listener);
@@ -82,24 +84,7 @@ class SimpleTemplateProvider<T> implements DayTemplateProvider<T> {
 	}
 	
 	void touched() {
-		listeners.forEach(l -> exec.execute(new TemplateChangeEvent(this, l)));
-	}
-
-	private static class TemplateChangeEvent implements Runnable {
-		
-		private final SimpleTemplateProvider<?> provider;
-		private final TemplateListener listener;
-		
-		TemplateChangeEvent(SimpleTemplateProvider<?> provider, TemplateListener listener) {
-			this.provider = provider;
-			this.listener = listener;
-		}
-		
-		@Override
-		public void run() {
-			listener.templateChanged(provider);
-		}
-		
+		TemplateChangeDispatcher.templateChanged(this, listeners);
 	}
 	
 }
@@ -26,12 +26,14 @@ import java.util.Set;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import org.ogema.core.application.ApplicationManager;
 import org.ogema.core.application.Timer;
 import org.ogema.core.application.TimerListener;
 import org.smartrplace.tools.timer.utils.DelegatingTimer;
+import org.smartrplace.tools.timer.utils.SharedTimerScheduler;
 import org.smartrplace.tools.timer.utils.templates.DayTemplateProvider;
 import org.smartrplace.tools.timer.utils.templates.TemplateTimer;
 import org.smartrplace.tools.timer.utils.templates.DayTemplateProvider.TemplateListener;
@@ -43,10 +45,13 @@ public class SimpleTemplateTimer<T> extends DelegatingTimer implements TemplateT
 	private final TemplateListener templateChangeListener;
 	final ZoneId timeZone;
 	final Set<TemplateTimerListener<T>> listeners = Collections.newSetFromMap(new ConcurrentHashMap<>());
+	// incremented on every template change; the compiled schedule is only valid for the current version
+	private final AtomicLong templateVersion = new AtomicLong(0);
+	private volatile WeekSchedule<T> schedule;
 
 	public SimpleTemplateTimer(final ApplicationManager appMan, final DayTemplateProvider<T> templateProvider, 
 			final TimerListener listener, final ZoneId timeZone) {
-		super(Objects.requireNonNull(appMan).createTimer(Long.MAX_VALUE));
+		super(SharedTimerScheduler.createTimer(appMan));
 		this.appMan = appMan;
 		this.templateProvider = Objects.requireNonNull(templateProvider);
 		this.timeZone = timeZone != null ? timeZone : ZoneId.systemDefault();
@@ -60,7 +65,10 @@ public class SimpleTemplateTimer<T> extends DelegatingTimer implements TemplateT
 		};
 		appMan.submitEvent(settingsTask);
 		// when the template changes, we need to recalculate the next execution time
-		this.templateChangeListener = (provider) -> appMan.submitEvent(settingsTask); 
+		this.templateChangeListener = (provider) -> {
+			templateVersion.incrementAndGet();
+			appMan.submitEvent(settingsTask);
+		}; 
 		templateProvider.addTemplateChangeListener(templateChangeListener);
 	}
 	
@@ -95,13 +103,39 @@ public class SimpleTemplateTimer<T> extends DelegatingTimer implements TemplateT
 	@Override
 	public Entry<ZonedDateTime, T> getNextValue() {
 		final ZonedDateTime now = ZonedDateTime.ofInstant(Instant.ofEpochMilli(appMan.getFrameworkTime()), timeZone);
-		return TemplateUtils.getNextTemplateValue(now, templateProvider, timeZone);
+		return getNextValue(now);
 	}
 	
 	@Override
 	public Entry<ZonedDateTime, T> getPreviousValue() {
 		final ZonedDateTime now = ZonedDateTime.ofInstant(Instant.ofEpochMilli(appMan.getFrameworkTime()), timeZone);
-		return TemplateUtils.getPreviousTemplateValue(now, templateProvider, timeZone);
+		return getPreviousValue(now);
+	}
+	
+	Entry<ZonedDateTime, T> getNextValue(final ZonedDateTime start) {
+		final WeekSchedule<T> schedule = getSchedule();
+		return schedule != null ? schedule.getNextValue(start) : TemplateUtils.getNextTemplateValue(start, templateProvider, timeZone);
+	}
+	
+	Entry<ZonedDateTime, T> getPreviousValue(final ZonedDateTime start) {
+		final WeekSchedule<T> schedule = getSchedule();
+		return schedule != null ? schedule.getPreviousValue(start) : TemplateUtils.getPreviousTemplateValue(start, templateProvider, timeZone);
+	}
+	
+	/**
+	 * @return
+	 * 		null if the template provider is not week based
+	 */
+	private WeekSchedule<T> getSchedule() {
+		if (!templateProvider.isWeekBased())
+			return null;
+		final long version = templateVersion.get();
+		WeekSchedule<T> schedule = this.schedule;
+		if (schedule == null || schedule.version != version) {
+			schedule = WeekSchedule.compile(templateProvider, timeZone, version);
+			this.schedule = schedule;
+		}
+		return schedule;
 	}
 	
 	private static class SettingsListener<S> implements TimerListener {
@@ -118,12 +152,12 @@ public class SimpleTemplateTimer<T> extends DelegatingTimer implements TemplateT
 			// dispatch event to template timer listeners
 			// determine current template value
 			final ZonedDateTime now = ZonedDateTime.ofInstant(Instant.ofEpochMilli(timer.getExecutionTime()), master.timeZone);
-			final Map.Entry<ZonedDateTime, S> previous = TemplateUtils.getPreviousTemplateValue(now, master.templateProvider, master.timeZone); 
+			final Map.Entry<ZonedDateTime, S> previous = master.getPreviousValue(now); 
 			if (previous != null) {
 				master.listeners.forEach(l -> master.appMan.submitEvent(new TimerEvent<S>(master, l, previous.getValue())));
 			}
 			// determine next timer run time
-			final Map.Entry<ZonedDateTime, S> entry = TemplateUtils.getNextTemplateValue(now, master.templateProvider, master.timeZone);
+			final Map.Entry<ZonedDateTime, S> entry = master.getNextValue(now);
 			if (entry == null)
 				return;
  			timer.setTimingInterval(entry.getKey().toInstant().toEpochMilli() - now.toInstant().toEpochMilli());
@@ -79,7 +79,7 @@ class TemplateUtils {
 	}
 	
 	
-	private static class Entry<T> implements Map.Entry<ZonedDateTime, T> {
+	static class Entry<T> implements Map.Entry<ZonedDateTime, T> {
 
 		private final ZonedDateTime key;
 		private final T value;
@@ -0,0 +1,134 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.tools.timer.utils.templates.simple;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.TemporalAdjusters;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableMap;
+
+import org.smartrplace.tools.timer.utils.templates.DayTemplate;
+import org.smartrplace.tools.timer.utils.templates.DayTemplateProvider;
+
+/**
+ * Compiled form of a week based {@link DayTemplateProvider}: all template values of a week, sorted
+ * by their time of the week (in nanoseconds since Monday, 00:00). Lookups are binary searches and do not
+ * access the provider. The schedule must be recompiled when the provider reports a change. 
+ */
+class WeekSchedule<T> {
+	
+	private static final long NANOS_PER_DAY = LocalTime.MAX.toNanoOfDay() + 1;
+	final long version;
+	// sorted
+	private final long[] times;
+	private final Object[] values;
+	
+	private WeekSchedule(long version, long[] times, Object[] values) {
+		this.version = version;
+		this.times = times;
+		this.values = values;
+	}
+	
+	/**
+	 * @param provider
+	 * 		a provider whose templates only depend on the day of week, see {@link DayTemplateProvider#isWeekBased()}
+	 * @param zone
+	 * @param version
+	 * @return
+	 */
+	static <T> WeekSchedule<T> compile(final DayTemplateProvider<T> provider, final ZoneId zone, final long version) {
+		final LocalDate monday = LocalDate.now(zone).with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+		int size = 0;
+		long[] times = new long[16];
+		Object[] values = new Object[16];
+		for (int day = 0; day < 7; day++) {
+			final DayTemplate<T> template = provider.getTemplate(monday.plusDays(day), zone);
+			if (template == null)
+				continue;
+			final NavigableMap<LocalTime, T> dayValues = template.getDayValues();
+			for (Map.Entry<LocalTime, T> entry : dayValues.entrySet()) {
+				if (size == times.length) {
+					times = Arrays.copyOf(times, 2 * size);
+					values = Arrays.copyOf(values, 2 * size);
+				}
+				times[size] = day * NANOS_PER_DAY + entry.getKey().toNanoOfDay();
+				values[size++] = entry.getValue();
+			}
+		}
+		return new WeekSchedule<>(version, Arrays.copyOf(times, size), Arrays.copyOf(values, size));
+	}
+	
+	/**
+	 * See {@link TemplateUtils#getPreviousTemplateValue(ZonedDateTime, DayTemplateProvider, ZoneId)}
+	 * @param start
+	 * @return
+	 * 		the last value with timestamp &lt;= start, or null
+	 */
+	Map.Entry<ZonedDateTime, T> getPreviousValue(final ZonedDateTime start) {
+		if (times.length == 0)
+			return null;
+		final long time = getTimeOfWeek(start);
+		int idx = Arrays.binarySearch(times, time);
+		if (idx < 0)
+			idx = -idx - 2; // last entry smaller than time
+		final long dayDiff;
+		if (idx >= 0) {
+			dayDiff = times[idx] / NANOS_PER_DAY - time / NANOS_PER_DAY;
+		} else { // wrap around to the previous week
+			idx = times.length - 1;
+			dayDiff = times[idx] / NANOS_PER_DAY - time / NANOS_PER_DAY - 7;
+		}
+		return getEntry(start, dayDiff, idx);
+	}
+	
+	/**
+	 * See {@link TemplateUtils#getNextTemplateValue(ZonedDateTime, DayTemplateProvider, ZoneId)}
+	 * @param start
+	 * @return
+	 * 		the first value with timestamp &gt; start, or null
+	 */
+	Map.Entry<ZonedDateTime, T> getNextValue(final ZonedDateTime start) {
+		if (times.length == 0)
+			return null;
+		final long time = getTimeOfWeek(start);
+		int idx = Arrays.binarySearch(times, time);
+		idx = idx < 0 ? -idx - 1 : idx + 1; // first entry greater than time
+		final long dayDiff;
+		if (idx < times.length) {
+			dayDiff = times[idx] / NANOS_PER_DAY - time / NANOS_PER_DAY;
+		} else { // wrap around to the next week
+			idx = 0;
+			dayDiff = times[idx] / NANOS_PER_DAY - time / NANOS_PER_DAY + 7;
+		}
+		return getEntry(start, dayDiff, idx);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Map.Entry<ZonedDateTime, T> getEntry(final ZonedDateTime start, final long dayDiff, final int idx) {
+		final LocalTime localTime = LocalTime.ofNanoOfDay(times[idx] % NANOS_PER_DAY);
+		return new TemplateUtils.Entry<T>(start.plusDays(dayDiff).with(localTime), (T) values[idx]);
+	}
+	
+	private static long getTimeOfWeek(final ZonedDateTime time) {
+		return (time.getDayOfWeek().getValue() - 1) * NANOS_PER_DAY + time.toLocalTime().toNanoOfDay();
+	}
+	
+}
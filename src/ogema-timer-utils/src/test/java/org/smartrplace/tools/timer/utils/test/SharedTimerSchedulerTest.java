@@ -0,0 +1,198 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.tools.timer.utils.test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.ogema.core.application.ApplicationManager;
+import org.ogema.core.application.Timer;
+import org.ogema.core.application.TimerListener;
+import org.smartrplace.tools.timer.utils.SharedTimerScheduler;
+
+/*
+ * Runs without a framework; the framework timer is replaced by a stub 
+ * which is triggered manually.
+ */
+public class SharedTimerSchedulerTest {
+	
+	private final AtomicLong clock = new AtomicLong(1000);
+	private final List<StubTimer> frameworkTimers = new ArrayList<>();
+	private final ApplicationManager appMan = (ApplicationManager) Proxy.newProxyInstance(getClass().getClassLoader(), 
+			new Class<?>[] {ApplicationManager.class}, (proxy, method, args) -> {
+		switch (method.getName()) {
+		case "getFrameworkTime":
+			return clock.get();
+		case "createTimer":
+			final StubTimer timer = new StubTimer((Long) args[0], args.length > 1 ? (TimerListener) args[1] : null);
+			frameworkTimers.add(timer);
+			return timer;
+		case "getLogger":
+			return null;
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		case "equals":
+			return proxy == args[0];
+		default:
+			throw new UnsupportedOperationException(method.getName());
+		}
+	});
+	
+	private StubTimer getFrameworkTimer() {
+		Assert.assertEquals("Expected a single framework timer", 1, frameworkTimers.size());
+		return frameworkTimers.get(0);
+	}
+	
+	private List<Timer> createTimers(final int nrTimers) {
+		final List<Timer> timers = new ArrayList<>(nrTimers);
+		for (int i = 0; i < nrTimers; i++) {
+			final Timer timer = SharedTimerScheduler.createTimer(appMan);
+			timer.setTimingInterval(100 + i);
+			timer.resume();
+			timers.add(timer);
+		}
+		return timers;
+	}
+	
+	@Test
+	public void frameworkTimerStopsWhenAllTimersStopped() {
+		final List<Timer> timers = createTimers(3);
+		final StubTimer frameworkTimer = getFrameworkTimer();
+		Assert.assertTrue("Framework timer not running", frameworkTimer.isRunning());
+		Assert.assertEquals(100, frameworkTimer.getTimingInterval());
+		timers.get(0).stop();
+		Assert.assertTrue("Framework timer not running", frameworkTimer.isRunning());
+		timers.get(1).destroy();
+		Assert.assertTrue("Framework timer not running", frameworkTimer.isRunning());
+		timers.get(2).stop();
+		Assert.assertFalse("Framework timer still running although all timers have been stopped", frameworkTimer.isRunning());
+		timers.get(2).resume();
+		Assert.assertTrue("Framework timer not running", frameworkTimer.isRunning());
+		timers.get(2).destroy();
+		Assert.assertFalse("Framework timer still running although all timers have been destroyed", frameworkTimer.isRunning());
+	}
+	
+	@Test
+	public void frameworkTimerStopsWhenAllTimersStoppedByListeners() {
+		final List<Timer> timers = createTimers(3);
+		final TimerListener stoppingListener = Timer::stop;
+		timers.forEach(timer -> timer.addListener(stoppingListener));
+		final StubTimer frameworkTimer = getFrameworkTimer();
+		clock.addAndGet(110);
+		frameworkTimer.elapse(clock.get());
+		for (Timer timer : timers) {
+			Assert.assertFalse("Timer still running although stopped by its listener", timer.isRunning());
+			Assert.assertEquals("Unexpected execution time", clock.get(), timer.getExecutionTime());
+		}
+		Assert.assertFalse("Framework timer still running although all timers have been stopped", frameworkTimer.isRunning());
+	}
+	
+	@Test
+	public void frameworkTimerIsReprogrammedAfterElapsing() {
+		final List<Timer> timers = createTimers(2);
+		final StubTimer frameworkTimer = getFrameworkTimer();
+		timers.get(0).addListener(Timer::stop);
+		clock.addAndGet(100);
+		frameworkTimer.elapse(clock.get());
+		Assert.assertFalse("Timer still running although stopped by its listener", timers.get(0).isRunning());
+		Assert.assertTrue("Framework timer not running", frameworkTimer.isRunning());
+		Assert.assertEquals(1, frameworkTimer.getTimingInterval());
+		timers.get(1).stop();
+		Assert.assertFalse("Framework timer still running although all timers have been stopped", frameworkTimer.isRunning());
+	}
+	
+	private static class StubTimer implements Timer {
+		
+		private final List<TimerListener> listeners = new ArrayList<>();
+		private boolean running = true;
+		private long interval;
+		private long executionTime;
+		
+		StubTimer(long interval, TimerListener listener) {
+			this.interval = interval;
+			if (listener != null)
+				listeners.add(listener);
+		}
+		
+		void elapse(long time) {
+			Assert.assertTrue("Framework timer elapsed although it is stopped", running);
+			this.executionTime = time;
+			new ArrayList<>(listeners).forEach(listener -> listener.timerElapsed(this));
+		}
+
+		@Override
+		public void stop() {
+			running = false;
+		}
+
+		@Override
+		public void resume() {
+			running = true;
+		}
+
+		@Override
+		public boolean isRunning() {
+			return running;
+		}
+
+		@Override
+		public void setTimingInterval(long millis) {
+			this.interval = millis;
+		}
+
+		@Override
+		public long getTimingInterval() {
+			return interval;
+		}
+
+		@Override
+		public void destroy() {
+			running = false;
+			listeners.clear();
+		}
+
+		@Override
+		public void addListener(TimerListener listener) {
+			listeners.add(listener);
+		}
+
+		@Override
+		public boolean removeListener(TimerListener listener) {
+			return listeners.remove(listener);
+		}
+
+		@Override
+		public List<TimerListener> getListeners() {
+			return new ArrayList<>(listeners);
+		}
+
+		@Override
+		public long getExecutionTime() {
+			return executionTime;
+		}
+
+		@Override
+		public long getNextRunTime() {
+			return running ? executionTime + interval : Long.MAX_VALUE;
+		}
+		
+	}
+
+}
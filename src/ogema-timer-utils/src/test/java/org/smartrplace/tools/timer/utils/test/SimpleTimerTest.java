@@ -19,6 +19,8 @@ import java.time.Duration;
 import java.time.Instant;
 import java.time.Period;
 import java.time.temporal.TemporalAmount;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -99,6 +101,28 @@ public class SimpleTimerTest extends LatestVersionsTestBase {
 		}
 	}
 	
+	@Test
+	public void manyTimersWork() throws InterruptedException {
+		final int nrTimers = 500;
+		final List<TestListener> listeners = new ArrayList<>(nrTimers);
+		final List<PeriodTimerSimple> timers = new ArrayList<>(nrTimers);
+		final long now = getApplicationManager().getFrameworkTime();
+		try {
+			for (int i = 0; i < nrTimers; i++) {
+				final TestListener listener = new TestListener(now, 2);
+				listeners.add(listener);
+				timers.add(PeriodTimerSimple.builder(getApplicationManager(), Duration.ofMillis(1000 + i))
+						.addListener(listener)
+						.build());
+			}
+			for (TestListener listener : listeners) {
+				Assert.assertTrue("Timer listener not called", listener.await(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			timers.forEach(Timer::destroy);
+		}
+	}
+	
 	private static class TestListener implements TimerListener {
 		
 		private final long startTime;
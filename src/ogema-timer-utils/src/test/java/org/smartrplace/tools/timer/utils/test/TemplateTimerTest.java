@@ -248,6 +248,66 @@ public class TemplateTimerTest extends LatestVersionsTestBase {
 		}
 	}
 	
+	@Test
+	public void nextAndPreviousValueReflectTemplateChanges() throws InterruptedException {
+		final TemplateManagement<Integer> templateMgmt = new SimpleTemplateManagement<Integer>();
+		final ZonedDateTime tomorrow = ZonedDateTime.ofInstant(Instant.ofEpochMilli(getApplicationManager().getFrameworkTime()), zone)
+				.truncatedTo(ChronoUnit.DAYS).plusDays(1);
+		templateMgmt.addValue(tomorrow.getDayOfWeek(), LocalTime.of(12, 0), 1);
+		final SimpleTemplateTimer<Integer> timer = new SimpleTemplateTimer<Integer>(getApplicationManager(), templateMgmt.getPovider(), null, zone);
+		try {
+			Map.Entry<ZonedDateTime, Integer> next = timer.getNextValue();
+			Assert.assertNotNull(next);
+			Assert.assertEquals(tomorrow.withHour(12), next.getKey());
+			Assert.assertEquals(1, next.getValue().intValue());
+			final Map.Entry<ZonedDateTime, Integer> previous = timer.getPreviousValue();
+			Assert.assertNotNull(previous);
+			Assert.assertEquals(tomorrow.minusDays(7).withHour(12), previous.getKey());
+			templateMgmt.addValue(tomorrow.getDayOfWeek(), LocalTime.of(6, 0), 2);
+			// change events are dispatched asynchronously
+			final long start = System.currentTimeMillis();
+			while (timer.getNextValue().getValue() != 2 && System.currentTimeMillis() - start < 5000) {
+				Thread.sleep(50);
+			}
+			next = timer.getNextValue();
+			Assert.assertEquals(tomorrow.withHour(6), next.getKey());
+			Assert.assertEquals(2, next.getValue().intValue());
+		} finally {
+			timer.destroy();
+		}
+	}
+	
+	@Test
+	public void templateChangeEventsAreCoalesced() throws InterruptedException {
+		final TemplateManagement<Integer> templateMgmt = new SimpleTemplateManagement<Integer>();
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch secondEvent = new CountDownLatch(1);
+		final AtomicInteger eventCount = new AtomicInteger(0);
+		templateMgmt.getPovider().addTemplateChangeListener(provider -> {
+			if (eventCount.incrementAndGet() == 1) {
+				entered.countDown();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			} else {
+				secondEvent.countDown();
+			}
+		});
+		templateMgmt.addDefaultValue(LocalTime.of(0, 0), 0);
+		Assert.assertTrue("Template change event missing", entered.await(5, TimeUnit.SECONDS));
+		// while the first event is being processed, all further changes result in a single event
+		for (int i = 1; i < 100; i++) {
+			templateMgmt.addDefaultValue(LocalTime.of(0, i % 60, i / 60), i);
+		}
+		release.countDown();
+		Assert.assertTrue("Template change event missing", secondEvent.await(5, TimeUnit.SECONDS));
+		Thread.sleep(200);
+		Assert.assertEquals("Unexpected number of template change events", 2, eventCount.get());
+	}
+	
 	private static class TestListener implements TemplateTimerListener<Integer> {
 		
 		private final CountDownLatch latch;
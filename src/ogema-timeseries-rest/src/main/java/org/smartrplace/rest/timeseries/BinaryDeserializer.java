@@ -0,0 +1,131 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * Copyright 2018 Smartrplace UG
+ *
+ * FendoDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FendoDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smartrplace.rest.timeseries;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.ogema.core.channelmanager.measurements.FloatValue;
+import org.ogema.core.channelmanager.measurements.Quality;
+import org.ogema.core.channelmanager.measurements.SampledValue;
+import org.ogema.core.timeseries.ReadOnlyTimeSeries;
+import org.ogema.core.timeseries.TimeSeries;
+import org.ogema.recordeddata.DataRecorderException;
+import org.ogema.recordeddata.RecordedDataStorage;
+
+/**
+ * Reads values in the format described in {@link BinaryFormat}. Unlike the text based
+ * {@link Deserializer}s, this works on the raw input stream.
+ */
+class BinaryDeserializer {
+
+	private final InputStream in;
+	private final ReadOnlyTimeSeries timeSeries;
+	private final HttpServletResponse resp;
+	private final SampledValue[] buffer;
+	private int nextBufferIdx = 0;
+	private Long latest;
+	// number of values written to the time series
+	int nrValues;
+
+	BinaryDeserializer(InputStream in, ReadOnlyTimeSeries timeSeries, HttpServletResponse resp, int batchSize) {
+		this.in = new BufferedInputStream(in, 8192);
+		this.timeSeries = timeSeries;
+		this.resp = resp;
+		this.buffer = new SampledValue[batchSize];
+		final SampledValue latest = timeSeries.getPreviousValue(Long.MAX_VALUE);
+		this.latest = latest != null ? latest.getTimestamp() : null;
+	}
+
+	boolean deserializeValues() throws IOException {
+		for (byte b : BinaryFormat.MAGIC) {
+			if (in.read() != b) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Not a binary time series stream");
+				return false;
+			}
+		}
+		final int version = in.read();
+		if (version != BinaryFormat.VERSION) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unsupported binary format version " + version);
+			return false;
+		}
+		long t = 0;
+		Long header;
+		while ((header = BinaryFormat.readVarLong(in)) != null) {
+			t += BinaryFormat.getTimeDelta(header);
+			final float value = BinaryFormat.readFloat(in);
+			if (latest != null && t <= latest) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid time ordering");
+				return false;
+			}
+			latest = t;
+			buffer[nextBufferIdx++] = new SampledValue(new FloatValue(value), t,
+					BinaryFormat.isBadQuality(header) ? Quality.BAD : Quality.GOOD);
+			if (nextBufferIdx >= buffer.length) {
+				try {
+					writeBuffer();
+				} catch (DataRecorderException e) {
+					resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Writing values failed: " + e.getMessage());
+					return false;
+				}
+			}
+		}
+		if (nextBufferIdx != 0) {
+			try {
+				writeBuffer();
+			} catch (DataRecorderException e) {
+				resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Writing values failed: " + e.getMessage());
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private final void writeBuffer() throws DataRecorderException {
+		final int lastEntry = nextBufferIdx;
+		nextBufferIdx = 0;
+		List<SampledValue> list = Arrays.asList(buffer);
+		if (lastEntry != buffer.length)
+			list = list.subList(0, lastEntry);
+		if (timeSeries instanceof RecordedDataStorage)
+			((RecordedDataStorage) timeSeries).insertValues(list);
+		else if (timeSeries instanceof TimeSeries)
+			((TimeSeries) timeSeries).addValues(list);
+		nrValues += lastEntry;
+	}
+
+}
@@ -0,0 +1,155 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * Copyright 2018 Smartrplace UG
+ *
+ * FendoDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FendoDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smartrplace.rest.timeseries;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import org.ogema.core.channelmanager.measurements.Quality;
+import org.ogema.core.channelmanager.measurements.SampledValue;
+
+/**
+ * Compact binary encoding of a sequence of float values:
+ * <ul>
+ *   <li>header: the magic bytes {@link #MAGIC}, followed by a single version byte</li>
+ *   <li>one record per value: a variable-length integer (7 bits per byte, least significant group first),
+ *   		containing the zig-zag encoded difference to the previous timestamp (the first timestamp
+ *   		is relative to 0), shifted left by one bit, with the lowest bit set for values of bad quality;
+ *   		followed by the value as IEEE 754 float, big-endian</li>
+ * </ul>
+ * The sequence ends with the stream. Selected via the format parameter "binary", or the
+ * media type {@link #MIME_TYPE} in the Accept/Content-Type header.
+ */
+class BinaryFormat {
+
+	static final String FORMAT = "binary";
+	static final String MIME_TYPE = "application/x-ogema-timeseries";
+	static final byte[] MAGIC = {'O', 'T', 'S', 'B'};
+	static final byte VERSION = 1;
+
+	private BinaryFormat() {}
+
+	/**
+	 * @param it
+	 * @param out
+	 * @param maxValues
+	 * @return
+	 * 		the number of values written
+	 * @throws IOException
+	 */
+	static int serialize(final Iterator<SampledValue> it, final OutputStream out, final int maxValues) throws IOException {
+		final OutputStream buffered = new BufferedOutputStream(out, 8192);
+		buffered.write(MAGIC);
+		buffered.write(VERSION);
+		long previous = 0;
+		int cnt = 0;
+		while (it.hasNext() && cnt < maxValues) {
+			final SampledValue sv = it.next();
+			final long t = sv.getTimestamp();
+			final long delta = t - previous;
+			final long zigzag = (delta << 1) ^ (delta >> 63);
+			writeVarLong((zigzag << 1) | (sv.getQuality() == Quality.BAD ? 1 : 0), buffered);
+			final int bits = Float.floatToIntBits(sv.getValue().getFloatValue());
+			buffered.write(bits >>> 24);
+			buffered.write(bits >>> 16);
+			buffered.write(bits >>> 8);
+			buffered.write(bits);
+			previous = t;
+			cnt++;
+		}
+		buffered.flush();
+		return cnt;
+	}
+
+	private static void writeVarLong(long value, final OutputStream out) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * @param in
+	 * @return
+	 * 		the next variable-length integer, or null if the stream ends before the first byte
+	 * @throws IOException
+	 */
+	static Long readVarLong(final InputStream in) throws IOException {
+		long result = 0;
+		int shift = 0;
+		while (true) {
+			final int b = in.read();
+			if (b < 0) {
+				if (shift == 0)
+					return null;
+				throw new EOFException("Unexpected end of stream");
+			}
+			if (shift > 63)
+				throw new IOException("Variable-length integer too long");
+			result |= ((long) (b & 0x7F)) << shift;
+			if ((b & 0x80) == 0)
+				return result;
+			shift += 7;
+		}
+	}
+
+	static float readFloat(final InputStream in) throws IOException {
+		final int b0 = in.read();
+		final int b1 = in.read();
+		final int b2 = in.read();
+		final int b3 = in.read();
+		if ((b0 | b1 | b2 | b3) < 0)
+			throw new EOFException("Unexpected end of stream");
+		return Float.intBitsToFloat((b0 << 24) | (b1 << 16) | (b2 << 8) | b3);
+	}
+
+	/**
+	 * @param value
+	 * 		a record header as written by {@link #serialize(Iterator, OutputStream, int)}
+	 * @return
+	 * 		the timestamp difference to the previous record
+	 */
+	static long getTimeDelta(final long value) {
+		final long zigzag = value >>> 1;
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+
+	static boolean isBadQuality(final long value) {
+		return (value & 1) == 1;
+	}
+
+}
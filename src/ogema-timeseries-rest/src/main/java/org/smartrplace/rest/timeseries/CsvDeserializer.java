@@ -31,9 +31,9 @@
  */
 package org.smartrplace.rest.timeseries;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -47,46 +47,71 @@ import org.ogema.core.timeseries.TimeSeries;
 import org.ogema.recordeddata.DataRecorderException;
 import org.ogema.recordeddata.RecordedDataStorage;
 
+/**
+ * Parses lines of the form "time;value[;quality]" directly from a char buffer, without
+ * creating intermediate strings for numeric timestamps and values. Parsed values are
+ * collected in primitive arrays and written to the time series in batches.
+ */
 class CsvDeserializer extends Deserializer {
-	
-	private final BufferedReader reader;
-	private final static int BUFFER_SIZE = 20;
-	private final SampledValue[] buffer = new SampledValue[BUFFER_SIZE];
+
+	private final static int MAX_LINE_LENGTH = 64 * 1024;
+	// powers of ten that are exactly representable as floats
+	private final static float[] POWERS_OF_TEN = {
+		1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+	};
+	private final Reader reader;
+	private final int batchSize;
+	private final long[] times;
+	private final float[] floats;
+	private final boolean[] badQuality;
+	private final List<SampledValue> batch;
 	private int nextBufferIdx = 0;
+	private char[] buf = new char[8192];
+	private int pos = 0;
+	private int limit = 0;
+	// results of the last successful parseLong/parseFloat call
+	private long parsedLong;
+	private float parsedFloat;
 
-	CsvDeserializer(Reader reader, ReadOnlyTimeSeries timeSeries, HttpServletResponse resp) {
+	CsvDeserializer(Reader reader, ReadOnlyTimeSeries timeSeries, HttpServletResponse resp, int batchSize) {
 		super(reader, timeSeries, resp);
-		this.reader = new BufferedReader(reader);
-		
+		this.reader = reader;
+		this.batchSize = batchSize;
+		this.times = new long[batchSize];
+		this.floats = new float[batchSize];
+		this.badQuality = new boolean[batchSize];
+		this.batch = new ArrayList<>(batchSize);
 	}
 
 	@Override
 	boolean deserializeValues() throws IOException {
-		String line;
-		while ((line = reader.readLine()) != null) {
-			line = line.trim();
-			if (line.isEmpty() || line.charAt(0) == '#') // comment
-				continue;
-			final SampledValue sv = deserializeLine(line);
-			if (sv == null) {
-				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid content: " + line);
-				return false;
-			}
-			if (latest != null && sv.getTimestamp() <= latest) {
-				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid time ordering");
-				return false;
+		int scanFrom = 0;
+		while (true) {
+			int lineEnd = -1;
+			for (int i = pos + scanFrom; i < limit; i++) {
+				if (buf[i] == '\n') {
+					lineEnd = i;
+					break;
+				}
 			}
-			latest = sv.getTimestamp();
-			buffer[nextBufferIdx++] = sv;
-			if (nextBufferIdx >= BUFFER_SIZE) {
-				try {
-					writeBuffer();
-				} catch (DataRecorderException e) {
-					resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Writing values failed: " + e.getMessage());
+			if (lineEnd < 0) {
+				scanFrom = limit - pos;
+				if (scanFrom > MAX_LINE_LENGTH) {
+					resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Line too long");
 					return false;
 				}
+				if (!fill())
+					break;
+				continue;
 			}
+			scanFrom = 0;
+			if (!processLine(pos, lineEnd))
+				return false;
+			pos = lineEnd + 1;
 		}
+		if (pos < limit && !processLine(pos, limit))
+			return false;
+		pos = limit;
 		if (nextBufferIdx != 0) {
 			try {
 				writeBuffer();
@@ -97,48 +122,207 @@ class CsvDeserializer extends Deserializer {
 		}
 		return true;
 	}
-	
+
+	/**
+	 * Move the unparsed rest to the start of the buffer and read more data.
+	 * @return
+	 * 		false if the end of the stream has been reached
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		if (limit == buf.length)
+			buf = Arrays.copyOf(buf, 2 * buf.length);
+		final int read = reader.read(buf, limit, buf.length - limit);
+		if (read < 0)
+			return false;
+		limit += read;
+		return true;
+	}
+
+	private boolean processLine(int start, int end) throws IOException {
+		while (start < end && buf[start] <= ' ')
+			start++;
+		while (end > start && buf[end-1] <= ' ')
+			end--;
+		if (start == end || buf[start] == '#') // comment
+			return true;
+		if (!deserializeLine(start, end)) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid content: " + new String(buf, start, end - start));
+			return false;
+		}
+		final long t = times[nextBufferIdx];
+		if (latest != null && t <= latest) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid time ordering");
+			return false;
+		}
+		latest = t;
+		nextBufferIdx++;
+		if (nextBufferIdx >= batchSize) {
+			try {
+				writeBuffer();
+			} catch (DataRecorderException e) {
+				resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Writing values failed: " + e.getMessage());
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private final void writeBuffer() throws DataRecorderException {
 		final int lastEntry = nextBufferIdx;
 		nextBufferIdx = 0;
-		List<SampledValue> list = Arrays.asList(buffer);
-		if (lastEntry != BUFFER_SIZE)
-			list = list.subList(0, lastEntry);
-		if (timeSeries instanceof RecordedDataStorage) 
-			((RecordedDataStorage) timeSeries).insertValues(list);
+		batch.clear();
+		for (int i = 0; i < lastEntry; i++) {
+			batch.add(new SampledValue(new FloatValue(floats[i]), times[i], badQuality[i] ? Quality.BAD : Quality.GOOD));
+		}
+		if (timeSeries instanceof RecordedDataStorage)
+			((RecordedDataStorage) timeSeries).insertValues(batch);
 		else if (timeSeries instanceof TimeSeries)
-			((TimeSeries) timeSeries).addValues(list);
+			((TimeSeries) timeSeries).addValues(batch);
+		nrValues += lastEntry;
 	}
-	
-	private static SampledValue deserializeLine(final String line) {
-		final String[] split = line.split(";");
-		if (split.length != 2 && split.length != 3)
-			return null;
-		final Long time = Utils.parseTimeString(split[0].trim(), null);
-		if (time == null)
-			return null;
-		final float value;
-		try {
-			value = Float.parseFloat(split[1].trim());
-		} catch (NumberFormatException e) {
-			return null;
+
+	// writes the result to the arrays at position nextBufferIdx
+	private boolean deserializeLine(final int start, final int end) {
+		final int sep1 = indexOf(';', start, end);
+		if (sep1 < 0)
+			return false;
+		final int sep2 = indexOf(';', sep1 + 1, end);
+		if (sep2 >= 0 && indexOf(';', sep2 + 1, end) >= 0)
+			return false;
+		final int valueEnd = sep2 < 0 ? end : sep2;
+		if (parseLong(start, sep1)) {
+			times[nextBufferIdx] = parsedLong;
+		} else {
+			final Long time = Utils.parseTimeString(new String(buf, start, sep1 - start).trim(), null);
+			if (time == null)
+				return false;
+			times[nextBufferIdx] = time;
 		}
-		final Quality q;
-		if (split.length == 2) 
-			q = Quality.GOOD;
-		else {
+		if (!parseFloat(sep1 + 1, valueEnd))
+			return false;
+		floats[nextBufferIdx] = parsedFloat;
+		if (sep2 < 0) {
+			badQuality[nextBufferIdx] = false;
+		} else {
 			try {
-				q = Quality.valueOf(split[2].trim().toUpperCase());
+				badQuality[nextBufferIdx] = Quality.valueOf(new String(buf, sep2 + 1, end - sep2 - 1).trim().toUpperCase()) == Quality.BAD;
 			} catch (IllegalArgumentException e) {
-				return null;
+				return false;
 			}
 		}
-		return new SampledValue(new FloatValue(value), time, q);
+		return true;
+	}
+
+	private int indexOf(final char c, final int start, final int end) {
+		for (int i = start; i < end; i++) {
+			if (buf[i] == c)
+				return i;
+		}
+		return -1;
+	}
+
+	// only plain integers; returns false for anything else, such as date time strings
+	private boolean parseLong(int start, int end) {
+		while (start < end && buf[start] == ' ')
+			start++;
+		while (end > start && buf[end-1] == ' ')
+			end--;
+		if (start == end)
+			return false;
+		final boolean negative = buf[start] == '-';
+		if (negative)
+			start++;
+		if (start == end || end - start > 18)
+			return false;
+		long result = 0;
+		for (int i = start; i < end; i++) {
+			final int digit = buf[i] - '0';
+			if (digit < 0 || digit > 9)
+				return false;
+			result = 10 * result + digit;
+		}
+		parsedLong = negative ? -result : result;
+		return true;
 	}
-	
+
+	/*
+	 * Fast path for decimal numbers whose mantissa fits into 24 bits and whose power of ten
+	 * is exactly representable as a float; then a single float multiplication or division
+	 * yields the correctly rounded result. Everything else is delegated to Float#parseFloat.
+	 * (Computing in double and casting to float would round twice, which is off by one ulp
+	 * for some inputs.)
+	 */
+	private boolean parseFloat(int start, int end) {
+		while (start < end && buf[start] == ' ')
+			start++;
+		while (end > start && buf[end-1] == ' ')
+			end--;
+		if (start == end)
+			return false;
+		int i = start;
+		final boolean negative = buf[i] == '-';
+		if (negative || buf[i] == '+')
+			i++;
+		long mantissa = 0;
+		int exponent = 0;
+		int nrDigits = 0;
+		boolean dot = false;
+		boolean fastPath = true;
+		for (; i < end; i++) {
+			final char c = buf[i];
+			if (c >= '0' && c <= '9') {
+				if (mantissa < 100_000_000_000_000_000L) {
+					mantissa = 10 * mantissa + (c - '0');
+					if (dot)
+						exponent--;
+				} else {
+					fastPath = false;
+				}
+				nrDigits++;
+			} else if (c == '.' && !dot) {
+				dot = true;
+			} else {
+				break;
+			}
+		}
+		if (i < end && (buf[i] == 'e' || buf[i] == 'E') && nrDigits > 0) {
+			i++;
+			final boolean negativeExp = i < end && buf[i] == '-';
+			if (i < end && (negativeExp || buf[i] == '+'))
+				i++;
+			int exp = 0;
+			int expDigits = 0;
+			for (; i < end && buf[i] >= '0' && buf[i] <= '9'; i++) {
+				if (exp < 1000)
+					exp = 10 * exp + (buf[i] - '0');
+				expDigits++;
+			}
+			if (expDigits == 0)
+				fastPath = false;
+			exponent += negativeExp ? -exp : exp;
+		}
+		if (fastPath && i == end && nrDigits > 0 && mantissa < (1L << 24) && Math.abs(exponent) < POWERS_OF_TEN.length) {
+			final float value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+			parsedFloat = negative ? -value : value;
+			return true;
+		}
+		try {
+			parsedFloat = Float.parseFloat(new String(buf, start, end - start));
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
 	@Override
 	boolean parseBuffer(char[] buffer, int start, int end) throws IOException {
 		throw new UnsupportedOperationException();
 	}
-	
+
 }
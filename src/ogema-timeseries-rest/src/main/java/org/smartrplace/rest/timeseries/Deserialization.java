@@ -32,6 +32,7 @@
 package org.smartrplace.rest.timeseries;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
 import java.util.Collections;
 import java.util.Map;
@@ -59,16 +60,39 @@ class Deserialization {
        </entry>
 	 */
 	static boolean deserializeValues(final Reader reader, final ReadOnlyTimeSeries timeSeries, final FendodbSerializationFormat format, 
-			final HttpServletResponse resp) throws IOException {
+			final int batchSize, final HttpServletResponse resp) throws IOException {
 		final Deserializer deserializer = format == FendodbSerializationFormat.XML ? new XmlDeserializer(reader, timeSeries, resp) :
 				format == FendodbSerializationFormat.JSON ? new JsonDeserializer(reader, timeSeries, resp) :
-				new CsvDeserializer(reader, timeSeries, resp);
+				new CsvDeserializer(reader, timeSeries, resp, batchSize);
+		return deserializeValues(deserializer, resp);
+	}
+	
+	static boolean deserializeBinaryValues(final InputStream in, final ReadOnlyTimeSeries timeSeries, final int batchSize,
+			final HttpServletResponse resp) throws IOException {
+		final BinaryDeserializer deserializer = new BinaryDeserializer(in, timeSeries, resp, batchSize);
+		final long start = System.nanoTime();
 		final boolean result = deserializer.deserializeValues();
 		if (result)
-			resp.setStatus(HttpServletResponse.SC_OK);
+			reportResult(deserializer.nrValues, start, resp);
+		return result;
+	}
+	
+	private static boolean deserializeValues(final Deserializer deserializer, final HttpServletResponse resp) throws IOException {
+		final long start = System.nanoTime();
+		final boolean result = deserializer.deserializeValues();
+		if (result)
+			reportResult(deserializer.nrValues, start, resp);
 		return result;
 	}
 	
+	// reports the number of values written, and the ingest rate in values per second
+	private static void reportResult(final int nrValues, final long startNanos, final HttpServletResponse resp) {
+		final long durationNanos = Math.max(System.nanoTime() - startNanos, 1);
+		resp.setHeader("nrdatapoints", nrValues + "");
+		resp.setHeader("parserate", (long) (nrValues * 1E9 / durationNanos) + "");
+		resp.setStatus(HttpServletResponse.SC_OK);
+	}
+	
 	static boolean deserializeValue(final Reader reader, final ReadOnlyTimeSeries timeSeries, final FendodbSerializationFormat format, 
 			final FrameworkClock clock, final HttpServletResponse resp) throws IOException {
 		final char[] arr = new char[256];
@@ -60,6 +60,8 @@ abstract class Deserializer {
 	final char[] arr = new char[1024];
 	final List<SampledValue> values = new ArrayList<>();
 	Long latest;
+	// number of values written to the time series
+	int nrValues;
 	
 	Deserializer(Reader reader, ReadOnlyTimeSeries timeSeries, HttpServletResponse resp) {
 		this.reader = reader;
@@ -100,6 +102,7 @@ abstract class Deserializer {
 				} else if (timeSeries instanceof TimeSeries) {
 					((TimeSeries) timeSeries).addValues(values);
 				}
+				nrValues += values.size();
 				values.clear();
 				latest = last.getTimestamp();
 			}
@@ -0,0 +1,333 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * Copyright 2018 Smartrplace UG
+ *
+ * FendoDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FendoDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smartrplace.rest.timeseries;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.ogema.core.channelmanager.measurements.FloatValue;
+import org.ogema.core.channelmanager.measurements.Quality;
+import org.ogema.core.channelmanager.measurements.SampledValue;
+import org.ogema.core.timeseries.ReadOnlyTimeSeries;
+
+/**
+ * Reduces the number of points returned for a time series interval, iterating over
+ * the time series only once. Buckets are defined by time, not by number of points, so
+ * the total number of points need not be known in advance. Points of bad quality are ignored.
+ */
+class Downsampling {
+
+	enum Mode {
+
+		/**
+		 * Largest triangle three buckets; selects one representative original point per bucket
+		 */
+		LTTB,
+		/**
+		 * Minimum and maximum point per bucket
+		 */
+		MINMAX,
+		/**
+		 * Average value per bucket, with the bucket start time as timestamp
+		 */
+		AVERAGE
+
+	}
+
+	private Downsampling() {}
+
+	/**
+	 * @param mode
+	 * @return
+	 * 		null if mode is not a valid downsampling mode
+	 */
+	static Mode parseMode(final String mode) {
+		try {
+			return Mode.valueOf(mode.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param ts
+	 * @param start
+	 * @param end
+	 * @param maxValues
+	 * 		must be positive
+	 * @param mode
+	 * @return
+	 * 		at most maxValues points, sorted by time
+	 */
+	static List<SampledValue> downsample(final ReadOnlyTimeSeries ts, final long start, final long end,
+			final int maxValues, final Mode mode) {
+		final SampledValue first = ts.getNextValue(start);
+		final SampledValue last = ts.getPreviousValue(end);
+		if (first == null || last == null || first.getTimestamp() > last.getTimestamp())
+			return Collections.emptyList();
+		final long t0 = first.getTimestamp();
+		final long t1 = last.getTimestamp();
+		final Iterator<SampledValue> it = ts.iterator(t0, t1);
+		switch (mode) {
+		case MINMAX:
+			return minMax(it, t0, t1, Math.max(maxValues / 2, 1));
+		case AVERAGE:
+			return average(it, t0, t1, maxValues);
+		default:
+			return lttb(it, t0, t1, maxValues);
+		}
+	}
+
+	private static long bucketWidth(final long t0, final long t1, final int nrBuckets) {
+		return Math.max((t1 - t0) / nrBuckets + 1, 1);
+	}
+
+	private static boolean isValid(final SampledValue sv) {
+		return sv.getQuality() == Quality.GOOD && !Float.isNaN(sv.getValue().getFloatValue());
+	}
+
+	private static SampledValue point(final long t, final float v) {
+		return new SampledValue(new FloatValue(v), t, Quality.GOOD);
+	}
+
+	private static List<SampledValue> average(final Iterator<SampledValue> it, final long t0, final long t1, final int nrBuckets) {
+		final List<SampledValue> result = new ArrayList<>(Math.min(nrBuckets, 1024));
+		final long width = bucketWidth(t0, t1, nrBuckets);
+		long currentBucket = -1;
+		double sum = 0;
+		int cnt = 0;
+		while (it.hasNext()) {
+			final SampledValue sv = it.next();
+			if (!isValid(sv))
+				continue;
+			final long bucket = (sv.getTimestamp() - t0) / width;
+			if (bucket != currentBucket) {
+				if (cnt > 0)
+					result.add(point(t0 + currentBucket * width, (float) (sum / cnt)));
+				currentBucket = bucket;
+				sum = 0;
+				cnt = 0;
+			}
+			sum += sv.getValue().getFloatValue();
+			cnt++;
+		}
+		if (cnt > 0)
+			result.add(point(t0 + currentBucket * width, (float) (sum / cnt)));
+		return result;
+	}
+
+	private static List<SampledValue> minMax(final Iterator<SampledValue> it, final long t0, final long t1, final int nrBuckets) {
+		final List<SampledValue> result = new ArrayList<>(Math.min(2 * nrBuckets, 1024));
+		final long width = bucketWidth(t0, t1, nrBuckets);
+		long currentBucket = -1;
+		SampledValue min = null;
+		SampledValue max = null;
+		while (it.hasNext()) {
+			final SampledValue sv = it.next();
+			if (!isValid(sv))
+				continue;
+			final long bucket = (sv.getTimestamp() - t0) / width;
+			if (bucket != currentBucket) {
+				addMinMax(min, max, result);
+				currentBucket = bucket;
+				min = sv;
+				max = sv;
+				continue;
+			}
+			final float value = sv.getValue().getFloatValue();
+			if (value < min.getValue().getFloatValue())
+				min = sv;
+			else if (value > max.getValue().getFloatValue())
+				max = sv;
+		}
+		addMinMax(min, max, result);
+		return result;
+	}
+
+	private static void addMinMax(final SampledValue min, final SampledValue max, final List<SampledValue> result) {
+		if (min == null)
+			return;
+		if (min == max) {
+			result.add(min);
+		} else if (min.getTimestamp() < max.getTimestamp()) {
+			result.add(min);
+			result.add(max);
+		} else {
+			result.add(max);
+			result.add(min);
+		}
+	}
+
+	/*
+	 * The first and last point are always retained, the remaining maxValues-2 points are selected
+	 * from the time buckets in between. A bucket is kept pending until the average of the subsequent
+	 * non-empty bucket is known, hence at most two buckets are buffered at any time.
+	 */
+	private static List<SampledValue> lttb(final Iterator<SampledValue> it, final long t0, final long t1, final int maxValues) {
+		final List<SampledValue> result = new ArrayList<>(Math.min(maxValues, 1024));
+		SampledValue first = null;
+		while (it.hasNext()) {
+			final SampledValue sv = it.next();
+			if (isValid(sv)) {
+				first = sv;
+				break;
+			}
+		}
+		if (first == null)
+			return result;
+		result.add(first);
+		if (maxValues < 3) {
+			SampledValue last = null;
+			while (it.hasNext()) {
+				final SampledValue sv = it.next();
+				if (isValid(sv))
+					last = sv;
+			}
+			if (last != null && maxValues > 1)
+				result.add(last);
+			return result;
+		}
+		final long start = first.getTimestamp() + 1;
+		final long width = bucketWidth(start, t1, maxValues - 2);
+		Bucket pending = new Bucket();
+		Bucket current = new Bucket();
+		long currentBucket = -1;
+		long selectedT = first.getTimestamp();
+		float selectedV = first.getValue().getFloatValue();
+		SampledValue last = null;
+		while (it.hasNext()) {
+			final SampledValue sv = it.next();
+			if (!isValid(sv))
+				continue;
+			// the latest point is only added to a bucket once we know it is not the last one
+			if (last != null) {
+				final long bucket = (last.getTimestamp() - start) / width;
+				if (bucket != currentBucket) {
+					if (!pending.isEmpty()) {
+						final int idx = pending.selectLargestTriangle(selectedT, selectedV, current.avgTime(), current.avgValue());
+						selectedT = pending.t[idx];
+						selectedV = pending.v[idx];
+						result.add(point(selectedT, selectedV));
+					}
+					final Bucket tmp = pending;
+					pending = current;
+					current = tmp;
+					current.clear();
+					currentBucket = bucket;
+				}
+				current.add(last.getTimestamp(), last.getValue().getFloatValue());
+			}
+			last = sv;
+		}
+		if (!pending.isEmpty()) {
+			final int idx = pending.selectLargestTriangle(selectedT, selectedV, current.avgTime(), current.avgValue());
+			selectedT = pending.t[idx];
+			selectedV = pending.v[idx];
+			result.add(point(selectedT, selectedV));
+		}
+		if (last != null) {
+			if (!current.isEmpty()) {
+				final int idx = current.selectLargestTriangle(selectedT, selectedV, last.getTimestamp(), last.getValue().getFloatValue());
+				result.add(point(current.t[idx], current.v[idx]));
+			}
+			result.add(last);
+		}
+		return result;
+	}
+
+	// growable primitive buffer for the points of one bucket; reused across buckets
+	private static final class Bucket {
+
+		long[] t = new long[64];
+		float[] v = new float[64];
+		int size;
+
+		void add(final long time, final float value) {
+			if (size == t.length) {
+				final int newLength = 2 * size;
+				final long[] tNew = new long[newLength];
+				final float[] vNew = new float[newLength];
+				System.arraycopy(t, 0, tNew, 0, size);
+				System.arraycopy(v, 0, vNew, 0, size);
+				t = tNew;
+				v = vNew;
+			}
+			t[size] = time;
+			v[size] = value;
+			size++;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+		double avgTime() {
+			double sum = 0;
+			for (int i = 0; i < size; i++)
+				sum += t[i];
+			return sum / size;
+		}
+
+		double avgValue() {
+			double sum = 0;
+			for (int i = 0; i < size; i++)
+				sum += v[i];
+			return sum / size;
+		}
+
+		/**
+		 * Index of the point forming the largest triangle with the previously selected
+		 * point a and the average c of the subsequent bucket.
+		 */
+		int selectLargestTriangle(final long aT, final float aV, final double cT, final double cV) {
+			int idx = 0;
+			double maxArea = -1;
+			for (int i = 0; i < size; i++) {
+				// twice the area; the factor does not matter for the comparison
+				final double area = Math.abs((aT - cT) * (v[i] - aV) - (aT - t[i]) * (cV - aV));
+				if (area > maxArea) {
+					maxArea = area;
+					idx = i;
+				}
+			}
+			return idx;
+		}
+
+	}
+
+}
@@ -0,0 +1,373 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * Copyright 2018 Smartrplace UG
+ *
+ * FendoDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FendoDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smartrplace.rest.timeseries;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.ogema.core.channelmanager.measurements.SampledValue;
+import org.ogema.core.timeseries.ReadOnlyTimeSeries;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pushes new values of a set of time series to long-lived client connections, either as
+ * Server-Sent Events (media type text/event-stream) or as newline-delimited JSON (application/x-ndjson).
+ * All subscriptions are served by a single thread, which checks the subscribed time series
+ * for new values periodically, and immediately after values have been posted to the servlet.
+ * Output is written in non-blocking mode: new values are appended to a per-subscription buffer,
+ * which is written to the client only as far as the connection accepts data without blocking,
+ * and drained further by the container once the client reads again. A subscription whose 
+ * client does not keep up, so that its buffer exceeds {@link #MAX_BUFFERED_BYTES}, is dropped.
+ * Each value is sent as a JSON object with fields id, time, value and quality; values that are not
+ * finite numbers are sent as null. If no values are available for a while, a heartbeat is sent, 
+ * a comment line for SSE, and an object with the single field heartbeat (the current time) for NDJSON.
+ */
+class LiveTail {
+
+	static final String SSE_MIME_TYPE = "text/event-stream";
+	static final String NDJSON_MIME_TYPE = "application/x-ndjson";
+	private static final Logger logger = LoggerFactory.getLogger(LiveTail.class);
+	private static final long HEARTBEAT_INTERVAL = 30000;
+	// max number of values sent per time series and check
+	private static final int MAX_VALUES_PER_CHECK = 1000;
+	// max number of bytes buffered per subscription, before the client is considered too slow
+	static final int MAX_BUFFERED_BYTES = 1024 * 1024;
+	private final ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "timeseries-rest-tail"));
+	private final ConcurrentLinkedQueue<Subscription> subscriptions = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean checkPending = new AtomicBoolean(false);
+	private final int maxSubscriptions;
+
+	/**
+	 * @param pollInterval
+	 * 		interval in ms in which the time series are checked for new values
+	 * @param maxSubscriptions
+	 */
+	LiveTail(long pollInterval, int maxSubscriptions) {
+		this.maxSubscriptions = maxSubscriptions;
+		exec.scheduleWithFixedDelay(this::check, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+	}
+
+	void close() {
+		exec.shutdownNow();
+		for (Subscription sub : subscriptions) {
+			sub.close();
+		}
+		subscriptions.clear();
+	}
+
+	/**
+	 * Start streaming values of the passed time series to the client. Puts the request into
+	 * asynchronous mode.
+	 * @param timeSeries
+	 * 		time series -&gt; id
+	 * @param start
+	 * 		if not null, values from this time on are sent initially, otherwise only values newer than the currently
+	 * 		last value
+	 * @param req
+	 * @param resp
+	 * @param onClose
+	 * 		invoked once the subscription has ended, i.e. when the asynchronous request completes, times out or fails;
+	 * 		may be used to release resources the time series depend on. Only invoked if this method returns true.
+	 * @return
+	 * 		true if the subscription has been started, false if the request has been rejected
+	 * @throws IOException
+	 */
+	boolean subscribe(final Map<ReadOnlyTimeSeries, String> timeSeries, final Long start, final HttpServletRequest req,
+			final HttpServletResponse resp, final Runnable onClose) throws IOException {
+		if (subscriptions.size() >= maxSubscriptions) {
+			resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many live subscriptions");
+			return false;
+		}
+		final String accept = req.getHeader("Accept");
+		final boolean sse = accept != null && accept.toLowerCase().contains(SSE_MIME_TYPE);
+		final List<TailedSeries> series = new ArrayList<>(timeSeries.size());
+		for (Map.Entry<ReadOnlyTimeSeries, String> entry : timeSeries.entrySet()) {
+			final long last;
+			if (start != null) {
+				last = start == Long.MIN_VALUE ? start : start - 1;
+			} else {
+				final SampledValue latest = entry.getKey().getPreviousValue(Long.MAX_VALUE);
+				last = latest != null ? latest.getTimestamp() : Long.MIN_VALUE;
+			}
+			series.add(new TailedSeries(entry.getKey(), entry.getValue(), last));
+		}
+		resp.setContentType(sse ? SSE_MIME_TYPE : NDJSON_MIME_TYPE);
+		resp.setCharacterEncoding("UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.flushBuffer();
+		final AsyncContext ctx = req.startAsync();
+		ctx.setTimeout(0);
+		final ServletOutputStream out = resp.getOutputStream();
+		final Subscription sub = new Subscription(ctx, out, series, sse, onClose);
+		ctx.addListener(sub);
+		subscriptions.add(sub);
+		out.setWriteListener(sub);
+		triggerCheck();
+		return true;
+	}
+
+	/**
+	 * Check for new values immediately, e.g. because values have been written to a time series.
+	 */
+	void triggerCheck() {
+		if (!checkPending.compareAndSet(false, true))
+			return;
+		try {
+			exec.execute(this::check);
+		} catch (RejectedExecutionException e) {
+			checkPending.set(false);
+		}
+	}
+
+	int size() {
+		return subscriptions.size();
+	}
+
+	private void check() {
+		checkPending.set(false);
+		final long now = System.currentTimeMillis();
+		final Iterator<Subscription> it = subscriptions.iterator();
+		while (it.hasNext()) {
+			final Subscription sub = it.next();
+			boolean ok;
+			try {
+				ok = !sub.closed && sub.sendNewValues(now);
+			} catch (RuntimeException e) {
+				logger.warn("Failed to send live values", e);
+				ok = false;
+			}
+			if (!ok) {
+				it.remove();
+				sub.close();
+			}
+		}
+	}
+
+	private static final class TailedSeries {
+
+		final ReadOnlyTimeSeries timeSeries;
+		final String id;
+		long last;
+
+		TailedSeries(ReadOnlyTimeSeries timeSeries, String id, long last) {
+			this.timeSeries = timeSeries;
+			this.id = id;
+			this.last = last;
+		}
+
+	}
+
+	private static final class Subscription implements AsyncListener, WriteListener {
+
+		private final AsyncContext ctx;
+		private final ServletOutputStream out;
+		private final List<TailedSeries> series;
+		private final boolean sse;
+		private final Runnable onClose;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+		private final StringBuilder sb = new StringBuilder();
+		// the following three fields are synchronized on this
+		private final Queue<byte[]> buffer = new ArrayDeque<>();
+		private int bufferedBytes = 0;
+		private boolean flushPending;
+		private long lastWrite = 0;
+		volatile boolean closed;
+
+		Subscription(AsyncContext ctx, ServletOutputStream out, List<TailedSeries> series, boolean sse, Runnable onClose) {
+			this.ctx = ctx;
+			this.out = out;
+			this.series = series;
+			this.sse = sse;
+			this.onClose = onClose;
+		}
+
+		/**
+		 * Appends new values to the buffer and writes as much of it as possible without blocking.
+		 * @param now
+		 * @return
+		 * 		false if the client connection is broken, or the client does not keep up
+		 */
+		boolean sendNewValues(final long now) {
+			sb.setLength(0);
+			for (TailedSeries ts : series) {
+				if (ts.last == Long.MAX_VALUE)
+					continue;
+				final Iterator<SampledValue> values = ts.timeSeries.iterator(ts.last + 1, Long.MAX_VALUE);
+				int cnt = 0;
+				while (values.hasNext() && cnt++ < MAX_VALUES_PER_CHECK) {
+					final SampledValue sv = values.next();
+					writeValue(ts.id, sv);
+					ts.last = sv.getTimestamp();
+				}
+			}
+			if (sb.length() == 0 && now - lastWrite >= HEARTBEAT_INTERVAL) {
+				// lets us detect broken connections
+				if (sse)
+					sb.append(":\n\n");
+				else
+					sb.append("{\"heartbeat\":").append(now).append('}').append('\n');
+			}
+			if (sb.length() == 0)
+				return true;
+			lastWrite = now;
+			final byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+			synchronized (this) {
+				if (bufferedBytes + bytes.length > MAX_BUFFERED_BYTES) {
+					logger.debug("Dropping live subscription, client does not read fast enough");
+					return false;
+				}
+				buffer.add(bytes);
+				bufferedBytes += bytes.length;
+				return write();
+			}
+		}
+
+		/**
+		 * Writes buffered data while the connection is ready; if it is not, the container 
+		 * calls {@link #onWritePossible()} once it is.
+		 * @return
+		 * 		false if writing failed
+		 */
+		private synchronized boolean write() {
+			try {
+				while (out.isReady()) {
+					final byte[] next = buffer.poll();
+					if (next == null) {
+						if (!flushPending)
+							break;
+						flushPending = false;
+						out.flush();
+						continue;
+					}
+					bufferedBytes -= next.length;
+					out.write(next);
+					flushPending = true;
+				}
+				return true;
+			} catch (IOException | IllegalStateException e) {
+				return false;
+			}
+		}
+
+		@Override
+		public void onWritePossible() throws IOException {
+			if (!closed && !write())
+				close();
+		}
+
+		private void writeValue(final String id, final SampledValue sv) {
+			if (sse)
+				sb.append("data: ");
+			final Object value = Utils.getValue(sv.getValue());
+			sb.append("{\"id\":\"").append(Utils.escapeJson(id))
+				.append("\",\"time\":").append(sv.getTimestamp())
+				.append(",\"value\":").append(isFinite(value) ? value : "null")
+				.append(",\"quality\":\"").append(sv.getQuality()).append('\"').append('}')
+				.append('\n');
+			if (sse)
+				sb.append('\n');
+		}
+
+		private static boolean isFinite(final Object value) {
+			return !(value instanceof Double) || (!((Double) value).isNaN() && !((Double) value).isInfinite());
+		}
+
+		void close() {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				ctx.complete();
+			} catch (IllegalStateException ignore) { // already completed
+			}
+			release();
+		}
+
+		private void release() {
+			if (!released.compareAndSet(false, true))
+				return;
+			try {
+				onClose.run();
+			} catch (RuntimeException e) {
+				logger.warn("Failed to release live subscription resources", e);
+			}
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) throws IOException {
+			closed = true;
+			release();
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) throws IOException {
+			close();
+		}
+
+		@Override
+		public void onError(AsyncEvent event) throws IOException {
+			close();
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			close();
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) throws IOException {}
+
+	}
+
+}
@@ -0,0 +1,207 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * Copyright 2018 Smartrplace UG
+ *
+ * FendoDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FendoDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smartrplace.rest.timeseries;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.ogema.core.channelmanager.measurements.SampledValue;
+import org.ogema.core.timeseries.ReadOnlyTimeSeries;
+import org.smartrplace.logging.fendodb.tools.config.FendodbSerializationFormat;
+
+/**
+ * Serializes the data of multiple time series into a single response. The time series are
+ * read and formatted in parallel, but written in the order of the passed map, one block
+ * per time series. At most maxInFlight blocks are read ahead of the writer, so the memory
+ * required is bounded by maxInFlight * maxValues data points, independently of the number
+ * of time series.
+ */
+class MultiSeriesSerialization {
+
+	// CSV blocks are line based, independently of the requested formatting
+	private static final char[] NEW_LINE = new char[] {'\n'};
+
+	private MultiSeriesSerialization() {}
+
+	/**
+	 * @param timeSeries
+	 * 		time series -&gt; id
+	 * @param writer
+	 * @param exec
+	 * 		the executor used to read the time series
+	 * @param maxInFlight
+	 * 		maximum number of time series read ahead of the writer
+	 * @param start
+	 * @param end
+	 * @param maxValues
+	 * 		maximum number of points per time series
+	 * @param downsampling
+	 * 		may be null, in which case the first maxValues points are returned
+	 * @param format
+	 * @param formatter
+	 * 		may be null
+	 * @param indentation
+	 * @param lineBreak
+	 * @return
+	 * 		total number of data points written
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	static int serialize(final Map<ReadOnlyTimeSeries, String> timeSeries, final Writer writer, final ExecutorService exec,
+			final int maxInFlight, final long start, final long end, final int maxValues, final Downsampling.Mode downsampling,
+			final FendodbSerializationFormat format, final DateTimeFormatter formatter,
+			final char[] indentation, final char[] lineBreak) throws IOException, InterruptedException, ExecutionException {
+		if (maxInFlight <= 0)
+			throw new IllegalArgumentException("maxInFlight must be positive, got " + maxInFlight);
+		final Iterator<Map.Entry<ReadOnlyTimeSeries, String>> entries = timeSeries.entrySet().iterator();
+		final Queue<Future<Block>> blocks = new ArrayDeque<>(maxInFlight);
+		switch (format) {
+		case XML:
+			writer.write("<entries>");
+			writer.write(lineBreak);
+			break;
+		case JSON:
+			writer.write("{\"entries\":[");
+			writer.write(lineBreak);
+			break;
+		default:
+		}
+		int cnt = 0;
+		boolean first = true;
+		try {
+			while (true) {
+				while (blocks.size() < maxInFlight && entries.hasNext()) {
+					final Map.Entry<ReadOnlyTimeSeries, String> entry = entries.next();
+					blocks.add(exec.submit(() -> serialize(entry.getKey(), entry.getValue(), start, end, maxValues, downsampling,
+							format, formatter, indentation, lineBreak)));
+				}
+				final Future<Block> future = blocks.poll();
+				if (future == null)
+					break;
+				final Block block = future.get();
+				if (!first) {
+					if (format == FendodbSerializationFormat.JSON)
+						writer.write(',');
+					writer.write(format == FendodbSerializationFormat.CSV ? NEW_LINE : lineBreak);
+				} else {
+					first = false;
+				}
+				writer.write(block.content);
+				cnt += block.nrValues;
+			}
+		} finally {
+			blocks.forEach(future -> future.cancel(true));
+		}
+		switch (format) {
+		case XML:
+			writer.write(lineBreak);
+			writer.write("</entries>");
+			break;
+		case JSON:
+			writer.write(lineBreak);
+			writer.write(']');
+			writer.write('}');
+			break;
+		default:
+		}
+		return cnt;
+	}
+
+	private static Block serialize(final ReadOnlyTimeSeries timeSeries, final String id,
+			final long start, final long end, final int maxValues, final Downsampling.Mode downsampling,
+			final FendodbSerializationFormat format, final DateTimeFormatter formatter,
+			final char[] indentation, final char[] lineBreak) {
+		final Iterator<SampledValue> it = downsampling != null ?
+				Downsampling.downsample(timeSeries, start, end, maxValues, downsampling).iterator() :
+				timeSeries.iterator(start, end);
+		final StringBuilder sb = new StringBuilder();
+		switch (format) {
+		case XML:
+			sb.append("<timeSeries>").append(lineBreak).append(indentation)
+				.append("<id>").append(Utils.escapeXml(id)).append("</id>").append(lineBreak).append(indentation)
+				.append("<values>");
+			break;
+		case JSON:
+			sb.append('{').append(lineBreak).append(indentation)
+				.append("\"id\":\"").append(Utils.escapeJson(id)).append('\"').append(',').append(lineBreak).append(indentation)
+				.append("\"values\":[");
+			break;
+		default:
+			sb.append("id:").append(Utils.escapeCsv(id));
+		}
+		int cnt = 0;
+		while (it.hasNext() && cnt < maxValues) {
+			final SampledValue sv = it.next();
+			if (format == FendodbSerializationFormat.CSV) {
+				// same line format as accepted by the CSV deserializer
+				sb.append('\n').append(Utils.formatTime(sv.getTimestamp(), formatter)).append(';')
+					.append(Utils.getValue(sv.getValue())).append(';').append(sv.getQuality());
+			} else {
+				if (cnt > 0 && format == FendodbSerializationFormat.JSON)
+					sb.append(',');
+				sb.append(lineBreak).append(Utils.serializeValue(sv, format, formatter, lineBreak, indentation));
+			}
+			cnt++;
+		}
+		switch (format) {
+		case XML:
+			sb.append(lineBreak).append(indentation).append("</values>").append(lineBreak).append("</timeSeries>");
+			break;
+		case JSON:
+			sb.append(lineBreak).append(indentation).append(']').append(lineBreak).append('}');
+			break;
+		default:
+		}
+		return new Block(sb.toString(), cnt);
+	}
+	private static final class Block {
+
+		final String content;
+		final int nrValues;
+
+		Block(String content, int nrValues) {
+			this.content = content;
+			this.nrValues = nrValues;
+		}
+
+	}
+
+}
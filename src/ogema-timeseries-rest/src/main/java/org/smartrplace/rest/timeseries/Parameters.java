@@ -48,9 +48,11 @@ class Parameters {
     final static String PARAM_END = "end"; // date(-time) or long
     final static String PARAM_INTERVAL = "interval"; // long; interval in ms
     final static String PARAM_MAX = "max"; // integer; max nr 
+    final static String PARAM_DOWNSAMPLE = "downsample"; // lttb, minmax or average; reduces the data to at most PARAM_MAX points
     final static String PARAM_INDENT = "indent"; // integer; set to negative value to disable pretty-printing
     final static String PARAM_DT_FORMATTER = "datetimeformat"; // format pattern
     final static String PARAM_UPDATE_MODE = "updatemode"; // see StorageType constants
+    final static String PARAM_BATCH_SIZE = "batchsize"; // integer; nr of values written at once when posting csv or binary values
     // for searching
     final static String PARAM_PROPERTIES = "properties"; // multiple values allowed; each value must be of the form "key=value"
     final static String PARAM_TAGS = "tags"; // multiple values allowed
@@ -61,6 +63,7 @@ class Parameters {
     final static String TARGET_TIMESERIES = "timeseries";
     final static String TARGET_DB = "database";
     final static String TARGET_DATA = "data";
+    final static String TARGET_MULTI_DATA = "multidata"; // data of all selected time series
     final static String TARGET_VALUE = "value";
     final static String TARGET_VALUES = "values";
     final static String TARGET_PROPERTIES = PARAM_PROPERTIES;
@@ -71,5 +74,7 @@ class Parameters {
     final static String TARGET_SIZE = "size";
     final static String TARGET_NEXT = "nextvalue";
     final static String TARGET_PREVIOUS = "previousvalue";
+    final static String TARGET_CACHE_STATS = "cachestats"; // hits and misses of the find/stats query cache
+    final static String TARGET_TAIL = "tail"; // stream new values as server-sent events or newline-delimited json
 
 }
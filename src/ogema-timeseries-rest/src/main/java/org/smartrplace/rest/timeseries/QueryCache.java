@@ -0,0 +1,183 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * Copyright 2018 Smartrplace UG
+ *
+ * FendoDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FendoDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smartrplace.rest.timeseries;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded cache for results of find and statistics queries. Entries expire after a fixed
+ * time to live, and are removed early when one of the time series they are based on is written to.
+ */
+class QueryCache {
+
+	private final long ttl;
+	private final int maxEntries;
+	// access order -> least recently used entry first
+	private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	// guarded by entries
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+
+	/**
+	 * @param ttl
+	 * 		time to live in ms; a non-positive value disables the cache
+	 * @param maxEntries
+	 * 		a non-positive value disables the cache
+	 */
+	QueryCache(long ttl, int maxEntries) {
+		this.ttl = ttl;
+		this.maxEntries = maxEntries;
+	}
+
+	boolean isEnabled() {
+		return ttl > 0 && maxEntries > 0;
+	}
+
+	/**
+	 * @param key
+	 * @return
+	 * 		the cached result, or null
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T get(final String key) {
+		if (!isEnabled())
+			return null;
+		final long now = System.currentTimeMillis();
+		synchronized (entries) {
+			final CacheEntry entry = entries.get(key);
+			if (entry == null || entry.expiry < now) {
+				if (entry != null)
+					entries.remove(key);
+				misses++;
+				return null;
+			}
+			hits++;
+			return (T) entry.value;
+		}
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * 		must not be modified after being passed to the cache
+	 * @param providerId
+	 * @param timeSeriesIds
+	 * 		ids of the time series the result depends on
+	 */
+	void put(final String key, final Object value, final String providerId, final Collection<String> timeSeriesIds) {
+		if (!isEnabled())
+			return;
+		final CacheEntry entry = new CacheEntry(value, providerId, new HashSet<>(timeSeriesIds), System.currentTimeMillis() + ttl);
+		synchronized (entries) {
+			entries.put(key, entry);
+			if (entries.size() > maxEntries) {
+				final Iterator<CacheEntry> it = entries.values().iterator();
+				it.next();
+				it.remove();
+				evictions++;
+			}
+		}
+	}
+
+	/**
+	 * Remove all entries that depend on the specified time series.
+	 * @param providerId
+	 * @param timeSeriesId
+	 */
+	void invalidate(final String providerId, final String timeSeriesId) {
+		synchronized (entries) {
+			final Iterator<CacheEntry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				final CacheEntry entry = it.next();
+				if (entry.providerId.equals(providerId) && entry.timeSeriesIds.contains(timeSeriesId)) {
+					it.remove();
+					invalidations++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove all entries for the specified provider.
+	 * @param providerId
+	 */
+	void invalidate(final String providerId) {
+		synchronized (entries) {
+			final Iterator<CacheEntry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().providerId.equals(providerId)) {
+					it.remove();
+					invalidations++;
+				}
+			}
+		}
+	}
+
+	Map<String, Long> getStatistics() {
+		final Map<String, Long> stats = new LinkedHashMap<>(8);
+		synchronized (entries) {
+			stats.put("hits", hits);
+			stats.put("misses", misses);
+			stats.put("size", (long) entries.size());
+			stats.put("evictions", evictions);
+			stats.put("invalidations", invalidations);
+		}
+		stats.put("maxSize", (long) maxEntries);
+		stats.put("ttl", ttl);
+		return Collections.unmodifiableMap(stats);
+	}
+
+	private static final class CacheEntry {
+
+		final Object value;
+		final String providerId;
+		final Set<String> timeSeriesIds;
+		final long expiry;
+
+		CacheEntry(Object value, String providerId, Set<String> timeSeriesIds, long expiry) {
+			this.value = value;
+			this.providerId = providerId;
+			this.timeSeriesIds = timeSeriesIds;
+			this.expiry = expiry;
+		}
+
+	}
+
+}
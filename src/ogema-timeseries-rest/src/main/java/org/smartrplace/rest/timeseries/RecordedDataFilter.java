@@ -48,6 +48,7 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
@@ -64,7 +65,11 @@ import org.smartrplace.logging.fendodb.permissions.FendoDbPermission;
 // main part of this class is copied from the OGEMA rest project (class RestAccess)
 
 @Component
-@Property(name = HttpWhiteboardConstants.HTTP_WHITEBOARD_FILTER_PATTERN, value = TimeseriesServlet.ALIAS)
+@Properties({
+	@Property(name = HttpWhiteboardConstants.HTTP_WHITEBOARD_FILTER_PATTERN, value = TimeseriesServlet.ALIAS),
+	// required for live subscriptions
+	@Property(name = HttpWhiteboardConstants.HTTP_WHITEBOARD_FILTER_ASYNC_SUPPORTED, boolValue = true)
+})
 @Service(Filter.class)
 public class RecordedDataFilter implements Filter {
 	
@@ -0,0 +1,143 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * Copyright 2018 Smartrplace UG
+ *
+ * FendoDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FendoDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smartrplace.rest.timeseries;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import de.iwes.timeseries.eval.api.DataProvider;
+import de.iwes.widgets.html.selectiontree.LinkingOption;
+import de.iwes.widgets.html.selectiontree.SelectionItem;
+
+/**
+ * Lazily populated lookup index for the selection tree of a {@link DataProvider}.
+ * For each {@link LinkingOption} the items are retrieved once per selection of dependency items,
+ * and stored in a map by lower case id. The index only holds the selection items, keyed by option id;
+ * the options themselves, and the time series, are always obtained from the provider instance 
+ * of the current request, since providers may be prototype scoped.
+ */
+class SelectionIndex {
+
+	// limit for the number of distinct dependency selections stored per option; least recently used ones are evicted
+	private static final int MAX_SELECTIONS_PER_OPTION = 1000;
+	private final long created;
+	// keys: option ids; values: synchronized on themselves
+	private final ConcurrentMap<String, Map<String, Items>> items = new ConcurrentHashMap<>();
+
+	/**
+	 * @param created
+	 * 		creation timestamp
+	 */
+	SelectionIndex(long created) {
+		this.created = created;
+	}
+
+	long getCreationTime() {
+		return created;
+	}
+
+	/**
+	 * @param option
+	 * 		an option of the provider instance held by the caller
+	 * @param dependencyItems
+	 * 		selected items for each dependency of the option, or null if the option has no dependencies
+	 * @return
+	 */
+	Items getItems(final LinkingOption option, final List<Collection<SelectionItem>> dependencyItems) {
+		final Map<String, Items> map = items.computeIfAbsent(option.id(), id -> new LinkedHashMap<String, Items>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Items> eldest) {
+				return size() > MAX_SELECTIONS_PER_OPTION;
+			}
+
+		});
+		final String key = getKey(dependencyItems);
+		synchronized (map) {
+			final Items existing = map.get(key);
+			if (existing != null)
+				return existing;
+		}
+		// retrieved outside the lock, the provider may be slow
+		final Items newItems = new Items(option.getOptions(dependencyItems));
+		synchronized (map) {
+			final Items existing = map.putIfAbsent(key, newItems);
+			return existing != null ? existing : newItems;
+		}
+	}
+
+	private static String getKey(final List<Collection<SelectionItem>> dependencyItems) {
+		if (dependencyItems == null)
+			return "";
+		final StringBuilder sb = new StringBuilder();
+		for (Collection<SelectionItem> collection : dependencyItems) {
+			for (SelectionItem item : collection) {
+				sb.append(item.id()).append(',');
+			}
+			sb.append('|');
+		}
+		return sb.toString();
+	}
+
+	static final class Items {
+
+		final List<SelectionItem> all;
+		// keys: lower case ids
+		private final Map<String, SelectionItem> byId;
+
+		Items(List<SelectionItem> all) {
+			this.all = all;
+			this.byId = new HashMap<>(Math.max(4, (int) (all.size() / 0.75f) + 1));
+			for (SelectionItem item : all) {
+				byId.putIfAbsent(item.id().toLowerCase(), item);
+			}
+		}
+
+		/**
+		 * @param id
+		 * 		case insensitive
+		 * @return
+		 */
+		SelectionItem get(final String id) {
+			return byId.get(id.toLowerCase());
+		}
+
+	}
+
+}
@@ -35,15 +35,21 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -58,13 +64,17 @@ import org.ogema.core.channelmanager.measurements.SampledValue;
 import org.ogema.core.timeseries.ReadOnlyTimeSeries;
 import org.ogema.core.timeseries.TimeSeries;
 import org.ogema.recordeddata.RecordedDataStorage;
+import org.ogema.tools.timeseries.implementations.FloatTreeTimeSeries;
 import org.osgi.service.component.ComponentServiceObjects;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicy;
 import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.osgi.service.http.whiteboard.HttpWhiteboardConstants;
+import org.osgi.service.metatype.annotations.Designate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.smartrplace.logging.fendodb.stats.StatisticsService;
@@ -81,14 +91,20 @@ import de.iwes.widgets.html.selectiontree.TerminalOption;
 @SuppressWarnings("deprecation")
 @Component(
 		service=Servlet.class,
-		property=HttpWhiteboardConstants.HTTP_WHITEBOARD_SERVLET_PATTERN + "=" + TimeseriesServlet.ALIAS
+		property= {
+				HttpWhiteboardConstants.HTTP_WHITEBOARD_SERVLET_PATTERN + "=" + TimeseriesServlet.ALIAS,
+				HttpWhiteboardConstants.HTTP_WHITEBOARD_SERVLET_ASYNC_SUPPORTED + ":Boolean=true"
+		}
 )
+@Designate(ocd=TimeseriesServletConfiguration.class)
 public class TimeseriesServlet extends HttpServlet {
 
 	private static final Logger logger = LoggerFactory.getLogger(TimeseriesServlet.class);
 	private static final String[] EMPTY_OPTS = new String[0];
     private static final long serialVersionUID = 1L;
     static final String ALIAS = "/rest/timeseries";
+    private static final int DEFAULT_BATCH_SIZE = 5000;
+    private static final int MAX_BATCH_SIZE = 100000;
 
     private final static String[] JSON_FORMATS = {
     	"application/json",
@@ -111,6 +127,8 @@ public class TimeseriesServlet extends HttpServlet {
     private volatile FrameworkClock clock;
     
     private final ConcurrentMap<String, ComponentServiceObjects<DataProvider<?>>> dataProviders = new ConcurrentHashMap<>();
+    // keys: provider ids; entries are removed when the respective provider is added or removed
+    private final ConcurrentMap<String, SelectionIndex> selectionIndices = new ConcurrentHashMap<>();
  
     @Reference(
     		service=DataProvider.class,
@@ -134,17 +152,49 @@ public class TimeseriesServlet extends HttpServlet {
     		service.ungetService(provider);
     		return;
     	}
+    	selectionIndices.remove(providerId);
     }
     
     protected void removeProvider(final ComponentServiceObjects<DataProvider<?>> service) {
     	final String providerId = getProviderId(service);
-    	if (providerId != null)
-    		dataProviders.remove(providerId, service);
+    	if (providerId != null && dataProviders.remove(providerId, service)) {
+    		selectionIndices.remove(providerId);
+    		final QueryCache cache = this.queryCache;
+    		if (cache != null)
+    			cache.invalidate(providerId);
+    	}
     }
     
     @Reference
     private ComponentServiceObjects<StatisticsService> statistics;
 
+    // reads the time series for TARGET_MULTI_DATA requests
+    private ExecutorService multiReadExec;
+    // maximum number of time series read ahead of the response writer
+    private int multiReadWindow;
+    // results of TARGET_FIND and TARGET_STATISTICS requests
+    private volatile QueryCache queryCache;
+    private volatile long selectionIndexMaxAge;
+    // TARGET_TAIL subscriptions
+    private LiveTail liveTail;
+
+    @Activate
+    protected void activate(final TimeseriesServletConfiguration config) {
+    	queryCache = new QueryCache(config.queryCacheTtl(), config.queryCacheSize());
+    	selectionIndexMaxAge = config.selectionIndexMaxAge();
+    	liveTail = new LiveTail(config.liveTailPollInterval(), config.liveTailMaxSubscriptions());
+    	final AtomicInteger cnt = new AtomicInteger(0);
+    	final int nrThreads = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    	multiReadWindow = 2 * nrThreads;
+    	multiReadExec = Executors.newFixedThreadPool(nrThreads, r -> new Thread(r, "timeseries-rest-read-" + cnt.getAndIncrement()));
+    }
+
+    @Deactivate
+    protected void deactivate() {
+    	multiReadExec.shutdownNow();
+    	liveTail.close();
+    }
+
     
     private static String getProviderId(final ComponentServiceObjects<DataProvider<?>> service) {
     	final Object prop = service.getServiceReference().getProperty("provider-id");
@@ -176,13 +226,36 @@ public class TimeseriesServlet extends HttpServlet {
     	return useService(service, consumer);
     }
     
-    // 
-    private static Map<ReadOnlyTimeSeries, String>  extractTimeSeries(final HttpServletRequest req, final HttpServletResponse resp, final DataProvider<?> provider) throws IOException {
-		final LinkingOption[] opts = provider.selectionOptions();
-		if (opts == null) {
+    /**
+     * Get the lookup index for the selection tree of the provider, creating it if necessary.
+     * @param providerId
+     * @param provider
+     * @return
+     * 		null if the provider does not provide selection options
+     */
+    private SelectionIndex getSelectionIndex(final String providerId, final DataProvider<?> provider) {
+    	final long now = System.currentTimeMillis();
+    	final SelectionIndex existing = selectionIndices.get(providerId);
+    	if (existing != null && now - existing.getCreationTime() <= selectionIndexMaxAge)
+    		return existing;
+    	if (provider.selectionOptions() == null)
+    		return null;
+    	final SelectionIndex index = new SelectionIndex(now);
+    	// the provider may have been removed concurrently
+    	if (dataProviders.containsKey(providerId))
+    		selectionIndices.put(providerId, index);
+    	return index;
+    }
+
+    private Map<ReadOnlyTimeSeries, String>  extractTimeSeries(final HttpServletRequest req, final HttpServletResponse resp, final String providerId, final DataProvider<?> provider) throws IOException {
+    	final SelectionIndex index = getSelectionIndex(providerId, provider);
+		if (index == null) {
 			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Provider does not provide selection options");
 			return null;
 		}
+		// options and terminal option are taken from the provider instance of this request, not from the index
+		final LinkingOption[] opts = provider.selectionOptions();
+		final TerminalOption<? extends ReadOnlyTimeSeries> terminal = provider.getTerminalOption();
     	final String[] options0 = req.getParameterValues(Parameters.PARAM_SELECTION_OPTION);
     	final String[] options = options0 != null ? options0  :EMPTY_OPTS;
 		final Map<LinkingOption, Collection<SelectionItem>> items = new HashMap<>(opts.length); 
@@ -193,29 +266,28 @@ public class TimeseriesServlet extends HttpServlet {
 						.map(items::get)
 						.map(collection -> collection != null ? collection : Collections.<SelectionItem> emptyList())
 						.collect(Collectors.toList());
-				final List<SelectionItem> selItems = opt.getOptions(relevantItems);
+				final SelectionIndex.Items selItems = index.getItems(opt, relevantItems);
 				final String id = opt.id();
 				List<SelectionItem> selectedItems = Arrays.stream(options)
 					.filter(o -> o.startsWith(id + ":"))
-					.map(o -> selItems.stream().filter(item -> item.id().equalsIgnoreCase(o.substring(id.length() + 1))).findAny().orElse(null))
+					.map(o -> selItems.get(o.substring(id.length() + 1)))
 					.filter(it -> it != null)
 					.collect(Collectors.toList());
 				if (selectedItems.isEmpty() && opt instanceof TerminalOption<?>) {
-					selectedItems = selItems;
+					selectedItems = selItems.all;
 				}
 				items.put(opt, selectedItems);
 				return selectedItems;
 			}).reduce((a,b) -> b).orElse(null);
 		if (lastItems == null)
 			return null;
-		final TerminalOption<? extends ReadOnlyTimeSeries> terminal = provider.getTerminalOption();
 		return lastItems.stream()
 				.collect(Collectors.toMap(terminal::getElement, SelectionItem::id));
     }
     
     // entry time series -> id
-    private Map.Entry<ReadOnlyTimeSeries, String> extractSingleTimeseries(final HttpServletRequest req, final HttpServletResponse resp, final DataProvider<?> provider) throws IOException {
-    	final Map<ReadOnlyTimeSeries, String> list = extractTimeSeries(req, resp, provider);
+    private Map.Entry<ReadOnlyTimeSeries, String> extractSingleTimeseries(final HttpServletRequest req, final HttpServletResponse resp, final String providerId, final DataProvider<?> provider) throws IOException {
+    	final Map<ReadOnlyTimeSeries, String> list = extractTimeSeries(req, resp, providerId, provider);
     	if (list == null)
     		return null;
     	if (list.isEmpty()) {
@@ -226,25 +298,22 @@ public class TimeseriesServlet extends HttpServlet {
     }
     
     private Map<ReadOnlyTimeSeries, String> getMultipleTimeseries(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
-    	final String providerId = req.getParameter(Parameters.PARAM_PROVIDER);
-    	if (providerId == null) {
+    	final String requestedId = req.getParameter(Parameters.PARAM_PROVIDER);
+    	if (requestedId == null) {
     		resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Provider id missing");
     		return null;
     	}
-    	ComponentServiceObjects<DataProvider<?>> service = dataProviders.get(providerId);
+    	final String providerId = dataProviders.containsKey(requestedId) ? requestedId : dataProviders.keySet().stream()
+    			.filter(id -> id.equalsIgnoreCase(requestedId))
+    			.findAny().orElse(null);
+    	final ComponentServiceObjects<DataProvider<?>> service = providerId != null ? dataProviders.get(providerId) : null;
     	if (service == null) {
-    		service = dataProviders.entrySet().stream()
-    				.filter(entry -> entry.getKey().equalsIgnoreCase(providerId))
-    				.map(entry -> entry.getValue())
-    				.findAny().orElse(null);
-    	}
-    	if (service == null) {
-    		resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Provider " + providerId + " not found");
+    		resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Provider " + requestedId + " not found");
     		return null;
     	}
     	final DataProvider<?> provider = service.getService();
     	try {
-    		return extractTimeSeries(req, resp, provider);
+    		return extractTimeSeries(req, resp, providerId, provider);
     	} finally {
     		service.ungetService(provider);
     	}
@@ -259,7 +328,8 @@ public class TimeseriesServlet extends HttpServlet {
     		resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Target missing");
     		return;
     	}
-    	final FendodbSerializationFormat format = getFormat(req, false);
+    	final boolean binary = isBinaryFormat(req, false);
+    	final FendodbSerializationFormat format = binary ? null : getFormat(req, false);
     	final String providerId = req.getParameter(Parameters.PARAM_PROVIDER);
     	final ComponentServiceObjects<DataProvider<?>> service = dataProviders.get(providerId);
     	if (service == null) {
@@ -269,7 +339,7 @@ public class TimeseriesServlet extends HttpServlet {
     	final Map.Entry<ReadOnlyTimeSeries,String> entry;
     	final DataProvider<?> provider = service.getService();
     	try {
-	    	entry = extractSingleTimeseries(req, resp, provider);
+	    	entry = extractSingleTimeseries(req, resp, providerId, provider);
     	} finally {
     		service.ungetService(provider);
     	}
@@ -286,10 +356,36 @@ public class TimeseriesServlet extends HttpServlet {
 		case Parameters.TARGET_VALUE:
 			// {"value":12.3,"time":34}
 			// <entry><value>32.3</value><time>34</time></entry>
-			Deserialization.deserializeValue(req.getReader(), timeSeries, format, clock, resp);
+			if (binary) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Binary format only supported for target " + Parameters.TARGET_VALUES);
+				return;
+			}
+			if (Deserialization.deserializeValue(req.getReader(), timeSeries, format, clock, resp)) {
+				queryCache.invalidate(providerId, entry.getValue());
+				liveTail.triggerCheck();
+			}
 			break;
 		case Parameters.TARGET_VALUES:
-			Deserialization.deserializeValues(req.getReader(), timeSeries, format, resp);
+			final String batchSizeStr = req.getParameter(Parameters.PARAM_BATCH_SIZE);
+			final int batchSize;
+			try {
+				batchSize = batchSizeStr == null ? DEFAULT_BATCH_SIZE : Integer.parseInt(batchSizeStr);
+				if (batchSize <= 0 || batchSize > MAX_BATCH_SIZE)
+					throw new NumberFormatException();
+			} catch (NumberFormatException e) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid batch size " + batchSizeStr + ", must be between 1 and " + MAX_BATCH_SIZE);
+				return;
+			}
+			try {
+				if (binary)
+					Deserialization.deserializeBinaryValues(req.getInputStream(), timeSeries, batchSize, resp);
+				else
+					Deserialization.deserializeValues(req.getReader(), timeSeries, format, batchSize, resp);
+			} finally {
+				// values may have been written even if the request failed
+				queryCache.invalidate(providerId, entry.getValue());
+				liveTail.triggerCheck();
+			}
 			break;
         default:
         	resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown target " + target);
@@ -509,9 +605,17 @@ public class TimeseriesServlet extends HttpServlet {
     protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
     	final String providerId = req.getParameter(Parameters.PARAM_PROVIDER);
     	resp.setCharacterEncoding("UTF-8");
-    	final FendodbSerializationFormat format = getFormat(req, true);
+    	final boolean binary = isBinaryFormat(req, true);
+    	// only time series data is available in binary format, everything else falls back to CSV
+    	final FendodbSerializationFormat format = binary ? FendodbSerializationFormat.CSV : getFormat(req, true);
+    	if (Parameters.TARGET_CACHE_STATS.equalsIgnoreCase(req.getParameter(Parameters.PARAM_TARGET))) {
+    		serializeMap(resp, format, queryCache.getStatistics(), "statistics");
+    		setContent(resp, format);
+    		resp.setStatus(HttpServletResponse.SC_OK);
+    		return;
+    	}
     	if (providerId == null || providerId.trim().isEmpty()) {
-    		outputDatabaseInstances(resp, getFormat(req, true));
+    		outputDatabaseInstances(resp, format);
     		setContent(resp, format);
     		resp.setStatus(HttpServletResponse.SC_OK);
         	return;
@@ -546,15 +650,36 @@ public class TimeseriesServlet extends HttpServlet {
     		return;
 		}
     	final DataProvider<?> provider = service.getService();
+    	// set to true if the provider is released elsewhere
+    	boolean released = false;
     	try {
             switch (target) {
             case Parameters.TARGET_DATA:
-            	printTimeseriesData(req, resp, provider, format, formatter);
+            	if (binary) {
+            		printBinaryTimeseriesData(req, resp, providerId, provider);
+            		return;
+            	}
+            	printTimeseriesData(req, resp, providerId, provider, format, formatter);
+            	break;
+            case Parameters.TARGET_MULTI_DATA:
+            	printMultiTimeseriesData(req, resp, providerId, provider, format, formatter, indentation, lineBreak);
             	break;
+            case Parameters.TARGET_TAIL:
+            	final Map<ReadOnlyTimeSeries, String> tailed = extractTimeSeries(req, resp, providerId, provider);
+            	if (tailed == null)
+            		return;
+            	if (tailed.isEmpty()) {
+            		resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Timeseries not found");
+            		return;
+            	}
+            	// response is completed asynchronously; the provider is released once the subscription ends
+            	released = liveTail.subscribe(tailed, Utils.parseTimeString(req.getParameter(Parameters.PARAM_START), null), req, resp,
+            			() -> service.ungetService(provider));
+            	return;
             case Parameters.TARGET_NEXT: // fallthrough
             case Parameters.TARGET_PREVIOUS:
             	final boolean nextOrPrevious = target.equals("nextvalue");
-            	final Map.Entry<ReadOnlyTimeSeries, String> entry = extractSingleTimeseries(req, resp, provider);
+            	final Map.Entry<ReadOnlyTimeSeries, String> entry = extractSingleTimeseries(req, resp, providerId, provider);
             	if (entry == null)
             		return;
             	final ReadOnlyTimeSeries ts = entry.getKey();
@@ -573,7 +698,7 @@ public class TimeseriesServlet extends HttpServlet {
             	resp.getWriter().write(result);
             	break;
             case Parameters.TARGET_SIZE:
-            	final Map.Entry<ReadOnlyTimeSeries, String> entry2 = extractSingleTimeseries(req, resp, provider);
+            	final Map.Entry<ReadOnlyTimeSeries, String> entry2 = extractSingleTimeseries(req, resp, providerId, provider);
             	if (entry2 == null)
             		return;
             	final ReadOnlyTimeSeries tsb = entry2.getKey();
@@ -584,7 +709,7 @@ public class TimeseriesServlet extends HttpServlet {
                 break;
             case Parameters.TARGET_FIND:
             case Parameters.TARGET_STATISTICS:
-            	findTimeseries(target, req, resp, provider, format);
+            	findTimeseries(target, providerId, req, resp, provider, format);
             	break;
             default:
             	resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown target " + target);
@@ -592,7 +717,8 @@ public class TimeseriesServlet extends HttpServlet {
             }
             setContent(resp, format);
     	} finally {
-    		service.ungetService(provider);
+    		if (!released)
+    			service.ungetService(provider);
     	}
     	resp.setStatus(HttpServletResponse.SC_OK);
     }
@@ -605,40 +731,82 @@ public class TimeseriesServlet extends HttpServlet {
     /**
      * @param target
      * 		either "find" or "stats"
+     * @param providerId
      * @param req
      * @param resp
      * @throws IOException
      */
-    private final void findTimeseries(final String target, final HttpServletRequest req, final HttpServletResponse resp,
+    private final void findTimeseries(final String target, final String providerId, final HttpServletRequest req, final HttpServletResponse resp,
     		final DataProvider<?> provider, final FendodbSerializationFormat format) throws IOException {
-    	switch (target) {
-    	case Parameters.TARGET_FIND:
-    		final Collection<String> timeSeriesIds = extractTimeSeries(req, resp, provider).values();
+    	final String[] providers0 = req.getParameterValues(Parameters.PARAM_PROVIDERS);
+    	final boolean isFind = target.equals(Parameters.TARGET_FIND) || providers0 == null || providers0.length == 0;
+    	final Long start = Utils.parseTimeString(req.getParameter(Parameters.PARAM_START), null);
+    	final Long end = Utils.parseTimeString(req.getParameter(Parameters.PARAM_END), null);
+    	final QueryCache cache = this.queryCache;
+    	final String cacheKey = getCacheKey(isFind, providerId, req, providers0, start, end);
+    	final Object cached = cache.get(cacheKey);
+    	if (cached != null) {
+    		if (isFind)
+    			serializeStrings(resp, format, castStrings(cached), "timeSeries");
+    		else
+    			serializeMap(resp, format, castMap(cached), "statistics");
+    		return;
+    	}
+    	final Map<ReadOnlyTimeSeries, String> timeSeries = extractTimeSeries(req, resp, providerId, provider);
+    	if (timeSeries == null)
+    		return;
+    	if (isFind) {
+    		final List<String> timeSeriesIds = Collections.unmodifiableList(new ArrayList<>(timeSeries.values()));
+    		cache.put(cacheKey, timeSeriesIds, providerId, Collections.emptyList());
     		serializeStrings(resp, format, timeSeriesIds, "timeSeries");
     		return;
-    	case Parameters.TARGET_STATISTICS:
-    		final String[] providers0 = req.getParameterValues(Parameters.PARAM_PROVIDERS);
-    		if (providers0 == null || providers0.length == 0) {
-    			serializeStrings(resp, format, extractTimeSeries(req, resp, provider).values(), "timeSeries");
-    			return;
-    		}
-       		final List<ReadOnlyTimeSeries> matches = extractTimeSeries(req, resp, provider).keySet().stream()
-       				.collect(Collectors.toList());
-    		final List<String> providerIds = Arrays.asList(providers0);
-    		final Long start = Utils.parseTimeString(req.getParameter(Parameters.PARAM_START), null);
-    		final Long end = Utils.parseTimeString(req.getParameter(Parameters.PARAM_END), null);
-    		final Map<String,?> results;
-    		final StatisticsService stats = statistics.getService();
-    		try {
-	    		if (start == null || end == null)
-	    			results = stats.evaluateByIds(matches, providerIds);
-	    		else
-	    			results = stats.evaluateByIds(matches, providerIds, start, end);
-    		} finally {
-    			statistics.ungetService(stats);
-    		}
-	    	serializeMap(resp, format, results, "statistics");
     	}
+    	final List<ReadOnlyTimeSeries> matches = timeSeries.keySet().stream()
+    			.collect(Collectors.toList());
+    	final List<String> providerIds = Arrays.asList(providers0);
+    	final Map<String,?> results;
+    	final StatisticsService stats = statistics.getService();
+    	try {
+    		if (start == null || end == null)
+    			results = stats.evaluateByIds(matches, providerIds);
+    		else
+    			results = stats.evaluateByIds(matches, providerIds, start, end);
+    	} finally {
+    		statistics.ungetService(stats);
+    	}
+    	cache.put(cacheKey, results, providerId, timeSeries.values());
+    	serializeMap(resp, format, results, "statistics");
+    }
+
+    private static String getCacheKey(final boolean isFind, final String providerId, final HttpServletRequest req,
+    		final String[] statisticsProviders, final Long start, final Long end) {
+    	final StringBuilder sb = new StringBuilder();
+    	sb.append(isFind ? Parameters.TARGET_FIND : Parameters.TARGET_STATISTICS).append('|').append(providerId).append('|');
+    	final String[] options = req.getParameterValues(Parameters.PARAM_SELECTION_OPTION);
+    	if (options != null) {
+    		Arrays.stream(options)
+    			.map(String::toLowerCase)
+    			.sorted()
+    			.forEach(opt -> sb.append(opt).append(','));
+    	}
+    	if (!isFind) {
+    		sb.append('|');
+    		Arrays.stream(statisticsProviders)
+    			.sorted()
+    			.forEach(p -> sb.append(p).append(','));
+    		sb.append('|').append(start).append('|').append(end);
+    	}
+    	return sb.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Collection<String> castStrings(final Object cached) {
+    	return (Collection<String>) cached;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, ?> castMap(final Object cached) {
+    	return (Map<String, ?>) cached;
     }
 
     private static void printSize(final Writer writer, final String id, final char[] lineBreak, final char[] indentation, final int size,
@@ -684,8 +852,8 @@ public class TimeseriesServlet extends HttpServlet {
     	}
     }
 
-    private static void printTimeseriesData(final HttpServletRequest req, final HttpServletResponse resp,
-    		final DataProvider<?> provider, final FendodbSerializationFormat format,
+    private void printTimeseriesData(final HttpServletRequest req, final HttpServletResponse resp,
+    		final String providerId, final DataProvider<?> provider, final FendodbSerializationFormat format,
     		final DateTimeFormatter formatter) throws IOException, ServletException {
     	// TODO use find instead
 //   		String id = req.getParameter(Parameters.PARAM_ID);
@@ -693,7 +861,7 @@ public class TimeseriesServlet extends HttpServlet {
 //        	outputTimeseriesIds(req, resp, provider, format);
 //        	return;
 //        }
-        final Map<ReadOnlyTimeSeries,String> list = extractTimeSeries(req, resp, provider);
+        final Map<ReadOnlyTimeSeries,String> list = extractTimeSeries(req, resp, providerId, provider);
         if (list == null)
         	return;
         if (list.isEmpty()) {
@@ -719,6 +887,30 @@ public class TimeseriesServlet extends HttpServlet {
         	resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid maximum nr argument " + maxValuesStr);
         	return;
         }
+        final String downsampleStr = req.getParameter(Parameters.PARAM_DOWNSAMPLE);
+        final Downsampling.Mode downsampling = downsampleStr == null ? null : Downsampling.parseMode(downsampleStr);
+        if (downsampleStr != null) {
+        	if (downsampling == null) {
+        		resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid downsampling mode " + downsampleStr);
+        		return;
+        	}
+        	if (samplingInterval != null) {
+        		resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Downsampling cannot be combined with a sampling interval");
+        		return;
+        	}
+        	if (maxValues <= 0) {
+        		resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Downsampling requires a positive maximum nr, got " + maxValues);
+        		return;
+        	}
+        }
+        final ReadOnlyTimeSeries output;
+        if (downsampling != null) {
+        	final FloatTreeTimeSeries downsampled = new FloatTreeTimeSeries();
+        	downsampled.addValues(Downsampling.downsample(ts, start, end, maxValues, downsampling));
+        	output = downsampled;
+        } else {
+        	output = ts;
+        }
         final SerializationConfigurationBuilder builder = SerializationConfigurationBuilder.getInstance()
         		.setInterval(start, end)
         		.setFormat(format)
@@ -739,17 +931,93 @@ public class TimeseriesServlet extends HttpServlet {
         	}
         }
         final SerializationConfiguration config = builder.build();
-        final int nrDataPoints = FendoDbTools.serialize(resp.getWriter(), ts, config);
+        final int nrDataPoints = FendoDbTools.serialize(resp.getWriter(), output, config);
         resp.setHeader("nrdatapoints", nrDataPoints + "");
     }
 
+    private void printBinaryTimeseriesData(final HttpServletRequest req, final HttpServletResponse resp,
+    		final String providerId, final DataProvider<?> provider) throws IOException {
+        final Map.Entry<ReadOnlyTimeSeries,String> entry = extractSingleTimeseries(req, resp, providerId, provider);
+        if (entry == null)
+        	return;
+        final ReadOnlyTimeSeries ts = entry.getKey();
+    	final long start = Utils.parseTimeString(req.getParameter(Parameters.PARAM_START), Long.MIN_VALUE);
+        final long end = Utils.parseTimeString(req.getParameter(Parameters.PARAM_END), Long.MAX_VALUE);
+        if (req.getParameter(Parameters.PARAM_INTERVAL) != null) {
+        	resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Sampling interval not supported for binary format");
+        	return;
+        }
+        final String maxValuesStr = req.getParameter(Parameters.PARAM_MAX);
+        final int maxValues;
+        try {
+        	maxValues = maxValuesStr == null? 10000 : Integer.parseInt(maxValuesStr);
+        } catch (NumberFormatException e) {
+        	resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid maximum nr argument " + maxValuesStr);
+        	return;
+        }
+        final String downsampleStr = req.getParameter(Parameters.PARAM_DOWNSAMPLE);
+        final Downsampling.Mode downsampling = downsampleStr == null ? null : Downsampling.parseMode(downsampleStr);
+        if (downsampleStr != null && (downsampling == null || maxValues <= 0)) {
+        	resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid downsampling request " + downsampleStr + ", max: " + maxValues);
+        	return;
+        }
+        final Iterator<SampledValue> it = downsampling != null ?
+        		Downsampling.downsample(ts, start, end, maxValues, downsampling).iterator() : ts.iterator(start, end);
+        resp.setContentType(BinaryFormat.MIME_TYPE);
+        resp.setStatus(HttpServletResponse.SC_OK);
+        // no nrdatapoints header here; the count is only known once the body has been written
+        BinaryFormat.serialize(it, resp.getOutputStream(), maxValues);
+    }
+
+    private void printMultiTimeseriesData(final HttpServletRequest req, final HttpServletResponse resp,
+    		final String providerId, final DataProvider<?> provider, final FendodbSerializationFormat format,
+    		final DateTimeFormatter formatter, final char[] indentation, final char[] lineBreak) throws IOException, ServletException {
+        final Map<ReadOnlyTimeSeries,String> timeSeries = extractTimeSeries(req, resp, providerId, provider);
+        if (timeSeries == null)
+        	return;
+        if (timeSeries.isEmpty()) {
+        	resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Timeseries not found");
+        	return;
+        }
+    	final long start = Utils.parseTimeString(req.getParameter(Parameters.PARAM_START), Long.MIN_VALUE);
+        final long end = Utils.parseTimeString(req.getParameter(Parameters.PARAM_END), Long.MAX_VALUE);
+        final String maxValuesStr = req.getParameter(Parameters.PARAM_MAX);
+        final int maxValues;
+        try {
+        	maxValues = maxValuesStr == null? 10000 : Integer.parseInt(maxValuesStr);
+        } catch (NumberFormatException e) {
+        	resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid maximum nr argument " + maxValuesStr);
+        	return;
+        }
+        if (maxValues <= 0) {
+        	resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Maximum nr must be positive, got " + maxValues);
+        	return;
+        }
+        final String downsampleStr = req.getParameter(Parameters.PARAM_DOWNSAMPLE);
+        final Downsampling.Mode downsampling = downsampleStr == null ? null : Downsampling.parseMode(downsampleStr);
+        if (downsampleStr != null && downsampling == null) {
+        	resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid downsampling mode " + downsampleStr);
+        	return;
+        }
+        // no nrdatapoints header here; the count is only known once the body has been written
+        try {
+        	MultiSeriesSerialization.serialize(timeSeries, resp.getWriter(), multiReadExec, multiReadWindow, start, end, maxValues, downsampling,
+        			format, formatter, indentation, lineBreak);
+        } catch (InterruptedException e) {
+        	Thread.currentThread().interrupt();
+        	throw new ServletException(e);
+        } catch (ExecutionException e) {
+        	throw new ServletException(e.getCause());
+        }
+    }
+
     private void outputDatabaseInstances(final HttpServletResponse resp, final FendodbSerializationFormat format) throws IOException {
     	serializeStrings(resp, format, dataProviders.keySet(), "dataProviders");
     }
 
-    private static void outputTimeseriesIds(final HttpServletRequest req, final HttpServletResponse resp, DataProvider<?> provider,
+    private void outputTimeseriesIds(final HttpServletRequest req, final HttpServletResponse resp, final String providerId, DataProvider<?> provider,
     		final FendodbSerializationFormat format) throws IOException {
-    	serializeStrings(resp, format,extractTimeSeries(req, resp, provider).values(), "timeSeries");
+    	serializeStrings(resp, format,extractTimeSeries(req, resp, providerId, provider).values(), "timeSeries");
     }
 
     private static void serializeStrings(final HttpServletResponse resp, final FendodbSerializationFormat format,
@@ -905,6 +1173,22 @@ public class TimeseriesServlet extends HttpServlet {
     		.findFirst().orElse(-1);
     }
 
+    private static boolean isBinaryFormat(final HttpServletRequest req, final boolean acceptOrContentType) {
+    	final String format = req.getParameter(Parameters.PARAM_FORMAT);
+    	if (format != null)
+    		return format.trim().equalsIgnoreCase(BinaryFormat.FORMAT);
+    	final String header = req.getHeader(acceptOrContentType ? "Accept" : "Content-Type");
+    	if (header == null)
+    		return false;
+    	final String accept = header.toLowerCase();
+    	final int returnBinary = accept.indexOf(BinaryFormat.MIME_TYPE);
+    	if (returnBinary < 0)
+    		return false;
+    	final int returnXML = getXmlIndex(accept);
+        final int returnJSON = getJsonIndex(accept);
+        return (returnXML == -1 || returnBinary < returnXML) && (returnJSON == -1 || returnBinary < returnJSON);
+    }
+
     private static FendodbSerializationFormat getFormat(final HttpServletRequest req, final boolean acceptOrContentType) {
     	final String format = req.getParameter(Parameters.PARAM_FORMAT);
     	if (format != null) {
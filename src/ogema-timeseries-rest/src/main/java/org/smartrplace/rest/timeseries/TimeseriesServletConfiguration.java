@@ -0,0 +1,78 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * Copyright 2018 Smartrplace UG
+ *
+ * FendoDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FendoDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smartrplace.rest.timeseries;
+
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+/**
+ * All properties in this type are optional; the servlet uses the default
+ * values if no configuration exists.
+ */
+@ObjectClassDefinition
+public @interface TimeseriesServletConfiguration {
+
+	/**
+	 * Time to live for cached results of find and statistics queries, in milliseconds.
+	 * Set to 0 to disable the cache. Default: 10s.
+	 * @return
+	 */
+	long queryCacheTtl() default 10000;
+
+	/**
+	 * Maximum number of cached results of find and statistics queries. If the limit is reached,
+	 * the least recently used entry is dropped. Default: 500.
+	 * @return
+	 */
+	int queryCacheSize() default 500;
+
+	/**
+	 * Maximum age of the lookup index for the selection tree of a data provider, in milliseconds.
+	 * The index is rebuilt when data providers are added or removed, and when it is older than this.
+	 * Set to 0 to rebuild it for every request. Default: 60s.
+	 * @return
+	 */
+	long selectionIndexMaxAge() default 60000;
+
+	/**
+	 * Interval in which time series with live subscriptions (target "tail") are checked for
+	 * new values, in milliseconds. Values posted via this servlet are pushed immediately. Default: 1s.
+	 * @return
+	 */
+	long liveTailPollInterval() default 1000;
+
+	/**
+	 * Maximum number of concurrent live subscriptions. Default: 1000.
+	 * @return
+	 */
+	int liveTailMaxSubscriptions() default 1000;
+
+}
@@ -85,7 +85,7 @@ class Utils {
 			final char[] lineBreak, final char[] indentation) {
 		if (sv == null)
 			return "null";
-		final String time = formatter == null ? sv.getTimestamp() + "" : formatter.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(sv.getTimestamp()), zone));
+		final String time = formatTime(sv.getTimestamp(), formatter);
 		final Value value = sv.getValue();
 		final StringBuilder sb = new StringBuilder();
 		switch (format) {
@@ -131,7 +131,11 @@ class Utils {
 		return sb.toString();
 	}
 	
-	private static final Object getValue(final Value value) {
+	static String formatTime(final long t, final DateTimeFormatter formatter) {
+		return formatter == null ? t + "" : formatter.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(t), zone));
+	}
+	
+	static final Object getValue(final Value value) {
 		if (value instanceof BooleanValue)
 			return value.getBooleanValue();
 		if (value instanceof IntegerValue || value instanceof LongValue)
@@ -139,5 +143,80 @@ class Utils {
 		return value.getDoubleValue();
 	}
 	
+	static String escapeJson(final String in) {
+		final StringBuilder sb = new StringBuilder(in.length() + 8);
+		for (int i = 0; i < in.length(); i++) {
+			final char c = in.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Quotes the string if it contains a delimiter (comma or semicolon), a quote or a line break; 
+	 * quotes inside are doubled, as in RFC 4180.
+	 */
+	static String escapeCsv(final String in) {
+		boolean quote = false;
+		for (int i = 0; i < in.length(); i++) {
+			final char c = in.charAt(i);
+			if (c == ',' || c == ';' || c == '"' || c == '\n' || c == '\r') {
+				quote = true;
+				break;
+			}
+		}
+		if (!quote)
+			return in;
+		return '"' + in.replace("\"", "\"\"") + '"';
+	}
+	
+	static String escapeXml(final String in) {
+		final StringBuilder sb = new StringBuilder(in.length() + 8);
+		for (int i = 0; i < in.length(); i++) {
+			final char c = in.charAt(i);
+			switch (c) {
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '>':
+				sb.append("&gt;");
+				break;
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '"':
+				sb.append("&quot;");
+				break;
+			case '\'':
+				sb.append("&apos;");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+	
 	
 }
@@ -0,0 +1,106 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.rest.timeseries;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.ogema.core.channelmanager.measurements.Quality;
+import org.ogema.core.channelmanager.measurements.SampledValue;
+import org.ogema.core.timeseries.TimeSeries;
+
+import static org.smartrplace.rest.timeseries.TestTimeSeries.value;
+
+public class BinaryFormatTest {
+	
+	private final List<String> errors = new ArrayList<>();
+	private final HttpServletResponse resp = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), 
+			new Class<?>[] {HttpServletResponse.class}, (proxy, method, args) -> {
+		if (method.getName().equals("sendError")) {
+			errors.add(args[0] + (args.length > 1 ? ": " + args[1] : ""));
+			return null;
+		}
+		throw new UnsupportedOperationException(method.getName());
+	});
+	
+	private List<SampledValue> roundTrip(final List<SampledValue> values, final int batchSize) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assert.assertEquals(values.size(), BinaryFormat.serialize(values.iterator(), out, Integer.MAX_VALUE));
+		final List<SampledValue> result = new ArrayList<>();
+		final TimeSeries target = TestTimeSeries.create(result);
+		final BinaryDeserializer deserializer = new BinaryDeserializer(new ByteArrayInputStream(out.toByteArray()), target, resp, batchSize);
+		Assert.assertTrue("Deserialization failed: " + errors, deserializer.deserializeValues());
+		Assert.assertEquals(values.size(), deserializer.nrValues);
+		return result;
+	}
+	
+	@Test
+	public void emptySeriesRoundTrip() throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assert.assertEquals(0, BinaryFormat.serialize(Collections.<SampledValue> emptyIterator(), out, 10));
+		Assert.assertEquals("Expected header only", BinaryFormat.MAGIC.length + 1, out.size());
+		Assert.assertTrue(roundTrip(Collections.emptyList(), 10).isEmpty());
+	}
+	
+	@Test
+	public void valuesRoundTrip() throws IOException {
+		final List<SampledValue> values = Arrays.asList(
+				value(-1000, 1.5F),
+				value(0, Float.NaN),
+				value(1, -0F, Quality.BAD),
+				value(2, Float.POSITIVE_INFINITY),
+				value(1000, Float.MIN_VALUE, Quality.BAD),
+				value(1_500_000_000_000L, Float.MAX_VALUE),
+				value(1_500_000_000_001L, Float.NEGATIVE_INFINITY, Quality.BAD),
+				value(1_600_000_000_000L, 0.1F));
+		// batch size smaller than the number of values, so that several batches are written
+		TestTimeSeries.assertEquals(values, roundTrip(values, 3));
+	}
+	
+	@Test
+	public void serializationRespectsMaxValues() throws IOException {
+		final List<SampledValue> values = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			values.add(value(i * 10, i));
+		}
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assert.assertEquals(4, BinaryFormat.serialize(values.iterator(), out, 4));
+		final List<SampledValue> result = new ArrayList<>();
+		final BinaryDeserializer deserializer = new BinaryDeserializer(new ByteArrayInputStream(out.toByteArray()), 
+				TestTimeSeries.create(result), resp, 10);
+		Assert.assertTrue(deserializer.deserializeValues());
+		TestTimeSeries.assertEquals(values.subList(0, 4), result);
+	}
+	
+	@Test
+	public void invalidHeaderIsRejected() throws IOException {
+		final BinaryDeserializer deserializer = new BinaryDeserializer(new ByteArrayInputStream(new byte[] {'O', 'T', 'S', 'X', 1}), 
+				TestTimeSeries.create(new ArrayList<>()), resp, 10);
+		Assert.assertFalse(deserializer.deserializeValues());
+		Assert.assertEquals(1, errors.size());
+	}
+	
+}
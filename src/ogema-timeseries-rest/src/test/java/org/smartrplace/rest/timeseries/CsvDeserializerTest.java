@@ -0,0 +1,85 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.rest.timeseries;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.ogema.core.channelmanager.measurements.SampledValue;
+import org.ogema.core.timeseries.TimeSeries;
+
+public class CsvDeserializerTest {
+	
+	private static final List<String> VALUES = Arrays.asList(
+			"0", "-0", "1", "-1", "0.1", "0.3", "-2.5", "1.", ".5", "+7",
+			// largest mantissas on the fast path, and the first ones beyond
+			"16777215", "16777216", "16777217", "1677721.5", "-16777215e-10",
+			// exponent limits of the fast path
+			"1e10", "1e-10", "1E11", "1e-11", "9999999e10", "9999999e-10", "8388609e-1", "1.6777215e10",
+			// rounds to the wrong float if computed in double first
+			"1.0000000596046448",
+			"0.33333334", "1.00000005", "3.4028235e38", "3.4028236e38", "1.4e-45", "7.038531e-26", "123456789012345678901234567890",
+			"NaN", "Infinity", "-Infinity");
+	
+	private static List<SampledValue> deserialize(final String csv) throws IOException {
+		final List<SampledValue> result = new ArrayList<>();
+		final TimeSeries timeSeries = Mockito.mock(TimeSeries.class);
+		// the deserializer reuses its batch list
+		Mockito.when(timeSeries.addValues(Mockito.anyCollection())).thenAnswer(invocation -> {
+			result.addAll(invocation.getArgument(0));
+			return true;
+		});
+		final HttpServletResponse resp = Mockito.mock(HttpServletResponse.class);
+		final CsvDeserializer deserializer = new CsvDeserializer(new StringReader(csv), timeSeries, resp, 10);
+		Assert.assertTrue("Deserialization failed", deserializer.deserializeValues());
+		Mockito.verify(resp, Mockito.never()).sendError(Mockito.anyInt(), Mockito.any());
+		return result;
+	}
+	
+	@Test
+	public void floatValuesMatchFloatParseFloat() throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < VALUES.size(); i++) {
+			sb.append(i).append(';').append(VALUES.get(i)).append('\n');
+		}
+		final List<SampledValue> values = deserialize(sb.toString());
+		Assert.assertEquals(VALUES.size(), values.size());
+		for (int i = 0; i < VALUES.size(); i++) {
+			final SampledValue sv = values.get(i);
+			Assert.assertEquals(i, sv.getTimestamp());
+			Assert.assertEquals("Unexpected value for " + VALUES.get(i), 
+					Float.floatToIntBits(Float.parseFloat(VALUES.get(i))), Float.floatToIntBits(sv.getValue().getFloatValue()));
+		}
+	}
+	
+	@Test
+	public void invalidFloatIsRejected() throws IOException {
+		final TimeSeries timeSeries = Mockito.mock(TimeSeries.class);
+		final HttpServletResponse resp = Mockito.mock(HttpServletResponse.class);
+		final CsvDeserializer deserializer = new CsvDeserializer(new StringReader("1;1.5e\n"), timeSeries, resp, 10);
+		Assert.assertFalse(deserializer.deserializeValues());
+		Mockito.verify(resp).sendError(Mockito.eq(HttpServletResponse.SC_BAD_REQUEST), Mockito.anyString());
+	}
+	
+}
@@ -0,0 +1,107 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.rest.timeseries;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.ogema.core.channelmanager.measurements.Quality;
+import org.ogema.core.channelmanager.measurements.SampledValue;
+import org.ogema.core.timeseries.ReadOnlyTimeSeries;
+
+import static org.smartrplace.rest.timeseries.TestTimeSeries.value;
+
+/*
+ * Each test uses 100 points at timestamps 0..99, with values chosen such that
+ * the expected buckets and selected points can be computed by hand.
+ */
+public class DownsamplingTest {
+	
+	private interface ValueFunction {
+		
+		float value(int t);
+		
+	}
+	
+	private static List<SampledValue> series(final ValueFunction function) {
+		final List<SampledValue> values = new ArrayList<>(100);
+		for (int t = 0; t < 100; t++) {
+			values.add(value(t, function.value(t)));
+		}
+		return values;
+	}
+	
+	@Test
+	public void averageBuckets() {
+		final List<SampledValue> values = series(t -> t);
+		// ignored: bad quality and NaN
+		values.set(5, value(5, 1000, Quality.BAD));
+		values.set(15, value(15, Float.NaN));
+		final List<SampledValue> result = Downsampling.downsample(TestTimeSeries.create(values), Long.MIN_VALUE, Long.MAX_VALUE, 
+				10, Downsampling.Mode.AVERAGE);
+		// bucket width (99 - 0) / 10 + 1 = 10
+		final List<SampledValue> expected = new ArrayList<>();
+		expected.add(value(0, (float) (45 - 5) / 9));
+		expected.add(value(10, (float) (145 - 15) / 9));
+		for (int i = 2; i < 10; i++) {
+			expected.add(value(10 * i, 10 * i + 4.5F));
+		}
+		TestTimeSeries.assertEquals(expected, result);
+	}
+	
+	@Test
+	public void minMaxBuckets() {
+		final List<SampledValue> values = series(t -> t % 20 == 7 ? 100 : t % 20 == 13 ? -100 : 0);
+		values.set(3, value(3, 1000, Quality.BAD));
+		final List<SampledValue> result = Downsampling.downsample(TestTimeSeries.create(values), Long.MIN_VALUE, Long.MAX_VALUE, 
+				10, Downsampling.Mode.MINMAX);
+		// 5 buckets of width (99 - 0) / 5 + 1 = 20, each with its maximum at offset 7 and minimum at offset 13
+		final List<SampledValue> expected = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			expected.add(value(20 * i + 7, 100));
+			expected.add(value(20 * i + 13, -100));
+		}
+		TestTimeSeries.assertEquals(expected, result);
+	}
+	
+	@Test
+	public void lttbSelectsPeaks() {
+		final List<SampledValue> values = series(t -> t == 20 ? 50 : t == 50 ? -50 : t == 80 ? 50 : 0);
+		final List<SampledValue> result = Downsampling.downsample(TestTimeSeries.create(values), Long.MIN_VALUE, Long.MAX_VALUE, 
+				5, Downsampling.Mode.LTTB);
+		// first and last point, plus one per bucket 1..33, 34..66, 67..98
+		final List<SampledValue> expected = Arrays.asList(value(0, 0), value(20, 50), value(50, -50), value(80, 50), value(99, 0));
+		TestTimeSeries.assertEquals(expected, result);
+	}
+	
+	@Test
+	public void intervalIsRespected() {
+		final ReadOnlyTimeSeries ts = TestTimeSeries.create(series(t -> t));
+		for (Downsampling.Mode mode : Downsampling.Mode.values()) {
+			final List<SampledValue> result = Downsampling.downsample(ts, 20, 59, 8, mode);
+			Assert.assertFalse("No values for mode " + mode, result.isEmpty());
+			Assert.assertTrue("Too many values for mode " + mode + ": " + result.size(), result.size() <= 8);
+			for (SampledValue sv : result) {
+				Assert.assertTrue("Value outside interval for mode " + mode + ": " + sv, sv.getTimestamp() >= 20 && sv.getTimestamp() <= 59);
+			}
+			Assert.assertTrue("Empty interval for mode " + mode, Downsampling.downsample(ts, 200, 300, 8, mode).isEmpty());
+		}
+	}
+	
+}
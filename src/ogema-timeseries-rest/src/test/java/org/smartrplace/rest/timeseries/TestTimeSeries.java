@@ -0,0 +1,92 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.rest.timeseries;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.ogema.core.channelmanager.measurements.FloatValue;
+import org.ogema.core.channelmanager.measurements.Quality;
+import org.ogema.core.channelmanager.measurements.SampledValue;
+import org.ogema.core.timeseries.TimeSeries;
+
+/*
+ * A time series backed by a sorted list, implementing only the methods used 
+ * by the serialization and downsampling code.
+ */
+class TestTimeSeries {
+	
+	private TestTimeSeries() {}
+	
+	static SampledValue value(final long t, final float v) {
+		return value(t, v, Quality.GOOD);
+	}
+	
+	static SampledValue value(final long t, final float v, final Quality quality) {
+		return new SampledValue(new FloatValue(v), t, quality);
+	}
+	
+	/**
+	 * @param values
+	 * 		sorted by time; values added via {@link TimeSeries#addValues(Collection)} are appended
+	 */
+	static TimeSeries create(final List<SampledValue> values) {
+		return (TimeSeries) Proxy.newProxyInstance(TestTimeSeries.class.getClassLoader(), new Class<?>[] {TimeSeries.class}, 
+				(proxy, method, args) -> {
+			switch (method.getName()) {
+			case "getNextValue":
+				return values.stream().filter(sv -> sv.getTimestamp() >= (Long) args[0]).findFirst().orElse(null);
+			case "getPreviousValue":
+				return values.stream().filter(sv -> sv.getTimestamp() <= (Long) args[0]).reduce((a, b) -> b).orElse(null);
+			case "iterator":
+				if (args == null || args.length == 0)
+					return new ArrayList<>(values).iterator();
+				return values.stream().filter(sv -> sv.getTimestamp() >= (Long) args[0] && sv.getTimestamp() <= (Long) args[1])
+						.collect(Collectors.toList()).iterator();
+			case "isEmpty":
+				return values.isEmpty();
+			case "addValues":
+				// the caller may reuse the collection
+				@SuppressWarnings("unchecked")
+				final Collection<SampledValue> added = (Collection<SampledValue>) args[0];
+				values.addAll(added);
+				return true;
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+	
+	static void assertEquals(final List<SampledValue> expected, final List<SampledValue> actual) {
+		org.junit.Assert.assertEquals("Unexpected number of values", expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			final SampledValue e = expected.get(i);
+			final SampledValue a = actual.get(i);
+			org.junit.Assert.assertEquals("Unexpected timestamp at index " + i, e.getTimestamp(), a.getTimestamp());
+			org.junit.Assert.assertEquals("Unexpected quality at index " + i, e.getQuality(), a.getQuality());
+			org.junit.Assert.assertEquals("Unexpected value at index " + i, 
+					Float.floatToIntBits(e.getValue().getFloatValue()), Float.floatToIntBits(a.getValue().getFloatValue()));
+		}
+	}
+	
+}
@@ -0,0 +1,324 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.tools.schedule.management;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.disk.DiskFileItem;
+import org.apache.commons.io.IOUtils;
+import org.ogema.core.model.schedule.Schedule;
+import org.ogema.core.timeseries.TimeSeries;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imports many files into many time series in the background. Uploaded zip files are expanded, 
+ * each file is mapped to its target time series by its name, and the files are imported in 
+ * parallel on a bounded thread pool. Files uploaded while a job is running are added to that job.
+ * Files targeting the same time series are imported one after the other.
+ */
+class BatchImport {
+	
+	// up to this size, files extracted from a zip are kept in memory
+	private static final int IN_MEMORY_THRESHOLD = 1024 * 1024;
+	private static final int MAX_MESSAGES = 20;
+	private static final String TEMP_PREFIX = "scheduleimport";
+	// imports into the same time series are serialized on one of these, selected by the target's hash code
+	private static final Object[] targetLocks = new Object[64];
+	static {
+		for (int i=0; i<targetLocks.length; i++)
+			targetLocks[i] = new Object();
+	}
+	private final Path tempFolder;
+	private final ExecutorService exec;
+	private final AtomicInteger threadCounter = new AtomicInteger(0);
+	// synchronized on this
+	private Job job;
+	
+	/**
+	 * @param tempFolder
+	 * 		folder for uploaded files while they are being imported; should be located in the bundle data area
+	 */
+	BatchImport(Path tempFolder) {
+		this.tempFolder = tempFolder;
+		deleteTempFiles(tempFolder);
+		final int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+		final ThreadPoolExecutor exec = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			final Thread t = new Thread(r, "schedule-batch-import-" + threadCounter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		exec.allowCoreThreadTimeOut(true);
+		this.exec = exec;
+	}
+	
+	/**
+	 * Import the files contained in the upload; zip files are expanded, other files
+	 * are imported as they are. Returns immediately, see {@link #getJob()} for the progress.
+	 * @param upload
+	 * @param targets
+	 * 		maps file names without extension to the target time series; returns null if there
+	 * 		is no target for a file, in which case the file is skipped
+	 * @param importer
+	 */
+	void submit(final FileItem upload, final Function<String, TimeSeries> targets, final FileImporter importer) {
+		// the upload counts as one file until it has been expanded, so the job is not considered done meanwhile
+		final Job job = getOrCreateJob();
+		final String uploadName = getBaseName(upload.getName());
+		final List<Source> sources;
+		final Closeable cleanup;
+		try {
+			Files.createDirectories(tempFolder);
+			final File tmp = Files.createTempFile(tempFolder, TEMP_PREFIX, ".tmp").toFile();
+			try {
+				upload.write(tmp);
+				if (upload.getName() != null && upload.getName().toLowerCase().endsWith(".zip")) {
+					final ZipFile zip = new ZipFile(tmp);
+					sources = new ArrayList<>();
+					final Enumeration<? extends ZipEntry> entries = zip.entries();
+					while (entries.hasMoreElements()) {
+						final ZipEntry entry = entries.nextElement();
+						if (!entry.isDirectory())
+							sources.add(new Source(getBaseName(entry.getName()), () -> zip.getInputStream(entry)));
+					}
+					cleanup = () -> {
+						zip.close();
+						tmp.delete();
+					};
+				} else {
+					sources = Collections.singletonList(new Source(uploadName, () -> new FileInputStream(tmp)));
+					cleanup = tmp::delete;
+				}
+			} catch (Exception e) {
+				tmp.delete();
+				throw e;
+			}
+		} catch (Exception e) {
+			job.failed(uploadName, e);
+			return;
+		}
+		job.add(sources.size() - 1);
+		if (sources.isEmpty()) {
+			close(cleanup);
+			return;
+		}
+		// the last task closes the zip file and deletes the temp file
+		final AtomicInteger remaining = new AtomicInteger(sources.size());
+		for (Source source : sources) {
+			final Runnable task = () -> {
+				try {
+					job.process(source, targets, importer);
+				} finally {
+					if (remaining.decrementAndGet() == 0)
+						close(cleanup);
+				}
+			};
+			try {
+				exec.execute(task);
+			} catch (RejectedExecutionException e) {
+				job.failed(source.name, e);
+				if (remaining.decrementAndGet() == 0)
+					close(cleanup);
+			}
+		}
+	}
+	
+	/**
+	 * @return
+	 * 		the current or last job, or null if no import has been started yet
+	 */
+	synchronized Job getJob() {
+		return job;
+	}
+	
+	private synchronized Job getOrCreateJob() {
+		if (job == null || job.isDone())
+			job = new Job();
+		job.add(1);
+		return job;
+	}
+	
+	void close() {
+		exec.shutdownNow();
+	}
+	
+	// files left over if the app has been stopped during an import
+	private static void deleteTempFiles(final Path tempFolder) {
+		if (!Files.isDirectory(tempFolder))
+			return;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(tempFolder, TEMP_PREFIX + "*")) {
+			for (Path file : stream) {
+				Files.deleteIfExists(file);
+			}
+		} catch (IOException e) {
+			LoggerFactory.getLogger(BatchImport.class).warn("Failed to clean up batch import files",e);
+		}
+	}
+	
+	private static Object getLock(final TimeSeries target) {
+		// schedules are identified by their location, since the same schedule may be accessed via different paths
+		final Object key = target instanceof Schedule ? ((Schedule) target).getLocation() : target;
+		return targetLocks[(key.hashCode() & 0x7fffffff) % targetLocks.length];
+	}
+	
+	private static void close(final Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			LoggerFactory.getLogger(BatchImport.class).warn("Failed to clean up batch import files",e);
+		}
+	}
+	
+	// strips directories and file ending
+	private static String getBaseName(String fileName) {
+		if (fileName == null)
+			return "";
+		fileName = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1);
+		final int idx = fileName.lastIndexOf('.');
+		return idx > 0 ? fileName.substring(0, idx) : fileName;
+	}
+	
+	@FunctionalInterface
+	static interface FileImporter {
+		
+		void importFile(FileItem file, TimeSeries target) throws Exception;
+		
+	}
+	
+	@FunctionalInterface
+	private static interface StreamSupplier {
+		
+		InputStream open() throws IOException;
+		
+	}
+	
+	private static class Source {
+		
+		final String name;
+		final StreamSupplier stream;
+		
+		Source(String name, StreamSupplier stream) {
+			this.name = name;
+			this.stream = stream;
+		}
+		
+	}
+	
+	static class Job {
+		
+		private final long startTime = System.currentTimeMillis();
+		private volatile long endTime = -1;
+		private final AtomicInteger total = new AtomicInteger(0);
+		private final AtomicInteger imported = new AtomicInteger(0);
+		private final AtomicInteger skipped = new AtomicInteger(0);
+		private final AtomicInteger failed = new AtomicInteger(0);
+		private final Queue<String> messages = new ConcurrentLinkedQueue<>();
+		
+		private void add(int files) {
+			total.addAndGet(files);
+			if (files < 0)
+				checkDone();
+		}
+		
+		private void checkDone() {
+			if (isDone())
+				endTime = System.currentTimeMillis();
+		}
+		
+		private void process(final Source source, final Function<String, TimeSeries> targets, final FileImporter importer) {
+			try {
+				final TimeSeries target = targets.apply(source.name);
+				if (target == null) {
+					addMessage("No target time series for file " + source.name);
+					skipped.incrementAndGet();
+					checkDone();
+					return;
+				}
+				final DiskFileItem item = new DiskFileItem("file", null, false, source.name, IN_MEMORY_THRESHOLD, null);
+				try {
+					try (InputStream in = source.stream.open(); OutputStream out = item.getOutputStream()) {
+						IOUtils.copy(in, out);
+					}
+					synchronized (getLock(target)) {
+						importer.importFile(item, target);
+					}
+				} finally {
+					item.delete();
+				}
+				imported.incrementAndGet();
+				checkDone();
+			} catch (Exception e) {
+				failed(source.name, e);
+			}
+		}
+		
+		private void failed(final String name, final Exception e) {
+			addMessage("Import of " + name + " failed: " + e);
+			LoggerFactory.getLogger(BatchImport.class).warn("Import of file {} failed",name,e);
+			failed.incrementAndGet();
+			checkDone();
+		}
+		
+		private void addMessage(String message) {
+			if (messages.size() < MAX_MESSAGES)
+				messages.add(message);
+		}
+		
+		long getStartTime() {
+			return startTime;
+		}
+		
+		boolean isDone() {
+			return imported.get() + skipped.get() + failed.get() >= total.get();
+		}
+		
+		String getStatus() {
+			final StringBuilder sb = new StringBuilder();
+			sb.append(isDone() ? "Batch import finished: " : "Batch import running: ")
+				.append(imported.get() + skipped.get() + failed.get()).append(" of ").append(total.get()).append(" files processed, ")
+				.append(imported.get()).append(" imported, ").append(skipped.get()).append(" skipped, ").append(failed.get()).append(" failed")
+				.append(" (").append(((endTime > 0 ? endTime : System.currentTimeMillis()) - startTime) / 1000).append(" s).");
+			for (String msg : messages)
+				sb.append(' ').append(msg).append('.');
+			return sb.toString();
+		}
+		
+	}
+	
+}
@@ -75,6 +75,10 @@ class DataSourceFactory {
 		targets.remove(target);
 	}
 	
+	void close() {
+		logData.close();
+	}
+	
 	Set<OgemaDataSource<?, ?>> drainSources() {
 		synchronized (sources) {
 			Set<OgemaDataSource<?, ?>> result = new HashSet<>(sources);
@@ -0,0 +1,130 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.tools.schedule.management;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.ogema.core.timeseries.ReadOnlyTimeSeries;
+import org.smartrplace.tools.schedule.management.persistence.FileBasedPersistence;
+
+/**
+ * Streams file exports of time series directly to the HTTP response, without
+ * creating a temporary file. An export is prepared by {@link #register(ReadOnlyTimeSeries, FileBasedPersistence, String, String)}, 
+ * which returns the download URL; the file is generated when the URL is requested.
+ */
+class FileExportServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+	static final String PATH = "/org/smartrplace/tools/schedule/export";
+	private static final String PARAM_ID = "id";
+	private static final long EXPIRY = TimeUnit.MINUTES.toMillis(30);
+	private final Map<String, Export> exports = new ConcurrentHashMap<>();
+	private final SecureRandom random = new SecureRandom();
+	private volatile String path = PATH;
+	
+	void setPath(String path) {
+		this.path = Objects.requireNonNull(path);
+	}
+	
+	/**
+	 * @return
+	 * 		the alias under which the servlet has been registered
+	 */
+	String getPath() {
+		return path;
+	}
+	
+	/**
+	 * @param timeSeries
+	 * @param persistence
+	 * @param options
+	 * @param fileName
+	 * @return
+	 * 		the download URL; valid for 30 minutes
+	 */
+	String register(ReadOnlyTimeSeries timeSeries, FileBasedPersistence persistence, String options, String fileName) {
+		final long now = System.currentTimeMillis();
+		final Iterator<Export> it = exports.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().expiry < now)
+				it.remove();
+		}
+		final Export export = new Export(timeSeries, persistence, options, fileName, now + EXPIRY);
+		String id;
+		do {
+			id = Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+		} while (exports.putIfAbsent(id, export) != null);
+		return path + "?" + PARAM_ID + "=" + id;
+	}
+	
+	void clear() {
+		exports.clear();
+	}
+	
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		final String id = req.getParameter(PARAM_ID);
+		final Export export = id != null ? exports.get(id) : null;
+		if (export == null || export.expiry < System.currentTimeMillis()) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Export not found or expired");
+			return;
+		}
+		resp.setContentType("application/octet-stream");
+		resp.setCharacterEncoding("UTF-8");
+		resp.setHeader("Content-Disposition", "attachment; filename=\"" + export.fileName.replace("\"", "") + "\"");
+		resp.setStatus(HttpServletResponse.SC_OK);
+		final Writer writer = resp.getWriter();
+		try {
+			// XXX Float.class
+			export.persistence.generate(export.timeSeries, export.options, Float.class, writer);
+		} catch (IllegalArgumentException e) {
+			// response is probably committed already
+			throw new ServletException("Export failed", e);
+		}
+		writer.flush();
+	}
+	
+	private static class Export {
+		
+		final ReadOnlyTimeSeries timeSeries;
+		final FileBasedPersistence persistence;
+		final String options;
+		final String fileName;
+		final long expiry;
+		
+		Export(ReadOnlyTimeSeries timeSeries, FileBasedPersistence persistence, String options, String fileName, long expiry) {
+			this.timeSeries = timeSeries;
+			this.persistence = persistence;
+			this.options = options;
+			this.fileName = fileName;
+			this.expiry = expiry;
+		}
+		
+	}
+	
+}
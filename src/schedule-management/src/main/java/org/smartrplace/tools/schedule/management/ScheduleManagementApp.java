@@ -66,6 +66,8 @@ public class ScheduleManagementApp implements Application {
 	private final Set<DataProvider<?>> sourceQueue2 = new HashSet<>(8);
 	private final Set<TimeSeriesPersistence> targetQueue = new HashSet<>(8);
 	private WidgetApp wApp;
+	private FileExportServlet exportServlet;
+	private BatchImport batchImport;
 	ApplicationManager am;
 	private ServiceRegistration<?> adminAppRegistration;
 	private ServiceRegistration<?> scheduleAppRegistration; 
@@ -81,7 +83,10 @@ public class ScheduleManagementApp implements Application {
 		dataSources = new DataSourceFactory(this);
 		fileBasedDataSources = new FileBasedDataGeneratorFactory();
 		drainQueue();
-		new ScheduleMgmtPage(page, dataSources, dataSources2, fileBasedDataSources, appManager);
+		exportServlet = new FileExportServlet();
+		exportServlet.setPath(appManager.getWebAccessManager().registerWebResource(FileExportServlet.PATH, exportServlet));
+		batchImport = new BatchImport(appManager.getDataFile("batchimport").toPath());
+		new ScheduleMgmtPage(page, dataSources, dataSources2, fileBasedDataSources, exportServlet, batchImport, appManager);
 		boolean test = Boolean.getBoolean("org.ogema.apps.createtestresources");
 		if (test)
 			createTestSchedule();
@@ -125,7 +130,21 @@ public class ScheduleManagementApp implements Application {
 	public synchronized void stop(AppStopReason reason) {
 		if (wApp != null)
 			wApp.close();
+		if (exportServlet != null) {
+			try {
+				am.getWebAccessManager().unregisterWebResource(exportServlet.getPath());
+			} catch (Exception e) {
+				am.getLogger().warn("Failed to unregister export servlet",e);
+			}
+			exportServlet.clear();
+		}
+		exportServlet = null;
+		if (batchImport != null)
+			batchImport.close();
+		batchImport = null;
 		fillQueue();
+		if (dataSources != null)
+			dataSources.close();
 		wApp = null;
 		am = null;
 		dataSources = null;
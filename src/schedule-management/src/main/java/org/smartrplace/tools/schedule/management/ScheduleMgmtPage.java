@@ -15,10 +15,7 @@
  */
 package org.smartrplace.tools.schedule.management;
 
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.security.AccessController;
@@ -31,9 +28,9 @@ import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.io.FileUtils;
 import org.json.JSONObject;
 import org.ogema.core.application.ApplicationManager;
 import org.ogema.core.channelmanager.measurements.FloatValue;
@@ -52,7 +49,6 @@ import org.ogema.tools.resource.util.TimeUtils;
 import org.ogema.tools.timeseries.api.MemoryTimeSeries;
 import org.ogema.tools.timeseries.implementations.FloatTreeTimeSeries;
 import org.ogema.tools.timeseries.implementations.TreeTimeSeries;
-import org.osgi.framework.FrameworkUtil;
 import org.smartrplace.tools.schedule.management.imports.DataGenerator;
 import org.smartrplace.tools.schedule.management.imports.FileBasedDataGenerator;
 import org.smartrplace.tools.schedule.management.imports.OgemaDataSource;
@@ -73,11 +69,10 @@ import de.iwes.widgets.api.widgets.sessionmanagement.OgemaHttpRequest;
 import de.iwes.widgets.html.accordion.Accordion;
 import de.iwes.widgets.html.alert.Alert;
 import de.iwes.widgets.html.calendar.datepicker.Datepicker;
-import de.iwes.widgets.html.filedownload.FileDownload;
-import de.iwes.widgets.html.filedownload.FileDownloadData;
 import de.iwes.widgets.html.fileupload.FileUpload;
 import de.iwes.widgets.html.fileupload.FileUploadListener;
 import de.iwes.widgets.html.form.button.Button;
+import de.iwes.widgets.html.form.button.RedirectButton;
 import de.iwes.widgets.html.form.checkbox.Checkbox;
 import de.iwes.widgets.html.form.dropdown.Dropdown;
 import de.iwes.widgets.html.form.dropdown.DropdownData;
@@ -168,6 +163,12 @@ class ScheduleMgmtPage {
 	private final FileUpload fileImportUpload;
 	private final Button loadFileDataSubmit;
 	private final FileUploadLatch fileImportWaiter;
+	private final TextField batchImportPattern;
+	private final FileUpload batchImportUpload;
+	private final Button batchImportSubmit;
+	private final Label batchImportStatus;
+	// time of the last batch upload request
+	private volatile long lastBatchUpload = -1;
 	
 	// plot data
 	private final Datepicker plotStartTime;
@@ -196,8 +197,7 @@ class ScheduleMgmtPage {
 	private final TextField filePersistenceDelimiterField;
 	private final Label filePersistentOptionLabel;
 	private final Button generateDownloadFile;
-	private final FileDownload filePersistenceDownload;
-	private final Button filePersistenceDownloadStart;
+	private final RedirectButton filePersistenceDownloadStart;
 	
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	ScheduleMgmtPage(
@@ -205,6 +205,8 @@ class ScheduleMgmtPage {
 			DataSourceFactory dataSources, 
 			Set<DataProvider<?>> dataSources2,
 			FileBasedDataGeneratorFactory fileSources, 
+			FileExportServlet exportServlet,
+			BatchImport batchImport,
 			ApplicationManager am) {
 		this.page = page;
 		this.header = new Header(page, "header", "Schedule management");
@@ -647,12 +649,18 @@ class ScheduleMgmtPage {
 				final boolean endMover = loadScheduleReplaceCheckbox.moveEndHere(req);
 				final boolean start0Mover = loadScheduleReplaceCheckbox.moveStartTo0(req);
 				final int repeat = loadScheduleRepeatTimes.getNumericalValue(req);
-				final List<SampledValue> values = Utils.getValues(rots, am.getFrameworkTime(), startMover, endMover, start0Mover, repeat);
+				ReadOnlyTimeSeries values = Utils.getValues(rots, am.getFrameworkTime(), startMover, endMover, start0Mover, repeat);
+				if (!newCreated && Utils.mayAlias(rots, mainTs)) {
+					// source may be backed by the target, we cannot write while iterating
+					final FloatTreeTimeSeries copy = new FloatTreeTimeSeries();
+					copy.addValues(values.getValues(Long.MIN_VALUE));
+					values = copy;
+				}
 				if (replace) {
-					if (rots.getNextValue(Long.MIN_VALUE) != null) { // not empty 
-						long min = rots.getNextValue(Long.MIN_VALUE).getTimestamp();
-						long max = rots.getPreviousValue(Long.MAX_VALUE).getTimestamp();
-						mainTs.replaceValues(min, max, values);
+					if (values.getNextValue(Long.MIN_VALUE) != null) { // not empty 
+						long min = values.getNextValue(Long.MIN_VALUE).getTimestamp();
+						long max = values.getPreviousValue(Long.MAX_VALUE).getTimestamp();
+						Utils.writeValues(values, mainTs, true);
 						msg.append("Values replaced in interval [" + min + ", " + max + "]. ");
 					}
 					else {
@@ -660,7 +668,7 @@ class ScheduleMgmtPage {
 					}
 				}
 				else {
-					mainTs.addValues(values);
+					Utils.writeValues(values, mainTs, false);
 					msg.append("Values added");
 				}
 				alert.showAlert(msg.toString(), true, req);
@@ -803,6 +811,69 @@ class ScheduleMgmtPage {
 		};
 		
 		
+		this.batchImportPattern = new TextField(page, "batchImportPattern");
+		this.batchImportUpload = new FileUpload(page, "batchImportUpload", am) {
+
+			private static final long serialVersionUID = 1L;
+			private final FileUploadListener<BatchImportContext> listener = new BatchImportListener(batchImport);
+			
+			@Override
+			public void onPrePOST(String data, OgemaHttpRequest req) {
+				final LabelledItem generator = importSelector.getSelectedItem(req);
+				if (!(generator instanceof FileBasedDataGenerator)) {
+					disable(req);
+					return;
+				}
+				final FileBasedDataGenerator fgen = (FileBasedDataGenerator) generator; 
+				final String option = fileImportDelimiterField.getValue(req);
+				final String issues = fgen.checkOptionsString(option, req.getLocale());
+				if (issues != null) {
+					alert.showAlert(issues, false, req);
+					disable(req);
+					return;
+				}
+				final String pattern = batchImportPattern.getValue(req).trim();
+				if (!pattern.contains(BatchImportContext.NAME_PLACEHOLDER)) {
+					alert.showAlert("Target path must contain the placeholder " + BatchImportContext.NAME_PLACEHOLDER, false, req);
+					disable(req);
+					return;
+				}
+				enable(req);
+				final boolean replace =  fileImportReplaceCheckbox.doReplaceExisting(req);
+				final boolean startMover =  fileImportReplaceCheckbox.moveStartHere(req);
+				final boolean endMover = fileImportReplaceCheckbox.moveEndHere(req);
+				final boolean start0Mover = fileImportReplaceCheckbox.moveStartTo0(req);
+				final int repeat = fileImportRepeatTimes.getNumericalValue(req);
+				final long now = am.getFrameworkTime();
+				final Function<String, TimeSeries> targets = name -> {
+					final Resource r = am.getResourceAccess().getResource(pattern.replace(BatchImportContext.NAME_PLACEHOLDER, name));
+					return r instanceof Schedule ? (Schedule) r : null;
+				};
+				final BatchImport.FileImporter importer = (item, target) -> new FileImportContext(fgen, target, replace, option, 
+						startMover, endMover, start0Mover, now, repeat).importFile(item);
+				registerListener(listener, new BatchImportContext(targets, importer), req);
+				lastBatchUpload = System.currentTimeMillis();
+			}
+			
+		};
+		this.batchImportSubmit = new Button(page, "batchImportSubmit", "Start batch import");
+		this.batchImportStatus = new Label(page, "batchImportStatus") {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void onGET(OgemaHttpRequest req) {
+				final BatchImport.Job job = batchImport.getJob();
+				setText(job != null ? job.getStatus() : "", req);
+				// keep polling while a job is running, or an upload has been started recently but not arrived yet
+				final long lastUpload = lastBatchUpload;
+				final boolean uploadPending = lastUpload > 0 && System.currentTimeMillis() - lastUpload < 60000 
+						&& (job == null || job.getStartTime() < lastUpload);
+				setPollingInterval(uploadPending || (job != null && !job.isDone()) ? 2000 : -1, req);
+			}
+			
+		};
+		
 		this.loadFileDataSubmit = new Button(page, "loadFileDataSubmit","Upload");
 		this.fileImportDescription = new Label(page, "fileImportDescription") {
 
@@ -830,8 +901,15 @@ class ScheduleMgmtPage {
 		fileImportTable.setContent(0, 0, "Supported files").setContent(0, 1, fileImportSupportedFilesLabel)
 			.setContent(1, 0, fileImportOptionsLabel).setContent(1, 1, fileImportDelimiterField)
 			.setContent(2, 0, "Select a file").setContent(2, 1, fileImportUpload);
+		StaticTable batchImportTable = new StaticTable(4, 2);
+		batchImportTable.setContent(0, 0, "Target schedule path; " + BatchImportContext.NAME_PLACEHOLDER + " is replaced by the file name")
+				.setContent(0, 1, batchImportPattern)
+			.setContent(1, 0, "Select files (zip files are expanded)").setContent(1, 1, batchImportUpload)
+			.setContent(2, 1, batchImportSubmit)
+			.setContent(3, 0, "Status").setContent(3, 1, batchImportStatus);
 		fileImportSnippet.append(fileImportTable, null).linebreak(null).append(fileImportReplaceCheckbox, null)
-			.linebreak(null).append("Repeat ", null).append(fileImportRepeatTimes, null).append(" times", null);
+			.linebreak(null).append("Repeat ", null).append(fileImportRepeatTimes, null).append(" times", null)
+			.linebreak(null).append("Batch import into multiple schedules", null).append(batchImportTable, null);
 		fileImportPopup.setBody(fileImportSnippet, null);
 		fileImportPopup.setFooter(loadFileDataSubmit, null);
 		
@@ -1058,16 +1136,6 @@ class ScheduleMgmtPage {
 				setValue(((FileBasedPersistence) persistence).defaultOptionString(),req);
 			}
 		};
-		final File tempFolder = FrameworkUtil.getBundle(getClass()).getBundleContext().getDataFile("temp");
-		if (tempFolder.exists() && tempFolder.isDirectory()) {
-			try {
-				FileUtils.deleteDirectory(tempFolder);
-			} catch (IOException ignore) {
-			}
-		}
-		this.filePersistenceDownload = new FileDownload(page, "filePersistenceDownload", am.getWebAccessManager());
-		
-		
 		this.generateDownloadFile = new Button(page, "generateDownloadFile", "Generate") {
 			
 			private static final long serialVersionUID = 1L;
@@ -1089,21 +1157,10 @@ class ScheduleMgmtPage {
 					alert.showAlert(issues, false, req);
 					return;
 				}
-				try {
-					if (!tempFolder.exists())
-						tempFolder.mkdirs();
-					String prefix = getFileNamePrefix(rots);
-					String flEnding = fp.getFileEnding(options);
-					File fl = File.createTempFile(prefix, "." + flEnding, tempFolder);
-					try (Writer writer = new FileWriter(fl)) {
-						// XXX Float.class
-						fp.generate(rots, options, Float.class, writer);
-					}
-					filePersistenceDownload.setFile(fl, req);
-					alert.showAlert("Saved", true, req);
-				} catch (IllegalArgumentException | IOException e) {
-					alert.showAlert("Saving failed " + e, false, req);
-				}
+				// the file is generated while it is downloaded
+				final String fileName = getFileNamePrefix(rots) + "." + fp.getFileEnding(options);
+				filePersistenceDownloadStart.setUrl(exportServlet.register(rots, fp, options, fileName), req);
+				alert.showAlert("Download ready", true, req);
 			}
 			
 		};
@@ -1122,25 +1179,14 @@ class ScheduleMgmtPage {
 			}
 			
 		};
-		this.filePersistenceDownloadStart = new Button(page, "filePersistenceDownloadStart", "Download") {
-
-			private static final long serialVersionUID = 1L;
-			
-			@Override
-			public void onGET(OgemaHttpRequest req) {
-				// FIXME 
-//				filePersistenceDownload.getFile(req)  missing!
-			}
-			
-		};
+		this.filePersistenceDownloadStart = new RedirectButton(page, "filePersistenceDownloadStart", "Download");
 
 		this.filePersistencePopup = new Popup(page, "filePersistencePopup", true); 
 		PageSnippet filePersistenceSnippet = new PageSnippet(page, "filePersistenceSnippet", true);
-		StaticTable filePersistenceTable = new StaticTable(4, 2);
+		StaticTable filePersistenceTable = new StaticTable(3, 2);
 		filePersistenceTable.setContent(0, 0, filePersistentOptionLabel).setContent(0, 1, filePersistenceDelimiterField)
 							.setContent(1, 0, "Generate file").setContent(1, 1, generateDownloadFile)
-							.setContent(2, 0, "Start download").setContent(2, 1, filePersistenceDownloadStart)
-												.setContent(3, 1, filePersistenceDownload);
+							.setContent(2, 0, "Start download").setContent(2, 1, filePersistenceDownloadStart);
 		
 		filePersistenceSnippet.append(filePersistenceTable, null);
 		filePersistencePopup.setDefaultTitle("Export date");
@@ -1280,6 +1326,9 @@ class ScheduleMgmtPage {
 		loadFileDataSubmit.triggerAction(mainSelector, TriggeringAction.POST_REQUEST, TriggeredAction.GET_REQUEST); // reload everything
 		fileImportUpload.triggerAction(fileImportWaiter, TriggeringAction.POST_REQUEST, TriggeredAction.POST_REQUEST);
 		fileImportWaiter.triggerAction(alert, TriggeringAction.POST_REQUEST, TriggeredAction.GET_REQUEST);
+		batchImportSubmit.triggerAction(batchImportUpload, TriggeringAction.POST_REQUEST, TriggeredAction.POST_REQUEST);
+		batchImportUpload.triggerAction(batchImportStatus, TriggeringAction.POST_REQUEST, TriggeredAction.GET_REQUEST);
+		batchImportUpload.triggerAction(alert, TriggeringAction.POST_REQUEST, TriggeredAction.GET_REQUEST);
 		fileImportWaiter.triggerAction(firstTimestamp, TriggeringAction.POST_REQUEST, TriggeredAction.GET_REQUEST);
 		fileImportWaiter.triggerAction(lastTimestamp, TriggeringAction.POST_REQUEST, TriggeredAction.GET_REQUEST);
 		// plot data
@@ -1302,9 +1351,9 @@ class ScheduleMgmtPage {
 			// file persistence		
 		openFilePersistencePopup.triggerAction(filePersistenceDelimiterField, TriggeringAction.POST_REQUEST, TriggeredAction.GET_REQUEST);
 		openFilePersistencePopup.triggerAction(filePersistentOptionLabel, TriggeringAction.POST_REQUEST, TriggeredAction.GET_REQUEST);
-		generateDownloadFile.triggerAction(filePersistenceDownload, TriggeringAction.POST_REQUEST, TriggeredAction.GET_REQUEST);
+		generateDownloadFile.triggerAction(filePersistenceDownloadStart, TriggeringAction.POST_REQUEST, TriggeredAction.GET_REQUEST);
+		generateDownloadFile.triggerAction(alert, TriggeringAction.POST_REQUEST, TriggeredAction.GET_REQUEST);
 		openFilePersistencePopup.triggerAction(filePersistencePopup, TriggeringAction.POST_REQUEST, TriggeredAction.SHOW_WIDGET);
-		filePersistenceDownloadStart.triggerAction(filePersistenceDownload, TriggeringAction.POST_REQUEST, FileDownloadData.STARTDOWNLOAD);
 		filePersistenceDownloadStart.triggerAction(filePersistencePopup, TriggeringAction.POST_REQUEST, TriggeredAction.HIDE_WIDGET);
 
 	}
@@ -1447,6 +1496,91 @@ class ScheduleMgmtPage {
 			this.repeat = repeat;
 		}
 		
+		/**
+		 * Note that the import is not atomic: values are written batch-wise, and if writing fails
+		 * the batches written before remain in the time series (and in replace mode the old values 
+		 * in their range are gone). The file is parsed and checked completely before the first batch
+		 * is written, so malformed or unsorted files do not lead to a partial import.
+		 * @param fileItem
+		 * @throws IOException
+		 * @throws ImportFailedException if writing failed after some values had been written already
+		 */
+		void importFile(FileItem fileItem) throws IOException {
+			final Utils.BatchWriter writer = new Utils.BatchWriter(timeSeries, replaceValues);
+			if (moveStart || moveEnd || moveStart0 || repeat != 1) {
+				// the transformation requires the complete data set; it is applied lazily when copying the values
+				final FloatTreeTimeSeries buffer = new FloatTreeTimeSeries();
+				generator.parseFile(fileItem, Float.class, option, Long.MIN_VALUE, Long.MAX_VALUE, 
+						Utils.BATCH_SIZE, buffer::addValues);
+				final ReadOnlyTimeSeries values = Utils.getValues(buffer, now, moveStart, moveEnd, moveStart0, repeat);
+				try {
+					Utils.writeValues(values, writer);
+				} catch (RuntimeException e) {
+					throw new ImportFailedException(writer.getCount(), e);
+				}
+			} else {
+				// first pass only parses and checks the file, so that a bad line cannot leave a partial import behind
+				final long[] last = { Long.MIN_VALUE };
+				generator.parseFile(fileItem, Float.class, option, Long.MIN_VALUE, Long.MAX_VALUE, 
+						Utils.BATCH_SIZE, batch -> {
+							if (!batch.isEmpty())
+								last[0] = Utils.checkOrder(batch, last[0]);
+						});
+				// second pass streams the file content into the time series batch-wise
+				try {
+					generator.parseFile(fileItem, Float.class, option, Long.MIN_VALUE, Long.MAX_VALUE, 
+						Utils.BATCH_SIZE, writer);
+				} catch (IOException | RuntimeException e) {
+					throw new ImportFailedException(writer.getCount(), e);
+				}
+			}
+		}
+		
+	}
+	
+	/**
+	 * Signals that writing the imported values failed; the time series may contain
+	 * part of the imported data.
+	 */
+	@SuppressWarnings("serial")
+	private static class ImportFailedException extends IOException {
+		
+		private final long valuesWritten;
+		
+		ImportFailedException(long valuesWritten, Throwable cause) {
+			super("Import failed after " + valuesWritten + " values had been written", cause);
+			this.valuesWritten = valuesWritten;
+		}
+		
+	}
+	
+	private static class BatchImportContext {
+		
+		static final String NAME_PLACEHOLDER = "{name}";
+		private final Function<String, TimeSeries> targets;
+		private final BatchImport.FileImporter importer;
+		
+		BatchImportContext(Function<String, TimeSeries> targets, BatchImport.FileImporter importer) {
+			this.targets = Objects.requireNonNull(targets);
+			this.importer = Objects.requireNonNull(importer);
+		}
+		
+	}
+	
+	private static class BatchImportListener implements FileUploadListener<BatchImportContext> {
+		
+		private final BatchImport batchImport;
+		
+		BatchImportListener(BatchImport batchImport) {
+			this.batchImport = batchImport;
+		}
+		
+		@Override
+		public void fileUploaded(FileItem fileItem, BatchImportContext context, OgemaHttpRequest req) {
+			// returns immediately, the import runs in the background
+			batchImport.submit(fileItem, context.targets, context.importer);
+		}
+		
 	}
 	
 	private static class FileUploadLatch extends LatchWidget {
@@ -1498,16 +1632,11 @@ class ScheduleMgmtPage {
 		@Override
 		public void fileUploaded(FileItem fileItem, FileImportContext context, OgemaHttpRequest req) {
 			try {
-				List<SampledValue> values = context.generator.parseFile(fileItem, Float.class, context.option);
-				if (context.moveStart || context.moveEnd || context.moveStart0 || context.repeat != 1)
-					values = Utils.getValues(values, context.now, context.moveStart, context.moveEnd, context.moveStart0, context.repeat);
-				if (context.replaceValues) {
-					if (!values.isEmpty())
-						context.timeSeries.replaceValues(values.get(0).getTimestamp(), values.get(values.size()-1).getTimestamp(), values);
-				}
-				else 
-					context.timeSeries.addValues(values);
+				context.importFile(fileItem);
 				latch.setIssues(null, req);
+			} catch (ImportFailedException e) {
+				latch.setIssues("Upload failed after " + e.valuesWritten + " values had been written, "
+						+ "the time series now contains a partial import: " + e.getCause(), req);
 			} catch (Exception e) {
 				latch.setIssues("Upload failed: " + e, req);
 			} finally {
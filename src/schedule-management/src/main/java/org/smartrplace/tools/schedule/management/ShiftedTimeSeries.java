@@ -0,0 +1,236 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.tools.schedule.management;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.ogema.core.channelmanager.measurements.SampledValue;
+import org.ogema.core.timeseries.InterpolationMode;
+import org.ogema.core.timeseries.ReadOnlyTimeSeries;
+
+/**
+ * A read-only view of a time series, shifted by a fixed offset and repeated a
+ * given number of times. Values are mapped on the fly, nothing is copied. 
+ * The repetitions are adjacent, each one being shifted against the previous one 
+ * by the duration of the source time series, plus the distance between its first 
+ * two points. The source time series must not change while the view is in use.
+ */
+class ShiftedTimeSeries implements ReadOnlyTimeSeries {
+	
+	private final ReadOnlyTimeSeries source;
+	// first and last timestamp of the source
+	private final long first;
+	private final long last;
+	// offset of the earliest repetition
+	private final long baseOffset;
+	private final long period;
+	private final int repetitions;
+	
+	/**
+	 * @param source
+	 * 		must be non-empty
+	 * @param offset
+	 * 		the offset of the first repetition
+	 * @param repetitions
+	 * 		must be positive
+	 * @param backwards
+	 * 		if true, repetitions are appended before the first one, instead of after it
+	 */
+	ShiftedTimeSeries(ReadOnlyTimeSeries source, long offset, int repetitions, boolean backwards) {
+		if (repetitions <= 0)
+			throw new IllegalArgumentException("Number of repetitions must be positive, got " + repetitions);
+		final Iterator<SampledValue> it = source.iterator();
+		if (!it.hasNext())
+			throw new IllegalArgumentException("Time series is empty");
+		this.source = source;
+		this.first = it.next().getTimestamp();
+		this.last = source.getPreviousValue(Long.MAX_VALUE).getTimestamp();
+		final long delta = it.hasNext() ? it.next().getTimestamp() - first : 1000;
+		this.period = last - first + delta;
+		this.repetitions = repetitions;
+		this.baseOffset = backwards ? offset - (repetitions - 1) * period : offset;
+	}
+	
+	private long offset(int repetition) {
+		return baseOffset + repetition * period;
+	}
+	
+	/**
+	 * @param t
+	 * @return
+	 * 		the index of the repetition which contains t or, if t lies in a gap, 
+	 * 		the one before it; 0 if t is before the first, and the last index if t is
+	 * 		after the last repetition
+	 */
+	private int repetition(long t) {
+		if (t <= first + baseOffset)
+			return 0;
+		if (t >= last + offset(repetitions - 1))
+			return repetitions - 1;
+		return (int) ((t - first - baseOffset) / period);
+	}
+	
+	private static long subtract(long t, long offset) {
+		final long result = t - offset;
+		// saturate on overflow
+		if (((t ^ offset) & (t ^ result)) < 0)
+			return t < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+		return result;
+	}
+	
+	private static SampledValue shift(SampledValue sv, long offset) {
+		if (sv == null)
+			return null;
+		return new SampledValue(sv.getValue(), sv.getTimestamp() + offset, sv.getQuality());
+	}
+
+	@Override
+	public SampledValue getValue(long time) {
+		final int idx = repetition(time);
+		final long offset = offset(idx);
+		return shift(source.getValue(subtract(time, offset)), offset);
+	}
+
+	@Override
+	public SampledValue getNextValue(long time) {
+		int idx = repetition(time);
+		SampledValue sv = source.getNextValue(subtract(time, offset(idx)));
+		if (sv == null && ++idx < repetitions)
+			sv = source.getNextValue(first);
+		return shift(sv, offset(idx));
+	}
+
+	@Override
+	public SampledValue getPreviousValue(long time) {
+		final int idx = repetition(time);
+		final long offset = offset(idx);
+		return shift(source.getPreviousValue(subtract(time, offset)), offset);
+	}
+
+	@Override
+	public List<SampledValue> getValues(long startTime) {
+		return getValues(startTime, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Prefer {@link #iterator(long, long)}, which does not copy the values.
+	 */
+	@Override
+	public List<SampledValue> getValues(long startTime, long endTime) {
+		final List<SampledValue> values = new ArrayList<>();
+		if (endTime <= startTime)
+			return values;
+		final Iterator<SampledValue> it = iterator(startTime, endTime - 1);
+		while (it.hasNext())
+			values.add(it.next());
+		return values;
+	}
+
+	@Override
+	public InterpolationMode getInterpolationMode() {
+		return source.getInterpolationMode();
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return false;
+	}
+	
+	@Override
+	public boolean isEmpty(long startTime, long endTime) {
+		return !iterator(startTime, endTime).hasNext();
+	}
+	
+	@Override
+	public int size() {
+		return (int) Math.min((long) source.size() * repetitions, Integer.MAX_VALUE);
+	}
+	
+	@Override
+	public int size(long startTime, long endTime) {
+		if (endTime < startTime)
+			return 0;
+		long size = 0;
+		for (int i = repetition(startTime); i <= repetition(endTime); i++) {
+			final long offset = offset(i);
+			size += source.size(subtract(startTime, offset), subtract(endTime, offset));
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+	
+	@Override
+	public Iterator<SampledValue> iterator() {
+		return iterator(Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Start and end time inclusive.
+	 */
+	@Override
+	public Iterator<SampledValue> iterator(long startTime, long endTime) {
+		return new ShiftedIterator(startTime, endTime);
+	}
+	
+	private class ShiftedIterator implements Iterator<SampledValue> {
+		
+		private final long startTime;
+		private final long endTime;
+		private final int lastRepetition;
+		private int repetition;
+		private long offset;
+		private Iterator<SampledValue> current;
+		
+		ShiftedIterator(long startTime, long endTime) {
+			this.startTime = startTime;
+			this.endTime = endTime;
+			this.repetition = repetition(startTime);
+			this.lastRepetition = endTime >= startTime ? repetition(endTime) : -1;
+			if (repetition <= lastRepetition)
+				open();
+		}
+		
+		private void open() {
+			offset = offset(repetition);
+			current = source.iterator(subtract(startTime, offset), subtract(endTime, offset));
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if (current == null)
+				return false;
+			while (!current.hasNext()) {
+				if (++repetition > lastRepetition) {
+					current = null;
+					return false;
+				}
+				open();
+			}
+			return true;
+		}
+		
+		@Override
+		public SampledValue next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return shift(current.next(), offset);
+		}
+		
+	}
+
+}
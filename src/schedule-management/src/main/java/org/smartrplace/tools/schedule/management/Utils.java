@@ -18,11 +18,16 @@ package org.smartrplace.tools.schedule.management;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.Consumer;
 
 import org.ogema.core.channelmanager.measurements.SampledValue;
+import org.ogema.core.model.schedule.Schedule;
 import org.ogema.core.timeseries.ReadOnlyTimeSeries;
+import org.ogema.core.timeseries.TimeSeries;
 
 class Utils {
+	
+	static final int BATCH_SIZE = 10000;
 
 	static boolean isValidResourceName(String name) {
 		if (name == null || name.isEmpty() || !Character.isJavaIdentifierStart(name.charAt(0)))
@@ -34,73 +39,142 @@ class Utils {
 		return true;
 	}
 	
-	static List<SampledValue> getValues(final ReadOnlyTimeSeries timeSeries, final long now, 
+	/**
+	 * Returns false only if source and target are known to be different time series, i.e. if
+	 * writing to target cannot affect the values of source. Different objects may represent 
+	 * the same schedule resource, and data sources may wrap a schedule, so unless both are
+	 * schedules at different locations the source is assumed to alias the target.
+	 */
+	static boolean mayAlias(final ReadOnlyTimeSeries source, final TimeSeries target) {
+		if (source == target)
+			return true;
+		if (source instanceof Schedule && target instanceof Schedule)
+			return ((Schedule) source).getLocation().equals(((Schedule) target).getLocation());
+		return true;
+	}
+	
+	/**
+	 * Returns a lazy view of the time series, with the requested shift and repetitions applied.
+	 * If no transformation is requested, the time series itself is returned.
+	 */
+	static ReadOnlyTimeSeries getValues(final ReadOnlyTimeSeries timeSeries, final long now, 
 				final boolean moveStartHere, final boolean moveEndHere, final boolean moveStart0, int repeat) {
 		if ((!moveStartHere && !moveEndHere && !moveStart0 && repeat == 1) || timeSeries.isEmpty())
-			return timeSeries.getValues(Long.MIN_VALUE);
-		long offset;
-		if (moveStartHere) {
-			final SampledValue start = timeSeries.getNextValue(Long.MIN_VALUE);
-			offset = (start != null ? now - start.getTimestamp() : 0);
-		} else if (moveEndHere) {
-			final SampledValue end = timeSeries.getPreviousValue(Long.MAX_VALUE);
-			offset = (end != null ? now - end.getTimestamp() : 0);
-		} else { // moveStart0
-			final SampledValue start = timeSeries.getNextValue(Long.MIN_VALUE);
-			offset = start != null ? -start.getTimestamp() : 0;
-		}
-		final List<SampledValue> values = new ArrayList<>();
-		for (int i=0;i<repeat;i++) {
-		      appendValues(timeSeries.iterator(), offset, values);
-		      if (values.isEmpty())
-		    	  break;
-		      final SampledValue first = values.get(0);
-		      final SampledValue last = values.get(values.size()-1);
-		      final long delta = (values.size() > 1 ? values.get(1).getTimestamp() - first.getTimestamp() : 1000);
-		      offset = last.getTimestamp() - first.getTimestamp() + delta;
+			return timeSeries;
+		final long offset;
+		if (moveStartHere) 
+			offset = now - timeSeries.getNextValue(Long.MIN_VALUE).getTimestamp();
+		else if (moveEndHere) 
+			offset = now - timeSeries.getPreviousValue(Long.MAX_VALUE).getTimestamp();
+		else if (moveStart0) 
+			offset = -timeSeries.getNextValue(Long.MIN_VALUE).getTimestamp();
+		else
+			offset = 0;
+		// when the end is moved, further repetitions are placed before the original one
+		return new ShiftedTimeSeries(timeSeries, offset, Math.max(repeat, 1), moveEndHere);
+	}
+	
+	/**
+	 * Copy all values of source to target, in batches of {@link #BATCH_SIZE} values.
+	 * @param source
+	 * @param target
+	 * @param replace
+	 * 		replace existing values in target, in the interval between the first and last
+	 * 		source timestamp
+	 * @return
+	 * 		the number of values copied
+	 */
+	static long writeValues(final ReadOnlyTimeSeries source, final TimeSeries target, final boolean replace) {
+		return writeValues(source, new BatchWriter(target, replace));
+	}
+	
+	/**
+	 * Like {@link #writeValues(ReadOnlyTimeSeries, TimeSeries, boolean)}, but passing the values to the
+	 * given writer, which can be queried for the number of values written if the copy fails.
+	 * @param source
+	 * @param writer
+	 * @return
+	 * 		the number of values copied
+	 */
+	static long writeValues(final ReadOnlyTimeSeries source, final BatchWriter writer) {
+		final Iterator<SampledValue> it = source.iterator();
+		List<SampledValue> batch = new ArrayList<>(BATCH_SIZE);
+		while (it.hasNext()) {
+			batch.add(it.next());
+			if (batch.size() >= BATCH_SIZE) {
+				writer.accept(batch);
+				batch = new ArrayList<>(BATCH_SIZE);
+			}
 		}
-		return values;
+		writer.accept(batch);
+		return writer.getCount();
 	}
 	
-	static List<SampledValue> getValues(final List<SampledValue> timeSeries, final long now, 
-			final boolean moveStartHere, final boolean moveEndHere, final boolean moveStart0, int repeat) {
-		if ((!moveStartHere && !moveEndHere && !moveStart0 && repeat == 1) || timeSeries.isEmpty())
-			return timeSeries;
-		long offset;
-		final int sign;
-		if (moveStartHere) {
-			final SampledValue start = timeSeries.get(0);
-			offset = now - start.getTimestamp();
-			sign = 1;
-		} else if (moveEndHere) {
-			final SampledValue end = timeSeries.get(timeSeries.size()-1);
-			offset = now - end.getTimestamp();
-			sign = -1;
-		} else { // moveStart0
-			final SampledValue start = timeSeries.get(0);
-			offset = -start.getTimestamp();
-			sign = 1;
+	/**
+	 * Writes batches of values to a time series, as they are passed to {@link #accept(List)}. 
+	 * Batches must be sorted, and each batch must start after the previous one; otherwise
+	 * {@link #accept(List)} throws an {@link IllegalArgumentException} before anything is written.
+	 * Batches are written individually, so a failure leaves the batches written before in place; 
+	 * use {@link #getCount()} to find out how many values have been written.<br>
+	 * In replace mode the interval between the end of the previous batch and the end of
+	 * the current batch is replaced, so that in the end the whole range from the first to
+	 * the last imported value has been replaced, as if all values had been written at once.
+	 */
+	static class BatchWriter implements Consumer<List<SampledValue>> {
+		
+		private final TimeSeries target;
+		private final boolean replace;
+		private long lastTimestamp = Long.MIN_VALUE;
+		private boolean first = true;
+		private long count = 0;
+		
+		BatchWriter(TimeSeries target, boolean replace) {
+			this.target = target;
+			this.replace = replace;
+		}
+		
+		@Override
+		public void accept(List<SampledValue> batch) {
+			if (batch.isEmpty())
+				return;
+			final long start = batch.get(0).getTimestamp();
+			final long end = checkOrder(batch, first ? Long.MIN_VALUE : lastTimestamp);
+			if (replace)
+				target.replaceValues(first ? start : lastTimestamp + 1, end, batch);
+			else
+				target.addValues(batch);
+			first = false;
+			lastTimestamp = end;
+			count += batch.size();
 		}
-		final List<SampledValue> values = new ArrayList<>();
-	    final SampledValue first = timeSeries.get(0);
-	    final SampledValue last = timeSeries.get(timeSeries.size()-1);
-	    final long delta = (timeSeries.size() > 1 ? timeSeries.get(1).getTimestamp() - first.getTimestamp() : 1000);
-	    final long size = (last.getTimestamp() - first.getTimestamp() + delta) * sign;
-		for (int i=0;i<repeat;i++) {
-		      appendValues(timeSeries.iterator(), offset, values);
-		      if (values.isEmpty())
-		    	  break;
-		      offset += size;
+		
+		long getCount() {
+			return count;
 		}
-		return values;
+		
 	}
 	
-	private static void appendValues(Iterator<SampledValue> it, long offset,  List<SampledValue> target) {
-		SampledValue sv;
-		while (it.hasNext()) {
-			sv = it.next();
-			target.add(new SampledValue(sv.getValue(), sv.getTimestamp() + offset, sv.getQuality()));
+	/**
+	 * Verifies that the timestamps in batch are strictly increasing, and greater than previous 
+	 * (unless previous equals {@link Long#MIN_VALUE}).
+	 * @param batch
+	 * 		a non-empty list of values
+	 * @param previous
+	 * 		last timestamp of the preceding batch, or {@link Long#MIN_VALUE}
+	 * @return
+	 * 		the last timestamp in batch
+	 * @throws IllegalArgumentException if the values are out of order
+	 */
+	static long checkOrder(final List<SampledValue> batch, long previous) {
+		boolean first = previous == Long.MIN_VALUE;
+		for (SampledValue sv : batch) {
+			final long t = sv.getTimestamp();
+			if (!first && t <= previous)
+				throw new IllegalArgumentException("Values are not sorted by timestamp: " + t + " follows " + previous);
+			first = false;
+			previous = t;
 		}
+		return previous;
 	}
 	
 }
@@ -16,7 +16,9 @@
 package org.smartrplace.tools.schedule.management.imports;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 import org.apache.commons.fileupload.FileItem;
 import org.ogema.core.channelmanager.measurements.SampledValue;
@@ -63,5 +65,24 @@ public interface FileBasedDataGenerator extends DataGenerator {
 	 */
 	List<SampledValue> parseFile(FileItem file, Class<?> type, String options, long start, long end) throws IOException, NumberFormatException;
 	
+	/**
+	 * Parse the file and pass the values to the consumer in batches of at most batchSize values, 
+	 * in the order in which they appear in the file. Implementations should override this
+	 * to read the file incrementally, so that large files can be imported without keeping
+	 * all values in memory; the default implementation parses the complete file first.
+	 * @return
+	 * 		the number of values parsed
+	 */
+	default long parseFile(FileItem file, Class<?> type, String options, long start, long end, 
+			int batchSize, Consumer<List<SampledValue>> batchConsumer) throws IOException, NumberFormatException {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("Batch size must be positive, got " + batchSize);
+		final List<SampledValue> values = parseFile(file, type, options, start, end);
+		for (int i=0; i<values.size(); i+=batchSize) {
+			batchConsumer.accept(new ArrayList<>(values.subList(i, Math.min(i + batchSize, values.size()))));
+		}
+		return values.size();
+	}
+	
 
 }
@@ -36,7 +36,8 @@ import static org.ogema.serialization.JaxbResource.NS_OGEMA_REST;
 
 /**
  * Dummy implementation of a JAXB-compatible wrapper for OGEMA schedules.
- * 
+ * Note that {@link #getEntry()} copies all values of the schedule; use
+ * {@link ScheduleStreamSerializer} for large schedules.
  * 
  * @author jlapp
  * @param <T>
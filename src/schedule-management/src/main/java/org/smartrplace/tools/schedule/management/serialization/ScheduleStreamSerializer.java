@@ -0,0 +1,461 @@
+/**
+ * ﻿Copyright 2018 Smartrplace UG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.smartrplace.tools.schedule.management.serialization;
+
+import static org.ogema.serialization.JaxbResource.NS_OGEMA_REST;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.ogema.core.channelmanager.measurements.BooleanValue;
+import org.ogema.core.channelmanager.measurements.ByteArrayValue;
+import org.ogema.core.channelmanager.measurements.FloatValue;
+import org.ogema.core.channelmanager.measurements.IntegerValue;
+import org.ogema.core.channelmanager.measurements.LongValue;
+import org.ogema.core.channelmanager.measurements.Quality;
+import org.ogema.core.channelmanager.measurements.SampledValue;
+import org.ogema.core.channelmanager.measurements.StringValue;
+import org.ogema.core.channelmanager.measurements.Value;
+import org.ogema.core.timeseries.ReadOnlyTimeSeries;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Streaming reader and writer for the OGEMA REST representation of schedules, in XML and JSON format. 
+ * Values are written while iterating over the time series, and read values are passed on in batches, 
+ * so that memory consumption does not depend on the size of the schedule. The output corresponds
+ * to the one of {@link JaxbSchedule}.
+ */
+public class ScheduleStreamSerializer {
+	
+	private static final String NS_XSI = "http://www.w3.org/2001/XMLSchema-instance";
+	private static final String JSON_TYPE = "@type";
+	private static final JsonFactory jsonFactory = new JsonFactory();
+	
+	private ScheduleStreamSerializer() {}
+	
+	/**
+	 * Write the values of the time series in the interval [start, end] as an OGEMA schedule resource in XML format.
+	 * @param timeSeries
+	 * @param type
+	 * 		value type, one of Float, Integer, Long, Boolean, String or Byte (for byte arrays); null corresponds to Float
+	 * @param start
+	 * @param end
+	 * @param writer
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 * 		if the type is not supported
+	 */
+	public static void writeXml(final ReadOnlyTimeSeries timeSeries, final Class<?> type, final long start, final long end, 
+			final Writer writer) throws IOException {
+		final SerializationType st = SerializationType.forValueType(type);
+		try {
+			final XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(writer);
+			xml.writeStartDocument("UTF-8", "1.0");
+			xml.writeStartElement("og", "resource", NS_OGEMA_REST);
+			xml.writeNamespace("og", NS_OGEMA_REST);
+			xml.writeNamespace("xsi", NS_XSI);
+			xml.writeAttribute("xsi", NS_XSI, "type", "og:" + st.scheduleType);
+			writeXmlElement(xml, "interpolationMode", timeSeries.getInterpolationMode().name());
+			writeXmlElement(xml, "start", String.valueOf(start));
+			writeXmlElement(xml, "end", String.valueOf(end));
+			final Iterator<SampledValue> it = timeSeries.iterator(start, end);
+			SampledValue sv;
+			while (it.hasNext()) {
+				sv = it.next();
+				xml.writeStartElement("entry");
+				xml.writeAttribute("xsi", NS_XSI, "type", "og:" + st.entryType);
+				writeXmlElement(xml, "time", String.valueOf(sv.getTimestamp()));
+				writeXmlElement(xml, "quality", sv.getQuality().name());
+				writeXmlElement(xml, "value", st.toString(sv.getValue()));
+				xml.writeEndElement();
+			}
+			xml.writeEndElement();
+			xml.writeEndDocument();
+			xml.flush();
+			xml.close(); // does not close the underlying writer
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	/**
+	 * Write the values of the time series in the interval [start, end] as an OGEMA schedule resource in JSON format.
+	 * @param timeSeries
+	 * @param type
+	 * 		value type, one of Float, Integer, Long, Boolean, String or Byte (for byte arrays); null corresponds to Float
+	 * @param start
+	 * @param end
+	 * @param writer
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 * 		if the type is not supported
+	 */
+	public static void writeJson(final ReadOnlyTimeSeries timeSeries, final Class<?> type, final long start, final long end, 
+			final Writer writer) throws IOException {
+		final SerializationType st = SerializationType.forValueType(type);
+		try (final JsonGenerator json = jsonFactory.createGenerator(writer)) {
+			json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			json.useDefaultPrettyPrinter();
+			json.writeStartObject();
+			json.writeStringField(JSON_TYPE, st.scheduleType);
+			json.writeStringField("interpolationMode", timeSeries.getInterpolationMode().name());
+			json.writeNumberField("start", start);
+			json.writeNumberField("end", end);
+			json.writeArrayFieldStart("entry");
+			final Iterator<SampledValue> it = timeSeries.iterator(start, end);
+			SampledValue sv;
+			while (it.hasNext()) {
+				sv = it.next();
+				json.writeStartObject();
+				json.writeStringField(JSON_TYPE, st.entryType);
+				json.writeNumberField("time", sv.getTimestamp());
+				json.writeStringField("quality", sv.getQuality().name());
+				st.writeJson(sv.getValue(), json);
+				json.writeEndObject();
+			}
+			json.writeEndArray();
+			json.writeEndObject();
+		}
+	}
+	
+	/**
+	 * Read the entries of an OGEMA schedule resource in XML format, and pass those in the 
+	 * interval [start, end] to the consumer, in batches of at most batchSize values.
+	 * @param reader
+	 * @param start
+	 * @param end
+	 * @param batchSize
+	 * @param batchConsumer
+	 * @return
+	 * 		the number of values read
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 * 		if the document does not represent a schedule
+	 */
+	public static long readXml(final Reader reader, final long start, final long end, 
+			final int batchSize, final Consumer<List<SampledValue>> batchConsumer) throws IOException {
+		final Batcher batcher = new Batcher(start, end, batchSize, batchConsumer);
+		try {
+			final XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			final XMLStreamReader xml = factory.createXMLStreamReader(reader);
+			try {
+				xml.nextTag();
+				checkScheduleType(localName(xml.getAttributeValue(NS_XSI, "type")));
+				int depth = 1;
+				while (depth > 0) {
+					switch (xml.next()) {
+					case XMLStreamConstants.START_ELEMENT:
+						if (depth == 1 && "entry".equals(xml.getLocalName()))
+							batcher.add(readXmlEntry(xml));
+						else {
+							skipXmlElement(xml);
+						}
+						break;
+					case XMLStreamConstants.END_ELEMENT:
+						depth--;
+						break;
+					default:
+					}
+				}
+			} finally {
+				xml.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+		return batcher.finish();
+	}
+	
+	/**
+	 * Read the entries of an OGEMA schedule resource in JSON format, and pass those in the 
+	 * interval [start, end] to the consumer, in batches of at most batchSize values.
+	 * @param reader
+	 * @param start
+	 * @param end
+	 * @param batchSize
+	 * @param batchConsumer
+	 * @return
+	 * 		the number of values read
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 * 		if the document does not represent a schedule
+	 */
+	public static long readJson(final Reader reader, final long start, final long end, 
+			final int batchSize, final Consumer<List<SampledValue>> batchConsumer) throws IOException {
+		final Batcher batcher = new Batcher(start, end, batchSize, batchConsumer);
+		try (final JsonParser json = jsonFactory.createParser(reader)) {
+			if (json.nextToken() != JsonToken.START_OBJECT)
+				throw new IllegalArgumentException("JSON object expected");
+			while (json.nextToken() == JsonToken.FIELD_NAME) {
+				final String field = json.getCurrentName();
+				final JsonToken token = json.nextToken();
+				if (JSON_TYPE.equals(field)) {
+					checkScheduleType(json.getText());
+				} else if ("entry".equals(field) && token == JsonToken.START_ARRAY) {
+					while (json.nextToken() == JsonToken.START_OBJECT) {
+						batcher.add(readJsonEntry(json));
+					}
+				} else {
+					json.skipChildren();
+				}
+			}
+		}
+		return batcher.finish();
+	}
+	
+	private static void writeXmlElement(final XMLStreamWriter xml, final String name, final String value) throws XMLStreamException {
+		xml.writeStartElement(name);
+		xml.writeCharacters(value);
+		xml.writeEndElement();
+	}
+	
+	// expects the reader to be positioned at the start element; leaves it at the corresponding end element
+	private static void skipXmlElement(final XMLStreamReader xml) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			final int event = xml.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+				depth++;
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				depth--;
+		}
+	}
+	
+	private static SampledValue readXmlEntry(final XMLStreamReader xml) throws XMLStreamException {
+		final SerializationType st = SerializationType.forEntryType(localName(xml.getAttributeValue(NS_XSI, "type")));
+		Long time = null;
+		Quality quality = Quality.GOOD;
+		String value = null;
+		while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (xml.getLocalName()) {
+			case "time":
+				time = Long.parseLong(xml.getElementText().trim());
+				break;
+			case "quality":
+				quality = Quality.valueOf(xml.getElementText().trim());
+				break;
+			case "value":
+				value = xml.getElementText().trim();
+				break;
+			default:
+				skipXmlElement(xml);
+			}
+		}
+		return createValue(st, time, quality, value);
+	}
+	
+	private static SampledValue readJsonEntry(final JsonParser json) throws IOException {
+		SerializationType st = SerializationType.FLOAT;
+		Long time = null;
+		Quality quality = Quality.GOOD;
+		String value = null;
+		while (json.nextToken() == JsonToken.FIELD_NAME) {
+			final String field = json.getCurrentName();
+			json.nextToken();
+			switch (field) {
+			case JSON_TYPE:
+				st = SerializationType.forEntryType(json.getText());
+				break;
+			case "time":
+				time = json.getValueAsLong();
+				break;
+			case "quality":
+				quality = Quality.valueOf(json.getText());
+				break;
+			case "value":
+				value = json.getText();
+				break;
+			default:
+				json.skipChildren();
+			}
+		}
+		return createValue(st, time, quality, value);
+	}
+	
+	private static SampledValue createValue(final SerializationType st, final Long time, final Quality quality, final String value) {
+		if (time == null || value == null)
+			throw new IllegalArgumentException("Schedule entry without time or value");
+		return new SampledValue(st.parse(value), time, quality);
+	}
+	
+	private static void checkScheduleType(final String type) {
+		if (type == null || !type.endsWith("Schedule"))
+			throw new IllegalArgumentException("Uploaded XML/JSON file does not contain a schedule; got instead " + type);
+	}
+	
+	private static String localName(final String qname) {
+		if (qname == null)
+			return null;
+		return qname.substring(qname.indexOf(':') + 1);
+	}
+	
+	private static enum SerializationType {
+		
+		FLOAT("FloatSchedule", "SampledFloat"),
+		INTEGER("IntegerSchedule", "SampledInteger"),
+		TIME("TimeSchedule", "SampledTime"),
+		BOOLEAN("BooleanSchedule", "SampledBoolean"),
+		STRING("StringSchedule", "SampledString"),
+		OPAQUE("OpaqueSchedule", "SampledOpaque");
+		
+		final String scheduleType;
+		final String entryType;
+		
+		private SerializationType(String scheduleType, String entryType) {
+			this.scheduleType = scheduleType;
+			this.entryType = entryType;
+		}
+		
+		static SerializationType forValueType(final Class<?> type) {
+			if (type == null || type == Float.class)
+				return FLOAT;
+			if (type == Integer.class)
+				return INTEGER;
+			if (type == Long.class)
+				return TIME;
+			if (type == Boolean.class)
+				return BOOLEAN;
+			if (type == String.class)
+				return STRING;
+			if (type == Byte.class)
+				return OPAQUE;
+			throw new IllegalArgumentException("Type " + type.getName() + " not admissible");
+		}
+		
+		// unknown types are treated as float
+		static SerializationType forEntryType(final String entryType) {
+			for (SerializationType st : values()) {
+				if (st.entryType.equals(entryType))
+					return st;
+			}
+			return FLOAT;
+		}
+		
+		String toString(final Value value) {
+			switch (this) {
+			case INTEGER:
+				return String.valueOf(value.getIntegerValue());
+			case TIME:
+				return String.valueOf(value.getLongValue());
+			case BOOLEAN:
+				return String.valueOf(value.getBooleanValue());
+			case STRING:
+				return value.getStringValue();
+			case OPAQUE:
+				return Base64.getEncoder().encodeToString(value.getByteArrayValue());
+			default:
+				return String.valueOf(value.getFloatValue());
+			}
+		}
+		
+		void writeJson(final Value value, final JsonGenerator json) throws IOException {
+			switch (this) {
+			case INTEGER:
+				json.writeNumberField("value", value.getIntegerValue());
+				break;
+			case TIME:
+				json.writeNumberField("value", value.getLongValue());
+				break;
+			case BOOLEAN:
+				json.writeBooleanField("value", value.getBooleanValue());
+				break;
+			case FLOAT:
+				json.writeNumberField("value", value.getFloatValue());
+				break;
+			default:
+				json.writeStringField("value", toString(value));
+			}
+		}
+		
+		Value parse(final String value) {
+			switch (this) {
+			case INTEGER:
+				return new IntegerValue(Integer.parseInt(value));
+			case TIME:
+				return new LongValue(Long.parseLong(value));
+			case BOOLEAN:
+				return new BooleanValue(Boolean.parseBoolean(value));
+			case STRING:
+				return new StringValue(value);
+			case OPAQUE:
+				return new ByteArrayValue(Base64.getDecoder().decode(value));
+			default:
+				return new FloatValue(Float.parseFloat(value));
+			}
+		}
+		
+	}
+	
+	private static class Batcher {
+		
+		private final long start;
+		private final long end;
+		private final int batchSize;
+		private final Consumer<List<SampledValue>> batchConsumer;
+		private List<SampledValue> batch;
+		private long count = 0;
+		
+		Batcher(long start, long end, int batchSize, Consumer<List<SampledValue>> batchConsumer) {
+			if (batchSize <= 0)
+				throw new IllegalArgumentException("Batch size must be positive, got " + batchSize);
+			this.start = start;
+			this.end = end;
+			this.batchSize = batchSize;
+			this.batchConsumer = batchConsumer;
+			this.batch = new ArrayList<>(Math.min(batchSize, 1024));
+		}
+		
+		void add(final SampledValue value) {
+			if (value.getTimestamp() < start || value.getTimestamp() > end)
+				return;
+			batch.add(value);
+			if (batch.size() >= batchSize) {
+				batchConsumer.accept(batch);
+				count += batch.size();
+				batch = new ArrayList<>(Math.min(batchSize, 1024));
+			}
+		}
+		
+		long finish() {
+			if (!batch.isEmpty()) {
+				batchConsumer.accept(batch);
+				count += batch.size();
+			}
+			return count;
+		}
+		
+	}
+
+}
@@ -22,6 +22,7 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.Consumer;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
@@ -37,6 +38,8 @@ import de.iwes.widgets.api.widgets.localisation.OgemaLocale;
 
 public class CsvGenerator implements FileBasedPersistence {
 	
+	private static final int BATCH_SIZE = 10000;
+	
 	@Override
 	public String id() {
 		return "csvgenerator";
@@ -81,11 +84,23 @@ public class CsvGenerator implements FileBasedPersistence {
 	
 	@Override
 	public List<SampledValue> parseFile(FileItem file, Class<?> type, String separator, long start, long end) throws IOException {
+		final List<SampledValue> values = new ArrayList<>();
+		parseFile(file, type, separator, start, end, BATCH_SIZE, values::addAll);
+		return values;
+	}
+	
+	@Override
+	public long parseFile(FileItem file, Class<?> type, String separator, long start, long end, 
+			int batchSize, Consumer<List<SampledValue>> batchConsumer) throws IOException {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("Batch size must be positive, got " + batchSize);
 		char delimiter = ';';
 		if (separator != null && !separator.isEmpty()) 
 			delimiter = separator.charAt(0);
 		CSVFormat format = CSVFormat.DEFAULT.withDelimiter(delimiter);
-		final List<SampledValue> values = new ArrayList<>();
+		// the parser reads records lazily, so only the current batch is kept in memory
+		List<SampledValue> batch = new ArrayList<>(Math.min(batchSize, BATCH_SIZE));
+		long cnt = 0;
 		try (BufferedReader reader = new BufferedReader(new InputStreamReader(file.getInputStream(), "UTF-8"))) {
 			try (CSVParser parser = new CSVParser(reader, format)) {
 				long timestamp;
@@ -99,20 +114,33 @@ public class CsvGenerator implements FileBasedPersistence {
 						continue;
 					}
 					value = Float.parseFloat(record.get(1));
-					values.add(new SampledValue(new FloatValue(value), timestamp, Quality.GOOD));	
+					batch.add(new SampledValue(new FloatValue(value), timestamp, Quality.GOOD));
+					if (batch.size() >= batchSize) {
+						batchConsumer.accept(batch);
+						cnt += batch.size();
+						batch = new ArrayList<>(Math.min(batchSize, BATCH_SIZE));
+					}
 				}
 			}
 		}
-		return values;
+		if (!batch.isEmpty()) {
+			batchConsumer.accept(batch);
+			cnt += batch.size();
+		}
+		return cnt;
 	}
 
 	@Override
 	public void generate(ReadOnlyTimeSeries timeSeries, String options, Class<?> type, Writer writer) throws IOException, IllegalArgumentException {
+		// values are written one by one, the time series iterator need not load all of them at once
 		Iterator<SampledValue> it  =timeSeries.iterator();
 		SampledValue sv;
 		while (it.hasNext()) {
 			sv = it.next();
-			writer.write(sv.getTimestamp() + options + TypeUtils.getValue(sv.getValue(), type) + "\n");
+			writer.write(Long.toString(sv.getTimestamp()));
+			writer.write(options);
+			writer.write(String.valueOf(TypeUtils.getValue(sv.getValue(), type)));
+			writer.write('\n');
 		}
 		writer.flush();
 	}
@@ -15,9 +15,13 @@
  */
 package org.smartrplace.tools.schedule.management.types;
 
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import org.ogema.core.model.Resource;
@@ -29,23 +33,91 @@ import org.ogema.core.model.simple.TimeResource;
 import org.ogema.core.model.units.PhysicalUnitResource;
 import org.ogema.core.recordeddata.RecordedData;
 import org.ogema.core.resourcemanager.ResourceAccess;
+import org.ogema.core.resourcemanager.ResourceDemandListener;
 import org.ogema.tools.resource.util.LoggingUtils;
 import org.smartrplace.tools.schedule.management.imports.OgemaDataSource;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-
 import de.iwes.widgets.api.widgets.localisation.OgemaLocale;
 import de.iwes.widgets.html.form.dropdown.DropdownOption;
 
+/**
+ * Keeps an index of all single value resources, bucketed by resource type. The index is filled 
+ * by a single scan on first access, and maintained by a resource demand afterwards. Each bucket 
+ * also maintains the subset of logged resources incrementally: the logging state of a new resource 
+ * is evaluated once on the next lookup, and again whenever its log data is requested. Since enabling or 
+ * disabling logging is not signalled by resource events, every lookup furthermore re-evaluates a 
+ * bounded number of resources of a bucket in a round-robin fashion, so that such changes are 
+ * picked up eventually without rescanning the whole bucket.
+ */
 public class LogData implements OgemaDataSource<RecordedData, Class<? extends SingleValueResource>> {
 
+	// max number of resources per bucket whose logging state is re-evaluated on a lookup
+	private static final int LOGGING_STATE_REFRESH_BATCH = 250;
+	private static final List<Class<? extends SingleValueResource>> BASE_TYPES;
+	
+	static {
+		final List<Class<? extends SingleValueResource>> types = new ArrayList<>();
+		types.add(SingleValueResource.class);
+		types.add(FloatResource.class);
+		types.add(IntegerResource.class);
+		types.add(BooleanResource.class);
+		types.add(TimeResource.class);
+		types.add(PhysicalUnitResource.class);
+		BASE_TYPES = Collections.unmodifiableList(types);
+	}
+	
 	private final ResourceAccess ra;
-	private final Cache<Class<? extends SingleValueResource>, List<SingleValueResource>> cache = CacheBuilder.newBuilder().softValues().build();
-	private volatile SoftReference<List<Class<? extends SingleValueResource>>> types = new SoftReference<List<Class<? extends SingleValueResource>>>(null);
+	private final Map<Class<?>, Bucket> buckets = new ConcurrentHashMap<>();
+	private final ResourceDemandListener<SingleValueResource> listener = new ResourceDemandListener<SingleValueResource>() {
+		
+		@Override
+		public void resourceAvailable(SingleValueResource resource) {
+			add(resource);
+		}
+		
+		@Override
+		public void resourceUnavailable(SingleValueResource resource, boolean isDeleted) {
+			// inactive resources may still have log data
+			if (isDeleted) {
+				final Bucket bucket = buckets.get(resource.getResourceType());
+				if (bucket != null)
+					bucket.remove(resource);
+			}
+		}
+		
+	};
+	private volatile boolean initialized;
 	
 	public LogData(ResourceAccess ra) {
 		this.ra = ra;
+		ra.addResourceDemand(SingleValueResource.class, listener);
+	}
+	
+	/**
+	 * Stop maintaining the index.
+	 */
+	public void close() {
+		ra.removeResourceDemand(SingleValueResource.class, listener);
+		buckets.clear();
+		initialized = false;
+	}
+	
+	private void add(final SingleValueResource resource) {
+		buckets.computeIfAbsent(resource.getResourceType(), type -> new Bucket()).add(resource);
+	}
+	
+	private void init() {
+		if (initialized)
+			return;
+		synchronized (this) {
+			if (initialized)
+				return;
+			// inactive resources are not reported by the demand
+			for (SingleValueResource svr : ra.getResources(SingleValueResource.class)) {
+				add(svr);
+			}
+			initialized = true;
+		}
 	}
 	
 	@Override
@@ -63,22 +135,20 @@ public class LogData implements OgemaDataSource<RecordedData, Class<? extends Si
 		return "Log data for OGEMA resources";
 	}
 
-	// potentially expensive -> cache
 	@Override
 	public List<DropdownOption> getAllTimeseries(Class<? extends SingleValueResource> type) {
 		if (type == null)
 			type = SingleValueResource.class;
-		List<SingleValueResource> loggedResources = cache.getIfPresent(type);
-		if (loggedResources == null) {
-			loggedResources = new ArrayList<>();
-			for (SingleValueResource svr : ra.getResources(SingleValueResource.class)) {
-				if (LoggingUtils.isLoggingEnabled(svr)) 
-					loggedResources.add(svr);
-			}
-			cache.put(type, loggedResources);
+		init();
+		final List<SingleValueResource> loggedResources = new ArrayList<>();
+		for (Map.Entry<Class<?>, Bucket> entry : buckets.entrySet()) {
+			if (type.isAssignableFrom(entry.getKey()))
+				loggedResources.addAll(entry.getValue().getLoggedResources());
 		}
 		List<DropdownOption> opts = loggedResources.stream()
-				.map(resource -> new DropdownOption(resource.getPath(), resource.getPath(), false))
+				.map(Resource::getPath)
+				.sorted()
+				.map(path -> new DropdownOption(path, path, false))
 				.collect(Collectors.toList());
 		if (!opts.isEmpty())
 			opts.get(0).select(true);
@@ -92,37 +162,95 @@ public class LogData implements OgemaDataSource<RecordedData, Class<? extends Si
 			return null;
 		if (type != null && !type.isAssignableFrom(res.getResourceType()))
 			return null;
+		final Bucket bucket = buckets.get(res.getResourceType());
+		if (bucket != null)
+			bucket.update((SingleValueResource) res);
 		return LoggingUtils.getHistoricalData((SingleValueResource) res);
 	}
 	
 	@SuppressWarnings("unchecked")
 	@Override
 	public List<Class<? extends SingleValueResource>> getHighLevelOptions() {
-		List<Class<? extends SingleValueResource>> types = this.types.get();
-		if (types == null) {
-			types = new ArrayList<>();
-			types.add(SingleValueResource.class);
-			types.add(FloatResource.class);
-			types.add(IntegerResource.class);
-			types.add(BooleanResource.class);
-			types.add(TimeResource.class);
-			types.add(PhysicalUnitResource.class);
-			List<PhysicalUnitResource> purs = ra.getResources(PhysicalUnitResource.class);
-			Class<? extends SingleValueResource> type;
-			for (PhysicalUnitResource pur : purs) { 
-				type = (Class<? extends SingleValueResource>) pur.getResourceType();
-				if (!types.contains(type))
-					types.add(type);
-			}
-			this.types = new SoftReference<List<Class<? extends SingleValueResource>>>(types);
-		}
+		init();
+		final List<Class<? extends SingleValueResource>> types = new ArrayList<>(BASE_TYPES);
+		buckets.entrySet().stream()
+			.filter(entry -> PhysicalUnitResource.class.isAssignableFrom(entry.getKey()) && !entry.getValue().isEmpty())
+			.map(entry -> (Class<? extends SingleValueResource>) entry.getKey())
+			.filter(type -> !types.contains(type))
+			.sorted(Comparator.comparing(Class::getSimpleName))
+			.forEach(types::add);
 		return types;
 	}
 
+	/**
+	 * Forces a re-evaluation of the logging state of all resources on the next lookup; 
+	 * the index itself is kept up to date anyway.
+	 */
 	@Override
 	public void clearCache() {
-		cache.asMap().clear();
-		types = new SoftReference<List<Class<? extends SingleValueResource>>>(null);
+		buckets.values().forEach(Bucket::invalidate);
+	}
+	
+	private static class Bucket {
+		
+		private final Map<String, SingleValueResource> resources = new ConcurrentHashMap<>();
+		private final Map<String, SingleValueResource> logged = new ConcurrentHashMap<>();
+		// resources whose logging state has not been evaluated yet
+		private final Map<String, SingleValueResource> pending = new ConcurrentHashMap<>();
+		// synchronized on this
+		private Iterator<SingleValueResource> refreshIterator;
+		
+		void add(SingleValueResource resource) {
+			if (resources.put(resource.getPath(), resource) == null)
+				pending.put(resource.getPath(), resource);
+		}
+		
+		void remove(SingleValueResource resource) {
+			final String path = resource.getPath();
+			resources.remove(path);
+			pending.remove(path);
+			logged.remove(path);
+		}
+		
+		void update(SingleValueResource resource) {
+			final String path = resource.getPath();
+			if (!resources.containsKey(path))
+				return;
+			pending.remove(path);
+			if (resource.exists() && LoggingUtils.isLoggingEnabled(resource)) {
+				logged.put(path, resource);
+				// concurrently removed
+				if (!resources.containsKey(path))
+					logged.remove(path);
+			}
+			else
+				logged.remove(path);
+		}
+		
+		void invalidate() {
+			pending.putAll(resources);
+		}
+		
+		boolean isEmpty() {
+			return resources.isEmpty();
+		}
+		
+		synchronized List<SingleValueResource> getLoggedResources() {
+			for (SingleValueResource resource : pending.values()) {
+				update(resource);
+			}
+			final int nrRefresh = Math.min(LOGGING_STATE_REFRESH_BATCH, resources.size());
+			for (int i = 0; i < nrRefresh; i++) {
+				if (refreshIterator == null || !refreshIterator.hasNext()) {
+					refreshIterator = resources.values().iterator();
+					if (!refreshIterator.hasNext())
+						break;
+				}
+				update(refreshIterator.next());
+			}
+			return new ArrayList<>(logged.values());
+		}
+		
 	}
 	
 }
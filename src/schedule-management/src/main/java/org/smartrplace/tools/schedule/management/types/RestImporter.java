@@ -20,84 +20,25 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.Writer;
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.List;
-
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
-import javax.xml.bind.JAXBException;
-import javax.xml.namespace.QName;
+import java.util.function.Consumer;
 
 import org.apache.commons.fileupload.FileItem;
 import org.ogema.core.channelmanager.measurements.SampledValue;
 import org.ogema.core.timeseries.ReadOnlyTimeSeries;
-import org.ogema.serialization.JaxbResource;
-import org.ogema.serialization.jaxb.ScheduleResource;
-import org.ogema.tools.impl.ResourceSerializer;
 import org.smartrplace.tools.schedule.management.persistence.FileBasedPersistence;
-import org.smartrplace.tools.schedule.management.serialization.JaxbSchedule;
-
-import com.fasterxml.jackson.databind.AnnotationIntrospector;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.databind.introspect.JacksonAnnotationIntrospector;
-import com.fasterxml.jackson.databind.module.SimpleModule;
-import com.fasterxml.jackson.databind.type.TypeFactory;
+import org.smartrplace.tools.schedule.management.serialization.ScheduleStreamSerializer;
 
 import de.iwes.widgets.api.widgets.localisation.OgemaLocale;
 
-// FIXME serialization not working yet
+/**
+ * Reads and writes the OGEMA REST representation of schedules. Entries are streamed, 
+ * see {@link ScheduleStreamSerializer}, so the schedule is never materialized as a whole.
+ */
 public class RestImporter implements FileBasedPersistence {
 	
-	private static SoftReference<JAXBContext> unmarshallingContext = new SoftReference<JAXBContext>(null);
-	private static SoftReference<ObjectMapper> jsonMapper = new SoftReference<ObjectMapper>(null);
-	private static SoftReference<JAXBContext> marshallingContext = new SoftReference<JAXBContext>(null);
-	
-	static synchronized JAXBContext getUnmarshallingContext() {
-		JAXBContext context = unmarshallingContext.get();
-		if (context == null) {
-			try {
-				// XXX?
-				context = JAXBContext.newInstance("org.ogema.serialization.jaxb",
-						org.ogema.serialization.jaxb.Resource.class.getClassLoader());
-			} catch (JAXBException e) {
-				throw new RuntimeException(e);
-			}
-			unmarshallingContext = new SoftReference<JAXBContext>(context);
-		}
-		return context;
-	}
-	
-	static synchronized JAXBContext getMarshallingContext() {
-		JAXBContext context = marshallingContext.get();
-		if (context == null) {
-			try {
-				// XXX ?
-				context = JAXBContext.newInstance("org.ogema.serialization", JaxbResource.class.getClassLoader());
-			} catch (JAXBException ex) {
-				throw new RuntimeException(ex);
-			}
-			marshallingContext = new SoftReference<JAXBContext>(context);
-		}
-		return context;
-	}	
-	
-	static synchronized ObjectMapper getJsonMapper() {
-		ObjectMapper mapper = jsonMapper.get();
-		if (mapper == null) {
-			AnnotationIntrospector spec = AnnotationIntrospector.pair(new JacksonAnnotationIntrospector(),
-					new com.fasterxml.jackson.module.jaxb.JaxbAnnotationIntrospector(TypeFactory.defaultInstance()));
-			mapper = new ObjectMapper();
-			SimpleModule testModule = new SimpleModule("ScheduleManagement", new com.fasterxml.jackson.core.Version(1, 0, 0, null,null,null));
-			testModule.addSerializer(new ResourceSerializer(mapper));
-			mapper.registerModule(testModule);
-			mapper.setAnnotationIntrospector(spec);
-			mapper.configure(SerializationFeature.INDENT_OUTPUT, true); // TODO configurable
-			jsonMapper = new SoftReference<ObjectMapper>(mapper);
-		}
-		return mapper;
-	}
+	private static final int BATCH_SIZE = 10000;
 	
 	@Override
 	public String id() {
@@ -141,34 +82,28 @@ public class RestImporter implements FileBasedPersistence {
 		return parseFile(file, type, separator, Long.MIN_VALUE, Long.MAX_VALUE);
 	}
 	
-	// TODO evaluate start and end time, and type
-	@SuppressWarnings("rawtypes") 
 	@Override
 	public List<SampledValue> parseFile(FileItem file, Class<?> type, String options, long start, long end) throws IOException {
-		options = options.trim().toLowerCase();
 		final List<SampledValue> values = new ArrayList<>();
-		final org.ogema.serialization.jaxb.Resource result;
+		parseFile(file, type, options, start, end, BATCH_SIZE, values::addAll);
+		return values;
+	}
+	
+	// the value type is determined by the file content
+	@Override
+	public long parseFile(FileItem file, Class<?> type, String options, long start, long end,
+			int batchSize, Consumer<List<SampledValue>> batchConsumer) throws IOException {
+		options = options.trim().toLowerCase();
 		try (final Reader reader = new BufferedReader(new InputStreamReader(file.getInputStream(), "UTF-8"))) {
 			switch (options) {
 			case "json":
-				result = getJsonMapper().readValue(reader, org.ogema.serialization.jaxb.Resource.class);
-				break;
+				return ScheduleStreamSerializer.readJson(reader, start, end, batchSize, batchConsumer);
 			case "xml":
-				result = (org.ogema.serialization.jaxb.Resource) ((JAXBElement) getUnmarshallingContext().createUnmarshaller().unmarshal(reader)).getValue();
-				break;
+				return ScheduleStreamSerializer.readXml(reader, start, end, batchSize, batchConsumer);
 			default:
 				throw new IllegalArgumentException("Invalid option " + options + ", must be either \"json\" or \"xml\".");
 			}
-		} catch (JAXBException e) {
-			throw new RuntimeException(e);
-		}
-		if (!(result instanceof ScheduleResource)) 
-			throw new IllegalArgumentException("Uploaded XML/JSON file does not contain a schedule; got instead " + result.getClass().getSimpleName());
-		ScheduleResource schedule = (ScheduleResource) result;
-		for (org.ogema.serialization.jaxb.SampledValue svSer: schedule.getEntry()) {
-			values.add(new SampledValue(svSer.createOgemaValue(), svSer.getTime(), svSer.getQuality()));
 		}
-		return values;
 	}
 	
 	@Override
@@ -179,18 +114,12 @@ public class RestImporter implements FileBasedPersistence {
 	@Override
 	public void generate(ReadOnlyTimeSeries timeSeries, String options, Class<?> type, Writer writer) throws IOException, IllegalArgumentException {
 		options = options.trim().toLowerCase();
-		org.smartrplace.tools.schedule.management.serialization.JaxbSchedule<?> schedule = TypeUtils.getSchedule(timeSeries, type);
 		switch (options) {
 		case "xml":
-			try {
-				JAXBElement<?> el = new JAXBElement<>(new QName(JaxbResource.NS_OGEMA_REST, "resource", "og"), JaxbSchedule.class, schedule);
-				getMarshallingContext().createMarshaller().marshal(el, writer);
-			} catch (JAXBException e) {
-				throw new RuntimeException(e);
-			}
+			ScheduleStreamSerializer.writeXml(timeSeries, type, Long.MIN_VALUE, Long.MAX_VALUE, writer);
 			break;
 		case "json":
-			getJsonMapper().writeValue(writer, schedule);
+			ScheduleStreamSerializer.writeJson(timeSeries, type, Long.MIN_VALUE, Long.MAX_VALUE, writer);
 			break;
 		default:
 			throw new IllegalArgumentException("invalid type " + options + ", must be \"xml\" or \"json\"");